@@ -4,6 +4,8 @@
  */
 package com.datatorrent.contrib.dimensions;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -13,6 +15,7 @@ import javax.validation.constraints.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.apex.malhar.lib.dimensions.DimensionsDescriptor;
 import org.apache.apex.malhar.lib.dimensions.DimensionsEvent;
 import org.apache.apex.malhar.lib.dimensions.DimensionsEvent.Aggregate;
 import org.apache.apex.malhar.lib.dimensions.DimensionsEvent.EventKey;
@@ -26,6 +29,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import com.datatorrent.contrib.hdht.HDHTReader.HDSQuery;
+import com.datatorrent.contrib.hdht.HDHTReader.HDSRangeQuery;
 import com.datatorrent.lib.appdata.gpo.GPOMutable;
 import com.datatorrent.lib.appdata.query.QueryExecutor;
 import com.datatorrent.lib.appdata.schemas.DataQueryDimensional;
@@ -97,8 +101,25 @@ public class DimensionsQueryExecutor implements QueryExecutor<DataQueryDimension
 
     boolean allSatisfied = true;
 
+    //results fetched before aggregates are written are only cached if the version is unchanged
+    QueryResultCache resultCache = operator.queryResultCache;
+    long resultCacheVersion = resultCache == null ? 0L : resultCache.getVersion();
+    //the aggregates served from the result cache, these can not change
+    Set<GPOMutable> cachedAggregates = Sets.newIdentityHashSet();
+
+    if (qm.getRangeQueries() != null) {
+      //the query scans time series, there are no HDSQueries
+      allSatisfied = getRangeQueryResults(query,
+          qm,
+          keysEventKeys,
+          keys,
+          results,
+          resultCacheVersion,
+          cachedAggregates);
+    }
+
     //loops through all of the issues HDSQueries
-    for (int index = 0; index < queries.size(); index++) {
+    for (int index = 0; queries != null && index < queries.size(); index++) {
       //Get the query and keys for this time bucket
       Map<String, HDSQuery> aggregatorToQuery = queries.get(index);
       Map<String, EventKey> aggregatorToEventKey = eventKeys.get(index);
@@ -108,8 +129,8 @@ public class DimensionsQueryExecutor implements QueryExecutor<DataQueryDimension
       Map<String, GPOMutable> aggregatorKeys = Maps.newHashMap();
       Map<String, GPOMutable> aggregatorResults = Maps.newHashMap();
 
-      //loop over aggregators
-      for (String aggregatorName : aggregatorToQuery.keySet()) {
+      //loop over aggregators, there is no HDSQuery for results which were cached when the query was enqueued
+      for (String aggregatorName : aggregatorToEventKey.keySet()) {
         //Get the original query and key for this timebucket/aggregator combination
         HDSQuery hdsQuery = aggregatorToQuery.get(aggregatorName);
         EventKey eventKey = aggregatorToEventKey.get(aggregatorName);
@@ -124,6 +145,14 @@ public class DimensionsQueryExecutor implements QueryExecutor<DataQueryDimension
           LOG.debug("Retrieved from cache. {} {}", aggregatorName, gae.getEventKey());
 
           //Add result keys and aggregates to result maps
+          aggregatorEventKeys.put(aggregatorName, gae.getEventKey());
+          aggregatorKeys.put(aggregatorName, gae.getKeys());
+          aggregatorResults.put(aggregatorName, gae.getAggregates());
+        } else if (resultCache != null && (gae = resultCache.get(eventKey)) != null) {
+          //Result was fetched by a previous execution and did not change since
+          LOG.debug("Retrieved from result cache. {} {}", aggregatorName, gae.getEventKey());
+          cachedAggregates.add(gae.getAggregates());
+
           aggregatorEventKeys.put(aggregatorName, gae.getEventKey());
           aggregatorKeys.put(aggregatorName, gae.getKeys());
           aggregatorResults.put(aggregatorName, gae.getAggregates());
@@ -132,9 +161,9 @@ public class DimensionsQueryExecutor implements QueryExecutor<DataQueryDimension
 
           //TODO this is inefficient
           //Check if the uncommitted HDHT cache has the data
-          Slice keySlice = new Slice(operator.getEventKeyBytesGAE(eventKey));
-          byte[] value = operator.getUncommitted(operator.getBucketForSchema(schemaDimensional.getSchemaID()),
-              keySlice);
+          Slice keySlice = operator.getEventKeySlice(eventKey);
+          long bucketKey = operator.getBucketForSchema(schemaDimensional.getSchemaID());
+          byte[] value = operator.getUncommitted(bucketKey, keySlice);
 
           if (value != null) {
             LOG.debug("Retrieved from uncommited");
@@ -144,6 +173,14 @@ public class DimensionsQueryExecutor implements QueryExecutor<DataQueryDimension
             aggregatorEventKeys.put(aggregatorName, gae.getEventKey());
             aggregatorKeys.put(aggregatorName, gae.getKeys());
             aggregatorResults.put(aggregatorName, gae.getAggregates());
+          } else if (hdsQuery == null) {
+            //The cached result was invalidated since the query was enqueued, fetch it from HDHT
+            hdsQuery = DimensionsQueueManager.issueHDSQuery(operator,
+                new Slice(operator.getEventKeyBytesGAE(eventKey)),
+                bucketKey,
+                (int)query.getCountdown());
+            aggregatorToQuery.put(aggregatorName, hdsQuery);
+            allSatisfied = false;
           } else if (hdsQuery.result != null) {
             //If the uncommitted cache did not have the result, but the asynchronous HDSQuery did
             gae = operator.getCodec().fromKeyValue(hdsQuery.key, hdsQuery.result);
@@ -158,7 +195,11 @@ public class DimensionsQueryExecutor implements QueryExecutor<DataQueryDimension
             allSatisfied = false;
           }
 
-          if (hdsQuery.processed) {
+          if (gae != null && resultCache != null) {
+            resultCache.put(new EventKey(eventKey), gae, resultCacheVersion);
+          }
+
+          if (hdsQuery != null && hdsQuery.processed) {
             //Refresh the result of the HDSQuery if it's processed.
             hdsQuery.processed = false;
           }
@@ -193,18 +234,128 @@ public class DimensionsQueryExecutor implements QueryExecutor<DataQueryDimension
         rolledKeys,
         rolledResults,
         configurationSchema,
-        query);
+        query,
+        resultCache,
+        cachedAggregates);
 
     return pruneResults(rolledKeys, rolledResults, query, configurationSchema, queueContext);
   }
 
+  /**
+   * Collects the results of the {@link HDSRangeQuery}s of a query which scan time series. One entry is added per time
+   * bucket and key, in the same order as the results of {@link HDSQuery}s. Aggregates in the operator's cache are
+   * more recent than the scanned data and are preferred.
+   *
+   * @param query         The {@link DataQueryDimensional} query.
+   * @param qm            The {@link QueryMeta} holding the range queries.
+   * @param keysEventKeys The list of result event keys to add to.
+   * @param keys          The list of result keys to add to.
+   * @param results       The list of result aggregates to add to.
+   * @param resultCacheVersion The version of the result cache before the results were fetched.
+   * @param cachedAggregates The set to add the aggregates served from the result cache to.
+   * @return True if results were found for all time buckets.
+   */
+  private boolean getRangeQueryResults(DataQueryDimensional query,
+      QueryMeta qm,
+      List<Map<String, EventKey>> keysEventKeys,
+      List<Map<String, GPOMutable>> keys,
+      List<Map<String, GPOMutable>> results,
+      long resultCacheVersion,
+      Set<GPOMutable> cachedAggregates)
+  {
+    QueryResultCache resultCache = operator.queryResultCache;
+    boolean allSatisfied = true;
+    List<Map<String, HDSRangeQuery>> rangeQueries = qm.getRangeQueries();
+    List<Map<String, EventKey>> eventKeys = qm.getEventKeys();
+    int countDown = (int)query.getCountdown();
+
+    //loop through each time to query
+    for (long timestamp = qm.getStartTime(); timestamp <= qm.getEndTime(); timestamp += qm.getTimeBucketMillis()) {
+      for (int index = 0; index < eventKeys.size(); index++) {
+        Map<String, EventKey> aggregatorEventKeys = Maps.newHashMap();
+        Map<String, GPOMutable> aggregatorKeys = Maps.newHashMap();
+        Map<String, GPOMutable> aggregatorResults = Maps.newHashMap();
+
+        for (Map.Entry<String, EventKey> entry : eventKeys.get(index).entrySet()) {
+          String aggregatorName = entry.getKey();
+          //the range query only covers the time buckets which were not cached when the query was enqueued
+          HDSRangeQuery rangeQuery = rangeQueries.get(index).get(aggregatorName);
+          EventKey eventKey = entry.getValue();
+          eventKey.getKey().setField(DimensionsDescriptor.DIMENSION_TIME, timestamp);
+
+          //First check in the operator's DimensionsEvent cache
+          DimensionsEvent gae = operator.cache.get(eventKey);
+
+          if (gae == null && resultCache != null) {
+            gae = resultCache.get(eventKey);
+
+            if (gae != null) {
+              cachedAggregates.add(gae.getAggregates());
+            }
+          }
+
+          Slice keySlice = gae == null ? operator.getEventKeySlice(eventKey) : null;
+
+          if (gae == null && (rangeQuery == null || !isInRange(rangeQuery, keySlice))) {
+            //The cached result was invalidated since the query was enqueued, scan the whole time range
+            rangeQuery = DimensionsQueueManager.issueHDSRangeQuery(operator,
+                eventKey,
+                operator.getBucketForSchema(eventKey.getSchemaID()),
+                qm.getStartTime(),
+                qm.getEndTime(),
+                countDown);
+            rangeQueries.get(index).put(aggregatorName, rangeQuery);
+          } else if (gae == null && rangeQuery.processed) {
+            //the scan result includes the uncommitted data and is updated by the operator
+            byte[] value = rangeQuery.result.get(keySlice);
+
+            if (value != null) {
+              gae = operator.fromKeyValueGAE(keySlice, value);
+
+              if (resultCache != null) {
+                resultCache.put(new EventKey(eventKey), gae, resultCacheVersion);
+              }
+            }
+          }
+
+          if (gae == null) {
+            //The result could not be found in the operator cache or the scanned time series.
+            allSatisfied = false;
+            continue;
+          }
+
+          aggregatorEventKeys.put(aggregatorName, gae.getEventKey());
+          aggregatorKeys.put(aggregatorName, gae.getKeys());
+          aggregatorResults.put(aggregatorName, gae.getAggregates());
+        }
+
+        if (!aggregatorResults.isEmpty()) {
+          //Add results to the result lists
+          keysEventKeys.add(aggregatorEventKeys);
+          keys.add(aggregatorKeys);
+          results.add(aggregatorResults);
+        }
+      }
+    }
+
+    return allSatisfied;
+  }
+
+  private boolean isInRange(HDSRangeQuery rangeQuery, Slice key)
+  {
+    Comparator<Slice> cmp = operator.getKeyComparator();
+    return cmp.compare(rangeQuery.start, key) <= 0 && cmp.compare(key, rangeQuery.end) <= 0;
+  }
+
   private void applyRolling(List<Map<String, EventKey>> keysEventKeys,
       List<Map<String, GPOMutable>> keys,
       List<Map<String, GPOMutable>> results,
       List<Map<String, GPOMutable>> rolledKeys,
       List<Map<String, GPOMutable>> rolledResults,
       DimensionalConfigurationSchema configurationSchema,
-      DataQueryDimensional query)
+      DataQueryDimensional query,
+      QueryResultCache resultCache,
+      Set<GPOMutable> cachedAggregates)
   {
     for (int offset = 0; offset < keys.size() - (query.getSlidingAggregateSize() - 1); offset++) {
       int index = offset + (query.getSlidingAggregateSize() - 1);
@@ -227,24 +378,38 @@ public class DimensionsQueryExecutor implements QueryExecutor<DataQueryDimension
 
       Map<String, GPOMutable> result = Maps.newHashMap();
 
-      if (!aggregators.isEmpty()) {
-        for (int rollingIndex = 0; rollingIndex < query.getSlidingAggregateSize(); rollingIndex++) {
-          Map<String, GPOMutable> currentResult = results.get(offset + rollingIndex);
-          for (String aggregator : aggregators) {
-            IncrementalAggregator incrementalAggregator =
-                configurationSchema.getAggregatorRegistry().getNameToIncrementalAggregator().get(aggregator);
-            GPOMutable aggregate = result.get(aggregator);
-            GPOMutable currentAggregate = currentResult.get(aggregator);
-            EventKey currentEventKey = bucketKeysEventKeys.get(aggregator);
-
-            if (aggregate == null) {
-              result.put(aggregator, currentAggregate);
-            } else {
-              incrementalAggregator.aggregate(new Aggregate(currentEventKey, aggregate),
-                  new Aggregate(currentEventKey, currentAggregate));
-            }
+      for (String aggregator : aggregators) {
+        GPOMutable[] inputs = new GPOMutable[query.getSlidingAggregateSize()];
+        for (int rollingIndex = 0; rollingIndex < inputs.length; rollingIndex++) {
+          inputs[rollingIndex] = results.get(offset + rollingIndex).get(aggregator);
+        }
+
+        if (inputs.length == 1) {
+          result.put(aggregator, inputs[0]);
+          continue;
+        }
+
+        EventKey currentEventKey = bucketKeysEventKeys.get(aggregator);
+        GPOMutable aggregate = resultCache == null ? null : resultCache.getRolled(currentEventKey, inputs);
+
+        if (aggregate == null) {
+          IncrementalAggregator incrementalAggregator =
+              configurationSchema.getAggregatorRegistry().getNameToIncrementalAggregator().get(aggregator);
+          //the inputs may be held by the operator's cache or the result cache and must not change
+          aggregate = new GPOMutable(inputs[0]);
+
+          for (int rollingIndex = 1; rollingIndex < inputs.length; rollingIndex++) {
+            incrementalAggregator.aggregate(new Aggregate(currentEventKey, aggregate),
+                new Aggregate(currentEventKey, inputs[rollingIndex]));
+          }
+
+          if (resultCache != null && cachedAggregates.containsAll(Arrays.asList(inputs))) {
+            //the inputs did not change since they were cached, neither does the rolling aggregate
+            resultCache.putRolled(currentEventKey, inputs, aggregate);
           }
         }
+
+        result.put(aggregator, aggregate);
       }
 
       rolledKeys.add(bucketKeys);
@@ -23,6 +23,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import com.datatorrent.contrib.hdht.HDHTReader.HDSQuery;
+import com.datatorrent.contrib.hdht.HDHTReader.HDSRangeQuery;
 import com.datatorrent.lib.appdata.gpo.GPOMutable;
 import com.datatorrent.lib.appdata.query.AppDataWindowEndQueueManager;
 import com.datatorrent.lib.appdata.schemas.DataQueryDimensional;
@@ -209,6 +210,45 @@ public class DimensionsQueueManager extends AppDataWindowEndQueueManager<DataQue
         gpoKey.setField(DimensionsDescriptor.DIMENSION_TIME_BUCKET, timeBucketId);
       }
 
+      if (operator.isTimeSeriesKeys()) {
+        //the time buckets of a series are contiguous, scan the time range of each series at once
+        List<Map<String, HDSRangeQuery>> rangeQueries = Lists.newArrayList();
+        long timeBucketMillis = query.getCustomTimeBucket().getNumMillis();
+        int countDown = (int)query.getCountdown();
+
+        for (Map<String, EventKey> aggregatorToEventKey : aggregatorToEventKeys) {
+          Map<String, HDSRangeQuery> aggregatorToRangeQueryMap = Maps.newHashMap();
+
+          for (Map.Entry<String, EventKey> entry : aggregatorToEventKey.entrySet()) {
+            EventKey eventKey = entry.getValue();
+            //leave out the time buckets at either end of the range which have cached results
+            long scanStartTime = startTime;
+            while (scanStartTime <= endTime && isCached(eventKey, scanStartTime)) {
+              scanStartTime += timeBucketMillis;
+            }
+            long scanEndTime = endTime;
+            while (scanEndTime > scanStartTime && isCached(eventKey, scanEndTime)) {
+              scanEndTime -= timeBucketMillis;
+            }
+
+            if (scanStartTime <= endTime) {
+              aggregatorToRangeQueryMap.put(entry.getKey(),
+                  issueHDSRangeQuery(operator, eventKey, bucketKey, scanStartTime, scanEndTime, countDown));
+            }
+          }
+
+          rangeQueries.add(aggregatorToRangeQueryMap);
+        }
+
+        QueryMeta qm = new QueryMeta();
+        qm.setEventKeys(aggregatorToEventKeys);
+        qm.setRangeQueries(rangeQueries);
+        qm.setStartTime(startTime);
+        qm.setEndTime(endTime);
+        qm.setTimeBucketMillis(query.getCustomTimeBucket().getNumMillis());
+        return super.enqueue(query, qm, null);
+      }
+
       //loop through each time to query
       for (long timestamp = startTime; timestamp <= endTime; timestamp += query.getCustomTimeBucket().getNumMillis()) {
         for (Map<String, EventKey> aggregatorToEventKey : aggregatorToEventKeys) {
@@ -262,7 +302,28 @@ public class DimensionsQueueManager extends AppDataWindowEndQueueManager<DataQue
       Map<String, HDSQuery> aggregatorToQueryMap,
       String aggregatorName)
   {
+    aggregatorToEventKeyMap.put(aggregatorName, eventKey);
+
+    if (isCached(eventKey)) {
+      //the result is served from a cache, the executor issues the HDSQuery if the cached result is invalidated
+      return;
+    }
+
     Slice key = new Slice(operator.getEventKeyBytesGAE(eventKey));
+    aggregatorToQueryMap.put(aggregatorName, issueHDSQuery(operator, key, bucketKey, (int)query.getCountdown()));
+  }
+
+  /**
+   * Returns the existing {@link HDSQuery} for the given key or adds a new one to the operator.
+   *
+   * @param operator  The {@link DimensionsStoreHDHT} to issue the {@link HDSQuery} against.
+   * @param key       The serialized {@link EventKey} whose value needs to be found.
+   * @param bucketKey The HDHT bucket to issue the {@link HDSQuery} against.
+   * @param countDown The countdown of the original {@link DataQueryDimensional} query.
+   * @return The {@link HDSQuery} for the key.
+   */
+  static HDSQuery issueHDSQuery(DimensionsStoreHDHT operator, Slice key, long bucketKey, int countDown)
+  {
     //reuse the existing HDSQuery for the given key if it exists
     HDSQuery hdsQuery = operator.getQueries().get(key);
 
@@ -279,16 +340,73 @@ public class DimensionsQueueManager extends AppDataWindowEndQueueManager<DataQue
       }
     }
 
-    //get the countdown for the query
-    int countDown = (int)query.getCountdown();
-
     if (hdsQuery.keepAliveCount < countDown) {
       //keep alive time for shared query should be max countdown
       hdsQuery.keepAliveCount = countDown;
     }
 
-    aggregatorToEventKeyMap.put(aggregatorName, eventKey);
-    aggregatorToQueryMap.put(aggregatorName, hdsQuery);
+    return hdsQuery;
+  }
+
+  /**
+   * This is a helper method for issuing {@link HDSRangeQuery}s which scan the time series of an {@link EventKey}
+   * for app data {@link DataQueryDimensional} queries.
+   *
+   * @param operator  The {@link DimensionsStoreHDHT} to issue the {@link HDSRangeQuery} against.
+   * @param eventKey  The {@link EventKey} of the series to scan.
+   * @param bucketKey The HDHT bucket to issue the {@link HDSRangeQuery} against.
+   * @param startTime The first time bucket to scan.
+   * @param endTime   The last time bucket to scan.
+   * @param countDown The countdown of the original {@link DataQueryDimensional} query.
+   * @return The {@link HDSRangeQuery} for the series.
+   */
+  static HDSRangeQuery issueHDSRangeQuery(DimensionsStoreHDHT operator,
+      EventKey eventKey,
+      long bucketKey,
+      long startTime,
+      long endTime,
+      int countDown)
+  {
+    Slice start = operator.getTimeSeriesKey(eventKey, startTime);
+    Slice end = operator.getTimeSeriesKey(eventKey, endTime);
+
+    //reuse the existing HDSRangeQuery for the given range if it exists
+    for (HDSRangeQuery rangeQuery : operator.getRangeQueries()) {
+      if (rangeQuery.bucketKey == bucketKey && rangeQuery.start.equals(start) && rangeQuery.end.equals(end)) {
+        if (rangeQuery.keepAliveCount < countDown) {
+          //keep alive time for shared query should be max countdown
+          rangeQuery.keepAliveCount = countDown;
+        }
+        return rangeQuery;
+      }
+    }
+
+    //no prexisting query, so create a new one
+    HDSRangeQuery rangeQuery = new HDSRangeQuery();
+    rangeQuery.bucketKey = bucketKey;
+    rangeQuery.start = start;
+    rangeQuery.end = end;
+    rangeQuery.keepAliveCount = countDown;
+    operator.addRangeQuery(rangeQuery);
+    return rangeQuery;
+  }
+
+  /**
+   * @return true if the result of the time bucket of the series is in the operator's cache or the query result cache.
+   */
+  private boolean isCached(EventKey eventKey, long timestamp)
+  {
+    eventKey.getKey().setField(DimensionsDescriptor.DIMENSION_TIME, timestamp);
+    return isCached(eventKey);
+  }
+
+  /**
+   * @return true if the result of the {@link EventKey} is in the operator's cache or the query result cache.
+   */
+  private boolean isCached(EventKey eventKey)
+  {
+    QueryResultCache resultCache = operator.queryResultCache;
+    return operator.cache.containsKey(eventKey) || (resultCache != null && resultCache.contains(eventKey));
   }
 
   private static final Logger LOG = LoggerFactory.getLogger(DimensionsQueueManager.class);
@@ -5,11 +5,19 @@
 package com.datatorrent.contrib.dimensions;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.validation.constraints.Min;
 
@@ -28,15 +36,21 @@ import org.apache.commons.lang3.mutable.MutableInt;
 import org.apache.hadoop.classification.InterfaceStability.Unstable;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Chars;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.common.primitives.Shorts;
 
+import com.datatorrent.api.AutoMetric;
+import com.datatorrent.api.Context.OperatorContext;
 import com.datatorrent.api.DefaultOutputPort;
 import com.datatorrent.api.annotation.OperatorAnnotation;
 import com.datatorrent.api.annotation.OutputPortFieldAnnotation;
+import com.datatorrent.common.util.NameableThreadFactory;
 import com.datatorrent.contrib.hdht.AbstractSinglePortHDHTWriter;
 import com.datatorrent.lib.appdata.gpo.GPOByteArrayList;
 import com.datatorrent.lib.appdata.gpo.GPOMutable;
@@ -88,6 +102,11 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
    * This is the byte representation of the current Store Format Version.
    */
   public static final byte[] STORE_FORMAT_VERSION_BYTES = GPOUtils.serializeInt(STORE_FORMAT_VERSION);
+  /**
+   * This is the store format version of stores which lay out keys as time series, see
+   * {@link #isTimeSeriesKeys()}.
+   */
+  public static final int STORE_FORMAT_VERSION_TIME_SERIES = 1;
   /**
    * The number of windows that the operator's {@link Aggregate} cache is preserved for.
    */
@@ -109,6 +128,51 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
    * map are the corresponding {@link Aggregate}s.
    */
   protected transient Map<EventKey, Aggregate> cache = new ConcurrentHashMap<EventKey, Aggregate>();
+  /**
+   * The {@link EventKey}s of the {@link Aggregate}s in the cache which were created or updated in the
+   * current window. Only these aggregates are written to HDHT at the end of the window.
+   */
+  protected transient Set<EventKey> dirtyEventKeys = Sets.newHashSet();
+  /**
+   * The number of aggregates written to HDHT in the last window.
+   */
+  @AutoMetric
+  protected transient long dirtyAggregates;
+  /**
+   * The number of aggregates held in the cache at the end of the last window.
+   */
+  @AutoMetric
+  protected transient long cachedAggregates;
+  /**
+   * The number of cache misses which are parked before they are looked up together in the data files
+   * on a background thread. 0 loads each miss synchronously.
+   */
+  @Min(0)
+  private int asyncLoadBatchSize = 0;
+  /**
+   * The cache misses waiting for the stored aggregate. Events for a parked key are aggregated into the
+   * delta of the {@link PendingLoad} until the stored aggregate arrives.
+   */
+  protected transient Map<EventKey, PendingLoad> pendingLoads = Maps.newHashMap();
+  /**
+   * The parked cache misses of each bucket which were not yet handed to the load executor.
+   */
+  private transient Map<Long, List<PendingLoad>> parkedLoads = Maps.newHashMap();
+  private transient int parkedLoadCount;
+  /**
+   * The batches of cache misses being looked up by the load executor, in submission order.
+   */
+  private transient List<LoadBatch> submittedLoads = Lists.newArrayList();
+  private transient ExecutorService loadExecutor;
+  /**
+   * The maximum number of query results cached for repeated queries, 0 disables the cache.
+   */
+  @Min(0)
+  private int queryResultCacheSize = 0;
+  /**
+   * The results fetched by the query executor, the results of aggregates written by this operator are invalidated.
+   */
+  transient QueryResultCache queryResultCache;
 
   /**
    * The computation for composite aggregators need to get the aggregates of embed incremental aggregator.
@@ -146,9 +210,24 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
 
   private Long minTimestamp = null;
   private Long maxTimestamp = null;
+  /**
+   * Lay out keys so the aggregates of a series are contiguous in time.
+   */
+  private boolean timeSeriesKeys = false;
 
   private final transient GPOByteArrayList bal = new GPOByteArrayList();
   private final transient GPOByteArrayList tempBal = new GPOByteArrayList();
+  /**
+   * Keys are encoded by the operator thread and the query executor, each thread encodes into its own buffer.
+   */
+  private final transient ThreadLocal<EventKeyEncoder> eventKeyEncoder = new ThreadLocal<EventKeyEncoder>()
+  {
+    @Override
+    protected EventKeyEncoder initialValue()
+    {
+      return new EventKeyEncoder();
+    }
+  };
 
   protected Aggregate tmpCompositeDestAggregate = new Aggregate();
   /**
@@ -159,6 +238,32 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
     //Do nothing
   }
 
+  @Override
+  public void setup(OperatorContext context)
+  {
+    super.setup(context);
+
+    if (asyncLoadBatchSize > 0) {
+      loadExecutor = Executors.newSingleThreadExecutor(new NameableThreadFactory(this.getClass().getSimpleName() +
+          "-Loader"));
+    }
+
+    if (queryResultCacheSize > 0) {
+      queryResultCache = new QueryResultCache(queryResultCacheSize);
+    }
+  }
+
+  @Override
+  public void teardown()
+  {
+    if (loadExecutor != null) {
+      loadExecutor.shutdownNow();
+      loadExecutor = null;
+    }
+
+    super.teardown();
+  }
+
   /**
    * This is a helper method that is used to retrieve the aggregator ID corresponding to an aggregatorName.
    *
@@ -239,34 +344,50 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
    * @param eventKey The {@link EventKey} to serialize.
    * @return The serialized {@link EventKey}.
    */
-  public synchronized byte[] getEventKeyBytesGAE(EventKey eventKey)
+  public byte[] getEventKeyBytesGAE(EventKey eventKey)
+  {
+    Slice keySlice = getEventKeySlice(eventKey);
+    return Arrays.copyOf(keySlice.buffer, keySlice.length);
+  }
+
+  /**
+   * Serializes the given {@link EventKey} into a buffer owned by the calling thread. The returned {@link Slice}
+   * is overwritten by the next key serialized on the same thread, so it is only suitable for lookups. Use
+   * {@link #getEventKeyBytesGAE(EventKey)} for keys which are retained.
+   *
+   * @param eventKey The {@link EventKey} to serialize.
+   * @return The serialized {@link EventKey}.
+   */
+  public Slice getEventKeySlice(EventKey eventKey)
+  {
+    return eventKeyEncoder.get().encode(eventKey, getTimestamp(eventKey), timeSeriesKeys);
+  }
+
+  /**
+   * Serializes the key of the given {@link EventKey}'s series at the given time. Only valid for stores which lay
+   * out keys as time series, where all keys of a series between two times are within the range of their series keys.
+   *
+   * @param eventKey The {@link EventKey} of the series, its time is ignored.
+   * @param timestamp The time of the key.
+   * @return The serialized key.
+   */
+  public Slice getTimeSeriesKey(EventKey eventKey, long timestamp)
   {
-    long timestamp = 0;
+    Preconditions.checkState(timeSeriesKeys, "Keys are not laid out as time series.");
+    Slice keySlice = eventKeyEncoder.get().encode(eventKey, timestamp, true);
+    return new Slice(Arrays.copyOf(keySlice.buffer, keySlice.length));
+  }
 
+  private static long getTimestamp(EventKey eventKey)
+  {
     if (eventKey.getKey()
         .getFieldDescriptor().getFieldList()
         .contains(DimensionsDescriptor.DIMENSION_TIME)) {
       //If key includes a time stamp retrieve it.
-      timestamp = eventKey.getKey().getFieldLong(DimensionsDescriptor.DIMENSION_TIME);
+      return eventKey.getKey().getFieldLong(DimensionsDescriptor.DIMENSION_TIME);
     }
 
-    //Time is a special case for HDHT all keys should be prefixed by a timestamp.
-    byte[] timeBytes = Longs.toByteArray(timestamp);
-    byte[] schemaIDBytes = Ints.toByteArray(eventKey.getSchemaID());
-    byte[] dimensionDescriptorIDBytes = Ints.toByteArray(eventKey.getDimensionDescriptorID());
-    byte[] aggregatorIDBytes = Ints.toByteArray(eventKey.getAggregatorID());
-    byte[] gpoBytes = GPOUtils.serialize(eventKey.getKey(), tempBal);
-
-    bal.add(timeBytes);
-    bal.add(schemaIDBytes);
-    bal.add(dimensionDescriptorIDBytes);
-    bal.add(aggregatorIDBytes);
-    bal.add(gpoBytes);
-
-    byte[] serializedBytes = bal.toByteArray();
-    bal.clear();
-
-    return serializedBytes;
+    return 0;
   }
 
   /**
@@ -306,7 +427,7 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
    */
   public Aggregate fromKeyValueGAE(Slice key, byte[] aggregate)
   {
-    MutableInt offset = new MutableInt(Type.LONG.getByteSize());
+    MutableInt offset = new MutableInt(timeSeriesKeys ? 0 : Type.LONG.getByteSize());
     int schemaID = GPOUtils.deserializeInt(key.buffer,
         offset);
     int dimensionDescriptorID = GPOUtils.deserializeInt(key.buffer,
@@ -325,6 +446,12 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
     }
 
     GPOMutable keys = GPOUtils.deserialize(keysDescriptor, key.buffer, offset);
+
+    if (timeSeriesKeys && keysDescriptor.getFieldList().contains(DimensionsDescriptor.DIMENSION_TIME)) {
+      //the time of a series key follows the key fields.
+      keys.setField(DimensionsDescriptor.DIMENSION_TIME, GPOUtils.deserializeLong(key.buffer, offset));
+    }
+
     offset.setValue(0);
 
     GPOMutable metaData = null;
@@ -357,9 +484,7 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
   public Aggregate load(EventKey eventKey)
   {
     long bucket = getBucketForSchema(eventKey);
-    byte[] key = getEventKeyBytesGAE(eventKey);
-
-    Slice keySlice = new Slice(key, 0, key.length);
+    Slice keySlice = getEventKeySlice(eventKey);
     byte[] val = load(bucket, keySlice);
 
     if (val == null) {
@@ -429,7 +554,18 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
    */
   public void putStoreFormatVersion(long bucket) throws IOException
   {
-    put(bucket, STORE_FORMAT_KEY, STORE_FORMAT_VERSION_BYTES);
+    put(bucket, STORE_FORMAT_KEY, GPOUtils.serializeInt(getStoreFormatVersion()));
+  }
+
+  /**
+   * Returns the store format version for the key layout of this store.
+   *
+   * @return {@link #STORE_FORMAT_VERSION_TIME_SERIES} if keys are laid out as time series, otherwise
+   * {@link #STORE_FORMAT_VERSION}.
+   */
+  public int getStoreFormatVersion()
+  {
+    return timeSeriesKeys ? STORE_FORMAT_VERSION_TIME_SERIES : STORE_FORMAT_VERSION;
   }
 
   @Override
@@ -458,6 +594,17 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
         futureBuckets.put(bucket, committedWindowID);
       }
 
+      //the key layout of existing data can not be changed.
+      for (Long bucket : buckets) {
+        byte[] storeFormatBytes = load(bucket, STORE_FORMAT_KEY);
+
+        if (storeFormatBytes != null && GPOUtils.deserializeInt(storeFormatBytes) != getStoreFormatVersion()) {
+          throw new IllegalStateException("Bucket " + bucket + " has store format version " +
+              GPOUtils.deserializeInt(storeFormatBytes) + ", the store is configured for version " +
+              getStoreFormatVersion());
+        }
+      }
+
       //Write Store Format Version out to each bucket
       for (Long bucket : buckets) {
         try {
@@ -522,6 +669,14 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
 
     Aggregate aggregate = cache.get(gae.getEventKey());
 
+    if (aggregate == null && loadExecutor != null && parkLoad(gae, aggregator)) {
+      if (embedEventKeys != null) {
+        embedEventKeys.add(gae.getEventKey());
+      }
+      dirtyEventKeys.add(gae.getEventKey());
+      return;
+    }
+
     if (aggregate == null) {
       aggregate = load(gae.getEventKey());
 
@@ -545,11 +700,131 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
         embedEventKeys.add(gae.getEventKey());
       }
     }
+
+    dirtyEventKeys.add(gae.getEventKey());
+  }
+
+  /**
+   * Parks a cache miss for the given event if its aggregate is not held in the uncommitted HDHT data. The
+   * event becomes the delta of the pending load, later events of the same key are aggregated into it. Parked
+   * misses are looked up in batches of {@link #getAsyncLoadBatchSize()} keys on the load executor.
+   *
+   * @param gae The event whose aggregate is not in the cache.
+   * @param aggregator The aggregator of the event.
+   * @return True if the event was parked, false if the aggregate has to be loaded synchronously.
+   */
+  protected boolean parkLoad(Aggregate gae, IncrementalAggregator aggregator)
+  {
+    EventKey eventKey = gae.getEventKey();
+    PendingLoad pendingLoad = pendingLoads.get(eventKey);
+
+    if (pendingLoad != null) {
+      aggregator.aggregate(pendingLoad.delta, gae);
+      return true;
+    }
+
+    long bucket = getBucketForSchema(eventKey);
+    byte[] key = getEventKeyBytesGAE(eventKey);
+    Slice keySlice = new Slice(key, 0, key.length);
+
+    if (getUncommitted(bucket, keySlice) != null) {
+      return false;
+    }
+
+    pendingLoad = new PendingLoad(keySlice, gae, aggregator);
+    pendingLoads.put(eventKey, pendingLoad);
+
+    List<PendingLoad> bucketLoads = parkedLoads.get(bucket);
+    if (bucketLoads == null) {
+      bucketLoads = Lists.newArrayList();
+      parkedLoads.put(bucket, bucketLoads);
+    }
+    bucketLoads.add(pendingLoad);
+
+    if (++parkedLoadCount >= asyncLoadBatchSize) {
+      submitLoads();
+      mergeLoads(false);
+    }
+
+    return true;
+  }
+
+  /**
+   * Hands the parked cache misses to the load executor, one lookup per bucket.
+   */
+  private void submitLoads()
+  {
+    for (Map.Entry<Long, List<PendingLoad>> entry : parkedLoads.entrySet()) {
+      final long bucket = entry.getKey();
+      final List<Slice> keys = Lists.newArrayListWithCapacity(entry.getValue().size());
+      for (PendingLoad pendingLoad : entry.getValue()) {
+        keys.add(pendingLoad.key);
+      }
+
+      Future<Map<Slice, byte[]>> values = loadExecutor.submit(new Callable<Map<Slice, byte[]>>()
+      {
+        @Override
+        public Map<Slice, byte[]> call() throws IOException
+        {
+          return getAllFiles(bucket, keys);
+        }
+      });
+      submittedLoads.add(new LoadBatch(entry.getValue(), values));
+    }
+
+    parkedLoads.clear();
+    parkedLoadCount = 0;
+  }
+
+  /**
+   * Merges the deltas of the looked up cache misses with the stored aggregates and puts the result into the cache.
+   *
+   * @param wait True to wait for all submitted lookups, false to only merge the lookups which are complete.
+   */
+  private void mergeLoads(boolean wait)
+  {
+    Iterator<LoadBatch> it = submittedLoads.iterator();
+    while (it.hasNext()) {
+      LoadBatch batch = it.next();
+      if (!wait && !batch.values.isDone()) {
+        continue;
+      }
+
+      Map<Slice, byte[]> values;
+      try {
+        values = batch.values.get();
+      } catch (InterruptedException | ExecutionException ex) {
+        throw new RuntimeException(ex);
+      }
+
+      for (PendingLoad pendingLoad : batch.loads) {
+        EventKey eventKey = pendingLoad.delta.getEventKey();
+        byte[] value = values.get(pendingLoad.key);
+
+        if (value == null) {
+          cache.put(eventKey, pendingLoad.delta);
+        } else {
+          Aggregate aggregate = fromKeyValueGAE(pendingLoad.key, value);
+          pendingLoad.aggregator.aggregate(aggregate, pendingLoad.delta);
+          cache.put(eventKey, aggregate);
+        }
+
+        pendingLoads.remove(eventKey);
+      }
+
+      it.remove();
+    }
   }
 
   @Override
   public void endWindow()
   {
+    //Resolve the parked cache misses before the cache is used for composite aggregates and written out.
+    if (!pendingLoads.isEmpty()) {
+      submitLoads();
+      mergeLoads(true);
+    }
+
     //Write out the last committed window ID for each bucket.
     byte[] currentWindowIDBytes = GPOUtils.serializeLong(currentWindowID);
 
@@ -572,11 +847,21 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
 
     handleTopBottomAggregators();
 
-    //Write out the contents of the cache.
-    for (Map.Entry<EventKey, Aggregate> entry : cache.entrySet()) {
-      putGAE(entry.getValue());
+    //Write out the aggregates which changed in this window.
+    for (EventKey eventKey : dirtyEventKeys) {
+      putGAE(cache.get(eventKey));
+    }
+
+    dirtyAggregates = dirtyEventKeys.size();
+    cachedAggregates = cache.size();
+
+    if (queryResultCache != null && !dirtyEventKeys.isEmpty()) {
+      //cached query results of the written aggregates are outdated
+      queryResultCache.invalidate(dirtyEventKeys);
     }
 
+    dirtyEventKeys.clear();
+
     emitUpdates();
 
     if (cacheWindowCount == cacheWindowDuration) {
@@ -811,6 +1096,7 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
     }
 
     aggregator.aggregate(resultAggregate, inputEventKeys, inputEventKeyToAggregate);
+    dirtyEventKeys.add(compositeEventKey);
   }
 
 
@@ -959,6 +1245,75 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
     this.cacheWindowDuration = cacheWindowDuration;
   }
 
+  /**
+   * The number of cache misses which are parked before they are looked up together in the data files on a
+   * background thread. Events of a parked key are aggregated into a delta which is merged with the stored
+   * aggregate when the lookup completes, all parked misses are resolved by the end of the window. 0 loads
+   * each cache miss synchronously.
+   *
+   * @return The number of cache misses looked up together.
+   */
+  public int getAsyncLoadBatchSize()
+  {
+    return asyncLoadBatchSize;
+  }
+
+  /**
+   * Sets the number of cache misses which are parked before they are looked up together.
+   *
+   * @param asyncLoadBatchSize The number of cache misses looked up together, 0 to load synchronously.
+   */
+  public void setAsyncLoadBatchSize(int asyncLoadBatchSize)
+  {
+    this.asyncLoadBatchSize = asyncLoadBatchSize;
+  }
+
+  /**
+   * The maximum number of query results cached for repeated queries. Results of time buckets which are no longer in
+   * the operator's cache are kept after they were fetched from HDHT, together with the rolling aggregates computed
+   * from them. Results are invalidated when the operator writes their aggregate, so repeated queries only fetch the
+   * time buckets which changed. 0 disables the cache.
+   *
+   * @return The maximum number of cached query results.
+   */
+  public int getQueryResultCacheSize()
+  {
+    return queryResultCacheSize;
+  }
+
+  /**
+   * Sets the maximum number of query results cached for repeated queries.
+   *
+   * @param queryResultCacheSize The maximum number of cached query results, 0 to disable the cache.
+   */
+  public void setQueryResultCacheSize(int queryResultCacheSize)
+  {
+    this.queryResultCacheSize = queryResultCacheSize;
+  }
+
+  /**
+   * Lay out keys so that the aggregates of a series, a combination of schema, dimensions descriptor, aggregator and
+   * key values, are contiguous in time. History queries are then resolved with a single range scan per series
+   * instead of a lookup per time bucket. The layout is recorded as the store format version of each bucket and can
+   * not be changed for existing data.
+   *
+   * @return True if keys are laid out as time series.
+   */
+  public boolean isTimeSeriesKeys()
+  {
+    return timeSeriesKeys;
+  }
+
+  /**
+   * Sets whether keys are laid out as time series.
+   *
+   * @param timeSeriesKeys True to lay out keys as time series.
+   */
+  public void setTimeSeriesKeys(boolean timeSeriesKeys)
+  {
+    this.timeSeriesKeys = timeSeriesKeys;
+  }
+
   /**
    * @return the minTimestamp
    */
@@ -1072,5 +1427,214 @@ public abstract class DimensionsStoreHDHT extends AbstractSinglePortHDHTWriter<A
     return this.queries;
   }
 
+  @Override
+  public void addRangeQuery(HDSRangeQuery query)
+  {
+    super.addRangeQuery(query);
+  }
+
+  /**
+   * Gets the currently issued {@link HDSRangeQuery}s.
+   *
+   * @return The currently issued {@link HDSRangeQuery}s.
+   */
+  public Queue<HDSRangeQuery> getRangeQueries()
+  {
+    return this.rangeQueries;
+  }
+
+  /**
+   * A cache miss waiting for the stored aggregate of its key.
+   */
+  protected static class PendingLoad
+  {
+    final Slice key;
+    final Aggregate delta;
+    final IncrementalAggregator aggregator;
+
+    PendingLoad(Slice key, Aggregate delta, IncrementalAggregator aggregator)
+    {
+      this.key = key;
+      this.delta = delta;
+      this.aggregator = aggregator;
+    }
+  }
+
+  /**
+   * The cache misses of a bucket which are looked up together.
+   */
+  private static class LoadBatch
+  {
+    final List<PendingLoad> loads;
+    final Future<Map<Slice, byte[]>> values;
+
+    LoadBatch(List<PendingLoad> loads, Future<Map<Slice, byte[]>> values)
+    {
+      this.loads = loads;
+      this.values = values;
+    }
+  }
+
+  /**
+   * Encodes {@link EventKey}s into a reusable buffer. The key is the timestamp, schema ID, dimension descriptor ID and
+   * aggregator ID followed by the serialized key fields. Time is a special case for HDHT, all keys are prefixed by
+   * a timestamp. Time series keys start with the IDs and the key fields without time, followed by the timestamp.
+   * The key fields are written straight into the buffer in the layout of {@link GPOUtils#serialize}, only keys with
+   * object fields are serialized by {@link GPOUtils}.
+   */
+  private static class EventKeyEncoder
+  {
+    private static final int HEADER_SIZE = Longs.BYTES + 3 * Ints.BYTES;
+
+    private final GPOByteArrayList tempBal = new GPOByteArrayList();
+    private final Slice keySlice = new Slice(new byte[64], 0, 0);
+
+    Slice encode(EventKey eventKey, long timestamp, boolean timeSeries)
+    {
+      GPOMutable key = eventKey.getKey();
+      if (key.getFieldsObject() != null && key.getFieldsObject().length > 0) {
+        return encodeSerialized(eventKey, timestamp, timeSeries);
+      }
+
+      boolean[] booleans = key.getFieldsBoolean();
+      char[] chars = key.getFieldsCharacter();
+      byte[] bytes = key.getFieldsByte();
+      short[] shorts = key.getFieldsShort();
+      int[] ints = key.getFieldsInteger();
+      long[] longs = key.getFieldsLong();
+      float[] floats = key.getFieldsFloat();
+      double[] doubles = key.getFieldsDouble();
+      String[] strings = key.getFieldsString();
+
+      int timeIndex = -1;
+      if (timeSeries && longs != null) {
+        //all keys of a series share the key fields, the time is written as 0 and appended
+        List<String> longFields = key.getFieldDescriptor().getTypeToFields().get(Type.LONG);
+        timeIndex = longFields.indexOf(DimensionsDescriptor.DIMENSION_TIME);
+      }
+
+      int length = HEADER_SIZE
+          + (booleans == null ? 0 : booleans.length)
+          + (chars == null ? 0 : chars.length * Chars.BYTES)
+          + (bytes == null ? 0 : bytes.length)
+          + (shorts == null ? 0 : shorts.length * Shorts.BYTES)
+          + (ints == null ? 0 : ints.length * Ints.BYTES)
+          + (longs == null ? 0 : longs.length * Longs.BYTES)
+          + (floats == null ? 0 : floats.length * Ints.BYTES)
+          + (doubles == null ? 0 : doubles.length * Longs.BYTES);
+      byte[] buffer = ensureCapacity(length);
+
+      //the key fields are laid out as by GPOUtils.serialize
+      int offset = putHeader(buffer, eventKey, timestamp, timeSeries);
+      for (int index = 0; booleans != null && index < booleans.length; index++) {
+        buffer[offset++] = (byte)(booleans[index] ? 1 : 0);
+      }
+      for (int index = 0; chars != null && index < chars.length; index++) {
+        offset = putShort(buffer, offset, (short)chars[index]);
+      }
+      for (int index = 0; bytes != null && index < bytes.length; index++) {
+        buffer[offset++] = bytes[index];
+      }
+      for (int index = 0; shorts != null && index < shorts.length; index++) {
+        offset = putShort(buffer, offset, shorts[index]);
+      }
+      for (int index = 0; ints != null && index < ints.length; index++) {
+        offset = putInt(buffer, offset, ints[index]);
+      }
+      for (int index = 0; longs != null && index < longs.length; index++) {
+        offset = putLong(buffer, offset, index == timeIndex ? 0L : longs[index]);
+      }
+      for (int index = 0; floats != null && index < floats.length; index++) {
+        offset = putInt(buffer, offset, Float.floatToIntBits(floats[index]));
+      }
+      for (int index = 0; doubles != null && index < doubles.length; index++) {
+        offset = putLong(buffer, offset, Double.doubleToLongBits(doubles[index]));
+      }
+      for (int index = 0; strings != null && index < strings.length; index++) {
+        byte[] stringBytes = strings[index].getBytes();
+        buffer = ensureCapacity(offset + Ints.BYTES + stringBytes.length + (timeSeries ? Longs.BYTES : 0));
+        offset = putInt(buffer, offset, stringBytes.length);
+        System.arraycopy(stringBytes, 0, buffer, offset, stringBytes.length);
+        offset += stringBytes.length;
+      }
+      if (timeSeries) {
+        offset = putLong(buffer, offset, timestamp);
+      }
+      keySlice.length = offset;
+
+      return keySlice;
+    }
+
+    /**
+     * Encodes keys with object fields, which are serialized by the serdes of their fields descriptor.
+     */
+    private Slice encodeSerialized(EventKey eventKey, long timestamp, boolean timeSeries)
+    {
+      GPOMutable key = eventKey.getKey();
+
+      if (timeSeries && key.getFieldDescriptor().getFieldList().contains(DimensionsDescriptor.DIMENSION_TIME)) {
+        //all keys of a series share the key fields, the time is appended
+        key = new GPOMutable(key);
+        key.setField(DimensionsDescriptor.DIMENSION_TIME, 0L);
+      }
+
+      byte[] gpoBytes = GPOUtils.serialize(key, tempBal);
+      byte[] buffer = ensureCapacity(HEADER_SIZE + gpoBytes.length);
+      int offset = putHeader(buffer, eventKey, timestamp, timeSeries);
+      System.arraycopy(gpoBytes, 0, buffer, offset, gpoBytes.length);
+      offset += gpoBytes.length;
+      if (timeSeries) {
+        offset = putLong(buffer, offset, timestamp);
+      }
+      keySlice.length = offset;
+
+      return keySlice;
+    }
+
+    /**
+     * @return the buffer of the key slice with at least the given length, keeping its content.
+     */
+    private byte[] ensureCapacity(int length)
+    {
+      if (keySlice.buffer.length < length) {
+        keySlice.buffer = Arrays.copyOf(keySlice.buffer, Math.max(length, keySlice.buffer.length * 2));
+      }
+      return keySlice.buffer;
+    }
+
+    private static int putHeader(byte[] buffer, EventKey eventKey, long timestamp, boolean timeSeries)
+    {
+      int offset = 0;
+      if (!timeSeries) {
+        offset = putLong(buffer, offset, timestamp);
+      }
+      offset = putInt(buffer, offset, eventKey.getSchemaID());
+      offset = putInt(buffer, offset, eventKey.getDimensionDescriptorID());
+      return putInt(buffer, offset, eventKey.getAggregatorID());
+    }
+
+    private static int putLong(byte[] buffer, int offset, long value)
+    {
+      offset = putInt(buffer, offset, (int)(value >>> 32));
+      return putInt(buffer, offset, (int)value);
+    }
+
+    private static int putShort(byte[] buffer, int offset, short value)
+    {
+      buffer[offset] = (byte)(value >>> 8);
+      buffer[offset + 1] = (byte)value;
+      return offset + Shorts.BYTES;
+    }
+
+    private static int putInt(byte[] buffer, int offset, int value)
+    {
+      buffer[offset] = (byte)(value >>> 24);
+      buffer[offset + 1] = (byte)(value >>> 16);
+      buffer[offset + 2] = (byte)(value >>> 8);
+      buffer[offset + 3] = (byte)value;
+      return offset + Ints.BYTES;
+    }
+  }
+
   private static final Logger LOG = LoggerFactory.getLogger(DimensionsStoreHDHT.class);
 }
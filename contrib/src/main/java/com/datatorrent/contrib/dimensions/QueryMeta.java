@@ -10,6 +10,7 @@ import java.util.Map;
 import org.apache.apex.malhar.lib.dimensions.DimensionsEvent.EventKey;
 
 import com.datatorrent.contrib.hdht.HDHTReader.HDSQuery;
+import com.datatorrent.contrib.hdht.HDHTReader.HDSRangeQuery;
 
 /**
  * This class is used to hold meta data required to process data queries. This class is
@@ -34,6 +35,27 @@ public class QueryMeta
    * the {@link HDSQuery} for that {@link com.datatorrent.lib.dimensions.aggregator.IncrementalAggregator}.
    */
   private List<Map<String, EventKey>> eventKeys;
+  /**
+   * Each entry in this list represents the {@link HDSRangeQuery}s issued for a particular key when the store lays out
+   * keys as time series. Each {@link Map} is a map from an
+   * {@link com.datatorrent.lib.dimensions.aggregator.IncrementalAggregator} name to the {@link HDSRangeQuery} which
+   * scans the time range of the series. The {@link HDSRangeQuery}s at a particular index in this list correspond with
+   * the {@link EventKey}s stored at the same index in the eventKeys list. When range queries are used there are no
+   * hdsQueries.
+   */
+  private List<Map<String, HDSRangeQuery>> rangeQueries;
+  /**
+   * The first time bucket covered by the rangeQueries.
+   */
+  private long startTime;
+  /**
+   * The last time bucket covered by the rangeQueries.
+   */
+  private long endTime;
+  /**
+   * The length of the time buckets covered by the rangeQueries in milliseconds.
+   */
+  private long timeBucketMillis;
 
   /**
    * Creates a {@link QueryMeta} object.
@@ -78,4 +100,70 @@ public class QueryMeta
     this.eventKeys = eventKeys;
   }
 
+  /**
+   * Returns the rangeQueries used to retrieve the time series of a data query.
+   * @return The rangeQueries used to retrieve the time series of a data query, null if hdsQueries are used.
+   */
+  public List<Map<String, HDSRangeQuery>> getRangeQueries()
+  {
+    return rangeQueries;
+  }
+
+  /**
+   * Sets the rangeQueries used to retrieve the time series of a data query.
+   * @param rangeQueries The rangeQueries used to retrieve the time series of a data query.
+   */
+  public void setRangeQueries(List<Map<String, HDSRangeQuery>> rangeQueries)
+  {
+    this.rangeQueries = rangeQueries;
+  }
+
+  /**
+   * @return the first time bucket covered by the range queries
+   */
+  public long getStartTime()
+  {
+    return startTime;
+  }
+
+  /**
+   * @param startTime the first time bucket covered by the range queries
+   */
+  public void setStartTime(long startTime)
+  {
+    this.startTime = startTime;
+  }
+
+  /**
+   * @return the last time bucket covered by the range queries
+   */
+  public long getEndTime()
+  {
+    return endTime;
+  }
+
+  /**
+   * @param endTime the last time bucket covered by the range queries
+   */
+  public void setEndTime(long endTime)
+  {
+    this.endTime = endTime;
+  }
+
+  /**
+   * @return the length of the time buckets in milliseconds
+   */
+  public long getTimeBucketMillis()
+  {
+    return timeBucketMillis;
+  }
+
+  /**
+   * @param timeBucketMillis the length of the time buckets in milliseconds
+   */
+  public void setTimeBucketMillis(long timeBucketMillis)
+  {
+    this.timeBucketMillis = timeBucketMillis;
+  }
+
 }
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2016 DataTorrent, Inc.
+ * All rights reserved.
+ */
+package com.datatorrent.contrib.dimensions;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.apex.malhar.lib.dimensions.DimensionsEvent;
+import org.apache.apex.malhar.lib.dimensions.DimensionsEvent.EventKey;
+
+import com.datatorrent.lib.appdata.gpo.GPOMutable;
+
+/**
+ * QueryResultCache
+ * Entry bounded cache of the results {@link DimensionsQueryExecutor} fetched from HDHT for time buckets which are no
+ * longer in the operator's cache, and of the rolling aggregates computed from them. Results are identified by their
+ * {@link EventKey}, so repeated and overlapping queries share them regardless of the query id. The store removes the
+ * results of aggregates it writes, see {@link #invalidate(Collection)}. Rolling aggregates stay valid as long as the
+ * very same cached results are rolled again.
+ * Entries are evicted in least recently used order.
+ *
+ * @since 3.4.0
+ */
+class QueryResultCache
+{
+  private final int capacity;
+  /* Incremented by each invalidation, results fetched before an invalidation are not cached */
+  private long version;
+  private final LinkedHashMap<EventKey, DimensionsEvent> results = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<EventKey, Rolled> rolled = new LinkedHashMap<>(16, 0.75f, true);
+  private long hits;
+  private long misses;
+
+  /**
+   * @param capacity maximum number of results and of rolling aggregates held by the cache.
+   */
+  public QueryResultCache(int capacity)
+  {
+    this.capacity = capacity;
+  }
+
+  /**
+   * @return the version to pass to {@link #put(EventKey, DimensionsEvent, long)} for results fetched from now on.
+   */
+  public synchronized long getVersion()
+  {
+    return version;
+  }
+
+  public synchronized DimensionsEvent get(EventKey eventKey)
+  {
+    DimensionsEvent result = results.get(eventKey);
+    if (result != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return result;
+  }
+
+  /**
+   * @return true if the result of the {@link EventKey} is cached, neither counted as hit or miss nor used.
+   */
+  public synchronized boolean contains(EventKey eventKey)
+  {
+    return results.containsKey(eventKey);
+  }
+
+  /**
+   * Cache a fetched result unless aggregates were written since the given version.
+   */
+  public synchronized void put(EventKey eventKey, DimensionsEvent result, long version)
+  {
+    if (version != this.version) {
+      return;
+    }
+    results.put(eventKey, result);
+    evict(results);
+  }
+
+  /**
+   * Remove the results of aggregates which were written, called by the store at the end of each window.
+   */
+  public synchronized void invalidate(Collection<EventKey> eventKeys)
+  {
+    version++;
+    for (EventKey eventKey : eventKeys) {
+      results.remove(eventKey);
+    }
+  }
+
+  /**
+   * @return the rolling aggregate of the time bucket if it was computed from the same inputs, otherwise null.
+   */
+  public synchronized GPOMutable getRolled(EventKey eventKey, GPOMutable[] inputs)
+  {
+    Rolled r = rolled.get(eventKey);
+    if (r == null || r.inputs.length != inputs.length) {
+      return null;
+    }
+    for (int i = 0; i < inputs.length; i++) {
+      if (r.inputs[i] != inputs[i]) {
+        return null;
+      }
+    }
+    return r.aggregate;
+  }
+
+  public synchronized void putRolled(EventKey eventKey, GPOMutable[] inputs, GPOMutable aggregate)
+  {
+    rolled.put(eventKey, new Rolled(inputs, aggregate));
+    evict(rolled);
+  }
+
+  public synchronized long getHits()
+  {
+    return hits;
+  }
+
+  public synchronized long getMisses()
+  {
+    return misses;
+  }
+
+  private void evict(LinkedHashMap<EventKey, ?> entries)
+  {
+    Iterator<? extends Map.Entry<EventKey, ?>> it = entries.entrySet().iterator();
+    while (entries.size() > capacity && it.hasNext()) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  private static class Rolled
+  {
+    private final GPOMutable[] inputs;
+    private final GPOMutable aggregate;
+
+    private Rolled(GPOMutable[] inputs, GPOMutable aggregate)
+    {
+      this.inputs = inputs;
+      this.aggregate = aggregate;
+    }
+  }
+}
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -40,6 +41,7 @@ import com.datatorrent.api.Context.OperatorContext;
 import com.datatorrent.api.DefaultInputPort;
 import com.datatorrent.api.DefaultPartition;
 import com.datatorrent.api.Partitioner;
+import com.datatorrent.api.Stats.OperatorStats;
 import com.datatorrent.api.StatsListener;
 import com.datatorrent.api.StreamCodec;
 import com.datatorrent.api.annotation.InputPortFieldAnnotation;
@@ -92,6 +94,18 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
    */
   private boolean numberOfBucketsFinalized = false;
 
+  private double rebalanceThreshold = 0;
+
+  @Min(0)
+  private long rebalanceIntervalMillis = 60 * 1000L;
+
+  /* Write rate of the buckets observed by the stats listener */
+  private transient Map<Long, BucketLoad> bucketLoads;
+  /* Operator ids of the deployed partitions */
+  private transient Set<Integer> operatorIds;
+  private transient BucketMove bucketMove;
+  private transient long lastRebalanceMillis;
+
   @InputPortFieldAnnotation(optional = true)
   public final transient DefaultInputPort<EVENT> input = new DefaultInputPort<EVENT>()
   {
@@ -185,7 +199,7 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
 
   /**
    * Repartition is required when number of partitions are not equal to required
-   * partitions.
+   * partitions or when a bucket is moved to balance the write rate of the partitions.
    * @param batchedOperatorStats the stats to use when repartitioning.
    * @return Returns the stats listener response.
    */
@@ -197,10 +211,118 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
     if (currentPartitions != partitionCount) {
       LOG.info("processStats: trying repartition of input operator current {} required {}", currentPartitions, partitionCount);
       res.repartitionRequired = true;
+    } else if (rebalanceThreshold > 0 && batchedOperatorStats != null) {
+      updateBucketLoads(batchedOperatorStats);
+      if (bucketMove == null && System.currentTimeMillis() - lastRebalanceMillis >= rebalanceIntervalMillis) {
+        bucketMove = planBucketMove();
+      }
+      res.repartitionRequired = bucketMove != null;
     }
     return res;
   }
-    
+
+  /**
+   * Update the write rate of the buckets of the partition from the bucket stats reported as counters.
+   */
+  private void updateBucketLoads(BatchedOperatorStats stats)
+  {
+    if (bucketLoads == null) {
+      bucketLoads = Maps.newHashMap();
+      operatorIds = Sets.newHashSet();
+    }
+    operatorIds.add(stats.getOperatorId());
+
+    Object counters = null;
+    for (OperatorStats os : stats.getLastWindowedStats()) {
+      if (os.counters != null) {
+        counters = os.counters;
+      }
+    }
+    if (!(counters instanceof Map)) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    @SuppressWarnings("unchecked")
+    Map<Long, BucketIOStats> bucketStats = (Map<Long, BucketIOStats>)counters;
+    for (Map.Entry<Long, BucketIOStats> entry : bucketStats.entrySet()) {
+      long keysWritten = entry.getValue().keysWritten;
+      BucketLoad load = bucketLoads.get(entry.getKey());
+      if (load == null || load.operatorId != stats.getOperatorId()) {
+        bucketLoads.put(entry.getKey(), new BucketLoad(stats.getOperatorId(), keysWritten, now));
+        continue;
+      }
+      if (now > load.timestamp && keysWritten >= load.keysWritten) {
+        double rate = (keysWritten - load.keysWritten) * 1000.0 / (now - load.timestamp);
+        load.rate = load.rate == 0 ? rate : (load.rate + rate) / 2;
+      }
+      load.keysWritten = keysWritten;
+      load.timestamp = now;
+    }
+  }
+
+  /**
+   * Select a bucket of the partition with the highest write rate to move to the partition with the lowest write rate.
+   * The bucket with the rate closest to half of the difference between the two partitions is moved, buckets which
+   * would make the receiving partition the busiest one are not moved.
+   *
+   * @return the move or null when the partitions are balanced.
+   */
+  private BucketMove planBucketMove()
+  {
+    Map<Integer, Double> loads = Maps.newHashMap();
+    for (Integer operatorId : operatorIds) {
+      loads.put(operatorId, 0.0);
+    }
+    for (BucketLoad load : bucketLoads.values()) {
+      Double partitionLoad = loads.get(load.operatorId);
+      if (partitionLoad != null) {
+        loads.put(load.operatorId, partitionLoad + load.rate);
+      }
+    }
+    if (loads.size() < 2) {
+      return null;
+    }
+
+    int hot = 0;
+    int cold = 0;
+    double hotLoad = -1;
+    double coldLoad = Double.MAX_VALUE;
+    double total = 0;
+    for (Map.Entry<Integer, Double> entry : loads.entrySet()) {
+      total += entry.getValue();
+      if (entry.getValue() > hotLoad) {
+        hot = entry.getKey();
+        hotLoad = entry.getValue();
+      }
+      if (entry.getValue() < coldLoad) {
+        cold = entry.getKey();
+        coldLoad = entry.getValue();
+      }
+    }
+    if (total == 0 || hotLoad <= rebalanceThreshold * total / loads.size()) {
+      return null;
+    }
+
+    double gap = hotLoad - coldLoad;
+    Long bucketKey = null;
+    double bucketRate = 0;
+    for (Map.Entry<Long, BucketLoad> entry : bucketLoads.entrySet()) {
+      BucketLoad load = entry.getValue();
+      if (load.operatorId == hot && load.rate > 0 && load.rate < gap &&
+          (bucketKey == null || Math.abs(load.rate - gap / 2) < Math.abs(bucketRate - gap / 2))) {
+        bucketKey = entry.getKey();
+        bucketRate = load.rate;
+      }
+    }
+    if (bucketKey == null) {
+      return null;
+    }
+    LOG.info("Moving bucket {} with {} writes/s from partition {} with {} writes/s to partition {} with {} writes/s",
+        bucketKey, bucketRate, hot, hotLoad, cold, coldLoad);
+    return new BucketMove(bucketKey, hot, cold);
+  }
+
   @Override
   public Collection<Partition<AbstractSinglePortHDHTWriter<EVENT>>> definePartitions(
       Collection<Partition<AbstractSinglePortHDHTWriter<EVENT>>> partitions, PartitioningContext context)
@@ -213,6 +335,12 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
     }
     LOG.info("In define partitions... new partition count = {}, Original partitions = {}, {}", newPartitionCount, partitions.isEmpty() ? 0 : partitions.size(), currentPartitions);
     if (newPartitionCount == partitions.size()) {
+      if (bucketMove != null) {
+        BucketMove move = bucketMove;
+        bucketMove = null;
+        lastRebalanceMillis = System.currentTimeMillis();
+        return moveBucket(partitions, move);
+      }
       return partitions;
     }
 
@@ -251,6 +379,8 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
       Input lInput = new Input(bos.toByteArray());
       @SuppressWarnings("unchecked")
       AbstractSinglePortHDHTWriter<EVENT> oper = lKryo.readObject(lInput, this.getClass());
+      // new partitions log to a WAL of their own, the parent WALs are copied in setup
+      oper.setWalKey(0);
       newPartitions.add(new DefaultPartition<AbstractSinglePortHDHTWriter<EVENT>>(oper));
     }
 
@@ -287,6 +417,61 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
     return newPartitions;
   }
 
+  /**
+   * Move a single bucket between two partitions. Only the two partitions are redeployed from their checkpointed state,
+   * the data files of the bucket are shared through the store and the receiving partition reads the changes which
+   * were not flushed from the WAL of the previous owner in place.
+   */
+  private Collection<Partition<AbstractSinglePortHDHTWriter<EVENT>>> moveBucket(
+      Collection<Partition<AbstractSinglePortHDHTWriter<EVENT>>> partitions, BucketMove move)
+  {
+    Partition<AbstractSinglePortHDHTWriter<EVENT>> from = null;
+    Partition<AbstractSinglePortHDHTWriter<EVENT>> to = null;
+    for (Partition<AbstractSinglePortHDHTWriter<EVENT>> partition : partitions) {
+      if (partition.getStats() != null) {
+        if (partition.getStats().getOperatorId() == move.fromOperatorId) {
+          from = partition;
+        } else if (partition.getStats().getOperatorId() == move.toOperatorId) {
+          to = partition;
+        }
+      }
+    }
+    if (from == null || to == null) {
+      LOG.warn("Partitions of {} are not deployed", move);
+      return partitions;
+    }
+
+    AbstractSinglePortHDHTWriter<EVENT> source = from.getPartitionedInstance();
+    AbstractSinglePortHDHTWriter<EVENT> target = to.getPartitionedInstance();
+    Long bucketKey = move.bucketKey;
+    if (!source.bucketKeys.contains(bucketKey) || !source.parentWals.isEmpty() || !target.parentWals.isEmpty() ||
+        source.adoptedBuckets.containsKey(bucketKey) || target.releasedBuckets.containsKey(bucketKey)) {
+      LOG.info("Bucket {} cannot be moved before the previous repartitioning is complete", bucketKey);
+      return partitions;
+    }
+    target.adoptBucket(bucketKey, source.releaseBucket(bucketKey));
+    source.partitions = Sets.newHashSet(source.partitions);
+    source.partitions.remove(bucketKey.intValue());
+    target.partitions = Sets.newHashSet(target.partitions);
+    target.partitions.add(bucketKey.intValue());
+    LOG.info("Moved bucket {} from WAL {} to WAL {}", bucketKey, source.getWalKey(), target.getWalKey());
+
+    List<Partition<AbstractSinglePortHDHTWriter<EVENT>>> newPartitions =
+        Lists.newArrayListWithExpectedSize(partitions.size());
+    for (Partition<AbstractSinglePortHDHTWriter<EVENT>> partition : partitions) {
+      if (partition == from || partition == to) {
+        AbstractSinglePortHDHTWriter<EVENT> oper = partition.getPartitionedInstance();
+        Partition<AbstractSinglePortHDHTWriter<EVENT>> p =
+            new DefaultPartition<AbstractSinglePortHDHTWriter<EVENT>>(oper);
+        p.getPartitionKeys().put(input, new PartitionKeys(oper.partitionMask, oper.partitions));
+        newPartitions.add(p);
+      } else {
+        newPartitions.add(partition);
+      }
+    }
+    return newPartitions;
+  }
+
   public void assignPartitionKeys(Collection<Partition<AbstractSinglePortHDHTWriter<EVENT>>> partitions, InputPort<?> inputPort)
   {
     if (partitions.isEmpty()) {
@@ -332,6 +517,9 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
   {
     LOG.info("Current partitions count = {}", currentPartitions);
     currentPartitions = partitions.size();
+    // rates are observed again for the deployed partitions
+    bucketLoads = Maps.newHashMap();
+    operatorIds = Sets.newHashSet(partitions.keySet());
   }
 
   public int getNumberOfBuckets()
@@ -353,9 +541,74 @@ public abstract class AbstractSinglePortHDHTWriter<EVENT> extends HDHTWriter imp
     }
   }
 
+  /**
+   * Ratio of the write rate of the busiest partition to the average write rate of all partitions above which a bucket
+   * is moved to the least loaded partition. Rebalancing is disabled with the default of 0.
+   * @return the rebalance threshold.
+   */
+  public double getRebalanceThreshold()
+  {
+    return rebalanceThreshold;
+  }
+
+  public void setRebalanceThreshold(double rebalanceThreshold)
+  {
+    this.rebalanceThreshold = rebalanceThreshold;
+  }
+
+  /**
+   * Minimum time between two bucket moves in milliseconds.
+   * @return the rebalance interval.
+   */
+  public long getRebalanceIntervalMillis()
+  {
+    return rebalanceIntervalMillis;
+  }
+
+  public void setRebalanceIntervalMillis(long rebalanceIntervalMillis)
+  {
+    this.rebalanceIntervalMillis = rebalanceIntervalMillis;
+  }
+
   @VisibleForTesting
   public int getCurrentPartitions()
   {
     return this.currentPartitions;
   }
+
+  /* Observed write rate of a bucket */
+  private static class BucketLoad
+  {
+    private final int operatorId;
+    private long keysWritten;
+    private long timestamp;
+    private double rate;
+
+    private BucketLoad(int operatorId, long keysWritten, long timestamp)
+    {
+      this.operatorId = operatorId;
+      this.keysWritten = keysWritten;
+      this.timestamp = timestamp;
+    }
+  }
+
+  private static class BucketMove
+  {
+    private final long bucketKey;
+    private final int fromOperatorId;
+    private final int toOperatorId;
+
+    private BucketMove(long bucketKey, int fromOperatorId, int toOperatorId)
+    {
+      this.bucketKey = bucketKey;
+      this.fromOperatorId = fromOperatorId;
+      this.toOperatorId = toOperatorId;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "BucketMove{bucketKey=" + bucketKey + ", from=" + fromOperatorId + ", to=" + toOperatorId + '}';
+    }
+  }
 }
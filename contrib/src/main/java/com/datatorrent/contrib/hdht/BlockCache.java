@@ -0,0 +1,266 @@
+/**
+ * Copyright (c) 2016 DataTorrent, Inc.
+ * All rights reserved.
+ */
+package com.datatorrent.contrib.hdht;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import com.datatorrent.netlet.util.Slice;
+
+/**
+ * BlockCache
+ * Size bounded cache of decoded data file blocks, shared by the readers of all buckets of an operator. Blocks are
+ * identified by bucket, file name and block number in the {@link BlockIndex} of the file and evicted in least
+ * recently used order once the total size of the cached blocks exceeds the capacity. Data files are immutable, blocks
+ * only need to be removed when their file is deleted.
+ * The cache is split into segments by block, each with its own lock and an equal share of the capacity, so that
+ * concurrent lookups of different blocks do not contend. Eviction is least recently used within a segment.
+ *
+ * @since 3.4.0
+ */
+class BlockCache
+{
+  /* Estimated memory used per entry in addition to key and value bytes */
+  private static final int ENTRY_OVERHEAD = 64;
+  private static final int MAX_SEGMENTS = 16;
+  /* Smaller segments would not hold enough blocks for least recently used eviction to be effective */
+  private static final long MIN_SEGMENT_CAPACITY = 4 * 1024 * 1024;
+
+  private final Segment[] segments;
+
+  /**
+   * @param capacity maximum number of bytes held by the cache, split into up to 16 segments of at least 4MB.
+   */
+  public BlockCache(long capacity)
+  {
+    this(capacity, (int)Math.max(1, Math.min(MAX_SEGMENTS, capacity / MIN_SEGMENT_CAPACITY)));
+  }
+
+  /**
+   * @param capacity maximum number of bytes held by the cache.
+   * @param numSegments number of independently locked segments.
+   */
+  public BlockCache(long capacity, int numSegments)
+  {
+    segments = new Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      segments[i] = new Segment(capacity / numSegments);
+    }
+  }
+
+  public Block get(long bucketKey, String fileName, int block)
+  {
+    BlockKey key = new BlockKey(bucketKey, fileName, block);
+    return segmentFor(key).get(key);
+  }
+
+  public void put(long bucketKey, String fileName, int block, Block b)
+  {
+    BlockKey key = new BlockKey(bucketKey, fileName, block);
+    segmentFor(key).put(key, b);
+  }
+
+  /**
+   * Remove all blocks of a file, called when the file is deleted.
+   */
+  public void invalidate(long bucketKey, String fileName)
+  {
+    for (Segment segment : segments) {
+      segment.invalidate(bucketKey, fileName);
+    }
+  }
+
+  public long getSize()
+  {
+    long size = 0;
+    for (Segment segment : segments) {
+      size += segment.getSize();
+    }
+    return size;
+  }
+
+  /**
+   * @return copy of the counters of the bucket.
+   */
+  public Counters getCounters(long bucketKey)
+  {
+    Counters copy = new Counters();
+    for (Segment segment : segments) {
+      segment.addCounters(bucketKey, copy);
+    }
+    return copy;
+  }
+
+  private Segment segmentFor(BlockKey key)
+  {
+    int h = key.hashCode();
+    h ^= h >>> 16;
+    return segments[(h & Integer.MAX_VALUE) % segments.length];
+  }
+
+  private static class Segment
+  {
+    private final long capacity;
+    private long size;
+    private final LinkedHashMap<BlockKey, Block> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Long, Counters> counters = Maps.newHashMap();
+
+    private Segment(long capacity)
+    {
+      this.capacity = capacity;
+    }
+
+    synchronized Block get(BlockKey key)
+    {
+      Block b = blocks.get(key);
+      Counters c = getOrCreateCounters(key.bucketKey);
+      if (b != null) {
+        c.hits++;
+      } else {
+        c.misses++;
+      }
+      return b;
+    }
+
+    synchronized void put(BlockKey key, Block b)
+    {
+      if (b.size > capacity) {
+        // would evict everything else
+        return;
+      }
+      Block previous = blocks.put(key, b);
+      if (previous != null) {
+        size -= previous.size;
+      }
+      size += b.size;
+
+      Iterator<Map.Entry<BlockKey, Block>> it = blocks.entrySet().iterator();
+      while (size > capacity && it.hasNext()) {
+        Map.Entry<BlockKey, Block> eldest = it.next();
+        size -= eldest.getValue().size;
+        getOrCreateCounters(eldest.getKey().bucketKey).evictions++;
+        it.remove();
+      }
+    }
+
+    synchronized void invalidate(long bucketKey, String fileName)
+    {
+      Iterator<Map.Entry<BlockKey, Block>> it = blocks.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<BlockKey, Block> entry = it.next();
+        if (entry.getKey().bucketKey == bucketKey && entry.getKey().fileName.equals(fileName)) {
+          size -= entry.getValue().size;
+          it.remove();
+        }
+      }
+    }
+
+    synchronized long getSize()
+    {
+      return size;
+    }
+
+    synchronized void addCounters(long bucketKey, Counters sum)
+    {
+      Counters c = counters.get(bucketKey);
+      if (c != null) {
+        sum.hits += c.hits;
+        sum.misses += c.misses;
+        sum.evictions += c.evictions;
+      }
+    }
+
+    private Counters getOrCreateCounters(long bucketKey)
+    {
+      Counters c = counters.get(bucketKey);
+      if (c == null) {
+        counters.put(bucketKey, c = new Counters());
+      }
+      return c;
+    }
+  }
+
+  public static class Counters
+  {
+    public long hits;
+    public long misses;
+    public long evictions;
+  }
+
+  /**
+   * Entries of a block in key order.
+   */
+  public static class Block
+  {
+    private final Slice[] keys;
+    private final Slice[] values;
+    private final long size;
+
+    public Block(Slice[] keys, Slice[] values)
+    {
+      this.keys = keys;
+      this.values = values;
+      long bytes = 0;
+      for (int i = 0; i < keys.length; i++) {
+        bytes += keys[i].length + values[i].length + ENTRY_OVERHEAD;
+      }
+      this.size = bytes;
+    }
+
+    /**
+     * @return value of the key or null when the block does not contain the key.
+     */
+    public Slice get(Slice key, Comparator<Slice> cmp)
+    {
+      int pos = Arrays.binarySearch(keys, key, cmp);
+      return pos >= 0 ? values[pos] : null;
+    }
+
+    public long getSize()
+    {
+      return size;
+    }
+  }
+
+  private static class BlockKey
+  {
+    private final long bucketKey;
+    private final String fileName;
+    private final int block;
+
+    BlockKey(long bucketKey, String fileName, int block)
+    {
+      this.bucketKey = bucketKey;
+      this.fileName = fileName;
+      this.block = block;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof BlockKey)) {
+        return false;
+      }
+      BlockKey other = (BlockKey)o;
+      return bucketKey == other.bucketKey && block == other.block && fileName.equals(other.fileName);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int result = (int)(bucketKey ^ (bucketKey >>> 32));
+      result = 31 * result + fileName.hashCode();
+      return 31 * result + block;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2016 DataTorrent, Inc.
+ * All rights reserved.
+ */
+package com.datatorrent.contrib.hdht;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.datatorrent.netlet.util.Slice;
+
+/**
+ * BlockIndex
+ * Sparse index of a data file, holding the first key of every block of entries. A block starts with the first entry
+ * written after the previous block reached the block size. The index is written by {@link HDHTWriter} next to the
+ * data file as {@link HDHTReader#FNAME_INDEX} followed by the data file name and lets the reader load and cache a
+ * single block of the file for a key.
+ *
+ * @since 3.4.0
+ */
+class BlockIndex
+{
+  private final int blockSize;
+  private final List<Slice> startKeys;
+  private long blockBytes;
+
+  /**
+   * Create empty index for writing.
+   *
+   * @param blockSize minimum number of key and value bytes in a block.
+   */
+  public BlockIndex(int blockSize)
+  {
+    this.blockSize = blockSize;
+    this.startKeys = new ArrayList<>();
+  }
+
+  private BlockIndex(List<Slice> startKeys)
+  {
+    this.blockSize = 0;
+    this.startKeys = startKeys;
+  }
+
+  /**
+   * Record entry appended to the data file. Entries have to be appended in key order.
+   */
+  public void append(Slice key, int entryLength)
+  {
+    if (startKeys.isEmpty() || blockBytes >= blockSize) {
+      startKeys.add(new Slice(key.toByteArray()));
+      blockBytes = 0;
+    }
+    blockBytes += entryLength;
+  }
+
+  public int size()
+  {
+    return startKeys.size();
+  }
+
+  public Slice getStartKey(int block)
+  {
+    return startKeys.get(block);
+  }
+
+  /**
+   * Find the block which may contain the key.
+   *
+   * @return index of the block or -1 when the key is lower than the first key of the file.
+   */
+  public int floorBlock(Slice key, Comparator<Slice> cmp)
+  {
+    int pos = Collections.binarySearch(startKeys, key, cmp);
+    return pos >= 0 ? pos : -pos - 2;
+  }
+
+  public void writeTo(DataOutputStream out) throws IOException
+  {
+    out.writeInt(startKeys.size());
+    for (Slice key : startKeys) {
+      out.writeInt(key.length);
+      out.write(key.buffer, key.offset, key.length);
+    }
+  }
+
+  public static BlockIndex readFrom(DataInputStream in) throws IOException
+  {
+    int numBlocks = in.readInt();
+    List<Slice> startKeys = new ArrayList<>(numBlocks);
+    for (int i = 0; i < numBlocks; i++) {
+      byte[] key = new byte[in.readInt()];
+      in.readFully(key);
+      startKeys.add(new Slice(key));
+    }
+    return new BlockIndex(startKeys);
+  }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2016 DataTorrent, Inc.
+ * All rights reserved.
+ */
+package com.datatorrent.contrib.hdht;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.datatorrent.netlet.util.Slice;
+
+/**
+ * BloomFilter
+ * A compact probabilistic set of keys, used to skip data files which do not
+ * contain a key without opening them. A filter is built for every data file
+ * written by {@link HDHTWriter} and stored next to the data file as
+ * {@link HDHTReader#FNAME_BLOOM} followed by the data file name.
+ *
+ * Membership is based on the key bytes, lookups with keys which are equal
+ * according to the key comparator but have different bytes are not supported.
+ *
+ * mightContain never returns false for a key which was added to the filter,
+ * it may return true for keys which were not added with probability close
+ * to the false positive probability the filter was created with.
+ *
+ * The writer does not know the number of keys of a data file before the file is rolled, it collects the key hashes
+ * with a {@link Builder} and creates the filter when the file is complete. The bucket bloom filter of the library
+ * only hashes byte arrays produced by a decomposer, which would copy every key on lookup.
+ *
+ * @since 3.4.0
+ */
+class BloomFilter
+{
+  private final int numHashes;
+  private final int numBits;
+  private final long[] bits;
+
+  /**
+   * Create filter for expected number of keys with given false positive probability.
+   *
+   * @param expectedKeys number of keys which will be added to the filter.
+   * @param fpp desired false positive probability, between 0 and 1 (exclusive).
+   */
+  public BloomFilter(int expectedKeys, double fpp)
+  {
+    expectedKeys = Math.max(expectedKeys, 1);
+    long m = (long)(-expectedKeys * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+    m = Math.min(Math.max(m, 64), Integer.MAX_VALUE - 64);
+    this.numBits = (int)m;
+    this.numHashes = Math.max(1, (int)Math.round((double)numBits / expectedKeys * Math.log(2)));
+    this.bits = new long[(numBits + 63) >>> 6];
+  }
+
+  private BloomFilter(int numHashes, int numBits, long[] bits)
+  {
+    this.numHashes = numHashes;
+    this.numBits = numBits;
+    this.bits = bits;
+  }
+
+  public void add(Slice key)
+  {
+    addHash(hash(key));
+  }
+
+  private void addHash(long hash)
+  {
+    int h1 = (int)(hash >>> 32);
+    int h2 = (int)hash;
+    for (int i = 0; i < numHashes; i++) {
+      int index = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+      bits[index >>> 6] |= 1L << index;
+    }
+  }
+
+  public boolean mightContain(Slice key)
+  {
+    long hash = hash(key);
+    int h1 = (int)(hash >>> 32);
+    int h2 = (int)hash;
+    for (int i = 0; i < numHashes; i++) {
+      int index = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+      if ((bits[index >>> 6] & (1L << index)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public void writeTo(DataOutputStream out) throws IOException
+  {
+    out.writeInt(numHashes);
+    out.writeInt(numBits);
+    for (long word : bits) {
+      out.writeLong(word);
+    }
+  }
+
+  public static BloomFilter readFrom(DataInputStream in) throws IOException
+  {
+    int numHashes = in.readInt();
+    int numBits = in.readInt();
+    long[] bits = new long[(numBits + 63) >>> 6];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = in.readLong();
+    }
+    return new BloomFilter(numHashes, numBits, bits);
+  }
+
+  /**
+   * @return the two hashes of the key the bit positions are derived from.
+   */
+  private static long hash(Slice key)
+  {
+    int h1 = murmurHash(key.buffer, key.offset, key.length, 0);
+    int h2 = murmurHash(key.buffer, key.offset, key.length, h1);
+    return ((long)h1 << 32) | (h2 & 0xffffffffL);
+  }
+
+  /**
+   * Collects key hashes until the number of keys is known. Can be reused after {@link #build(double)}.
+   */
+  public static class Builder
+  {
+    private long[] hashes = new long[64];
+    private int size;
+
+    public void add(Slice key)
+    {
+      if (size == hashes.length) {
+        hashes = Arrays.copyOf(hashes, size * 2);
+      }
+      hashes[size++] = hash(key);
+    }
+
+    public int size()
+    {
+      return size;
+    }
+
+    /**
+     * Create filter sized for the collected keys and clear the builder.
+     *
+     * @param fpp desired false positive probability, between 0 and 1 (exclusive).
+     */
+    public BloomFilter build(double fpp)
+    {
+      BloomFilter bloomFilter = new BloomFilter(size, fpp);
+      for (int i = 0; i < size; i++) {
+        bloomFilter.addHash(hashes[i]);
+      }
+      size = 0;
+      return bloomFilter;
+    }
+  }
+
+  /**
+   * 32 bit murmur3 hash of the byte range.
+   */
+  static int murmurHash(byte[] data, int offset, int length, int seed)
+  {
+    final int c1 = 0xcc9e2d51;
+    final int c2 = 0x1b873593;
+    int h = seed;
+    int end = offset + (length & ~3);
+    for (int i = offset; i < end; i += 4) {
+      int k = (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8) | ((data[i + 2] & 0xff) << 16) | (data[i + 3] << 24);
+      k *= c1;
+      k = Integer.rotateLeft(k, 15);
+      k *= c2;
+      h ^= k;
+      h = Integer.rotateLeft(h, 13);
+      h = h * 5 + 0xe6546b64;
+    }
+
+    int k = 0;
+    switch (length & 3) {
+      case 3:
+        k = (data[end + 2] & 0xff) << 16;
+        // fall through
+      case 2:
+        k |= (data[end + 1] & 0xff) << 8;
+        // fall through
+      case 1:
+        k |= data[end] & 0xff;
+        k *= c1;
+        k = Integer.rotateLeft(k, 15);
+        k *= c2;
+        h ^= k;
+        break;
+      default:
+    }
+
+    h ^= length;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2016 DataTorrent, Inc.
+ * All rights reserved.
+ */
+package com.datatorrent.contrib.hdht;
+
+import java.io.IOException;
+
+import com.datatorrent.lib.fileaccess.FileAccess;
+import com.datatorrent.netlet.util.Slice;
+
+/**
+ * HDHTFileAccess
+ * Optional extensions of the {@link FileAccess} reader and writer which exchange keys and values as {@link Slice}
+ * without copying them into separate arrays. Readers and writers returned by a {@link FileAccess} can implement these
+ * interfaces, {@link HDHTReader} and {@link HDHTWriter} use them when available and fall back to the byte array API
+ * otherwise.
+ *
+ * @since 3.4.0
+ */
+public interface HDHTFileAccess
+{
+  /**
+   * Reader returning slices which reference the immutable blocks of the file. Slices returned by
+   * {@link #get(Slice)} and {@link #next(Slice, Slice)} remain valid after the reader has moved to other entries or
+   * was closed, so they can be retained without copying.
+   */
+  interface HDSFileReader extends FileAccess.FileReader
+  {
+    /**
+     * Read the value of the key.
+     *
+     * @param key key to look up.
+     * @return slice referencing the value in the block of the file or null when the file does not contain the key.
+     * @throws IOException
+     */
+    Slice get(Slice key) throws IOException;
+  }
+
+  /**
+   * Writer accepting key and value as slices of larger buffers.
+   */
+  interface HDSFileWriter extends FileAccess.FileWriter
+  {
+    /**
+     * Append key and value, the slices are not retained after the call returns.
+     *
+     * @param key key, has to be greater than the previously appended key.
+     * @param value value.
+     * @throws IOException
+     */
+    void append(Slice key, Slice value) throws IOException;
+  }
+}
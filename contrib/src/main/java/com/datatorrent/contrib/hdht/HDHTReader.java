@@ -15,20 +15,32 @@
  */
 package com.datatorrent.contrib.hdht;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
 import org.slf4j.Logger;
@@ -39,8 +51,11 @@ import org.apache.hadoop.io.WritableComparator;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 
 import com.datatorrent.api.Context.OperatorContext;
 import com.datatorrent.api.Operator;
@@ -64,6 +79,15 @@ public class HDHTReader implements Operator, HDHT.Reader
 {
   public static final String FNAME_WAL = "_WAL";
   public static final String FNAME_META = "_META";
+  public static final String FNAME_META_EDIT = "_META_EDIT-";
+  public static final String FNAME_BLOOM = "_BLOOM-";
+  public static final String FNAME_INDEX = "_INDEX-";
+  /**
+   * Header of meta data files, followed by the format version. Snapshots written before the format was versioned
+   * start with the class name written by Kryo.
+   */
+  static final byte[] META_MAGIC = {'H', 'D', 'H', 'T'};
+  static final int META_VERSION = 1;
 
   public static class HDSQuery
   {
@@ -72,6 +96,8 @@ public class HDHTReader implements Operator, HDHT.Reader
     public int keepAliveCount;
     public volatile byte[] result;
     public volatile boolean processed;
+    // set while the lookup is queued or running on the query executor
+    volatile boolean pending;
 
     @Override
     public String toString()
@@ -86,33 +112,178 @@ public class HDHTReader implements Operator, HDHT.Reader
     }
   }
 
+  /**
+   * Query for all keys of a bucket between start and end key (inclusive). The result holds the keys in key order.
+   */
+  public static class HDSRangeQuery
+  {
+    public long bucketKey;
+    public Slice start;
+    public Slice end;
+    public int keepAliveCount;
+    public volatile TreeMap<Slice, byte[]> result;
+    public volatile boolean processed;
+    // set while the scan is queued or running on the query executor
+    volatile boolean pending;
+    // incremented when the query is to be scanned again while a scan is in flight, that scan's result is dropped
+    int generation;
+    // uncommitted changes in the range, applied on top of the persisted data. The writer adds the changes made while
+    // the scan is in flight, guarded by the lock of the query.
+    WriteCache changes;
+
+    public boolean contains(Slice key, Comparator<Slice> cmp)
+    {
+      return cmp.compare(start, key) <= 0 && cmp.compare(end, key) >= 0;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "HDSRangeQuery{" +
+          "bucketKey=" + bucketKey +
+          ", start=" + start +
+          ", end=" + end +
+          ", keepAliveCount=" + keepAliveCount +
+          ", processed=" + processed +
+          '}';
+    }
+  }
+
   private static final Logger LOG = LoggerFactory.getLogger(HDHTReader.class);
 
   protected final transient Kryo kryo = new Kryo();
+  private final transient Kryo legacyMetaKryo = newLegacyMetaKryo();
   @NotNull
   protected Comparator<Slice> keyComparator = new DefaultKeyComparator();
   @Valid
   @NotNull
   protected FileAccess store = new TFileImpl.DTFileImpl();
+  private long blockCacheSize = 0;
+  transient BlockCache blockCache;
+  private int queryThreads = 1;
 
   protected BucketMeta loadBucketMeta(long bucketKey)
   {
+    return loadBucketMeta(bucketKey, null);
+  }
+
+  /**
+   * Load the meta data of the bucket from the last snapshot and the edits written after it. With a previously loaded
+   * version, only the edits written since are applied to a copy of it. The snapshot is read when those edits were
+   * already folded into a newer snapshot and removed.
+   *
+   * @param bucketKey bucket key
+   * @param base previously loaded meta data or null.
+   * @return The meta data.
+   */
+  protected BucketMeta loadBucketMeta(long bucketKey, BucketMeta base)
+  {
+    if (base != null) {
+      BucketMeta bucketMeta = new BucketMeta(base);
+      if (readMetaEdits(bucketKey, bucketMeta)) {
+        return bucketMeta;
+      }
+    }
     BucketMeta bucketMeta = null;
+    for (int attempt = 0; attempt < 3; attempt++) {
+      try {
+        bucketMeta = (BucketMeta)readMetaFile(bucketKey, FNAME_META);
+      } catch (IOException e) {
+        bucketMeta = new BucketMeta(keyComparator);
+      }
+      if (readMetaEdits(bucketKey, bucketMeta)) {
+        return bucketMeta;
+      }
+      // a snapshot was written concurrently and removed edits not yet read
+    }
+    LOG.warn("Meta data of bucket {} changed while loading, using version {}", bucketKey, bucketMeta.editSeq);
+    return bucketMeta;
+  }
+
+  /**
+   * Apply the edits following the version of the meta data.
+   *
+   * @return false when the edits were removed as they were folded into a newer snapshot.
+   */
+  private boolean readMetaEdits(long bucketKey, BucketMeta bucketMeta)
+  {
     try {
-      InputStream is = store.getInputStream(bucketKey, FNAME_META);
-      bucketMeta = (BucketMeta)kryo.readClassAndObject(new Input(is));
-      is.close();
+      while (store.exists(bucketKey, FNAME_META_EDIT + (bucketMeta.editSeq + 1))) {
+        BucketMetaEdit edit = (BucketMetaEdit)readMetaFile(bucketKey, FNAME_META_EDIT + (bucketMeta.editSeq + 1));
+        bucketMeta.apply(edit);
+      }
+      // edits are removed up to the latest snapshot, the edit of the version itself is retained
+      return bucketMeta.editSeq == 0 || store.exists(bucketKey, FNAME_META_EDIT + bucketMeta.editSeq);
     } catch (IOException e) {
-      bucketMeta = new BucketMeta(keyComparator);
+      LOG.debug("Failed to read meta data edit of bucket {}: {}", bucketKey, e.getMessage());
+      return false;
     }
-    return bucketMeta;
+  }
+
+  /**
+   * Read a meta data snapshot or edit written with {@link #META_MAGIC} and {@link #META_VERSION}. Snapshots without the
+   * header were written before the format was versioned and are migrated, see {@link #newLegacyMetaKryo()}.
+   */
+  private Object readMetaFile(long bucketKey, String fileName) throws IOException
+  {
+    InputStream is = new BufferedInputStream(store.getInputStream(bucketKey, fileName));
+    try {
+      byte[] magic = new byte[META_MAGIC.length];
+      is.mark(magic.length);
+      if (ByteStreams.read(is, magic, 0, magic.length) != magic.length || !Arrays.equals(magic, META_MAGIC)) {
+        is.reset();
+        synchronized (legacyMetaKryo) {
+          return legacyMetaKryo.readClassAndObject(new Input(is));
+        }
+      }
+      Input input = new Input(is);
+      int version = input.readInt();
+      if (version != META_VERSION) {
+        // not an I/O error, the meta data must not be replaced by an empty one
+        throw new IllegalStateException("Unsupported meta data version " + version + " of " + fileName + " in bucket "
+            + bucketKey);
+      }
+      synchronized (kryo) {
+        return kryo.readClassAndObject(input);
+      }
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Kryo for snapshots written before the meta data format was versioned. Kryo writes the fields of an object without
+   * tags, the fields added since are excluded to match the layout and keep their defaults: no sorted runs, edit
+   * sequence 0 and unknown file sizes.
+   */
+  private static Kryo newLegacyMetaKryo()
+  {
+    Kryo legacyKryo = new Kryo();
+    FieldSerializer<BucketMeta> metaSerializer = new FieldSerializer<BucketMeta>(legacyKryo, BucketMeta.class);
+    for (String field : new String[] {"runs", "editSeq", "snapshotSeq"}) {
+      metaSerializer.removeField(field);
+    }
+    legacyKryo.addDefaultSerializer(BucketMeta.class, metaSerializer);
+    FieldSerializer<BucketFileMeta> fileSerializer = new FieldSerializer<BucketFileMeta>(legacyKryo,
+        BucketFileMeta.class);
+    for (String field : new String[] {"bytes", "heat", "heatSeq"}) {
+      fileSerializer.removeField(field);
+    }
+    legacyKryo.addDefaultSerializer(BucketFileMeta.class, fileSerializer);
+    return legacyKryo;
   }
 
   /**
    * Map containing all current queries. Accessed by operator and reader threads.
    */
   protected final ConcurrentMap<Slice, HDSQuery> queries = Maps.newConcurrentMap();
-  private final transient Map<Long, BucketReader> buckets = Maps.newHashMap();
+  /**
+   * Current range queries. Accessed by operator and reader threads, not checkpointed as results can be large.
+   */
+  protected final transient Queue<HDSRangeQuery> rangeQueries = new ConcurrentLinkedQueue<>();
+  // built on first lookup after the range queries changed, used by the operator thread only
+  private transient RangeQueryIndex rangeQueryIndex;
+  private final transient ConcurrentMap<Long, BucketReader> buckets = Maps.newConcurrentMap();
 
   @VisibleForTesting
   protected transient ExecutorService queryExecutor;
@@ -148,12 +319,50 @@ public class HDHTReader implements Operator, HDHT.Reader
     this.store = fileStore;
   }
 
+  /**
+   * Size in bytes of the cache for decoded blocks of data files, shared by all buckets. Repeated lookups of keys in
+   * the same block are served from memory instead of seeking and decoding the file again. Only files written with a
+   * block index can be cached. 0 disables the cache.
+   *
+   * @return The block cache size in bytes.
+   */
+  @Min(value = 0)
+  public long getBlockCacheSize()
+  {
+    return blockCacheSize;
+  }
+
+  public void setBlockCacheSize(long blockCacheSize)
+  {
+    this.blockCacheSize = blockCacheSize;
+  }
+
+  /**
+   * Number of threads processing asynchronous queries. Lookups of different buckets and range scans run in parallel, a
+   * query is not processed again while its previous lookup is in progress.
+   *
+   * @return The number of query threads.
+   */
+  @Min(value = 1)
+  public int getQueryThreads()
+  {
+    return queryThreads;
+  }
+
+  public void setQueryThreads(int queryThreads)
+  {
+    this.queryThreads = queryThreads;
+  }
+
   @Override
   public void setup(OperatorContext context)
   {
     this.store.init();
+    if (blockCacheSize > 0) {
+      blockCache = new BlockCache(blockCacheSize);
+    }
     if (queryExecutor == null) {
-      queryExecutor = Executors.newSingleThreadScheduledExecutor(new NameableThreadFactory(this.getClass()
+      queryExecutor = Executors.newFixedThreadPool(queryThreads, new NameableThreadFactory(this.getClass()
           .getSimpleName() + "-Reader"));
     }
   }
@@ -176,12 +385,19 @@ public class HDHTReader implements Operator, HDHT.Reader
   @Override
   public void endWindow()
   {
+    List<HDSQuery> unprocessed = Lists.newArrayList();
+    for (HDSQuery query : this.queries.values()) {
+      if (!query.processed && !query.pending) {
+        unprocessed.add(query);
+      }
+    }
+    if (!unprocessed.isEmpty()) {
+      processQueries(unprocessed);
+    }
+
     Iterator<Map.Entry<Slice, HDSQuery>> it = this.queries.entrySet().iterator();
     while (it.hasNext()) {
       HDSQuery query = it.next().getValue();
-      if (!query.processed) {
-        processQuery(query);
-      }
       // could be processed directly
       if (query.processed) {
         emitQueryResult(query);
@@ -191,6 +407,20 @@ public class HDHTReader implements Operator, HDHT.Reader
         }
       }
     }
+    Iterator<HDSRangeQuery> rangeIt = this.rangeQueries.iterator();
+    while (rangeIt.hasNext()) {
+      HDSRangeQuery query = rangeIt.next();
+      if (!query.processed && !query.pending) {
+        processRangeQuery(query);
+      }
+      if (query.processed) {
+        emitRangeQueryResult(query);
+        if (--query.keepAliveCount < 0) {
+          rangeIt.remove(); // query expired
+          rangeQueryIndex = null;
+        }
+      }
+    }
     if (executorError != null) {
       throw new RuntimeException("Error processing queries.", this.executorError);
     }
@@ -202,6 +432,7 @@ public class HDHTReader implements Operator, HDHT.Reader
    */
   protected void processQuery(final HDSQuery query)
   {
+    query.pending = true;
     Runnable readerRunnable = new Runnable()
     {
       @Override
@@ -213,6 +444,111 @@ public class HDHTReader implements Operator, HDHT.Reader
           query.processed = true;
         } catch (Exception e) {
           executorError = e;
+        } finally {
+          query.pending = false;
+        }
+      }
+    };
+    this.queryExecutor.execute(readerRunnable);
+  }
+
+  /**
+   * Fetch results for a batch of queries from persistent storage. Queries of the same bucket are resolved together
+   * with a single task on the query executor, see {@link #getAll(long, Collection)}.
+   * Subclass can override this to serve from write cache.
+   */
+  protected void processQueries(List<HDSQuery> batch)
+  {
+    Map<Long, List<HDSQuery>> bucketQueries = Maps.newHashMap();
+    for (HDSQuery query : batch) {
+      List<HDSQuery> list = bucketQueries.get(query.bucketKey);
+      if (list == null) {
+        bucketQueries.put(query.bucketKey, list = Lists.newArrayList());
+      }
+      list.add(query);
+    }
+
+    for (final Map.Entry<Long, List<HDSQuery>> entry : bucketQueries.entrySet()) {
+      if (entry.getValue().size() == 1) {
+        processQuery(entry.getValue().get(0));
+        continue;
+      }
+      for (HDSQuery query : entry.getValue()) {
+        query.pending = true;
+      }
+      Runnable readerRunnable = new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try {
+            LOG.debug("Processing {} queries of bucket {}", entry.getValue().size(), entry.getKey());
+            List<Slice> keys = Lists.newArrayListWithCapacity(entry.getValue().size());
+            for (HDSQuery query : entry.getValue()) {
+              keys.add(query.key);
+            }
+            Map<Slice, byte[]> values = getAllFiles(entry.getKey(), keys);
+            for (HDSQuery query : entry.getValue()) {
+              query.result = values.get(query.key);
+              query.processed = true;
+            }
+          } catch (Exception e) {
+            executorError = e;
+          } finally {
+            for (HDSQuery query : entry.getValue()) {
+              query.pending = false;
+            }
+          }
+        }
+      };
+      this.queryExecutor.execute(readerRunnable);
+    }
+  }
+
+  /**
+   * Scan the range from persistent storage on the query executor. Subclass can override this to set
+   * {@link HDSRangeQuery#changes} to include changes which are not yet written to the data files.
+   */
+  protected void processRangeQuery(final HDSRangeQuery query)
+  {
+    final int generation;
+    synchronized (query) {
+      if (query.pending) {
+        // never run two scans of a query at once, scan again when the stale scan in flight is done
+        query.generation++;
+        query.processed = false;
+        return;
+      }
+      query.pending = true;
+      generation = query.generation;
+    }
+    Runnable readerRunnable = new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try {
+          LOG.debug("Processing {}", query);
+          TreeMap<Slice, byte[]> result = scanFiles(query.bucketKey, query.start, query.end);
+          synchronized (query) {
+            if (query.generation != generation) {
+              LOG.debug("Dropping stale result of {}", query);
+              return;
+            }
+            // changes made after the scan started are not lost, the writer patches the result once processed
+            if (query.changes != null) {
+              query.changes.applyTo(result);
+              query.changes = null;
+            }
+            query.result = result;
+            query.processed = true;
+          }
+        } catch (Exception e) {
+          executorError = e;
+        } finally {
+          synchronized (query) {
+            query.pending = false;
+          }
         }
       }
     };
@@ -220,85 +556,596 @@ public class HDHTReader implements Operator, HDHT.Reader
   }
 
   protected BucketReader getReader(long bucketKey)
+  {
+    BucketReader br = getBucketReader(bucketKey);
+    getBucketMeta(bucketKey, br);
+    return br;
+  }
+
+  private BucketReader getBucketReader(long bucketKey)
   {
     BucketReader br = this.buckets.get(bucketKey);
     if (br == null) {
-      this.buckets.put(bucketKey, br = new BucketReader());
+      br = new BucketReader();
+      BucketReader existing = this.buckets.putIfAbsent(bucketKey, br);
+      if (existing != null) {
+        br = existing;
+      }
     }
+    return br;
+  }
+
+  /**
+   * Get the current meta data snapshot of the bucket, loading it after invalidation. Snapshots are never modified,
+   * a lookup works with the snapshot it started with while the writer installs a new version.
+   */
+  private BucketMeta getBucketMeta(long bucketKey, BucketReader br)
+  {
+    BucketMeta bucketMeta = br.bucketMeta;
     // meta data can be invalidated on write without removing unaffected readers
-    if (br.bucketMeta == null) {
+    if (bucketMeta == null) {
+      long version = br.metaVersion;
       LOG.debug("Reading {} {}", bucketKey, FNAME_META);
-      br.bucketMeta = loadBucketMeta(bucketKey);
+      // apply the edits since the previous version instead of reading the full meta data
+      bucketMeta = loadBucketMeta(bucketKey, br.previousMeta);
+      synchronized (br) {
+        // a version loaded before a concurrent invalidation may be stale, use it for this lookup only
+        if (br.metaVersion == version) {
+          br.bucketMeta = bucketMeta;
+        }
+      }
     }
-    return br;
+    return bucketMeta;
   }
 
-  protected synchronized void invalidateReader(long bucketKey, Set<String> fileNames)
+  /**
+   * Reload meta data after a read error.
+   *
+   * @return true when the file is no longer part of the bucket and the lookup should be retried.
+   */
+  private boolean reloadBucketMeta(long bucketKey, BucketReader br, String fileName)
+  {
+    BucketMeta bucketMeta = loadBucketMeta(bucketKey);
+    synchronized (br) {
+      br.metaVersion++;
+      br.bucketMeta = bucketMeta;
+    }
+    return !bucketMeta.containsFile(fileName);
+  }
+
+  protected void invalidateReader(long bucketKey, Set<String> fileNames)
   {
-    // synchronized with get for access to bucket and readers
     BucketReader bucket = this.buckets.get(bucketKey);
     if (bucket != null) {
-      bucket.bucketMeta = null; // force index reload
+      synchronized (bucket) {
+        bucket.metaVersion++;
+        if (bucket.bucketMeta != null) {
+          bucket.previousMeta = bucket.bucketMeta;
+        }
+        bucket.bucketMeta = null; // force index reload
+      }
+      for (String name : fileNames) {
+        LOG.debug("Closing readers {}", name);
+        Queue<FileAccess.FileReader> pool = bucket.readers.remove(name);
+        if (pool != null) {
+          // readers in use are closed when returned
+          FileAccess.FileReader reader;
+          while ((reader = pool.poll()) != null) {
+            IOUtils.closeQuietly(reader);
+          }
+        }
+        bucket.bloomFilters.remove(name);
+        bucket.blockIndexes.remove(name);
+      }
+    }
+    if (blockCache != null) {
       for (String name : fileNames) {
-        LOG.debug("Closing reader {}", name);
-        IOUtils.closeQuietly(bucket.readers.remove(name));
+        blockCache.invalidate(bucketKey, name);
       }
     }
   }
 
-  private static Slice GET_KEY = new Slice(null, 0, 0);
+  /**
+   * Check bloom filter of the data file for the key. Filter is loaded on first access and cached with the reader,
+   * files written without filter are always considered to possibly contain the key.
+   */
+  private boolean mightContain(long bucketKey, BucketReader bucket, String fileName, Slice key) throws IOException
+  {
+    BloomFilter bloomFilter = bucket.bloomFilters.get(fileName);
+    if (bloomFilter == null) {
+      String filterName = FNAME_BLOOM + fileName;
+      if (store.exists(bucketKey, filterName)) {
+        LOG.debug("Reading bloom filter {} {}", bucketKey, filterName);
+        DataInputStream is = store.getInputStream(bucketKey, filterName);
+        try {
+          bloomFilter = BloomFilter.readFrom(is);
+        } finally {
+          is.close();
+        }
+      } else {
+        bloomFilter = NO_FILTER;
+      }
+      bucket.bloomFilters.put(fileName, bloomFilter);
+    }
+    return bloomFilter == NO_FILTER || bloomFilter.mightContain(key);
+  }
+
+  /* Placeholder for data files written without bloom filter */
+  private static final BloomFilter NO_FILTER = new BloomFilter(1, 0.5);
+
+  /**
+   * Get block index of the data file. Index is loaded on first access and cached with the reader.
+   */
+  private BlockIndex getBlockIndex(long bucketKey, BucketReader bucket, String fileName) throws IOException
+  {
+    BlockIndex index = bucket.blockIndexes.get(fileName);
+    if (index == null) {
+      String indexName = FNAME_INDEX + fileName;
+      if (store.exists(bucketKey, indexName)) {
+        LOG.debug("Reading block index {} {}", bucketKey, indexName);
+        DataInputStream is = store.getInputStream(bucketKey, indexName);
+        try {
+          index = BlockIndex.readFrom(is);
+        } finally {
+          is.close();
+        }
+      } else {
+        index = NO_INDEX;
+      }
+      bucket.blockIndexes.put(fileName, index);
+    }
+    return index;
+  }
+
+  /* Placeholder for data files written without block index */
+  private static final BlockIndex NO_INDEX = new BlockIndex(0);
 
   @Override
-  public synchronized byte[] get(long bucketKey, Slice key) throws IOException
+  public byte[] get(long bucketKey, Slice key) throws IOException
   {
-    // this method is synchronized to support asynchronous reads outside operator thread
+    // safe for concurrent use, supports asynchronous reads outside operator thread
     for (int i = 0; i < 10; i++) {
-      BucketReader bucket = getReader(bucketKey);
-      BucketMeta bucketMeta = bucket.bucketMeta;
-      if (bucketMeta == null) {
-        // meta data invalidated
-        continue;
+      BucketReader bucket = getBucketReader(bucketKey);
+      BucketMeta bucketMeta = getBucketMeta(bucketKey, bucket);
+
+      String fileName = null;
+      try {
+        // sorted runs hold changes more recent than the data files, newest run first
+        for (SortedRunMeta run : bucketMeta.runs) {
+          fileName = run.name;
+          Slice value = readValue(bucketKey, bucket, fileName, key);
+          if (value != null) {
+            // empty value marks a deleted key
+            return value.length == 0 ? null : copyValue(value);
+          }
+        }
+
+        Map.Entry<Slice, BucketFileMeta> floorEntry = bucketMeta.files.floorEntry(key);
+        if (floorEntry == null) {
+          // no file for this key
+          return null;
+        }
+        fileName = floorEntry.getValue().name;
+        Slice value = readValue(bucketKey, bucket, fileName, key);
+        return value == null ? null : copyValue(value);
+      } catch (IOException e) {
+        // check for meta file update
+        if (!reloadBucketMeta(bucketKey, bucket, fileName)) {
+          // file still the same - error unrelated to rewrite
+          throw e;
+        }
+        // retry
+        LOG.debug("Retry after meta data change bucket {} file {}", bucketKey, fileName);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Lookup multiple keys of a bucket. Keys are sorted and each data file is visited once for all of its keys in a single
+   * forward pass, seeking only to skip blocks which do not contain any of the keys.
+   *
+   * @param bucketKey bucket
+   * @param keys keys to lookup
+   * @return The values of the keys which were found.
+   * @throws IOException
+   */
+  public Map<Slice, byte[]> getAll(long bucketKey, Collection<Slice> keys) throws IOException
+  {
+    return getAllFiles(bucketKey, keys);
+  }
+
+  /**
+   * Lookup multiple keys in the data files only, changes in the write caches of a writer are not considered. Safe for
+   * concurrent use, supports asynchronous reads outside the operator thread.
+   */
+  protected Map<Slice, byte[]> getAllFiles(long bucketKey, Collection<Slice> keys) throws IOException
+  {
+    for (int i = 0; i < 10; i++) {
+      BucketReader bucket = getBucketReader(bucketKey);
+      BucketMeta bucketMeta = getBucketMeta(bucketKey, bucket);
+
+      Map<Slice, byte[]> result = Maps.newHashMap();
+      TreeSet<Slice> pending = new TreeSet<>(keyComparator);
+      pending.addAll(keys);
+      Map<Slice, Slice> found = Maps.newHashMap();
+      String fileName = null;
+      try {
+        // sorted runs hold changes more recent than the data files, newest run first
+        for (SortedRunMeta run : bucketMeta.runs) {
+          fileName = run.name;
+          found.clear();
+          readValues(bucketKey, bucket, fileName, pending, found);
+          for (Map.Entry<Slice, Slice> entry : found.entrySet()) {
+            pending.remove(entry.getKey());
+            // empty value marks a deleted key
+            if (entry.getValue().length > 0) {
+              result.put(entry.getKey(), copyValue(entry.getValue()));
+            }
+          }
+        }
+
+        // keys are visited in order, consecutive keys of the same file form one batch
+        found.clear();
+        List<Slice> fileKeys = Lists.newArrayList();
+        BucketFileMeta fileMeta = null;
+        for (Slice key : pending) {
+          Map.Entry<Slice, BucketFileMeta> floorEntry = bucketMeta.files.floorEntry(key);
+          if (floorEntry == null) {
+            // no file for this key
+            continue;
+          }
+          if (floorEntry.getValue() != fileMeta) {
+            if (fileMeta != null) {
+              fileName = fileMeta.name;
+              readValues(bucketKey, bucket, fileName, fileKeys, found);
+            }
+            fileKeys.clear();
+            fileMeta = floorEntry.getValue();
+          }
+          fileKeys.add(key);
+        }
+        if (fileMeta != null) {
+          fileName = fileMeta.name;
+          readValues(bucketKey, bucket, fileName, fileKeys, found);
+        }
+        for (Map.Entry<Slice, Slice> entry : found.entrySet()) {
+          result.put(entry.getKey(), copyValue(entry.getValue()));
+        }
+        return result;
+      } catch (IOException e) {
+        // check for meta file update
+        if (!reloadBucketMeta(bucketKey, bucket, fileName)) {
+          // file still the same - error unrelated to rewrite
+          throw e;
+        }
+        // retry
+        LOG.debug("Retry after meta data change bucket {} file {}", bucketKey, fileName);
+      }
+    }
+    return Maps.newHashMap();
+  }
+
+  /**
+   * Lookup sorted keys in the given file of the bucket. With a block index the file is read forward from the block of
+   * the first key, the reader only seeks to skip blocks between keys.
+   */
+  private void readValues(long bucketKey, BucketReader bucket, String fileName, Collection<Slice> sortedKeys,
+      Map<Slice, Slice> found) throws IOException
+  {
+    List<Slice> candidates = Lists.newArrayList();
+    for (Slice key : sortedKeys) {
+      if (mightContain(bucketKey, bucket, fileName, key)) {
+        candidates.add(key);
+      }
+    }
+    if (candidates.isEmpty()) {
+      // none of the keys present in the file, skip opening it
+      return;
+    }
+
+    BlockIndex index = getBlockIndex(bucketKey, bucket, fileName);
+    if (blockCache != null && index != NO_INDEX) {
+      for (Slice key : candidates) {
+        Slice value = readValue(bucketKey, bucket, fileName, key);
+        if (value != null) {
+          found.put(key, value);
+        }
+      }
+      return;
+    }
+
+    FileAccess.FileReader reader = borrowReader(bucketKey, bucket, fileName);
+    try {
+      boolean copy = !(reader instanceof HDHTFileAccess.HDSFileReader);
+      Slice fileKey = new Slice(null, 0, 0);
+      Slice value = new Slice(null, 0, 0);
+      if (index == NO_INDEX) {
+        for (Slice key : candidates) {
+          if (reader.seek(key)) {
+            reader.next(fileKey, value);
+            found.put(key, retain(value, copy));
+          }
+        }
+        return;
+      }
+
+      boolean positioned = false;
+      boolean valid = false;
+      for (Slice key : candidates) {
+        int blockNum = index.floorBlock(key, keyComparator);
+        if (blockNum < 0) {
+          continue;
+        }
+        Slice blockStart = index.getStartKey(blockNum);
+        if (!positioned || (valid && keyComparator.compare(fileKey, blockStart) < 0)) {
+          // skip to the block of the key
+          if (!reader.seek(blockStart)) {
+            throw new IOException("Start key of block " + blockNum + " not found in " + bucketKey + " " + fileName);
+          }
+          positioned = true;
+          valid = reader.next(fileKey, value);
+        }
+        while (valid && keyComparator.compare(fileKey, key) < 0) {
+          valid = reader.next(fileKey, value);
+        }
+        if (!valid) {
+          // end of file
+          break;
+        }
+        if (keyComparator.compare(fileKey, key) == 0) {
+          found.put(key, retain(value, copy));
+        }
       }
+    } finally {
+      releaseReader(bucket, fileName, reader);
+    }
+  }
 
-      Map.Entry<Slice, BucketFileMeta> floorEntry = bucket.bucketMeta.files.floorEntry(key);
-      if (floorEntry == null) {
-        // no file for this key
-        return null;
+  /**
+   * Lookup key in the given file of the bucket.
+   * @return value of the key or null when the file does not contain the key.
+   */
+  private Slice readValue(long bucketKey, BucketReader bucket, String fileName, Slice key) throws IOException
+  {
+    if (!mightContain(bucketKey, bucket, fileName, key)) {
+      // key not present in the file, skip opening it
+      return null;
+    }
+    if (blockCache != null) {
+      BlockIndex index = getBlockIndex(bucketKey, bucket, fileName);
+      if (index != NO_INDEX) {
+        int blockNum = index.floorBlock(key, keyComparator);
+        if (blockNum < 0) {
+          return null;
+        }
+        BlockCache.Block block = blockCache.get(bucketKey, fileName, blockNum);
+        if (block == null) {
+          block = readBlock(bucketKey, bucket, fileName, index, blockNum);
+          blockCache.put(bucketKey, fileName, blockNum, block);
+        }
+        return block.get(key, keyComparator);
       }
+    }
+    FileAccess.FileReader reader = borrowReader(bucketKey, bucket, fileName);
+    try {
+      if (reader instanceof HDHTFileAccess.HDSFileReader) {
+        // value references an immutable block of the file
+        return ((HDHTFileAccess.HDSFileReader)reader).get(key);
+      }
+      if (reader.seek(key)) {
+        Slice value = new Slice(null, 0, 0);
+        reader.next(new Slice(null, 0, 0), value);
+        // copy before the reader is handed to another lookup
+        return new Slice(value.toByteArray());
+      }
+      return null;
+    } finally {
+      releaseReader(bucket, fileName, reader);
+    }
+  }
 
+  /**
+   * Read all keys between start and end key (inclusive) from the data files of the bucket. Each file which can contain
+   * keys of the range is read in a single sequential pass, starting at the block of the start key when the file has a
+   * block index.
+   *
+   * @param bucketKey bucket
+   * @param start first key of the range
+   * @param end last key of the range
+   * @return The keys and values of the range in key order.
+   * @throws IOException
+   */
+  public TreeMap<Slice, byte[]> scan(long bucketKey, Slice start, Slice end) throws IOException
+  {
+    return scanFiles(bucketKey, start, end);
+  }
+
+  private TreeMap<Slice, byte[]> scanFiles(long bucketKey, Slice start, Slice end) throws IOException
+  {
+    for (int i = 0; i < 10; i++) {
+      BucketReader bucket = getBucketReader(bucketKey);
+      BucketMeta bucketMeta = getBucketMeta(bucketKey, bucket);
+
+      TreeMap<Slice, byte[]> result = new TreeMap<>(keyComparator);
+      String fileName = null;
       try {
-        FileAccess.FileReader reader = bucket.readers.get(floorEntry.getValue().name);
-        if (reader == null) {
-          LOG.debug("Opening file {} {}", bucketKey, floorEntry.getValue().name);
-          bucket.readers.put(floorEntry.getValue().name, reader =
-              store.getReader(bucketKey, floorEntry.getValue().name));
-        }
-        Slice value = new Slice(null, 0,0);
-        if (reader.seek(key)) {
-          reader.next(GET_KEY, value);
-        }
-        if (value.offset == 0) {
-          return value.buffer;
-        } else {
-          // this is inefficient, should return Slice
-          return Arrays.copyOfRange(value.buffer, value.offset, value.offset + value.length);
+        // data files do not overlap, the first candidate may start before the range
+        Map.Entry<Slice, BucketFileMeta> floorEntry = bucketMeta.files.floorEntry(start);
+        Slice fromKey = floorEntry != null ? floorEntry.getKey() : start;
+        if (keyComparator.compare(fromKey, end) <= 0) {
+          for (BucketFileMeta fmeta : bucketMeta.files.subMap(fromKey, true, end, true).values()) {
+            fileName = fmeta.name;
+            scanFile(bucketKey, bucket, fileName, start, end, result);
+          }
+        }
+
+        // sorted runs hold more recent changes, apply from oldest to newest
+        Iterator<SortedRunMeta> runIt = bucketMeta.runs.descendingIterator();
+        while (runIt.hasNext()) {
+          fileName = runIt.next().name;
+          scanFile(bucketKey, bucket, fileName, start, end, result);
         }
+        return result;
       } catch (IOException e) {
         // check for meta file update
-        this.buckets.remove(bucketKey);
-        bucket.close();
-        bucket = getReader(bucketKey);
-        Map.Entry<Slice, BucketFileMeta> newEntry = bucket.bucketMeta.files.floorEntry(key);
-        if (newEntry != null && newEntry.getValue().name.compareTo(floorEntry.getValue().name) == 0) {
+        if (!reloadBucketMeta(bucketKey, bucket, fileName)) {
           // file still the same - error unrelated to rewrite
           throw e;
         }
         // retry
-        LOG.debug("Retry after meta data change bucket {} from {} to {}", bucketKey, floorEntry, newEntry);
-        continue;
+        LOG.debug("Retry after meta data change bucket {} file {}", bucketKey, fileName);
       }
     }
-    return null;
+    return new TreeMap<>(keyComparator);
+  }
+
+  /**
+   * Add entries of the file within the range to the result. Empty values mark deleted keys.
+   */
+  private void scanFile(long bucketKey, BucketReader bucket, String fileName, Slice start, Slice end,
+      TreeMap<Slice, byte[]> result) throws IOException
+  {
+    BlockIndex index = getBlockIndex(bucketKey, bucket, fileName);
+    FileAccess.FileReader reader = borrowReader(bucketKey, bucket, fileName);
+    try {
+      int blockNum = index.floorBlock(start, keyComparator);
+      if (blockNum >= 0) {
+        if (!reader.seek(index.getStartKey(blockNum))) {
+          throw new IOException("Start key of block " + blockNum + " not found in " + bucketKey + " " + fileName);
+        }
+      } else {
+        reader.reset();
+      }
+
+      Slice key = new Slice(null, 0, 0);
+      Slice value = new Slice(null, 0, 0);
+      while (reader.next(key, value)) {
+        if (keyComparator.compare(key, start) < 0) {
+          continue;
+        }
+        if (keyComparator.compare(key, end) > 0) {
+          break;
+        }
+        if (value.length == 0) {
+          result.remove(key);
+        } else {
+          // the result outlives the lookup, a slice of the reader would keep the decoded file block alive
+          result.put(new Slice(key.toByteArray()), value.toByteArray());
+        }
+      }
+    } finally {
+      releaseReader(bucket, fileName, reader);
+    }
+  }
+
+  /**
+   * Take a reader of the file from the pool of the bucket or open a new one. File readers keep a position and can only
+   * be used by one lookup at a time, the pool holds one reader per concurrent lookup of the file.
+   */
+  private FileAccess.FileReader borrowReader(long bucketKey, BucketReader bucket, String fileName) throws IOException
+  {
+    Queue<FileAccess.FileReader> pool = bucket.readers.get(fileName);
+    if (pool == null) {
+      pool = new ConcurrentLinkedQueue<>();
+      Queue<FileAccess.FileReader> existing = bucket.readers.putIfAbsent(fileName, pool);
+      if (existing != null) {
+        pool = existing;
+      }
+    }
+    FileAccess.FileReader reader = pool.poll();
+    if (reader == null) {
+      LOG.debug("Opening file {} {}", bucketKey, fileName);
+      reader = store.getReader(bucketKey, fileName);
+    }
+    return reader;
+  }
+
+  /**
+   * Return reader to the pool, readers of files invalidated meanwhile are closed.
+   */
+  private void releaseReader(BucketReader bucket, String fileName, FileAccess.FileReader reader)
+  {
+    Queue<FileAccess.FileReader> pool = bucket.readers.get(fileName);
+    if (pool != null) {
+      pool.offer(reader);
+      if (bucket.readers.get(fileName) == pool || !pool.remove(reader)) {
+        // still current or already closed by invalidation
+        return;
+      }
+    }
+    IOUtils.closeQuietly(reader);
+  }
+
+  /**
+   * Read and decode a block of the data file. The entries are copied into a single buffer owned by the block, so the
+   * size accounted by the cache is the memory it holds. Slices of the reader would keep its buffers or the whole
+   * decoded file block of a {@link HDHTFileAccess.HDSFileReader} alive.
+   */
+  private BlockCache.Block readBlock(long bucketKey, BucketReader bucket, String fileName, BlockIndex index,
+      int blockNum) throws IOException
+  {
+    Slice endKey = blockNum + 1 < index.size() ? index.getStartKey(blockNum + 1) : null;
+    List<Slice> keys = Lists.newArrayList();
+    List<Slice> values = Lists.newArrayList();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FileAccess.FileReader reader = borrowReader(bucketKey, bucket, fileName);
+    try {
+      if (!reader.seek(index.getStartKey(blockNum))) {
+        throw new IOException("Start key of block " + blockNum + " not found in " + bucketKey + " " + fileName);
+      }
+      Slice key = new Slice(null, 0, 0);
+      Slice value = new Slice(null, 0, 0);
+      while (reader.next(key, value)) {
+        if (endKey != null && keyComparator.compare(key, endKey) >= 0) {
+          break;
+        }
+        // positions in the block buffer, assigned once complete
+        keys.add(new Slice(null, bytes.size(), key.length));
+        bytes.write(key.buffer, key.offset, key.length);
+        values.add(new Slice(null, bytes.size(), value.length));
+        bytes.write(value.buffer, value.offset, value.length);
+      }
+    } finally {
+      releaseReader(bucket, fileName, reader);
+    }
+    byte[] buffer = bytes.toByteArray();
+    for (int i = 0; i < keys.size(); i++) {
+      keys.get(i).buffer = buffer;
+      values.get(i).buffer = buffer;
+    }
+    return new BlockCache.Block(keys.toArray(new Slice[keys.size()]), values.toArray(new Slice[values.size()]));
+  }
+
+  /**
+   * Value for the caller of a lookup. Values found in the data files reference blocks shared with other lookups, the
+   * block cache or the immutable blocks of the reader, and are always copied.
+   */
+  private static byte[] copyValue(Slice value)
+  {
+    return Arrays.copyOfRange(value.buffer, value.offset, value.offset + value.length);
+  }
+
+  /**
+   * Bytes of the slice, without copy when the slice covers the whole buffer.
+   */
+  static byte[] toByteArray(Slice value)
+  {
+    if (value.offset == 0 && value.length == value.buffer.length) {
+      return value.buffer;
+    } else {
+      return Arrays.copyOfRange(value.buffer, value.offset, value.offset + value.length);
+    }
+  }
+
+  /**
+   * Slice to keep after the reader moved on, for the duration of a lookup. Readers implementing
+   * {@link HDHTFileAccess.HDSFileReader} reference immutable buffers, other readers may reuse the buffer and the data
+   * is copied.
+   */
+  private static Slice retain(Slice slice, boolean copy)
+  {
+    return copy ? new Slice(slice.toByteArray()) : new Slice(slice.buffer, slice.offset, slice.length);
   }
 
   protected void addQuery(HDSQuery query)
@@ -314,6 +1161,41 @@ public class HDHTReader implements Operator, HDHT.Reader
   {
   }
 
+  protected void addRangeQuery(HDSRangeQuery query)
+  {
+    Iterator<HDSRangeQuery> it = this.rangeQueries.iterator();
+    while (it.hasNext()) {
+      HDSRangeQuery existingQuery = it.next();
+      if (existingQuery.bucketKey == query.bucketKey && existingQuery.start.equals(query.start) &&
+          existingQuery.end.equals(query.end)) {
+        query.keepAliveCount = Math.max(query.keepAliveCount, existingQuery.keepAliveCount);
+        it.remove();
+      }
+    }
+    this.rangeQueries.add(query);
+    rangeQueryIndex = null;
+  }
+
+  /**
+   * Find the range queries affected by a change of the key.
+   *
+   * @return the range queries of the bucket which contain the key.
+   */
+  protected List<HDSRangeQuery> findRangeQueries(long bucketKey, Slice key)
+  {
+    if (rangeQueries.isEmpty()) {
+      return Collections.emptyList();
+    }
+    if (rangeQueryIndex == null) {
+      rangeQueryIndex = new RangeQueryIndex(rangeQueries, keyComparator);
+    }
+    return rangeQueryIndex.get(bucketKey, key);
+  }
+
+  protected void emitRangeQueryResult(HDSRangeQuery query)
+  {
+  }
+
   /**
    * Default key comparator that performs lexicographical comparison of the byte arrays.
    */
@@ -328,6 +1210,7 @@ public class HDHTReader implements Operator, HDHT.Reader
 
   public static class BucketFileMeta
   {
+    public static final long UNKNOWN_SIZE = -1;
     /**
      * Name of file (relative to bucket)
      */
@@ -336,11 +1219,50 @@ public class HDHTReader implements Operator, HDHT.Reader
      * Lower bound sequence key
      */
     public Slice startKey;
+    /**
+     * Size of file in bytes, {@link #UNKNOWN_SIZE} for files written before sizes were recorded. Adaptive sizing leaves
+     * such files alone until they are rewritten.
+     */
+    public long bytes = UNKNOWN_SIZE;
+    /**
+     * Rewrites of the key range of the file, decayed with every flush of the bucket
+     */
+    public double heat;
+    /**
+     * Flush at which the heat was recorded
+     */
+    public long heatSeq;
+
+    @Override
+    public String toString()
+    {
+      return "BucketFileMeta [name=" + name + ", startKey=" + startKey + ", bytes=" + bytes + ", heat=" + heat + "]";
+    }
+  }
+
+  /**
+   * Sorted run written by a flush or by compaction of runs. Runs can overlap each other and the data files, they
+   * contain deleted keys with empty values.
+   */
+  public static class SortedRunMeta
+  {
+    /**
+     * Name of file (relative to bucket)
+     */
+    public String name;
+    /**
+     * Compaction level, runs of one level are merged into a single run of the next level
+     */
+    public int level;
+    /**
+     * Number of entries in the run
+     */
+    public int numKeys;
 
     @Override
     public String toString()
     {
-      return "BucketFileMeta [name=" + name + ", startKey=" + startKey + "]";
+      return "SortedRunMeta [name=" + name + ", level=" + level + ", numKeys=" + numKeys + "]";
     }
   }
 
@@ -353,6 +1275,7 @@ public class HDHTReader implements Operator, HDHT.Reader
     protected BucketMeta(Comparator<Slice> cmp)
     {
       files = new TreeMap<Slice, BucketFileMeta>(cmp);
+      runs = new LinkedList<SortedRunMeta>();
       recoveryStartWalPosition = new HDHTWalManager.WalPosition(0,0);
     }
 
@@ -361,6 +1284,22 @@ public class HDHTReader implements Operator, HDHT.Reader
     {
       // for serialization only
       files = null;
+      // snapshots written before sorted runs were introduced have none
+      runs = new LinkedList<SortedRunMeta>();
+    }
+
+    /**
+     * Copy to which edits can be applied. The file and run entries are shared with the original and not modified.
+     */
+    protected BucketMeta(BucketMeta other)
+    {
+      files = new TreeMap<Slice, BucketFileMeta>(other.files);
+      runs = new LinkedList<SortedRunMeta>(other.runs);
+      fileSeq = other.fileSeq;
+      committedWid = other.committedWid;
+      recoveryStartWalPosition = other.recoveryStartWalPosition;
+      editSeq = other.editSeq;
+      snapshotSeq = other.snapshotSeq;
     }
 
     protected BucketFileMeta addFile(long bucketKey, Slice startKey)
@@ -376,22 +1315,134 @@ public class HDHTReader implements Operator, HDHT.Reader
       return bfm;
     }
 
+    /**
+     * Allocate a new sorted run, the caller determines position of the run in {@link #runs}.
+     */
+    protected SortedRunMeta newRun(long bucketKey, int level)
+    {
+      SortedRunMeta run = new SortedRunMeta();
+      run.name = Long.toString(bucketKey) + '-' + this.fileSeq++;
+      run.level = level;
+      return run;
+    }
+
+    boolean containsFile(String name)
+    {
+      for (SortedRunMeta run : runs) {
+        if (run.name.equals(name)) {
+          return true;
+        }
+      }
+      for (BucketFileMeta bfm : files.values()) {
+        if (name.equals(bfm.name)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Changes from the base version to this version. The edit is assigned the next sequence number of the base.
+     */
+    protected BucketMetaEdit diff(BucketMeta base)
+    {
+      BucketMetaEdit edit = new BucketMetaEdit();
+      edit.seq = base.editSeq + 1;
+      edit.fileSeq = fileSeq;
+      edit.committedWid = committedWid;
+      edit.recoveryStartWalPosition = recoveryStartWalPosition;
+      edit.removedFiles = Lists.newArrayList();
+      edit.addedFiles = Lists.newArrayList();
+      for (Map.Entry<Slice, BucketFileMeta> entry : base.files.entrySet()) {
+        BucketFileMeta bfm = files.get(entry.getKey());
+        if (bfm == null || !Objects.equals(bfm.name, entry.getValue().name)) {
+          edit.removedFiles.add(entry.getKey());
+        }
+      }
+      for (Map.Entry<Slice, BucketFileMeta> entry : files.entrySet()) {
+        BucketFileMeta bfm = base.files.get(entry.getKey());
+        if (bfm == null || !Objects.equals(bfm.name, entry.getValue().name)) {
+          edit.addedFiles.add(entry.getValue());
+        }
+      }
+      edit.runs = Lists.newArrayList(runs);
+      return edit;
+    }
+
+    protected void apply(BucketMetaEdit edit)
+    {
+      for (Slice startKey : edit.removedFiles) {
+        files.remove(startKey);
+      }
+      for (BucketFileMeta bfm : edit.addedFiles) {
+        files.put(bfm.startKey, bfm);
+      }
+      runs.clear();
+      runs.addAll(edit.runs);
+      fileSeq = edit.fileSeq;
+      committedWid = edit.committedWid;
+      recoveryStartWalPosition = edit.recoveryStartWalPosition;
+      editSeq = edit.seq;
+    }
+
     protected int fileSeq;
     protected long committedWid;
     protected final TreeMap<Slice, BucketFileMeta> files;
+    /**
+     * Sorted runs ordered from newest to oldest
+     */
+    protected final LinkedList<SortedRunMeta> runs;
     protected HDHTWalManager.WalPosition recoveryStartWalPosition;
+    /**
+     * Sequence number of the last edit applied, 0 for snapshots written before edits were introduced
+     */
+    protected long editSeq;
+    /**
+     * Sequence number of the last edit contained in the snapshot, 0 until the first snapshot with edits is written
+     */
+    protected long snapshotSeq;
+  }
+
+  /**
+   * Changes of the bucket meta data written by a single flush, persisted in store as {@link #FNAME_META_EDIT} followed
+   * by the sequence number. Edits are applied in sequence on top of the last snapshot in {@link #FNAME_META}.
+   */
+  public static class BucketMetaEdit
+  {
+    protected long seq;
+    protected int fileSeq;
+    protected long committedWid;
+    protected HDHTWalManager.WalPosition recoveryStartWalPosition;
+    /**
+     * Start keys of files removed from the bucket
+     */
+    protected List<Slice> removedFiles;
+    protected List<BucketFileMeta> addedFiles;
+    /**
+     * Complete list of sorted runs, there are only a few
+     */
+    protected List<SortedRunMeta> runs;
   }
 
   private static class BucketReader implements Closeable
   {
-    BucketMeta bucketMeta;
-    final ConcurrentMap<String, FileAccess.FileReader> readers = Maps.newConcurrentMap();
+    volatile BucketMeta bucketMeta;
+    // last version before invalidation, base for applying edits on reload
+    volatile BucketMeta previousMeta;
+    // incremented when the meta data is invalidated or reloaded
+    volatile long metaVersion;
+    final ConcurrentMap<String, Queue<FileAccess.FileReader>> readers = Maps.newConcurrentMap();
+    final ConcurrentMap<String, BloomFilter> bloomFilters = Maps.newConcurrentMap();
+    final ConcurrentMap<String, BlockIndex> blockIndexes = Maps.newConcurrentMap();
 
     @Override
     public void close() throws IOException
     {
-      for (FileAccess.FileReader reader : readers.values()) {
-        reader.close();
+      for (Queue<FileAccess.FileReader> pool : readers.values()) {
+        FileAccess.FileReader reader;
+        while ((reader = pool.poll()) != null) {
+          reader.close();
+        }
       }
     }
   }
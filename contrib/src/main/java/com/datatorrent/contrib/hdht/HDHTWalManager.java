@@ -21,24 +21,36 @@ import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.RemoteIterator;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
+import com.datatorrent.common.util.NameableThreadFactory;
 import com.datatorrent.contrib.hdht.wal.FSWALReader;
 import com.datatorrent.contrib.hdht.wal.FSWALWriter;
-import com.datatorrent.contrib.hdht.wal.WALReader;
 import com.datatorrent.contrib.hdht.wal.WALWriter;
 import com.datatorrent.lib.fileaccess.FileAccess;
 import com.datatorrent.netlet.util.Slice;
@@ -50,6 +62,10 @@ import com.datatorrent.netlet.util.Slice;
  * have grown a beyond maxWalFileSize then current file is closed and new file
  * is created.
  *
+ * Entries can optionally be written as compressed blocks and by a separate
+ * write thread, see {@link FSWALWriter}. Blocks end with the window, so WAL
+ * positions recorded at end of window are valid offsets in both formats.
+ *
  * The WAL usage windowId as log sequence number(LSN). When data is
  * written to data files, the committedWid saved in bucket metadata.
  *
@@ -116,6 +132,19 @@ public class HDHTWalManager implements Closeable
   /* Current WAL size */
   private long walSize = 0;
 
+  /* Number of threads used for recovery */
+  private transient int recoveryThreads = 1;
+
+  /* Guarantee for the data of a window at end of window */
+  private transient WALWriter.Durability durability = WALWriter.Durability.HSYNC;
+
+  private transient boolean compression;
+
+  private transient boolean asyncWrite;
+
+  /* Single thread writing the WAL file with asyncWrite */
+  private transient ExecutorService writeExecutor;
+
   @SuppressWarnings("unused")
   private HDHTWalManager()
   {
@@ -159,28 +188,186 @@ public class HDHTWalManager implements Closeable
       return;
     }
 
-    /* Make sure that WAL state is correctly restored */
-    truncateWal(context.endWalPos);
+    /* Make sure that WAL state is correctly restored, a file read by another partition is truncated later */
+    if (!context.walFileEnds.containsKey(context.endWalPos.fileId)) {
+      truncateWal(context.endWalPos);
+    }
 
     logger.info("Recovery of store, start {} till {}", context.startWalPos, context.endWalPos);
 
+    long startTime = System.currentTimeMillis();
+    // WAL file is created on first write after roll over, nothing to recover from it when end offset is 0.
+    long lastFileId = context.endWalPos.offset == 0 ? context.endWalPos.fileId - 1 : context.endWalPos.fileId;
+    if (recoveryThreads > 1) {
+      runParallelRecovery(context, lastFileId);
+    } else {
+      long offset = context.startWalPos.offset;
+      for (long i = context.startWalPos.fileId; i <= lastFileId; i++) {
+        FSWALReader<HDHTLogEntry.HDHTWalEntry> wReader = new FSWALReader<HDHTLogEntry.HDHTWalEntry>(bfs, new HDHTLogEntry.HDHTLogSerializer(), walKey, WAL_FILE_PREFIX + i);
+        wReader.seek(offset);
+        offset = 0;
+        int count = 0;
+        while (wReader.advance()) {
+          if (context.isAfterEnd(i, wReader.getPosition())) {
+            break;
+          }
+          HDHTLogEntry.HDHTWalEntry savedEntry = wReader.get();
+          if (!context.isFlushed(savedEntry.getBucket(), i, wReader.getPosition())) {
+            recoveryEntry(context, savedEntry);
+          }
+          count++;
+        }
+        wReader.close();
+        logger.info("Recovered {} tuples from wal {}", count, i);
+      }
+    }
+    stats.recoveryDuration = System.currentTimeMillis() - startTime;
+    logger.info("Recovery of store completed in {} ms", stats.recoveryDuration);
+
+    walFileId++;
+  }
+
+  /**
+   * Read the entries of the buckets in the context up to the end position without modifying the WAL. Used to read the
+   * WAL of another partition in place, which may be appending to it concurrently.
+   */
+  public void replay(RecoveryContext context) throws IOException
+  {
+    WalPosition end = context.endWalPos;
     long offset = context.startWalPos.offset;
-    for (long i = context.startWalPos.fileId; i <= context.endWalPos.fileId; i++) {
-      WALReader<HDHTLogEntry.HDHTWalEntry> wReader = new FSWALReader<HDHTLogEntry.HDHTWalEntry>(bfs, new HDHTLogEntry.HDHTLogSerializer(), walKey, WAL_FILE_PREFIX + i);
+    int count = 0;
+    for (long i = context.startWalPos.fileId; i < end.fileId || (i == end.fileId && end.offset > 0); i++) {
+      FSWALReader<HDHTLogEntry.HDHTWalEntry> wReader = new FSWALReader<HDHTLogEntry.HDHTWalEntry>(bfs,
+          new HDHTLogEntry.HDHTLogSerializer(), walKey, WAL_FILE_PREFIX + i);
+      try {
+        wReader.seek(offset);
+        offset = 0;
+        while (wReader.advance()) {
+          if (i == end.fileId && wReader.getPosition() >= end.offset) {
+            break;
+          }
+          recoveryEntry(context, wReader.get());
+          count++;
+        }
+      } finally {
+        wReader.close();
+      }
+    }
+    logger.info("Replayed {} entries of wal {} from {} till {}", count, walKey, context.startWalPos, end);
+  }
+
+  /**
+   * Recovery using a pool of {@link #recoveryThreads} threads. WAL files are processed in batches of
+   * recoveryThreads files. Files of a batch are read and decoded concurrently, the entries are then applied to the
+   * write caches with one task per bucket, entries of a bucket are applied in WAL order. Only the entries of
+   * one batch are held in memory in addition to the write caches.
+   */
+  private void runParallelRecovery(final RecoveryContext context, long lastFileId) throws IOException
+  {
+    ExecutorService executor = Executors.newFixedThreadPool(recoveryThreads,
+        new NameableThreadFactory("HDHTWalRecovery-" + walKey));
+    try {
+      for (long batchStart = context.startWalPos.fileId; batchStart <= lastFileId; batchStart += recoveryThreads) {
+        long batchEnd = Math.min(batchStart + recoveryThreads - 1, lastFileId);
+
+        List<Future<Map<Long, List<HDHTLogEntry.HDHTWalEntry>>>> fileTasks = Lists.newArrayList();
+        for (long i = batchStart; i <= batchEnd; i++) {
+          final long fileId = i;
+          final long offset = (i == context.startWalPos.fileId) ? context.startWalPos.offset : 0;
+          fileTasks.add(executor.submit(new Callable<Map<Long, List<HDHTLogEntry.HDHTWalEntry>>>()
+          {
+            @Override
+            public Map<Long, List<HDHTLogEntry.HDHTWalEntry>> call() throws IOException
+            {
+              return readWalFile(context, fileId, offset);
+            }
+          }));
+        }
+
+        final List<Map<Long, List<HDHTLogEntry.HDHTWalEntry>>> fileEntries = Lists.newArrayList();
+        Set<Long> bucketKeys = Sets.newHashSet();
+        for (Future<Map<Long, List<HDHTLogEntry.HDHTWalEntry>>> task : fileTasks) {
+          Map<Long, List<HDHTLogEntry.HDHTWalEntry>> entries = waitFor(task);
+          fileEntries.add(entries);
+          bucketKeys.addAll(entries.keySet());
+        }
+
+        List<Future<Void>> bucketTasks = Lists.newArrayList();
+        for (final Long bucketKey : bucketKeys) {
+          bucketTasks.add(executor.submit(new Callable<Void>()
+          {
+            @Override
+            public Void call()
+            {
+              WriteCache writeCache = context.bucketKeysWriteCacheMap.get(bucketKey);
+              for (Map<Long, List<HDHTLogEntry.HDHTWalEntry>> entries : fileEntries) {
+                List<HDHTLogEntry.HDHTWalEntry> bucketEntries = entries.get(bucketKey);
+                if (bucketEntries != null) {
+                  for (HDHTLogEntry.HDHTWalEntry entry : bucketEntries) {
+                    applyEntry(writeCache, entry);
+                  }
+                }
+              }
+              return null;
+            }
+          }));
+        }
+        for (Future<Void> task : bucketTasks) {
+          waitFor(task);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Read entries of a WAL file grouped by bucket, entries of buckets not managed by the partition are skipped.
+   */
+  private Map<Long, List<HDHTLogEntry.HDHTWalEntry>> readWalFile(RecoveryContext context, long fileId, long offset)
+      throws IOException
+  {
+    Map<Long, List<HDHTLogEntry.HDHTWalEntry>> entries = Maps.newHashMap();
+    FSWALReader<HDHTLogEntry.HDHTWalEntry> wReader = new FSWALReader<HDHTLogEntry.HDHTWalEntry>(bfs, new HDHTLogEntry.HDHTLogSerializer(), walKey, WAL_FILE_PREFIX + fileId);
+    try {
       wReader.seek(offset);
-      offset = 0;
       int count = 0;
       while (wReader.advance()) {
+        if (context.isAfterEnd(fileId, wReader.getPosition())) {
+          break;
+        }
         HDHTLogEntry.HDHTWalEntry savedEntry = wReader.get();
-        // TODO: Handle unnecessary recovery for buckets
-        recoveryEntry(context, savedEntry);
         count++;
+        if (!context.bucketKeysWriteCacheMap.containsKey(savedEntry.getBucket())) {
+          // Skip recovery if bucket is not managed by partition
+          continue;
+        }
+        if (context.isFlushed(savedEntry.getBucket(), fileId, wReader.getPosition())) {
+          continue;
+        }
+        List<HDHTLogEntry.HDHTWalEntry> bucketEntries = entries.get(savedEntry.getBucket());
+        if (bucketEntries == null) {
+          entries.put(savedEntry.getBucket(), bucketEntries = Lists.newArrayList());
+        }
+        bucketEntries.add(savedEntry);
       }
+      logger.info("Recovered {} tuples from wal {}", count, fileId);
+    } finally {
       wReader.close();
-      logger.info("Recovered {} tuples from wal {}", count, i);
     }
+    return entries;
+  }
 
-    walFileId++;
+  private static <T> T waitFor(Future<T> future) throws IOException
+  {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw Throwables.propagate(e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
   }
 
   private void recoveryEntry(RecoveryContext context, HDHTLogEntry.HDHTWalEntry entry)
@@ -190,6 +377,11 @@ public class HDHTWalManager implements Closeable
       // Skip recovery if bucket is not managed by partition
       return;
     }
+    applyEntry(writeCache, entry);
+  }
+
+  private static void applyEntry(WriteCache writeCache, HDHTLogEntry.HDHTWalEntry entry)
+  {
     if (entry instanceof HDHTLogEntry.PutEntry) {
       HDHTLogEntry.PutEntry putEntry = (HDHTLogEntry.PutEntry)entry;
       writeCache.put(putEntry.key, putEntry.val);
@@ -222,6 +414,17 @@ public class HDHTWalManager implements Closeable
     bfs.rename(walKey, WAL_FILE_PREFIX + pos.fileId + "-truncate", WAL_FILE_PREFIX + pos.fileId);
   }
 
+  /**
+   * Truncate a WAL file which was not truncated at recovery because another partition was reading it. Nothing to do
+   * when the file was deleted by cleanup meanwhile.
+   */
+  void truncateWalFile(WalPosition pos) throws IOException
+  {
+    if (bfs.exists(walKey, WAL_FILE_PREFIX + pos.fileId)) {
+      truncateWal(pos);
+    }
+  }
+
   public void append(long buckeyKey, Slice key, byte[] value) throws IOException
   {
     append(new HDHTLogEntry.PutEntry(buckeyKey, key, value));
@@ -230,25 +433,31 @@ public class HDHTWalManager implements Closeable
 
   public void append(HDHTLogEntry.HDHTWalEntry entry) throws IOException
   {
-
-    if (writer == null) {
-      writer = new FSWALWriter<HDHTLogEntry.HDHTWalEntry>(bfs, new HDHTLogEntry.HDHTLogSerializer(), walKey, WAL_FILE_PREFIX + walFileId);
-    }
-
-    int len = writer.append(entry);
+    int len = getWriter().append(entry);
     stats.totalBytes += len;
     dirty = true;
   }
 
   public void append(byte[] buffer, int length) throws IOException
   {
+    getWriter().append(buffer, length);
+    stats.totalBytes += length;
+  }
 
+  private WALWriter<HDHTLogEntry.HDHTWalEntry> getWriter() throws IOException
+  {
     if (writer == null) {
-      writer = new FSWALWriter<HDHTLogEntry.HDHTWalEntry>(bfs, new HDHTLogEntry.HDHTLogSerializer(), walKey, WAL_FILE_PREFIX + walFileId);
+      FSWALWriter<HDHTLogEntry.HDHTWalEntry> fsWriter = new FSWALWriter<HDHTLogEntry.HDHTWalEntry>(bfs, new HDHTLogEntry.HDHTLogSerializer(), walKey, WAL_FILE_PREFIX + walFileId);
+      fsWriter.setCompression(compression);
+      if (asyncWrite) {
+        if (writeExecutor == null) {
+          writeExecutor = Executors.newSingleThreadExecutor(new NameableThreadFactory("HDHTWalWriter-" + walKey));
+        }
+        fsWriter.setWriteExecutor(writeExecutor);
+      }
+      writer = fsWriter;
     }
-
-    writer.append(buffer, length);
-    stats.totalBytes += length;
+    return writer;
   }
 
   protected void flushWal() throws IOException
@@ -257,7 +466,7 @@ public class HDHTWalManager implements Closeable
       return;
     }
     long startTime = System.currentTimeMillis();
-    writer.flush();
+    writer.flush(durability);
 
     stats.flushCounts++;
     stats.flushDuration += System.currentTimeMillis() - startTime;
@@ -288,32 +497,173 @@ public class HDHTWalManager implements Closeable
   }
 
   /**
-   * Remove files older than recoveryStartWalFileId.
-   * 
+   * Remove files older than recoveryStartWalFileId. The files are found with a single listing of the WAL directory,
+   * which is skipped when the recovery start has not moved to another file since the last cleanup.
+   *
    * @param recoveryStartWalFileId
    */
   public void cleanup(long recoveryStartWalFileId)
   {
-    if (recoveryStartWalFileId == 0) {
+    if (recoveryStartWalFileId <= cleanedUpWalFileId) {
       return;
     }
 
-    recoveryStartWalFileId--;
+    long startTime = System.currentTimeMillis();
     try {
-      while (true) {
-        DataInputStream in = bfs.getInputStream(walKey, WAL_FILE_PREFIX + recoveryStartWalFileId);
-        in.close();
-        logger.info("deleting WAL file {}", recoveryStartWalFileId);
-        bfs.delete(walKey, WAL_FILE_PREFIX + recoveryStartWalFileId);
-        recoveryStartWalFileId--;
+      for (long fileId : listWalFiles(walKey).headSet(recoveryStartWalFileId, false)) {
+        logger.info("deleting WAL file {}", fileId);
+        bfs.delete(walKey, WAL_FILE_PREFIX + fileId);
       }
-    } catch (FileNotFoundException ex) {
-      //Do nothing
+      cleanedUpWalFileId = recoveryStartWalFileId;
     } catch (IOException ex) {
-      //Do nothing
+      logger.warn("Failed to delete WAL files before {}", recoveryStartWalFileId, ex);
+    }
+    stats.cleanupDuration += System.currentTimeMillis() - startTime;
+  }
+
+  /**
+   * Ids of the files of the WAL, obtained with a single listing of the WAL directory.
+   */
+  private NavigableSet<Long> listWalFiles(long key) throws IOException
+  {
+    NavigableSet<Long> fileIds = Sets.newTreeSet();
+    try {
+      RemoteIterator<LocatedFileStatus> files = bfs.listFiles(key);
+      while (files.hasNext()) {
+        String name = files.next().getPath().getName();
+        if (name.startsWith(WAL_FILE_PREFIX)) {
+          try {
+            fileIds.add(Long.parseLong(name.substring(WAL_FILE_PREFIX.length())));
+          } catch (NumberFormatException e) {
+            // temporary file of a truncation
+          }
+        }
+      }
+    } catch (FileNotFoundException e) {
+      // nothing was written to the WAL
+    }
+    return fileIds;
+  }
+
+  /**
+   * Copy whole files from the WAL with the given key to this WAL. With more than one recovery thread the files are
+   * copied in parallel.
+   *
+   * @param oldWalKey WAL to copy from.
+   * @param fileIds ids of the files to copy mapped to the ids of the copies in this WAL.
+   */
+  private void copyFiles(final long oldWalKey, Map<Long, Long> fileIds) throws IOException
+  {
+    if (recoveryThreads <= 1 || fileIds.size() <= 1) {
+      for (Map.Entry<Long, Long> entry : fileIds.entrySet()) {
+        stats.bytesCopied += copyFile(oldWalKey, entry.getKey(), entry.getValue());
+      }
+      return;
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(recoveryThreads, fileIds.size()),
+        new NameableThreadFactory("HDHTWalCopy-" + walKey));
+    try {
+      List<Future<Long>> tasks = Lists.newArrayList();
+      for (final Map.Entry<Long, Long> entry : fileIds.entrySet()) {
+        tasks.add(executor.submit(new Callable<Long>()
+        {
+          @Override
+          public Long call() throws IOException
+          {
+            return copyFile(oldWalKey, entry.getKey(), entry.getValue());
+          }
+        }));
+      }
+      for (Future<Long> task : tasks) {
+        stats.bytesCopied += waitFor(task);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private long copyFile(long oldWalKey, long oldFileId, long fileId) throws IOException
+  {
+    DataInputStream in = bfs.getInputStream(oldWalKey, WAL_FILE_PREFIX + oldFileId);
+    try {
+      DataOutputStream out = bfs.getOutputStream(walKey, WAL_FILE_PREFIX + fileId);
+      try {
+        return IOUtils.copyLarge(in, out);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
     }
   }
 
+  /**
+   * Number of threads used to replay the WAL during recovery. With more than one thread WAL files are read
+   * concurrently and the entries of different buckets are applied in parallel. The key comparator of the writer
+   * has to be thread safe in this case. The WAL files of parent partitions are copied with the same number of threads
+   * after repartitioning.
+   *
+   * @return The number of recovery threads.
+   */
+  public int getRecoveryThreads()
+  {
+    return recoveryThreads;
+  }
+
+  public void setRecoveryThreads(int recoveryThreads)
+  {
+    this.recoveryThreads = recoveryThreads;
+  }
+
+  /**
+   * Guarantee for the data of a window when the window ends. The default {@link WALWriter.Durability#HSYNC} persists
+   * the data to disk. {@link WALWriter.Durability#HFLUSH} only waits until all replicas have received the data, which
+   * survives failure of the operator but not a simultaneous failure of all replicas.
+   *
+   * @return The WAL durability.
+   */
+  public WALWriter.Durability getDurability()
+  {
+    return durability;
+  }
+
+  public void setDurability(WALWriter.Durability durability)
+  {
+    this.durability = durability;
+  }
+
+  /**
+   * Whether entries are written as compressed blocks. Recovery reads compressed and uncompressed WAL files.
+   *
+   * @return true when the WAL is compressed.
+   */
+  public boolean isCompression()
+  {
+    return compression;
+  }
+
+  public void setCompression(boolean compression)
+  {
+    this.compression = compression;
+  }
+
+  /**
+   * Whether the WAL file is written by a separate thread. Entries are handed over in blocks while the window is
+   * processed and end of window only waits for the last block and the flush.
+   *
+   * @return true when the WAL is written asynchronously.
+   */
+  public boolean isAsyncWrite()
+  {
+    return asyncWrite;
+  }
+
+  public void setAsyncWrite(boolean asyncWrite)
+  {
+    this.asyncWrite = asyncWrite;
+  }
+
   public long getMaxWalFileSize()
   {
     return maxWalFileSize;
@@ -343,8 +693,15 @@ public class HDHTWalManager implements Closeable
   @Override
   public void close() throws IOException
   {
-    if (writer != null) {
-      writer.close();
+    try {
+      if (writer != null) {
+        writer.close();
+      }
+    } finally {
+      if (writeExecutor != null) {
+        writeExecutor.shutdown();
+        writeExecutor = null;
+      }
     }
   }
 
@@ -375,6 +732,10 @@ public class HDHTWalManager implements Closeable
     WalPosition startWalPos;
     WalPosition endWalPos;
     Map<Long, WriteCache> bucketKeysWriteCacheMap;
+    /* Position from which the WAL of each bucket is not yet in the data files */
+    Map<Long, WalPosition> bucketStartWalPositions = Collections.emptyMap();
+    /* Valid length of WAL files which were not truncated at recovery */
+    Map<Long, Long> walFileEnds = Collections.emptyMap();
 
     public RecoveryContext(Map<Long, WriteCache> writeCacheMap, Comparator<Slice> cmparator, WalPosition startWalPos, WalPosition endWalPos)
     {
@@ -382,6 +743,36 @@ public class HDHTWalManager implements Closeable
       this.startWalPos = startWalPos;
       this.endWalPos = endWalPos;
     }
+
+    public RecoveryContext(Map<Long, WriteCache> writeCacheMap, Map<Long, WalPosition> bucketStartWalPositions,
+        WalPosition startWalPos, WalPosition endWalPos)
+    {
+      this(writeCacheMap, null, startWalPos, endWalPos);
+      this.bucketStartWalPositions = bucketStartWalPositions;
+    }
+
+    /**
+     * Entries before the recovery start position of their bucket were flushed to the data files before the failure
+     * and are skipped.
+     */
+    boolean isFlushed(long bucketKey, long fileId, long offset)
+    {
+      WalPosition start = bucketStartWalPositions.get(bucketKey);
+      return start != null && (fileId < start.fileId || (fileId == start.fileId && offset < start.offset));
+    }
+
+    /**
+     * Entries after the end position, or after the valid length of a file which was not truncated, were logged after
+     * the checkpoint and are skipped.
+     */
+    boolean isAfterEnd(long fileId, long offset)
+    {
+      if (fileId == endWalPos.fileId && offset >= endWalPos.offset) {
+        return true;
+      }
+      Long fileEnd = walFileEnds.get(fileId);
+      return fileEnd != null && offset >= fileEnd;
+    }
   }
 
   /**
@@ -393,9 +784,19 @@ public class HDHTWalManager implements Closeable
     long flushCounts;
     long flushDuration;
     public long totalKeys;
+    /* Time spent in last recovery in milliseconds */
+    long recoveryDuration;
+    /* Time spent copying WAL files of parent partitions in milliseconds */
+    long copyDuration;
+    /* Bytes copied from WAL files of parent partitions */
+    long bytesCopied;
+    /* Time spent deleting WAL files which are no longer needed in milliseconds */
+    long cleanupDuration;
   }
 
   private final WalStats stats = new WalStats();
+  /* Files before this id were deleted by the last cleanup */
+  private transient long cleanedUpWalFileId;
   private int BUFFER_SIZE = 65536;
 
   /* Location of the WAL */
@@ -433,19 +834,20 @@ public class HDHTWalManager implements Closeable
 
   public void copyPreviousWalFiles(List<PreviousWALDetails> parentWals, Set<PreviousWALDetails> alreadyCopiedWals)
   {
+    long startTime = System.currentTimeMillis();
     try {
       PreviousWALDetails parentWal = parentWals.iterator().next();
       // Copy Files to new WAL location
-      for (long i = parentWal.getStartPosition().fileId; i <= parentWal.getEndPosition().fileId; i++) {
-        DataInputStream in = bfs.getInputStream(parentWal.getWalKey(), WAL_FILE_PREFIX + i);
-        DataOutputStream out = bfs.getOutputStream(walKey, WAL_FILE_PREFIX + i);
-        IOUtils.copyLarge(in, out);
-        in.close();
-        out.close();
+      Map<Long, Long> fileIds = new LinkedHashMap<>();
+      for (long fileId : listWalFiles(parentWal.getWalKey()).subSet(parentWal.getStartPosition().fileId, true,
+          parentWal.getEndPosition().fileId, true)) {
+        fileIds.put(fileId, fileId);
       }
+      copyFiles(parentWal.getWalKey(), fileIds);
     } catch (IOException e) {
       throw Throwables.propagate(e);
     }
+    stats.copyDuration += System.currentTimeMillis() - startTime;
   }
 
   private void copyWalPart(WalPosition startPosition, WalPosition endPosition, long oldWalKey)
@@ -486,18 +888,13 @@ public class HDHTWalManager implements Closeable
    */
   public void copyWALFiles(WalPosition startPosition, WalPosition endPosition, long oldWalKey)
   {
+    long startTime = System.currentTimeMillis();
     try {
-      for (long i = startPosition.fileId; i < endPosition.fileId; i++) {
-        if (bfs.exists(oldWalKey, WAL_FILE_PREFIX + i)) {
-          DataInputStream in = bfs.getInputStream(oldWalKey, WAL_FILE_PREFIX + i);
-          DataOutputStream out = bfs.getOutputStream(walKey, WAL_FILE_PREFIX + walFileId);
-
-          IOUtils.copyLarge(in, out);
-          in.close();
-          out.close();
-          walFileId++;
-        }
+      Map<Long, Long> fileIds = new LinkedHashMap<>();
+      for (long fileId : listWalFiles(oldWalKey).subSet(startPosition.fileId, true, endPosition.fileId, false)) {
+        fileIds.put(fileId, walFileId++);
       }
+      copyFiles(oldWalKey, fileIds);
       // Copy last file upto end position offset
       copyWalPart(startPosition, endPosition, oldWalKey);
       if (maxWalFileSize > 0 && walSize > maxWalFileSize) {
@@ -509,6 +906,7 @@ public class HDHTWalManager implements Closeable
     } catch (Exception e) {
       throw Throwables.propagate(e);
     }
+    stats.copyDuration += System.currentTimeMillis() - startTime;
   }
 
   /**
@@ -523,10 +921,9 @@ public class HDHTWalManager implements Closeable
         // TODO: If using file APIs, delete entire folder for old WAL files
         logger.debug("Deleting WAL file {}", parentWal.getWalKey());
         // delete WAL Files if not already deleted
-        for (long i = parentWal.getStartPosition().fileId; i <= parentWal.getEndPosition().fileId; i++) {
-          if (bfs.exists(parentWal.getWalKey(), WAL_FILE_PREFIX + i)) {
-            bfs.delete(parentWal.getWalKey(), WAL_FILE_PREFIX + i);
-          }
+        for (long fileId : listWalFiles(parentWal.getWalKey()).subSet(parentWal.getStartPosition().fileId, true,
+            parentWal.getEndPosition().fileId, true)) {
+          bfs.delete(parentWal.getWalKey(), WAL_FILE_PREFIX + fileId);
         }
         alreadyCopiedWals.remove(it);
       }
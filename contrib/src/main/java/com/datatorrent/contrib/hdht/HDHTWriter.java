@@ -15,11 +15,12 @@
  */
 package com.datatorrent.contrib.hdht;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,10 +31,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
 
 import org.codehaus.jackson.map.annotate.JsonSerialize;
 import org.slf4j.Logger;
@@ -43,6 +46,7 @@ import org.apache.commons.io.IOUtils;
 import com.esotericsoftware.kryo.io.Output;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -54,6 +58,7 @@ import com.datatorrent.api.Operator.CheckpointListener;
 import com.datatorrent.common.util.NameableThreadFactory;
 import com.datatorrent.contrib.hdht.HDHTWalManager.PreviousWALDetails;
 import com.datatorrent.contrib.hdht.HDHTWalManager.WalPosition;
+import com.datatorrent.contrib.hdht.wal.WALWriter;
 import com.datatorrent.lib.fileaccess.FileAccess;
 import com.datatorrent.lib.fileaccess.FileAccess.FileReader;
 import com.datatorrent.lib.fileaccess.FileAccess.FileWriter;
@@ -81,7 +86,7 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
 {
   private FileAccess walStore;
   private final String WAL_FILES_LOCATION = "/WAL/";
-  private final transient HashMap<Long, BucketMeta> metaCache = Maps.newHashMap();
+  private final transient ConcurrentMap<Long, BucketMeta> metaCache = Maps.newConcurrentMap();
   private long currentWindowId;
   private final transient HashMap<Long, Bucket> buckets = Maps.newHashMap();
   // After buckets are reorganized on dynamic repartitioning, this map maintains which Wal to look up during recovery for each bucketKey
@@ -90,21 +95,59 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
   public HDHTWalManager.WalPosition committedWalPosition;
   public List<PreviousWALDetails> parentWals = new LinkedList<>();
   public Set<PreviousWALDetails> alreadyCopiedWals = new HashSet<>();
+  // Buckets moved to this partition by the partitioner, changes not yet flushed by the previous owner are read from its
+  // WAL in place until this partition has flushed the bucket
+  public Map<Long, BucketHandoff> adoptedBuckets = Maps.newHashMap();
+  // Buckets moved away from this partition, WAL files are retained until the new owner has flushed the bucket
+  public Map<Long, BucketHandoff> releasedBuckets = Maps.newConcurrentMap();
+  // Checkpointed length of WAL files read by the new owner of a released bucket, the files are truncated once the move
+  // is complete
+  public Map<Long, Long> untruncatedWalFiles = Maps.newHashMap();
+  // meta data of released buckets as of the last check, only edits written by the new owner since are read
+  private final transient Map<Long, BucketMeta> releasedBucketMeta = Maps.newHashMap();
+  private transient long releasedBucketsCheckWindowId = -1;
 
   @VisibleForTesting
   protected transient ExecutorService writeExecutor;
   private transient volatile Throwable writerError;
+  private final transient Object walCleanupLock = new Object();
   protected Set<Long> bucketKeys = Sets.newHashSet();
   protected WalPosition minimumRecoveryWalPosition = new WalPosition(0, 0);
+  // minimum recovery position computed by the last flush, assigned to minimumRecoveryWalPosition in endWindow
+  private transient volatile WalPosition flushedRecoveryWalPosition;
 
   private int maxFileSize = 128 * 1024 * 1024; // 128m
+  private int minFileSize = 16 * 1024 * 1024;
+  private boolean adaptiveFileSize = false;
   private int maxWalFileSize = 64 * 1024 * 1024;
   private int flushSize = 1000000;
   private int flushIntervalCount = 120;
+  private double bloomFilterFalsePositiveProbability = 0.01;
+  private int sortedRunLevels = 0;
+  private int sortedRunFanout = 4;
+  private int walRecoveryThreads = 1;
+  private int flushThreads = 1;
+  private int indexBlockSize = 64 * 1024;
+  private WALWriter.Durability walDurability = WALWriter.Durability.HSYNC;
+  private boolean walCompression = false;
+  private boolean walAsyncWrite = false;
+  private long flushBytes = 0;
+  private boolean offHeapWriteCache = false;
+  private long maxWriteCacheBytes = 0;
+  private int metaSnapshotInterval = 100;
+  private transient OffHeapSliceMap.BufferPool bufferPool;
+  // meta data persisted before the reset of the buckets, the next flush writes an edit against it and a snapshot
+  private final transient ConcurrentMap<Long, BucketMeta> metaSnapshotPending = Maps.newConcurrentMap();
 
   private transient OperatorContext context;
 
   static final byte[] DELETED = {};
+  // heat of a file rewritten in the previous flush
+  private static final double HOT_FILE_HEAT = 0.5;
+  // heat of a file not rewritten in the last 4 flushes
+  private static final double COLD_FILE_HEAT = 1.0 / 16;
+  // direct memory kept for reuse by off heap write caches
+  private static final long MAX_POOLED_CACHE_BYTES = 64 * 1024 * 1024;
   private transient HDHTWalManager wal;
   protected WalMeta singleWalMeta = new WalMeta();
   private long walKey = 0;
@@ -125,6 +168,41 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     this.maxFileSize = maxFileSize;
   }
 
+  /**
+   * Size data files by their write heat. Files rewritten in consecutive flushes are split in half on each rewrite, down
+   * to {@link #getMinFileSize()}, so changes to a hot key range no longer rewrite the data of the adjacent cold
+   * ranges. Adjacent files below the minimum size which were not rewritten in the recent flushes are merged up to
+   * {@link #getMaxFileSize()}, which limits the number of files readers have to manage.
+   *
+   * @return Whether data files are sized adaptively.
+   */
+  public boolean isAdaptiveFileSize()
+  {
+    return adaptiveFileSize;
+  }
+
+  public void setAdaptiveFileSize(boolean adaptiveFileSize)
+  {
+    this.adaptiveFileSize = adaptiveFileSize;
+  }
+
+  /**
+   * Size below which hot data files are not split further and cold data files are merged with their neighbors, see
+   * {@link #isAdaptiveFileSize()}.
+   *
+   * @return The minimum size of data files in bytes.
+   */
+  @Min(value = 1)
+  public int getMinFileSize()
+  {
+    return minFileSize;
+  }
+
+  public void setMinFileSize(int minFileSize)
+  {
+    this.minFileSize = minFileSize;
+  }
+
   /**
    * Size limit for WAL files. Files are rolled once the limit has been exceeded. The final size of a file can be larger
    * than the limit, as files are rolled at end of the operator window.
@@ -159,6 +237,76 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     this.flushSize = flushSize;
   }
 
+  /**
+   * The number of bytes of keys and values collected in memory for a bucket before flushing to persistent storage.
+   * Changes are flushed when either this or the {@link #flushSize} threshold is exceeded. Set to 0 to flush based on
+   * the number of changes only.
+   *
+   * @return The bytes collected in memory before flushing to persistent storage.
+   */
+  @Min(value = 0)
+  public long getFlushBytes()
+  {
+    return flushBytes;
+  }
+
+  public void setFlushBytes(long flushBytes)
+  {
+    this.flushBytes = flushBytes;
+  }
+
+  /**
+   * Memory budget for the keys and values held in the write caches of all buckets of the operator, including changes
+   * which are not committed yet and changes being flushed. When the budget is exceeded, committed changes are flushed
+   * starting with the buckets holding the most data, regardless of {@link #getFlushSize()} and
+   * {@link #getFlushIntervalCount()}. Set to 0 to disable the budget.
+   *
+   * @return The memory budget of the write caches in bytes.
+   */
+  @Min(value = 0)
+  public long getMaxWriteCacheBytes()
+  {
+    return maxWriteCacheBytes;
+  }
+
+  public void setMaxWriteCacheBytes(long maxWriteCacheBytes)
+  {
+    this.maxWriteCacheBytes = maxWriteCacheBytes;
+  }
+
+  /**
+   * Number of flushes after which the full bucket meta data is written. Each flush writes the files added and
+   * removed as a small edit, readers apply the edits since the last snapshot or since the version they hold.
+   *
+   * @return The number of meta data edits between snapshots.
+   */
+  @Min(value = 1)
+  public int getMetaSnapshotInterval()
+  {
+    return metaSnapshotInterval;
+  }
+
+  public void setMetaSnapshotInterval(int metaSnapshotInterval)
+  {
+    this.metaSnapshotInterval = metaSnapshotInterval;
+  }
+
+  /**
+   * Hold the keys and values of the write caches in direct memory instead of heap objects. The caches then do not add
+   * objects per key for the garbage collector to scan, keys and values are copied when they are read from the caches.
+   *
+   * @return true when write caches are held off heap.
+   */
+  public boolean isOffHeapWriteCache()
+  {
+    return offHeapWriteCache;
+  }
+
+  public void setOffHeapWriteCache(boolean offHeapWriteCache)
+  {
+    this.offHeapWriteCache = offHeapWriteCache;
+  }
+
   /**
    * Cached writes are flushed to persistent storage periodically. The interval is specified as count of windows and
    * establishes the maximum latency for changes to be written while below the {@link #flushSize} threshold.
@@ -176,6 +324,164 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     this.flushIntervalCount = flushIntervalCount;
   }
 
+  /**
+   * False positive probability of the bloom filter written for each data file. The filter lets readers skip a data
+   * file without opening it when the key is not present. Higher values give smaller filters. Set to 0 to disable
+   * writing filters.
+   *
+   * @return The bloom filter false positive probability.
+   */
+  public double getBloomFilterFalsePositiveProbability()
+  {
+    return bloomFilterFalsePositiveProbability;
+  }
+
+  public void setBloomFilterFalsePositiveProbability(double bloomFilterFalsePositiveProbability)
+  {
+    this.bloomFilterFalsePositiveProbability = bloomFilterFalsePositiveProbability;
+  }
+
+  /**
+   * Number of levels of sorted runs kept in front of the data files. When set, a flush writes the changes as a new
+   * sorted run instead of rewriting the affected data files. Runs of a level are merged into one run of the next level
+   * once there are {@link #getSortedRunFanout()} of them, runs of the last level are merged into the data files. Reads
+   * consult runs from newest to oldest before the data files. 0 disables sorted runs, every flush is merged into
+   * the data files.
+   *
+   * @return The number of sorted run levels.
+   */
+  @Min(value = 0)
+  public int getSortedRunLevels()
+  {
+    return sortedRunLevels;
+  }
+
+  public void setSortedRunLevels(int sortedRunLevels)
+  {
+    this.sortedRunLevels = sortedRunLevels;
+  }
+
+  /**
+   * Number of runs of a level which are merged into a single run of the next level.
+   *
+   * @return The sorted run fanout.
+   */
+  @Min(value = 2)
+  public int getSortedRunFanout()
+  {
+    return sortedRunFanout;
+  }
+
+  public void setSortedRunFanout(int sortedRunFanout)
+  {
+    this.sortedRunFanout = sortedRunFanout;
+  }
+
+  /**
+   * Number of threads used to replay the WAL on recovery. With more than one thread, WAL files are read in parallel
+   * and entries of different buckets are applied to the write caches concurrently, so recovery time is bound by the
+   * largest bucket rather than the total WAL volume. Requires a thread safe key comparator.
+   *
+   * @return The number of WAL recovery threads.
+   */
+  @Min(value = 1)
+  public int getWalRecoveryThreads()
+  {
+    return walRecoveryThreads;
+  }
+
+  public void setWalRecoveryThreads(int walRecoveryThreads)
+  {
+    this.walRecoveryThreads = walRecoveryThreads;
+  }
+
+  /**
+   * Guarantee for the WAL data of a window when the window ends. The WAL of all buckets is written to a single file
+   * and flushed once per window. The default {@link WALWriter.Durability#HSYNC} persists the data to disk on every
+   * window, {@link WALWriter.Durability#HFLUSH} only waits until all replicas have received it, which is sufficient
+   * to recover from operator failure and avoids the disk sync per window.
+   *
+   * @return The WAL durability.
+   */
+  @NotNull
+  public WALWriter.Durability getWalDurability()
+  {
+    return walDurability;
+  }
+
+  public void setWalDurability(WALWriter.Durability walDurability)
+  {
+    this.walDurability = walDurability;
+  }
+
+  /**
+   * Write the WAL as deflate compressed blocks. Recovery reads compressed and uncompressed WAL files, so the setting
+   * can be changed on restart.
+   *
+   * @return true when the WAL is compressed.
+   */
+  public boolean isWalCompression()
+  {
+    return walCompression;
+  }
+
+  public void setWalCompression(boolean walCompression)
+  {
+    this.walCompression = walCompression;
+  }
+
+  /**
+   * Write the WAL on a separate thread. Entries are handed to the thread in blocks while the window is processed, so
+   * end of window only waits for the last block and the flush.
+   *
+   * @return true when the WAL is written asynchronously.
+   */
+  public boolean isWalAsyncWrite()
+  {
+    return walAsyncWrite;
+  }
+
+  public void setWalAsyncWrite(boolean walAsyncWrite)
+  {
+    this.walAsyncWrite = walAsyncWrite;
+  }
+
+  /**
+   * Number of threads used to flush write caches to data files. Flushes of different buckets run in parallel, a
+   * bucket is not flushed again before its previous flush has completed, so changes of a bucket are always written to
+   * the data files and the bucket meta data in commit order.
+   *
+   * @return The number of flush threads.
+   */
+  @Min(value = 1)
+  public int getFlushThreads()
+  {
+    return flushThreads;
+  }
+
+  public void setFlushThreads(int flushThreads)
+  {
+    this.flushThreads = flushThreads;
+  }
+
+  /**
+   * Size of the blocks recorded in the block index written for each data file. The index holds the first key of every
+   * block and lets readers cache individual blocks, see {@link #getBlockCacheSize()}. Smaller blocks make cached
+   * lookups cheaper at the cost of a larger index. Set to 0 to disable writing the index.
+   *
+   * @return The index block size in bytes.
+   */
+  @Min(value = 0)
+  public int getIndexBlockSize()
+  {
+    return indexBlockSize;
+  }
+
+  public void setIndexBlockSize(int indexBlockSize)
+  {
+    this.indexBlockSize = indexBlockSize;
+  }
+
   /**
    * Write data to size based rolling files
    *
@@ -185,34 +491,67 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
    * @throws IOException
    */
   private void writeFile(Bucket bucket, BucketMeta bucketMeta, TreeMap<Slice, Slice> data) throws IOException
+  {
+    writeFile(bucket, bucketMeta, data, maxFileSize, 0);
+  }
+
+  /**
+   * Write data to size based rolling files
+   *
+   * @param bucket
+   * @param bucketMeta
+   * @param data
+   * @param fileSize size at which files are rolled.
+   * @param heat write heat recorded for the new files.
+   * @throws IOException
+   */
+  private void writeFile(Bucket bucket, BucketMeta bucketMeta, TreeMap<Slice, Slice> data, long fileSize,
+      double heat) throws IOException
   {
     BucketIOStats ioStats = getOrCretaStats(bucket.bucketKey);
     long startTime = System.currentTimeMillis();
 
     FileWriter fw = null;
     BucketFileMeta fileMeta = null;
+    // the filter is sized for the keys of the file once it is rolled
+    BloomFilter.Builder bloomFilter = bloomFilterFalsePositiveProbability > 0 ? new BloomFilter.Builder() : null;
+    BlockIndex blockIndex = null;
     int keysWritten = 0;
     for (Map.Entry<Slice, Slice> dataEntry : data.entrySet()) {
       if (fw == null) {
         // next file
         fileMeta = bucketMeta.addFile(bucket.bucketKey, dataEntry.getKey());
+        fileMeta.heat = heat;
+        fileMeta.heatSeq = flushSeq(bucketMeta);
         LOG.debug("writing data file {} {}", bucket.bucketKey, fileMeta.name);
         fw = this.store.getWriter(bucket.bucketKey, fileMeta.name + ".tmp");
+        if (indexBlockSize > 0) {
+          blockIndex = new BlockIndex(indexBlockSize);
+        }
         keysWritten = 0;
       }
 
-      if (Arrays.equals(dataEntry.getValue().toByteArray(), DELETED)) {
+      if (dataEntry.getValue().length == 0) {
         continue;
       }
 
-      fw.append(dataEntry.getKey().toByteArray(), dataEntry.getValue().toByteArray());
+      append(fw, dataEntry.getKey(), dataEntry.getValue());
+      if (bloomFilter != null) {
+        bloomFilter.add(dataEntry.getKey());
+      }
+      if (blockIndex != null) {
+        blockIndex.append(dataEntry.getKey(), dataEntry.getKey().length + dataEntry.getValue().length);
+      }
       keysWritten++;
-      if (fw.getBytesWritten() > this.maxFileSize) {
+      if (fw.getBytesWritten() > fileSize) {
         ioStats.dataFilesWritten++;
         ioStats.filesWroteInCurrentWriteCycle++;
         // roll file
         fw.close();
-        ioStats.dataBytesWritten += fw.getBytesWritten();
+        fileMeta.bytes = fw.getBytesWritten();
+        ioStats.dataBytesWritten += fileMeta.bytes;
+        writeBloomFilter(bucket.bucketKey, fileMeta.name, bloomFilter);
+        writeBlockIndex(bucket.bucketKey, fileMeta.name, blockIndex);
         this.store.rename(bucket.bucketKey, fileMeta.name + ".tmp", fileMeta.name);
         LOG.debug("created data file {} {} with {} entries", bucket.bucketKey, fileMeta.name, keysWritten);
         fw = null;
@@ -224,7 +563,10 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
       ioStats.dataFilesWritten++;
       ioStats.filesWroteInCurrentWriteCycle++;
       fw.close();
-      ioStats.dataBytesWritten += fw.getBytesWritten();
+      fileMeta.bytes = fw.getBytesWritten();
+      ioStats.dataBytesWritten += fileMeta.bytes;
+      writeBloomFilter(bucket.bucketKey, fileMeta.name, bloomFilter);
+      writeBlockIndex(bucket.bucketKey, fileMeta.name, blockIndex);
       this.store.rename(bucket.bucketKey, fileMeta.name + ".tmp", fileMeta.name);
       LOG.debug("created data file {} {} with {} entries", bucket.bucketKey, fileMeta.name, keysWritten);
     }
@@ -232,15 +574,92 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     ioStats.dataWriteTime += System.currentTimeMillis() - startTime;
   }
 
+  /**
+   * Persist bloom filter of the data file. The filter is written before the data file is renamed, a data file which is
+   * visible in the bucket meta data always has its filter available.
+   *
+   * @param keys hashes of the keys written to the file, cleared for the next file.
+   */
+  private void writeBloomFilter(long bucketKey, String fileName, BloomFilter.Builder keys) throws IOException
+  {
+    if (keys == null) {
+      return;
+    }
+    DataOutputStream out = this.store.getOutputStream(bucketKey, FNAME_BLOOM + fileName);
+    keys.build(bloomFilterFalsePositiveProbability).writeTo(out);
+    out.close();
+  }
+
+  /**
+   * Persist block index of the data file, written before the data file is renamed.
+   */
+  private void writeBlockIndex(long bucketKey, String fileName, BlockIndex blockIndex) throws IOException
+  {
+    if (blockIndex == null) {
+      return;
+    }
+    DataOutputStream out = this.store.getOutputStream(bucketKey, FNAME_INDEX + fileName);
+    blockIndex.writeTo(out);
+    out.close();
+  }
+
+  /**
+   * Delete data file along with its bloom filter and block index.
+   */
+  private void deleteDataFile(long bucketKey, String fileName) throws IOException
+  {
+    store.delete(bucketKey, fileName);
+    if (store.exists(bucketKey, FNAME_BLOOM + fileName)) {
+      store.delete(bucketKey, FNAME_BLOOM + fileName);
+    }
+    if (store.exists(bucketKey, FNAME_INDEX + fileName)) {
+      store.delete(bucketKey, FNAME_INDEX + fileName);
+    }
+  }
+
+  private WriteCache newWriteCache()
+  {
+    if (!offHeapWriteCache) {
+      return new WriteCache(keyComparator);
+    }
+    if (bufferPool == null) {
+      bufferPool = new OffHeapSliceMap.BufferPool(MAX_POOLED_CACHE_BYTES);
+    }
+    return new WriteCache(keyComparator, bufferPool);
+  }
+
+  private Bucket newBucket(long bucketKey)
+  {
+    Bucket bucket = new Bucket(newWriteCache(), newWriteCache(), newWriteCache());
+    bucket.bucketKey = bucketKey;
+    return bucket;
+  }
+
+  /**
+   * Create the bucket. For a bucket moved to this partition the changes logged by the previous owner are replayed
+   * first, they precede the changes recovered from the WAL of this partition.
+   */
+  private Bucket openBucket(long bucketKey) throws IOException
+  {
+    Bucket bucket = newBucket(bucketKey);
+    this.buckets.put(bucketKey, bucket);
+    BucketHandoff handoff = adoptedBuckets.get(bucketKey);
+    if (handoff != null && handoff.endPosition != null) {
+      HDHTWalManager previousWal = new HDHTWalManager(this.walStore, handoff.walKey);
+      previousWal.replay(new HDHTWalManager.RecoveryContext(
+          Collections.singletonMap(bucketKey, bucket.committedWriteCache), Collections.<Long, WalPosition>emptyMap(),
+          handoff.startPosition, handoff.endPosition));
+    }
+    return bucket;
+  }
+
   private Bucket getBucket(long bucketKey) throws IOException
   {
     Bucket bucket = this.buckets.get(bucketKey);
     bucketKeys.add(bucketKey);
     if (bucket == null) {
       LOG.debug("Opening bucket {}", bucketKey);
-      bucket = new Bucket(keyComparator);
-      bucket.bucketKey = bucketKey;
-      this.buckets.put(bucketKey, bucket);
+      bucket = openBucket(bucketKey);
 
       BucketMeta bmeta = getMeta(bucketKey);
       WalMeta wmeta = getWalMeta(bucketKey);
@@ -259,17 +678,30 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
         // Add tuples from recovery start till recovery end.
 
         Map<Long, WriteCache> bucketMap = Maps.newHashMap();
+        // the checkpoint only holds WAL positions, changes of each bucket are replayed from the position after its
+        // last flush
+        Map<Long, WalPosition> bucketStartPositions = Maps.newHashMap();
 
         for (Long bucketKeyEntry : bucketKeys) {
           Bucket bucketEntry = buckets.get(bucketKeyEntry);
           if (bucketEntry == null) {
-            bucketEntry = new Bucket(keyComparator);
-            bucketEntry.bucketKey = bucketKeyEntry;
-            this.buckets.put(bucketKeyEntry, bucketEntry);
+            bucketEntry = openBucket(bucketKeyEntry);
           }
           bucketMap.put(bucketKeyEntry, bucketEntry.committedWriteCache);
+          WalPosition start = getMeta(bucketKeyEntry).recoveryStartWalPosition;
+          if (start != null) {
+            bucketStartPositions.put(bucketKeyEntry, start);
+          }
+        }
+        WalPosition endPosition = wmeta.cpWalPosition;
+        if (endPosition.offset > 0 && isReleasedWalFile(endPosition.fileId)) {
+          // truncating replaces the file while the new owner of a released bucket reads it
+          untruncatedWalFiles.put(endPosition.fileId, endPosition.offset);
         }
-        this.wal.runRecovery(new HDHTWalManager.RecoveryContext(bucketMap, keyComparator, minimumRecoveryWalPosition, wmeta.cpWalPosition));
+        HDHTWalManager.RecoveryContext recoveryContext = new HDHTWalManager.RecoveryContext(bucketMap,
+            bucketStartPositions, minimumRecoveryWalPosition, endPosition);
+        recoveryContext.walFileEnds = untruncatedWalFiles;
+        this.wal.runRecovery(recoveryContext);
 
         // After recovery data from WAL is added to committedCache, update location of WAL till data present in
         // committed cache.
@@ -290,30 +722,81 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
   @Override
   public byte[] getUncommitted(long bucketKey, Slice key)
   {
-    Bucket bucket = this.buckets.get(bucketKey);
-    if (bucket != null) {
-      byte[] v = bucket.writeCache.get(key);
-      if (v != null) {
-        return v != DELETED ? v : null;
-      }
-      for (Map.Entry<Long, WriteCache> entry : bucket.checkpointedWriteCache.entrySet()) {
-        byte[] v2 = entry.getValue().get(key);
-        // find most recent entry
-        if (v2 != null) {
-          v = v2;
-        }
+    byte[] v = getUncommittedOrDeleted(bucketKey, key);
+    return v != DELETED ? v : null;
+  }
+
+
+  /**
+   * Lookup multiple keys, including changes which are not yet written to the data files. Keys which are not in the
+   * write caches are resolved from the data files in a single batch. Must be called from the operator thread.
+   */
+  @Override
+  public Map<Slice, byte[]> getAll(long bucketKey, Collection<Slice> keys) throws IOException
+  {
+    Map<Slice, byte[]> result = Maps.newHashMap();
+    List<Slice> remaining = Lists.newArrayList();
+    for (Slice key : keys) {
+      byte[] v = getUncommittedOrDeleted(bucketKey, key);
+      if (v == null) {
+        remaining.add(key);
+      } else if (v != DELETED) {
+        result.put(key, v);
       }
-      if (v != null) {
-        return v != DELETED ? v : null;
+    }
+    if (!remaining.isEmpty()) {
+      result.putAll(super.getAll(bucketKey, remaining));
+    }
+    return result;
+  }
+
+  /**
+   * Lookup in write caches, deleted keys are returned as {@link #DELETED}.
+   */
+  private byte[] getUncommittedOrDeleted(long bucketKey, Slice key)
+  {
+    Bucket bucket = this.buckets.get(bucketKey);
+    if (bucket == null) {
+      return null;
+    }
+    byte[] v = bucket.writeCache.get(key);
+    if (v != null) {
+      return v;
+    }
+    for (Map.Entry<Long, WriteCache> entry : bucket.checkpointedWriteCache.entrySet()) {
+      byte[] v2 = entry.getValue().get(key);
+      // find most recent entry
+      if (v2 != null) {
+        v = v2;
       }
-      v = bucket.committedWriteCache.get(key);
+    }
+    if (v != null) {
+      return v;
+    }
+    v = bucket.committedWriteCache.get(key);
+    if (v != null) {
+      return v;
+    }
+    return bucket.frozenWriteCache.get(key);
+  }
+
+  /**
+   * Intercept batch query processing to incorporate unwritten changes.
+   */
+  @Override
+  protected void processQueries(List<HDSQuery> batch)
+  {
+    List<HDSQuery> remaining = Lists.newArrayList();
+    for (HDSQuery query : batch) {
+      byte[] v = getUncommitted(query.bucketKey, query.key);
       if (v != null) {
-        return v != DELETED ? v : null;
+        query.result = v;
+        query.processed = true;
+      } else {
+        remaining.add(query);
       }
-      v = bucket.frozenWriteCache.get(key);
-      return v != null && v != DELETED ? v : null;
     }
-    return null;
+    super.processQueries(remaining);
   }
 
   /**
@@ -332,12 +815,59 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     super.processQuery(query);
   }
 
+  /**
+   * Changes between start and end key (inclusive) which are not yet written to the data files, merged from the oldest
+   * to the most recent write cache. Must be called from the operator thread.
+   */
+  private WriteCache getUncommitted(long bucketKey, Slice start, Slice end)
+  {
+    WriteCache changes = new WriteCache(keyComparator);
+    Bucket bucket = this.buckets.get(bucketKey);
+    if (bucket != null) {
+      changes.mergeRange(bucket.frozenWriteCache, start, end);
+      changes.mergeRange(bucket.committedWriteCache, start, end);
+      for (WriteCache wc : bucket.checkpointedWriteCache.values()) {
+        changes.mergeRange(wc, start, end);
+      }
+      changes.mergeRange(bucket.writeCache, start, end);
+    }
+    return changes;
+  }
+
+  /**
+   * Read all keys between start and end key (inclusive), including changes which are not yet written to the data
+   * files. Must be called from the operator thread.
+   */
+  @Override
+  public TreeMap<Slice, byte[]> scan(long bucketKey, Slice start, Slice end) throws IOException
+  {
+    WriteCache changes = getUncommitted(bucketKey, start, end);
+    TreeMap<Slice, byte[]> result = super.scan(bucketKey, start, end);
+    changes.applyTo(result);
+    return result;
+  }
+
+  /**
+   * Intercept range query processing to incorporate unwritten changes.
+   */
+  @Override
+  protected void processRangeQuery(HDSRangeQuery query)
+  {
+    WriteCache changes = getUncommitted(query.bucketKey, query.start, query.end);
+    synchronized (query) {
+      // a scan in flight can not complete between taking the changes and submitting the scan
+      query.changes = changes;
+      super.processRangeQuery(query);
+    }
+  }
+
   @Override
   public void put(long bucketKey, Slice key, byte[] value) throws IOException
   {
     Bucket bucket = getBucket(bucketKey);
     this.wal.append(bucketKey, key, value);
     bucket.writeCache.put(key, value);
+    bucket.keysWritten++;
     updateQueryResultCache(bucketKey, key, value);
   }
 
@@ -348,6 +878,20 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
       q.processed = true;
       q.result = value;
     }
+    for (HDSRangeQuery rq : findRangeQueries(bucketKey, key)) {
+      synchronized (rq) {
+        if (rq.processed) {
+          if (value == DELETED) {
+            rq.result.remove(key);
+          } else {
+            rq.result.put(key, value);
+          }
+        } else if (rq.changes != null) {
+          // scan in progress does not see this change, it is applied to the scanned data
+          rq.changes.put(key, value);
+        }
+      }
+    }
   }
 
   public void delete(long bucketKey, Slice key) throws IOException
@@ -363,11 +907,13 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
    *
    * @param bucket bucket on which purge operations were performed.
    * @param bmeta  metadata for the bucket.
+   * @param frozen changes being flushed.
    * @param filesToDelete deleted files are added to this set.
    * @return new bucket meta copy after processing of purge operations.
    * @throws IOException
    */
-  private BucketMeta processPurge(Bucket bucket, BucketMeta bmeta, HashSet<String> filesToDelete) throws IOException
+  private BucketMeta processPurge(Bucket bucket, BucketMeta bmeta, WriteCache frozen, HashSet<String> filesToDelete)
+      throws IOException
   {
     /* Nothing to do if no files are written */
     if (bmeta.files.isEmpty()) {
@@ -376,7 +922,6 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     }
 
     /* no purge request pending */
-    WriteCache frozen = bucket.frozenWriteCache;
     if (frozen.getPurges() == null || frozen.getPurges().isEmpty()) {
       LOG.debug("No Pending purge requests for bucket {}", bucket);
       return bmeta;
@@ -384,26 +929,32 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
 
     // make a copy, because as files are deleted in writeFileWithPurge, the traversal
     // of loop below will fail with concurrent modification exception.
-    BucketMeta bucketMetaCopy = kryo.copy(getMeta(bucket.bucketKey));
+    BucketMeta bucketMetaCopy = copyMeta(bmeta);
 
-    Iterator<BucketFileMeta> fileIter = bmeta.files.values().iterator();
-    Slice last = frozen.getPurges().getLast();
+    RangeSet<Slice> purges = frozen.getPurges();
+    Slice last = purges.getLast();
+    // files before the file containing the first purged key are not affected
+    Slice fromKey = bmeta.files.floorKey(purges.getFirst());
+    Map<Slice, BucketFileMeta> files = fromKey == null ? bmeta.files : bmeta.files.tailMap(fromKey, true);
 
-    while (fileIter.hasNext()) {
-      BucketFileMeta fmeta = fileIter.next();
+    for (BucketFileMeta fmeta : files.values()) {
       /* If this file falls out of the last purge end value, then break
          as next files will be outside of purge range too.
        */
       if (keyComparator.compare(fmeta.startKey, last) > 0) {
         break;
       }
-      Range<Slice> frange = new Range<>(fmeta.startKey, getEndKey(bucket.bucketKey, fmeta, frozen.getPurges()));
-      RangeSet<Slice> rset = frozen.getPurges().getOverlappingRanges(frange);
+      Map.Entry<Slice, BucketFileMeta> next = bmeta.files.higherEntry(fmeta.startKey);
+      // the end of the last file is found by seeking to the end of the purge ranges following its start key
+      Slice endKey = next != null ? next.getKey() :
+          getEndKey(bucket.bucketKey, fmeta, purges.getOverlappingRanges(new Range<>(fmeta.startKey, last)));
+      Range<Slice> frange = new Range<>(fmeta.startKey, endKey);
+      RangeSet<Slice> rset = purges.getOverlappingRanges(frange);
       if (rset.isEmpty()) {
         continue;
       }
 
-      writeFileWithPurge(bucket, fmeta, rset, filesToDelete, bucketMetaCopy);
+      writeFileWithPurge(bucket, fmeta, frange, rset, filesToDelete, bucketMetaCopy);
     }
     return bucketMetaCopy;
   }
@@ -416,17 +967,18 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
    * remove keys overlapping with purge ranges and they write out to a new file.
    * @param bucket bucket
    * @param meta file meta data.
+   * @param frange key range of the file.
    * @param rset purge range set which overlaps with the file.
    * @param filesToDelete if file is being deleted completely then add it to this list.
    * @param bmeta bucket metadata.
    * @throws IOException
    */
-  private void writeFileWithPurge(Bucket bucket, BucketFileMeta meta, RangeSet<Slice> rset,
+  private void writeFileWithPurge(Bucket bucket, BucketFileMeta meta, Range<Slice> frange, RangeSet<Slice> rset,
       HashSet<String> filesToDelete, BucketMeta bmeta) throws IOException
   {
     LOG.debug("Writing file because of purge operation {}", meta);
 
-    if (rset.containsFully(new Range<>(meta.startKey, getEndKey(bucket.bucketKey, meta, rset)))) {
+    if (rset.containsFully(frange)) {
       LOG.info("File being deleted because of purge {}", meta);
       filesToDelete.add(meta.name);
       bmeta.files.remove(meta.startKey);
@@ -460,65 +1012,230 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
   private TreeMap<Slice, Slice> readDataExcludingPurge(Bucket bucket, BucketFileMeta meta,
       RangeSet<Slice> rset) throws IOException
   {
-    FileReader reader = store.getReader(bucket.bucketKey, meta.name);
     TreeMap<Slice, Slice> fileData = new TreeMap<>(keyComparator);
+    FileReader reader = store.getReader(bucket.bucketKey, meta.name);
+    try {
+      /* Check if there is data in initial part of file before next purge range */
+      Slice key = new Slice(null, 0, 0);
+      Slice value = new Slice(null, 0, 0);
 
-    /* Check if there is data in initial part of file before next purge range */
-    Slice key = new Slice(null, 0, 0);
-    Slice value = new Slice(null, 0, 0);
-
-    boolean valid = reader.next(key, value);
-    for (Range<Slice> range : rset) {
-      while (keyComparator.compare(key, range.start) < 0 && valid) {
+      boolean valid = reader.next(key, value);
+      for (Range<Slice> range : rset) {
+        while (keyComparator.compare(key, range.start) < 0 && valid) {
+          fileData.put(new Slice(key.buffer, key.offset, key.length), new Slice(value.buffer));
+          valid = reader.next(key, value);
+        }
+        /* need to check valid at every stage, because next wraps around the file
+         * and starts reading from start of the file. */
+        valid = reader.seek(range.end);
+        if (!valid) {
+          break;
+        }
+        valid = reader.next(key, value); // this will read end key, we want to exclude this key.
+        if (!valid) {
+          break;
+        }
+        valid = reader.next(key, value); // go past the end key.
+        if (!valid) {
+          break;
+        }
+      }
+      while (valid) {
         fileData.put(new Slice(key.buffer, key.offset, key.length), new Slice(value.buffer));
         valid = reader.next(key, value);
       }
-      /* need to check valid at every stage, because next wraps around the file
-       * and starts reading from start of the file. */
-      valid = reader.seek(range.end);
-      if (!valid) {
-        break;
+    } finally {
+      reader.close();
+    }
+    return fileData;
+  }
+
+  /**
+   * Flush changes from write cache to disk. New data files will be written and meta data replaced atomically. The flush
+   * frequency determines availability of changes to external readers.
+   *
+   * @throws IOException
+   */
+  private void writeDataFiles(Bucket bucket, Set<Long> bucketKeys) throws IOException
+  {
+    BucketIOStats ioStats = getOrCretaStats(bucket.bucketKey);
+    LOG.debug("Writing data files in bucket {}", bucket.bucketKey);
+    // copy meta data on write
+    BucketMeta bucketMeta = getMeta(bucket.bucketKey);
+    BucketMeta bucketMetaCopy = copyMeta(bucketMeta);
+    HashSet<String> filesToDelete = Sets.newHashSet();
+    WriteCache frozen = bucket.frozenWriteCache;
+    boolean purgePending = frozen.getPurges() != null && !frozen.getPurges().isEmpty();
+
+    if (sortedRunLevels > 0 && !purgePending) {
+      // write changes as new run, existing data files are left untouched
+      TreeMap<Slice, Slice> runData = new TreeMap<>(keyComparator);
+      for (Map.Entry<Slice, byte[]> entry : frozen.entrySet()) {
+        runData.put(entry.getKey(), new Slice(entry.getValue()));
       }
-      valid = reader.next(key, value); // this will read end key, we want to exclude this key.
-      if (!valid) {
-        break;
+      bucketMetaCopy.runs.addFirst(writeSortedRun(bucket, bucketMetaCopy, runData, 0));
+      compactSortedRuns(bucket, bucketMetaCopy, filesToDelete);
+    } else {
+      if (!bucketMetaCopy.runs.isEmpty()) {
+        // purge has to be applied to data in all runs, fold runs into the data files
+        frozen = readSortedRuns(bucket, bucketMetaCopy.runs, filesToDelete);
+        frozen.merge(bucket.frozenWriteCache);
+        bucketMetaCopy.runs.clear();
       }
-      valid = reader.next(key, value); // go past the end key.
-      if (!valid) {
-        break;
+
+      /** Process purge requests before flushing data from cache to maintain
+       * the oder or purge and put operations. This makes sure that purged data
+       * removed from file, before new data is added to the files */
+      bucketMetaCopy = processPurge(bucket, bucketMetaCopy, frozen, filesToDelete);
+      mergeDataFiles(bucket, bucketMetaCopy, frozen, filesToDelete);
+    }
+
+    LOG.debug("Files written {} files read {}", ioStats.filesWroteInCurrentWriteCycle,
+        ioStats.filesReadInCurrentWriteCycle);
+    // flush meta data for new files
+    try {
+      bucketMetaCopy.committedWid = bucket.committedLSN;
+      bucketMetaCopy.recoveryStartWalPosition = bucket.recoveryStartWalPosition;
+      writeBucketMeta(bucket.bucketKey, bucketMeta, bucketMetaCopy);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to write bucket meta data " + bucket.bucketKey, e);
+    }
+
+    // clear pending changes
+    ioStats.dataKeysWritten += bucket.frozenWriteCache.size();
+    // switch to new version
+    this.metaCache.put(bucket.bucketKey, bucketMetaCopy);
+
+    // delete old files
+    for (String fileName : filesToDelete) {
+      deleteDataFile(bucket.bucketKey, fileName);
+    }
+    invalidateReader(bucket.bucketKey, filesToDelete);
+    // clearing cache after invalidating readers
+    bucket.frozenWriteCache.clear();
+
+    // cleanup WAL files which are not needed anymore.
+    cleanupWal(bucketMetaCopy, bucketKeys);
+    ioStats.filesReadInCurrentWriteCycle = 0;
+    ioStats.filesWroteInCurrentWriteCycle = 0;
+  }
+
+  /**
+   * Delete WAL files which are not needed for recovery of any bucket. Flushes of different buckets can complete
+   * concurrently, the minimum recovery position is computed by one flush at a time. Runs on the flush thread, the
+   * position is published to the operator thread which owns the checkpointed state.
+   *
+   * @param bucketMeta meta data written by the flush.
+   * @param bucketKeys buckets of the partition when the flush was started. Buckets opened later only have changes
+   * after the recovery position of the flush.
+   */
+  private void cleanupWal(BucketMeta bucketMeta, Set<Long> bucketKeys) throws IOException
+  {
+    synchronized (walCleanupLock) {
+      WalPosition minimumPosition = bucketMeta.recoveryStartWalPosition;
+      for (Long bucketId : bucketKeys) {
+        BucketMeta meta = getMeta(bucketId);
+        if (isBefore(meta.recoveryStartWalPosition, minimumPosition)) {
+          minimumPosition = meta.recoveryStartWalPosition;
+        }
+      }
+      flushedRecoveryWalPosition = minimumPosition;
+      // the new owner of a moved bucket reads its changes from this WAL until it has flushed the bucket
+      WalPosition cleanupPosition = minimumPosition;
+      for (BucketHandoff released : releasedBuckets.values()) {
+        if (isBefore(released.startPosition, cleanupPosition)) {
+          cleanupPosition = released.startPosition;
+        }
+      }
+      this.wal.cleanup(cleanupPosition.fileId);
+    }
+  }
+
+  private static boolean isBefore(WalPosition position, WalPosition other)
+  {
+    return position.fileId < other.fileId || (position.fileId == other.fileId && position.offset < other.offset);
+  }
+
+  /**
+   * Write the changes to the meta data as next edit. Every {@link #metaSnapshotInterval} edits, the full meta data is
+   * written as snapshot and edits contained in the previous snapshot are removed. The edit matching the snapshot is
+   * retained, it tells readers that their version is still current.
+   *
+   * @param bucketKey bucket key
+   * @param previous meta data of the last flush.
+   * @param bucketMeta new meta data, assigned the sequence number of the edit.
+   * @throws IOException
+   */
+  private void writeBucketMeta(long bucketKey, BucketMeta previous, BucketMeta bucketMeta) throws IOException
+  {
+    // after a reset, the files of the persisted meta data which are gone are removed for incremental readers
+    BucketMeta persisted = metaSnapshotPending.remove(bucketKey);
+    BucketMetaEdit edit = bucketMeta.diff(persisted != null ? persisted : previous);
+    bucketMeta.editSeq = edit.seq;
+    LOG.debug("Writing {}{} with {} added and {} removed files", FNAME_META_EDIT, edit.seq, edit.addedFiles.size(),
+        edit.removedFiles.size());
+    writeMetaFile(bucketKey, FNAME_META_EDIT + edit.seq, edit);
+
+    if (persisted != null || bucketMeta.snapshotSeq == 0
+        || bucketMeta.editSeq - bucketMeta.snapshotSeq >= metaSnapshotInterval) {
+      long previousSnapshotSeq = bucketMeta.snapshotSeq;
+      bucketMeta.snapshotSeq = bucketMeta.editSeq;
+      LOG.debug("Writing {} with {} file entries", FNAME_META, bucketMeta.files.size());
+      writeMetaFile(bucketKey, FNAME_META, bucketMeta);
+      for (long seq = Math.max(previousSnapshotSeq, 1); seq < bucketMeta.snapshotSeq; seq++) {
+        if (store.exists(bucketKey, FNAME_META_EDIT + seq)) {
+          store.delete(bucketKey, FNAME_META_EDIT + seq);
+        }
       }
     }
-    while (valid) {
-      fileData.put(new Slice(key.buffer, key.offset, key.length), new Slice(value.buffer));
-      valid = reader.next(key, value);
+  }
+
+  /**
+   * Write object to the file with the meta data format header, replacing an existing file atomically.
+   */
+  private void writeMetaFile(long bucketKey, String fileName, Object meta) throws IOException
+  {
+    OutputStream os = store.getOutputStream(bucketKey, fileName + ".new");
+    Output output = new Output(os);
+    output.writeBytes(META_MAGIC);
+    output.writeInt(META_VERSION);
+    synchronized (kryo) {
+      kryo.writeClassAndObject(output, meta);
     }
-    return fileData;
+    output.close();
+    os.close();
+    store.rename(bucketKey, fileName + ".new", fileName);
   }
 
   /**
-   * Flush changes from write cache to disk. New data files will be written and meta data replaced atomically. The flush
-   * frequency determines availability of changes to external readers.
+   * Copy meta data on write. The kryo instance is shared between the flush threads.
+   */
+  private BucketMeta copyMeta(BucketMeta bucketMeta)
+  {
+    synchronized (kryo) {
+      return kryo.copy(bucketMeta);
+    }
+  }
+
+  /**
+   * Merge changes into the data files of the bucket. Each data file which receives changes is read fully and
+   * rewritten along with the changes.
    *
+   * @param bucket bucket
+   * @param bucketMetaCopy bucket meta data to which new files are added.
+   * @param changes changes ordered by key, deleted keys have {@link #DELETED} as value.
+   * @param filesToDelete replaced data files are added to this set.
    * @throws IOException
    */
-  private void writeDataFiles(Bucket bucket) throws IOException
+  private void mergeDataFiles(Bucket bucket, BucketMeta bucketMetaCopy, Map<Slice, byte[]> changes,
+      HashSet<String> filesToDelete) throws IOException
   {
     BucketIOStats ioStats = getOrCretaStats(bucket.bucketKey);
-    LOG.debug("Writing data files in bucket {}", bucket.bucketKey);
-    // copy meta data on write
-    BucketMeta bucketMetaCopy = kryo.copy(getMeta(bucket.bucketKey));
-
-    /** Process purge requests before flushing data from cache to maintain
-     * the oder or purge and put operations. This makes sure that purged data
-     * removed from file, before new data is added to the files */
-    HashSet<String> filesToDelete = Sets.newHashSet();
-    bucketMetaCopy = processPurge(bucket, bucketMetaCopy, filesToDelete);
-
     // bucket keys by file
     TreeMap<Slice, BucketFileMeta> bucketSeqStarts = bucketMetaCopy.files;
     Map<BucketFileMeta, Map<Slice, Slice>> modifiedFiles = Maps.newHashMap();
 
-    for (Map.Entry<Slice, byte[]> entry : bucket.frozenWriteCache.entrySet()) {
+    for (Map.Entry<Slice, byte[]> entry : changes.entrySet()) {
       // find file for key
       Map.Entry<Slice, BucketFileMeta> floorEntry = bucketSeqStarts.floorEntry(entry.getKey());
       BucketFileMeta floorFile;
@@ -551,9 +1268,17 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
 
 
     // write modified files
+    long flushSeq = flushSeq(bucketMetaCopy);
     for (Map.Entry<BucketFileMeta, Map<Slice, Slice>> fileEntry : modifiedFiles.entrySet()) {
       BucketFileMeta fileMeta = fileEntry.getKey();
       TreeMap<Slice, Slice> fileData = new TreeMap<Slice, Slice>(getKeyComparator());
+      double heat = fileMeta.name != null ? getHeat(fileMeta, flushSeq) : 0;
+      long fileSize = maxFileSize;
+      if (adaptiveFileSize && heat >= HOT_FILE_HEAT && fileMeta.bytes > 0) {
+        // rewritten in the previous flush as well, split to confine further rewrites to the changing range
+        fileSize = Math.max(Math.min(minFileSize, maxFileSize), fileMeta.bytes / 2);
+        LOG.debug("Splitting hot data file {} {} heat {}", bucket.bucketKey, fileMeta.name, heat);
+      }
 
       if (fileMeta.name != null) {
         // load existing file
@@ -573,62 +1298,236 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
       // apply updates
       fileData.putAll(fileEntry.getValue());
       // new file
+      writeFile(bucket, bucketMetaCopy, fileData, fileSize, heat + 1);
+    }
+
+    if (adaptiveFileSize) {
+      mergeColdFiles(bucket, bucketMetaCopy, filesToDelete);
+    }
+  }
+
+  /**
+   * Merge runs of adjacent data files below {@link #minFileSize} which were not rewritten in the recent flushes into
+   * files of up to {@link #maxFileSize}.
+   *
+   * @param bucket bucket
+   * @param bucketMetaCopy bucket meta data, merged files are replaced.
+   * @param filesToDelete merged files are added to this set.
+   * @throws IOException
+   */
+  private void mergeColdFiles(Bucket bucket, BucketMeta bucketMetaCopy, HashSet<String> filesToDelete)
+      throws IOException
+  {
+    long flushSeq = flushSeq(bucketMetaCopy);
+    List<List<BucketFileMeta>> groups = Lists.newArrayList();
+    List<BucketFileMeta> group = Lists.newArrayList();
+    long groupBytes = 0;
+    for (BucketFileMeta fileMeta : bucketMetaCopy.files.values()) {
+      // files of unknown size are merged only after they were rewritten once
+      boolean cold = fileMeta.name != null && fileMeta.bytes > 0 && fileMeta.bytes < minFileSize
+          && getHeat(fileMeta, flushSeq) < COLD_FILE_HEAT && !filesToDelete.contains(fileMeta.name);
+      if (!cold || groupBytes + fileMeta.bytes > maxFileSize) {
+        if (group.size() > 1) {
+          groups.add(group);
+        }
+        group = Lists.newArrayList();
+        groupBytes = 0;
+      }
+      if (cold) {
+        group.add(fileMeta);
+        groupBytes += fileMeta.bytes;
+      }
+    }
+    if (group.size() > 1) {
+      groups.add(group);
+    }
+
+    BucketIOStats ioStats = getOrCretaStats(bucket.bucketKey);
+    for (List<BucketFileMeta> files : groups) {
+      LOG.debug("Merging {} cold data files in bucket {}", files.size(), bucket.bucketKey);
+      TreeMap<Slice, Slice> fileData = new TreeMap<Slice, Slice>(getKeyComparator());
+      for (BucketFileMeta fileMeta : files) {
+        long start = System.currentTimeMillis();
+        FileReader reader = store.getReader(bucket.bucketKey, fileMeta.name);
+        reader.readFully(fileData);
+        reader.close();
+        ioStats.dataBytesRead += fileMeta.bytes;
+        ioStats.dataReadTime += System.currentTimeMillis() - start;
+        ioStats.filesReadInCurrentWriteCycle++;
+        ioStats.dataFilesRead++;
+        bucketMetaCopy.files.remove(fileMeta.startKey);
+        filesToDelete.add(fileMeta.name);
+      }
+      ioStats.dataKeysRewritten += fileData.size();
       writeFile(bucket, bucketMetaCopy, fileData);
     }
+  }
 
-    LOG.debug("Files written {} files read {}", ioStats.filesWroteInCurrentWriteCycle,
-        ioStats.filesReadInCurrentWriteCycle);
-    // flush meta data for new files
-    try {
-      LOG.debug("Writing {} with {} file entries", FNAME_META, bucketMetaCopy.files.size());
-      OutputStream os = store.getOutputStream(bucket.bucketKey, FNAME_META + ".new");
-      Output output = new Output(os);
-      bucketMetaCopy.committedWid = bucket.committedLSN;
-      bucketMetaCopy.recoveryStartWalPosition = bucket.recoveryStartWalPosition;
-      kryo.writeClassAndObject(output, bucketMetaCopy);
-      output.close();
-      os.close();
-      store.rename(bucket.bucketKey, FNAME_META + ".new", FNAME_META);
-    } catch (IOException e) {
-      throw new RuntimeException("Failed to write bucket meta data " + bucket.bucketKey, e);
+  /**
+   * Sequence number of the flush in progress, meta data edits are numbered by flush.
+   */
+  private static long flushSeq(BucketMeta bucketMeta)
+  {
+    return bucketMeta.editSeq + 1;
+  }
+
+  /**
+   * Write heat of the file at the given flush, the number of rewrites decayed by half with every flush.
+   */
+  private static double getHeat(BucketFileMeta fileMeta, long flushSeq)
+  {
+    return fileMeta.heat * Math.pow(0.5, flushSeq - fileMeta.heatSeq);
+  }
+
+  /**
+   * Append without copying key and value when the writer accepts slices.
+   */
+  private static void append(FileWriter fw, Slice key, Slice value) throws IOException
+  {
+    if (fw instanceof HDHTFileAccess.HDSFileWriter) {
+      ((HDHTFileAccess.HDSFileWriter)fw).append(key, value);
+    } else {
+      fw.append(HDHTReader.toByteArray(key), HDHTReader.toByteArray(value));
     }
+  }
 
-    // clear pending changes
-    ioStats.dataKeysWritten += bucket.frozenWriteCache.size();
-    // switch to new version
-    this.metaCache.put(bucket.bucketKey, bucketMetaCopy);
+  /**
+   * Write data to a single file as new sorted run. Deleted keys are retained as they mask data in older runs and
+   * data files.
+   *
+   * @param bucket bucket
+   * @param bucketMeta meta data used to allocate the file name.
+   * @param data data to write, including deleted keys.
+   * @param level compaction level of the run.
+   * @return The meta data of the new run.
+   * @throws IOException
+   */
+  private SortedRunMeta writeSortedRun(Bucket bucket, BucketMeta bucketMeta, TreeMap<Slice, Slice> data, int level)
+      throws IOException
+  {
+    BucketIOStats ioStats = getOrCretaStats(bucket.bucketKey);
+    long startTime = System.currentTimeMillis();
 
-    // delete old files
-    for (String fileName : filesToDelete) {
-      store.delete(bucket.bucketKey, fileName);
+    SortedRunMeta run = bucketMeta.newRun(bucket.bucketKey, level);
+    LOG.debug("writing sorted run {} {} level {}", bucket.bucketKey, run.name, level);
+    BloomFilter.Builder bloomFilter = bloomFilterFalsePositiveProbability > 0 ? new BloomFilter.Builder() : null;
+    BlockIndex blockIndex = indexBlockSize > 0 ? new BlockIndex(indexBlockSize) : null;
+    FileWriter fw = this.store.getWriter(bucket.bucketKey, run.name + ".tmp");
+    for (Map.Entry<Slice, Slice> dataEntry : data.entrySet()) {
+      append(fw, dataEntry.getKey(), dataEntry.getValue());
+      if (bloomFilter != null) {
+        bloomFilter.add(dataEntry.getKey());
+      }
+      if (blockIndex != null) {
+        blockIndex.append(dataEntry.getKey(), dataEntry.getKey().length + dataEntry.getValue().length);
+      }
     }
-    invalidateReader(bucket.bucketKey, filesToDelete);
-    // clearing cache after invalidating readers
-    bucket.frozenWriteCache.clear();
+    fw.close();
+    run.numKeys = data.size();
+    ioStats.dataFilesWritten++;
+    ioStats.filesWroteInCurrentWriteCycle++;
+    ioStats.dataBytesWritten += fw.getBytesWritten();
+    writeBloomFilter(bucket.bucketKey, run.name, bloomFilter);
+    writeBlockIndex(bucket.bucketKey, run.name, blockIndex);
+    this.store.rename(bucket.bucketKey, run.name + ".tmp", run.name);
+    LOG.debug("created sorted run {} {} with {} entries", bucket.bucketKey, run.name, run.numKeys);
 
-    // cleanup WAL files which are not needed anymore.
-    minimumRecoveryWalPosition = bucketMetaCopy.recoveryStartWalPosition;
-    for (Long bucketId : this.bucketKeys) {
-      BucketMeta meta = getMeta(bucketId);
-      if (meta.recoveryStartWalPosition.fileId < minimumRecoveryWalPosition.fileId || 
-          (meta.recoveryStartWalPosition.fileId == minimumRecoveryWalPosition.fileId && 
-          meta.recoveryStartWalPosition.offset < minimumRecoveryWalPosition.offset)) {
-        minimumRecoveryWalPosition = meta.recoveryStartWalPosition;
+    ioStats.dataWriteTime += System.currentTimeMillis() - startTime;
+    return run;
+  }
+
+  /**
+   * Read runs into a write cache, applying runs from oldest to newest. Deleted keys are mapped to {@link #DELETED}.
+   * The files of the runs are added to filesToDelete.
+   *
+   * @param bucket bucket
+   * @param runs runs ordered from newest to oldest.
+   * @param filesToDelete files of the runs are added to this set.
+   * @return The content of the runs.
+   * @throws IOException
+   */
+  private WriteCache readSortedRuns(Bucket bucket, List<SortedRunMeta> runs, HashSet<String> filesToDelete)
+      throws IOException
+  {
+    BucketIOStats ioStats = getOrCretaStats(bucket.bucketKey);
+    WriteCache data = new WriteCache(keyComparator);
+    for (Iterator<SortedRunMeta> iter = new LinkedList<>(runs).descendingIterator(); iter.hasNext();) {
+      SortedRunMeta run = iter.next();
+      long start = System.currentTimeMillis();
+      TreeMap<Slice, Slice> runData = new TreeMap<>(keyComparator);
+      FileReader reader = store.getReader(bucket.bucketKey, run.name);
+      reader.readFully(runData);
+      reader.close();
+      for (Map.Entry<Slice, Slice> entry : runData.entrySet()) {
+        Slice value = entry.getValue();
+        data.put(new Slice(entry.getKey().toByteArray()), value.length == 0 ? DELETED : value.toByteArray());
+      }
+      ioStats.dataBytesRead += store.getFileSize(bucket.bucketKey, run.name);
+      ioStats.dataReadTime += System.currentTimeMillis() - start;
+      /* these keys are re-written */
+      ioStats.dataKeysRewritten += runData.size();
+      ioStats.filesReadInCurrentWriteCycle++;
+      ioStats.dataFilesRead++;
+      filesToDelete.add(run.name);
+    }
+    return data;
+  }
+
+  /**
+   * Merge runs of a level into a single run of the next level once the level has {@link #sortedRunFanout} runs. Runs
+   * of the last level are merged into the data files. Each key is rewritten once per level, which bounds write
+   * amplification by the number of levels instead of the size of the data files.
+   *
+   * @param bucket bucket
+   * @param bucketMetaCopy meta data with runs ordered from newest to oldest.
+   * @param filesToDelete files of merged runs are added to this set.
+   * @throws IOException
+   */
+  private void compactSortedRuns(Bucket bucket, BucketMeta bucketMetaCopy, HashSet<String> filesToDelete)
+      throws IOException
+  {
+    for (int level = 0; level < sortedRunLevels; level++) {
+      List<SortedRunMeta> levelRuns = Lists.newArrayList();
+      int position = -1;
+      int index = 0;
+      for (SortedRunMeta run : bucketMetaCopy.runs) {
+        if (run.level == level) {
+          if (position < 0) {
+            position = index;
+          }
+          levelRuns.add(run);
+        }
+        index++;
+      }
+      if (levelRuns.size() < Math.max(sortedRunFanout, 2)) {
+        continue;
+      }
+
+      LOG.debug("Compacting {} runs of level {} in bucket {}", levelRuns.size(), level, bucket.bucketKey);
+      WriteCache merged = readSortedRuns(bucket, levelRuns, filesToDelete);
+      bucketMetaCopy.runs.removeAll(levelRuns);
+      if (level + 1 < sortedRunLevels) {
+        TreeMap<Slice, Slice> runData = new TreeMap<>(keyComparator);
+        for (Map.Entry<Slice, byte[]> entry : merged.entrySet()) {
+          runData.put(entry.getKey(), new Slice(entry.getValue()));
+        }
+        bucketMetaCopy.runs.add(position, writeSortedRun(bucket, bucketMetaCopy, runData, level + 1));
+      } else {
+        // runs of the last level are the oldest, merge them into the data files
+        mergeDataFiles(bucket, bucketMetaCopy, merged, filesToDelete);
       }
     }
-    this.wal.cleanup(minimumRecoveryWalPosition.fileId);
-    ioStats.filesReadInCurrentWriteCycle = 0;
-    ioStats.filesWroteInCurrentWriteCycle = 0;
   }
 
   @Override
   public void setup(OperatorContext context)
   {
     super.setup(context);
-    if (context != null) {
+    // a partition redeployed after a bucket move continues to log to its WAL
+    if (context != null && walKey == 0) {
       setWalKey(context.getId());
     }
-    writeExecutor = Executors.newSingleThreadScheduledExecutor(new NameableThreadFactory(this.getClass().getSimpleName() + "-Writer"));
+    writeExecutor = Executors.newFixedThreadPool(flushThreads, new NameableThreadFactory(this.getClass().getSimpleName() + "-Writer"));
 
     this.context = context;
     if (this.walStore == null) {
@@ -653,6 +1552,10 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     }
     this.wal = new HDHTWalManager(this.walStore, getWalKey(), this.singleWalMeta.cpWalPosition);
     this.wal.setMaxWalFileSize(maxWalFileSize);
+    this.wal.setRecoveryThreads(walRecoveryThreads);
+    this.wal.setDurability(walDurability);
+    this.wal.setCompression(walCompression);
+    this.wal.setAsyncWrite(walAsyncWrite);
 
     if (!this.parentWals.isEmpty()) {
       resetBucketMeta();
@@ -666,6 +1569,114 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
         mergeParentWalFilesByWindow();
       }
     }
+    adoptBuckets();
+  }
+
+  /**
+   * Take over the buckets moved to this partition. The data files stay where the previous owner wrote them, changes of
+   * the bucket logged to this WAL start at the position of the move.
+   */
+  private void adoptBuckets()
+  {
+    for (Map.Entry<Long, BucketHandoff> entry : adoptedBuckets.entrySet()) {
+      BucketHandoff handoff = entry.getValue();
+      BucketMeta meta = loadBucketMeta(entry.getKey());
+      if (meta.committedWid >= handoff.windowId) {
+        // changes up to the move were flushed, nothing to read from the WAL of the previous owner
+        handoff.startPosition = handoff.endPosition;
+      }
+      meta.recoveryStartWalPosition = handoff.localStartPosition;
+      metaCache.put(entry.getKey(), meta);
+    }
+  }
+
+  /**
+   * Hand the bucket over to another partition. Called by the partitioner on the checkpointed state of this partition,
+   * the data files of the bucket are not copied and WAL files with changes of the bucket are retained until the new
+   * owner has flushed the bucket.
+   *
+   * @param bucketKey bucket to move.
+   * @return reference to the changes of the bucket in the WAL of this partition.
+   */
+  protected BucketHandoff releaseBucket(long bucketKey)
+  {
+    bucketKeys.remove(bucketKey);
+    bucketStats.remove(bucketKey);
+    WalPosition endPosition = singleWalMeta.cpWalPosition;
+    BucketHandoff handoff = new BucketHandoff(getWalKey(), minimumRecoveryWalPosition, endPosition,
+        singleWalMeta.windowId);
+    releasedBuckets.put(bucketKey, handoff);
+    return handoff;
+  }
+
+  /**
+   * Take over a bucket released by another partition. Called by the partitioner on the checkpointed state of this
+   * partition.
+   *
+   * @param bucketKey bucket to move.
+   * @param handoff reference to the changes of the bucket in the WAL of the previous owner.
+   */
+  protected void adoptBucket(long bucketKey, BucketHandoff handoff)
+  {
+    bucketKeys.add(bucketKey);
+    BucketHandoff adopted = new BucketHandoff(handoff.walKey, handoff.startPosition, handoff.endPosition,
+        handoff.windowId);
+    WalPosition position = singleWalMeta.cpWalPosition;
+    adopted.localStartPosition = position != null ? position : new WalPosition(0, 0);
+    adoptedBuckets.put(bucketKey, adopted);
+  }
+
+  /**
+   * Drop the references of completed bucket moves. A moved bucket is owned by this partition once it has flushed the
+   * bucket, the previous owner can delete its WAL files once the changes up to the move are in the data files. The
+   * new owner flushes at least every {@link #flushIntervalCount} windows, released buckets are checked as often.
+   */
+  private void completeBucketHandoffs()
+  {
+    for (Iterator<Map.Entry<Long, BucketHandoff>> it = adoptedBuckets.entrySet().iterator(); it.hasNext();) {
+      Bucket bucket = buckets.get(it.next().getKey());
+      if (bucket != null && bucket.committedLSN != 0 && !bucket.flushPending && bucket.frozenWriteCache.isEmpty()) {
+        it.remove();
+      }
+    }
+    if (releasedBucketsCheckWindowId < 0 || currentWindowId - releasedBucketsCheckWindowId > flushIntervalCount) {
+      releasedBucketsCheckWindowId = currentWindowId;
+      for (Iterator<Map.Entry<Long, BucketHandoff>> it = releasedBuckets.entrySet().iterator(); it.hasNext();) {
+        Map.Entry<Long, BucketHandoff> entry = it.next();
+        BucketMeta meta = loadBucketMeta(entry.getKey(), releasedBucketMeta.get(entry.getKey()));
+        if (meta.committedWid >= entry.getValue().windowId) {
+          LOG.debug("Bucket {} was flushed by the new owner", entry.getKey());
+          it.remove();
+          releasedBucketMeta.remove(entry.getKey());
+        } else {
+          releasedBucketMeta.put(entry.getKey(), meta);
+        }
+      }
+    }
+    for (Iterator<Map.Entry<Long, Long>> it = untruncatedWalFiles.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<Long, Long> entry = it.next();
+      if (!isReleasedWalFile(entry.getKey())) {
+        try {
+          this.wal.truncateWalFile(new WalPosition(entry.getKey(), entry.getValue()));
+        } catch (IOException e) {
+          throw new RuntimeException("Failed to truncate WAL file " + entry.getKey(), e);
+        }
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @return whether the new owner of a released bucket may read the WAL file.
+   */
+  private boolean isReleasedWalFile(long fileId)
+  {
+    for (BucketHandoff handoff : releasedBuckets.values()) {
+      if (handoff.startPosition.fileId <= fileId && fileId <= handoff.endPosition.fileId) {
+        return true;
+      }
+    }
+    return false;
   }
 
   @Override
@@ -703,6 +1714,11 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
       throw new RuntimeException("Error while flushing write cache.", this.writerError);
     }
 
+    WalPosition flushedPosition = flushedRecoveryWalPosition;
+    if (flushedPosition != null) {
+      minimumRecoveryWalPosition = flushedPosition;
+    }
+
     if (context != null) {
       updateStats();
       context.setCounters(bucketStats);
@@ -720,7 +1736,7 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     for (final Bucket bucket : this.buckets.values()) {
       if (!bucket.writeCache.isEmpty()) {
         bucket.checkpointedWriteCache.put(windowId, bucket.writeCache);
-        bucket.writeCache = new WriteCache(new DefaultKeyComparator());
+        bucket.writeCache = newWriteCache();
       }
     }
     this.walPositions.put(windowId, this.wal.getCurrentPosition());
@@ -737,7 +1753,11 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     BucketMeta bm = metaCache.get(bucketKey);
     if (bm == null) {
       bm = loadBucketMeta(bucketKey);
-      metaCache.put(bucketKey, bm);
+      // a concurrent flush may have installed a newer version meanwhile
+      BucketMeta existing = metaCache.putIfAbsent(bucketKey, bm);
+      if (existing != null) {
+        bm = existing;
+      }
     }
     return bm;
   }
@@ -745,7 +1765,13 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
   private void resetBucketMeta()
   {
     for (Long bucketKey : bucketKeys) {
-      metaCache.put(bucketKey, new BucketMeta(keyComparator));
+      BucketMeta persisted = loadBucketMeta(bucketKey);
+      BucketMeta bucketMeta = new BucketMeta(keyComparator);
+      // continue the sequence of the edits in the store, they are replaced by a snapshot on the next flush
+      bucketMeta.editSeq = persisted.editSeq;
+      bucketMeta.snapshotSeq = persisted.snapshotSeq;
+      metaCache.put(bucketKey, bucketMeta);
+      metaSnapshotPending.put(bucketKey, persisted);
     }
   }
 
@@ -763,6 +1789,8 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
         Map.Entry<Long, WriteCache> checkpointEntry = cpIter.next();
         if (checkpointEntry.getKey() <= committedWindowId) {
           bucket.committedWriteCache.merge(checkpointEntry.getValue());
+          checkpointEntry.getValue().clear();
+          checkpointEntry.getValue().release();
           cpIter.remove();
         }
       }
@@ -775,59 +1803,153 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
         }
       }
 
-      if ((bucket.committedWriteCache.size() > this.flushSize || currentWindowId - bucket.lastFlushWindowId > flushIntervalCount) && !bucket.committedWriteCache.isEmpty()) {
-        // ensure previous flush completed
-        if (bucket.frozenWriteCache.isEmpty()) {
-          bucket.frozenWriteCache = bucket.committedWriteCache;
-          bucket.committedWriteCache = new WriteCache(keyComparator);
-          bucket.recoveryStartWalPosition = this.committedWalPosition;
-          bucket.committedLSN = committedWindowId;
-
-          LOG.debug("Flushing data for bucket {} committedWid {} recoveryStartWalPosition {}",
-              bucket.bucketKey, bucket.committedLSN, bucket.recoveryStartWalPosition);
-          Runnable flushRunnable = new Runnable()
-          {
-            @Override
-            public void run()
-            {
-              try {
-                writeDataFiles(bucket);
-              } catch (Throwable e) {
-                LOG.debug("Write error: {}", e.getMessage());
-                writerError = e;
-              }
-            }
-          };
-          this.writeExecutor.execute(flushRunnable);
-          bucket.lastFlushWindowId = committedWindowId;
-        }
+      boolean flushSizeExceeded = bucket.committedWriteCache.size() > this.flushSize
+          || (flushBytes > 0 && bucket.committedWriteCache.getBytes() > flushBytes);
+      if ((flushSizeExceeded || currentWindowId - bucket.lastFlushWindowId > flushIntervalCount) && bucket.canFlush()) {
+        flush(bucket, committedWindowId);
       }
     }
 
+    if (maxWriteCacheBytes > 0) {
+      flushToWriteCacheBudget(committedWindowId);
+    }
+
+    if (!adoptedBuckets.isEmpty() || !releasedBuckets.isEmpty() || !untruncatedWalFiles.isEmpty()) {
+      completeBucketHandoffs();
+    }
+
     // propagate writer exceptions
     if (writerError != null) {
       throw new RuntimeException("Error while flushing write cache.", this.writerError);
     }
   }
 
+  /**
+   * Hand the committed changes of the bucket to the flush executor.
+   */
+  private void flush(final Bucket bucket, long committedWindowId)
+  {
+    // entries of the previous flush were cleared by the flush thread and are no longer read
+    bucket.frozenWriteCache.release();
+    bucket.frozenWriteCache = bucket.committedWriteCache;
+    bucket.committedWriteCache = newWriteCache();
+    bucket.recoveryStartWalPosition = this.committedWalPosition;
+    bucket.committedLSN = committedWindowId;
+
+    LOG.debug("Flushing data for bucket {} committedWid {} recoveryStartWalPosition {}",
+        bucket.bucketKey, bucket.committedLSN, bucket.recoveryStartWalPosition);
+    final BucketIOStats ioStats = getOrCretaStats(bucket.bucketKey);
+    final long submitTime = System.currentTimeMillis();
+    // the operator thread adds buckets while the flush is running
+    final Set<Long> flushBucketKeys = Sets.newHashSet(bucketKeys);
+    Runnable flushRunnable = new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try {
+          ioStats.flushQueueTime = System.currentTimeMillis() - submitTime;
+          writeDataFiles(bucket, flushBucketKeys);
+          ioStats.flushLatency = System.currentTimeMillis() - submitTime;
+        } catch (Throwable e) {
+          LOG.debug("Write error: {}", e.getMessage());
+          writerError = e;
+        } finally {
+          bucket.flushPending = false;
+        }
+      }
+    };
+    bucket.flushPending = true;
+    this.writeExecutor.execute(flushRunnable);
+    bucket.lastFlushWindowId = committedWindowId;
+  }
+
+  /**
+   * Flush committed changes of the buckets holding the most data, and among those the buckets flushed least recently,
+   * until the write caches of all buckets fit into {@link #getMaxWriteCacheBytes()}. Uncommitted changes cannot be
+   * flushed, the caches can remain above the budget until they are committed.
+   */
+  private void flushToWriteCacheBudget(long committedWindowId)
+  {
+    long total = 0;
+    List<Bucket> candidates = Lists.newArrayList();
+    for (Bucket bucket : buckets.values()) {
+      total += bucket.getBytes();
+      if (bucket.canFlush()) {
+        candidates.add(bucket);
+      }
+    }
+    if (total <= maxWriteCacheBytes) {
+      return;
+    }
+
+    Collections.sort(candidates, new Comparator<Bucket>()
+    {
+      @Override
+      public int compare(Bucket b1, Bucket b2)
+      {
+        int cmp = Long.compare(b2.committedWriteCache.getBytes(), b1.committedWriteCache.getBytes());
+        return cmp != 0 ? cmp : Long.compare(b1.lastFlushWindowId, b2.lastFlushWindowId);
+      }
+    });
+    for (Bucket bucket : candidates) {
+      if (total <= maxWriteCacheBytes) {
+        break;
+      }
+      LOG.debug("Write caches hold {} bytes, flushing bucket {}", total, bucket.bucketKey);
+      total -= bucket.committedWriteCache.getBytes();
+      getOrCretaStats(bucket.bucketKey).budgetFlushCount++;
+      flush(bucket, committedWindowId);
+    }
+  }
+
   private static class Bucket
   {
     private long lastFlushWindowId;
     private long bucketKey;
     // keys that were modified and written to WAL, but not yet persisted, by checkpoint
-    private WriteCache writeCache = new WriteCache(new DefaultKeyComparator());
+    private WriteCache writeCache;
     private final LinkedHashMap<Long, WriteCache> checkpointedWriteCache = Maps.newLinkedHashMap();
-    private WriteCache committedWriteCache = new WriteCache(new DefaultKeyComparator());
+    private WriteCache committedWriteCache;
     // keys that are being flushed to data files
-    private WriteCache frozenWriteCache = new WriteCache(new DefaultKeyComparator());
+    private WriteCache frozenWriteCache;
     private long committedLSN;
     public HDHTWalManager.WalPosition recoveryStartWalPosition;
+    // set while the frozen write cache is queued or being written by the flush executor
+    private volatile boolean flushPending;
+    // keys written since the last update of the stats
+    private long keysWritten;
+
+    public Bucket(WriteCache writeCache, WriteCache committedWriteCache, WriteCache frozenWriteCache)
+    {
+      this.writeCache = writeCache;
+      this.committedWriteCache = committedWriteCache;
+      this.frozenWriteCache = frozenWriteCache;
+    }
 
-    public Bucket(Comparator<Slice> cmp)
+    /**
+     * Committed changes can be flushed when the previous flush has completed.
+     */
+    private boolean canFlush()
+    {
+      return !committedWriteCache.isEmpty() && !flushPending && frozenWriteCache.isEmpty();
+    }
+
+    private long getUncommittedBytes()
+    {
+      long bytes = writeCache.getBytes();
+      for (WriteCache wc : checkpointedWriteCache.values()) {
+        bytes += wc.getBytes();
+      }
+      return bytes;
+    }
+
+    /**
+     * Bytes held by all write caches of the bucket.
+     */
+    private long getBytes()
     {
-      writeCache = new WriteCache(cmp);
-      committedWriteCache = new WriteCache(cmp);
-      frozenWriteCache = new WriteCache(cmp);
+      return getUncommittedBytes() + committedWriteCache.getBytes() + frozenWriteCache.getBytes();
     }
   }
 
@@ -851,8 +1973,53 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     return b.committedWriteCache.size();
   }
 
+  @VisibleForTesting
+  protected Map<Long, BucketIOStats> getBucketStats()
+  {
+    updateStats();
+    return bucketStats;
+  }
+
   private static final Logger LOG = LoggerFactory.getLogger(HDHTWriter.class);
 
+  /**
+   * Reference to the changes of a bucket in the WAL of the partition which owned the bucket before it was moved.
+   */
+  public static class BucketHandoff implements Serializable
+  {
+    private static final long serialVersionUID = 201610170000L;
+    // WAL of the previous owner
+    long walKey;
+    // position in the WAL of the previous owner from which changes of the bucket may not be in the data files
+    WalPosition startPosition;
+    // checkpointed position of the WAL of the previous owner at the move
+    WalPosition endPosition;
+    // checkpointed window at the move
+    long windowId;
+    // position in the WAL of the new owner from which changes of the bucket are logged
+    WalPosition localStartPosition;
+
+    @SuppressWarnings("unused")
+    private BucketHandoff()
+    {
+    }
+
+    public BucketHandoff(long walKey, WalPosition startPosition, WalPosition endPosition, long windowId)
+    {
+      this.walKey = walKey;
+      this.startPosition = startPosition;
+      this.endPosition = endPosition;
+      this.windowId = windowId;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "BucketHandoff{walKey=" + walKey + ", startPosition=" + startPosition + ", endPosition=" + endPosition +
+          ", windowId=" + windowId + ", localStartPosition=" + localStartPosition + '}';
+    }
+  }
+
   /* Holds current file Id for WAL and current recoveryEndWalOffset for WAL */
   static class WalMeta
   {
@@ -886,6 +2053,14 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     public long walFlushTime;
     /* wal keys written */
     public long walKeysWritten;
+    /* Time spent in WAL recovery on startup in milliseconds */
+    public long walRecoveryTime;
+    /* Time spent copying WAL files of parent partitions after repartitioning in milliseconds */
+    public long walCopyTime;
+    /* Bytes copied from WAL files of parent partitions */
+    public long walBytesCopied;
+    /* Time spent deleting WAL files which are no longer needed in milliseconds */
+    public long walCleanupTime;
 
 
     /* Number of data files written */
@@ -903,6 +2078,12 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     /* records in memory */
     public long dataInWriteCache;
     public long dataInFrozenCache;
+    /* bytes of keys and values in memory by cache stage */
+    public long bytesInUncommittedCache;
+    public long bytesInCommittedCache;
+    public long bytesInFrozenCache;
+    /* Number of flushes triggered by the write cache memory budget */
+    public long budgetFlushCount;
     public int filesReadInCurrentWriteCycle;
     public int filesWroteInCurrentWriteCycle;
 
@@ -912,6 +2093,23 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     /* Number of bytes read during data read */
     public long dataBytesRead;
 
+    /* Number of flushes of the bucket queued or in progress, 0 or 1 */
+    public int flushQueueDepth;
+    /* Time the last flush waited for a flush thread in milliseconds */
+    public long flushQueueTime;
+    /* Time from hand off to completion of the last flush in milliseconds */
+    public long flushLatency;
+
+    /* Lookups served from the block cache */
+    public long blockCacheHits;
+    /* Lookups which had to read the block from the data file */
+    public long blockCacheMisses;
+    /* Blocks of the bucket evicted from the block cache */
+    public long blockCacheEvictions;
+
+    /* Keys put or deleted in the bucket, the partitioner derives the write rate of the bucket from it */
+    public long keysWritten;
+
     @Override
     public String toString()
     {
@@ -920,6 +2118,10 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
           ", walFlushCount=" + walFlushCount +
           ", walFlushTime=" + walFlushTime +
           ", walKeysWritten=" + walKeysWritten +
+          ", walRecoveryTime=" + walRecoveryTime +
+          ", walCopyTime=" + walCopyTime +
+          ", walBytesCopied=" + walBytesCopied +
+          ", walCleanupTime=" + walCleanupTime +
           ", dataFilesWritten=" + dataFilesWritten +
           ", dataBytesWritten=" + dataBytesWritten +
           ", dataWriteTime=" + dataWriteTime +
@@ -927,11 +2129,22 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
           ", dataKeysRewritten=" + dataKeysRewritten +
           ", dataInWriteCache=" + dataInWriteCache +
           ", dataInFrozenCache=" + dataInFrozenCache +
+          ", bytesInUncommittedCache=" + bytesInUncommittedCache +
+          ", bytesInCommittedCache=" + bytesInCommittedCache +
+          ", bytesInFrozenCache=" + bytesInFrozenCache +
+          ", budgetFlushCount=" + budgetFlushCount +
           ", filesReadInCurrentWriteCycle=" + filesReadInCurrentWriteCycle +
           ", filesWroteInCurrentWriteCycle=" + filesWroteInCurrentWriteCycle +
           ", dataFilesRead=" + dataFilesRead +
           ", dataReadTime=" + dataReadTime +
           ", dataBytesRead=" + dataBytesRead +
+          ", flushQueueDepth=" + flushQueueDepth +
+          ", flushQueueTime=" + flushQueueTime +
+          ", flushLatency=" + flushLatency +
+          ", blockCacheHits=" + blockCacheHits +
+          ", blockCacheMisses=" + blockCacheMisses +
+          ", blockCacheEvictions=" + blockCacheEvictions +
+          ", keysWritten=" + keysWritten +
           '}';
     }
   }
@@ -946,8 +2159,24 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
       ioStats.walFlushCount = walStats.flushCounts;
       ioStats.walFlushTime = walStats.flushDuration;
       ioStats.walKeysWritten = walStats.totalKeys;
+      ioStats.walRecoveryTime = walStats.recoveryDuration;
+      ioStats.walCopyTime = walStats.copyDuration;
+      ioStats.walBytesCopied = walStats.bytesCopied;
+      ioStats.walCleanupTime = walStats.cleanupDuration;
       ioStats.dataInWriteCache = bucket.writeCache.size();
       ioStats.dataInFrozenCache = bucket.frozenWriteCache.size();
+      ioStats.bytesInUncommittedCache = bucket.getUncommittedBytes();
+      ioStats.bytesInCommittedCache = bucket.committedWriteCache.getBytes();
+      ioStats.bytesInFrozenCache = bucket.frozenWriteCache.getBytes();
+      ioStats.flushQueueDepth = bucket.flushPending ? 1 : 0;
+      ioStats.keysWritten += bucket.keysWritten;
+      bucket.keysWritten = 0;
+      if (blockCache != null) {
+        BlockCache.Counters counters = blockCache.getCounters(bucket.bucketKey);
+        ioStats.blockCacheHits = counters.hits;
+        ioStats.blockCacheMisses = counters.misses;
+        ioStats.blockCacheEvictions = counters.evictions;
+      }
     }
   }
 
@@ -977,6 +2206,10 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
           aggStats.globalStats.walFlushCount += stats.walFlushCount;
           aggStats.globalStats.walFlushTime += stats.walFlushTime;
           aggStats.globalStats.walKeysWritten += stats.walKeysWritten;
+          aggStats.globalStats.walRecoveryTime = Math.max(aggStats.globalStats.walRecoveryTime, stats.walRecoveryTime);
+          aggStats.globalStats.walCopyTime = Math.max(aggStats.globalStats.walCopyTime, stats.walCopyTime);
+          aggStats.globalStats.walBytesCopied = Math.max(aggStats.globalStats.walBytesCopied, stats.walBytesCopied);
+          aggStats.globalStats.walCleanupTime = Math.max(aggStats.globalStats.walCleanupTime, stats.walCleanupTime);
 
           aggStats.globalStats.dataWriteTime += stats.dataWriteTime;
           aggStats.globalStats.dataFilesWritten += stats.dataFilesWritten;
@@ -986,6 +2219,10 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
 
           aggStats.globalStats.dataInWriteCache += stats.dataInWriteCache;
           aggStats.globalStats.dataInFrozenCache += stats.dataInFrozenCache;
+          aggStats.globalStats.bytesInUncommittedCache += stats.bytesInUncommittedCache;
+          aggStats.globalStats.bytesInCommittedCache += stats.bytesInCommittedCache;
+          aggStats.globalStats.bytesInFrozenCache += stats.bytesInFrozenCache;
+          aggStats.globalStats.budgetFlushCount += stats.budgetFlushCount;
           aggStats.globalStats.filesReadInCurrentWriteCycle += stats.filesReadInCurrentWriteCycle;
           aggStats.globalStats.filesWroteInCurrentWriteCycle += stats.filesWroteInCurrentWriteCycle;
 
@@ -993,6 +2230,15 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
           aggStats.globalStats.dataFilesRead += stats.dataFilesRead;
           aggStats.globalStats.dataBytesRead += stats.dataBytesRead;
 
+          aggStats.globalStats.flushQueueDepth += stats.flushQueueDepth;
+          aggStats.globalStats.flushQueueTime = Math.max(aggStats.globalStats.flushQueueTime, stats.flushQueueTime);
+          aggStats.globalStats.flushLatency = Math.max(aggStats.globalStats.flushLatency, stats.flushLatency);
+
+          aggStats.globalStats.blockCacheHits += stats.blockCacheHits;
+          aggStats.globalStats.blockCacheMisses += stats.blockCacheMisses;
+          aggStats.globalStats.blockCacheEvictions += stats.blockCacheEvictions;
+          aggStats.globalStats.keysWritten += stats.keysWritten;
+
           aggStats.aggregatedStats.put(bId, stats);
         }
       }
@@ -1001,14 +2247,17 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
   }
 
   /* A map holding stats for each bucket written by this partition */
-  private final HashMap<Long, BucketIOStats> bucketStats = Maps.newHashMap();
+  private final ConcurrentMap<Long, BucketIOStats> bucketStats = Maps.newConcurrentMap();
 
   private BucketIOStats getOrCretaStats(long bucketKey)
   {
     BucketIOStats ioStats = bucketStats.get(bucketKey);
     if (ioStats == null) {
       ioStats = new BucketIOStats();
-      bucketStats.put(bucketKey, ioStats);
+      BucketIOStats existing = bucketStats.putIfAbsent(bucketKey, ioStats);
+      if (existing != null) {
+        ioStats = existing;
+      }
     }
     return ioStats;
   }
@@ -1019,6 +2268,18 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     Bucket bucket = getBucket(bucketKey);
     this.wal.append(new HDHTLogEntry.PurgeEntry(bucketKey, start, end));
     bucket.writeCache.purge(start, end);
+    Range<Slice> range = new Range<>(start, end);
+    for (HDSRangeQuery rq : rangeQueries) {
+      if (rq.bucketKey == bucketKey && range.overlapsWith(new Range<>(rq.start, rq.end), keyComparator)) {
+        synchronized (rq) {
+          if (rq.processed) {
+            rq.result.subMap(start, true, end, true).clear();
+          } else if (rq.changes != null) {
+            rq.changes.purge(start, end);
+          }
+        }
+      }
+    }
   }
 
 
@@ -1049,20 +2310,24 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
     }
     boolean valid = true;
     FileReader reader = store.getReader(bucketKey, fmeta.name);
-    if (rset != null) {
-      for (Range<Slice> range : rset) {
-        valid = reader.seek(range.end);
-        if (!valid) {
-          return range.end;
+    try {
+      if (rset != null) {
+        for (Range<Slice> range : rset) {
+          valid = reader.seek(range.end);
+          if (!valid) {
+            return range.end;
+          }
         }
       }
+      Slice key = new Slice(null, 0, 0);
+      Slice value = new Slice(null, 0, 0);
+      while (valid) {
+        valid = reader.next(key, value);
+      }
+      return key;
+    } finally {
+      reader.close();
     }
-    Slice key = new Slice(null, 0, 0);
-    Slice value = new Slice(null, 0, 0);
-    while (valid) {
-      valid = reader.next(key, value);
-    }
-    return key;
   }
 
   public FileAccess getWalStore()
@@ -1101,6 +2366,7 @@ public class HDHTWriter extends HDHTReader implements CheckpointListener, Operat
       singleWalMeta.cpWalPosition = this.wal.getCurrentPosition();
       // Reset WAL recovery position to beginning of WAL files
       minimumRecoveryWalPosition = new WalPosition(0, 0);
+      flushedRecoveryWalPosition = null;
     } catch (Exception e) {
       throw Throwables.propagate(e);
     }
@@ -0,0 +1,522 @@
+/**
+ * Copyright (c) 2016 DataTorrent, Inc.
+ * All rights reserved.
+ */
+package com.datatorrent.contrib.hdht;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+
+import com.datatorrent.netlet.util.Slice;
+
+/**
+ * OffHeapSliceMap
+ * Map storing keys and values in direct memory. Entries are appended to chunks of direct buffers as key length,
+ * value length, key and value, an open addressing hash table of primitive arrays maps keys to the position of the
+ * entry. The map does not allocate heap objects per entry, keys and values returned by the map are copies.
+ *
+ * Entries which were replaced or removed remain in the chunks until the map is compacted, which happens when more
+ * than half of the appended bytes are garbage. Chunks are taken from a {@link BufferPool}. Chunks of cleared entries are
+ * returned to it on {@link #release()}, which must not be called while readers may still access the cleared entries.
+ *
+ * Not thread safe, concurrent reads are safe when there are no concurrent modifications.
+ *
+ * @since 3.4.0
+ */
+class OffHeapSliceMap extends AbstractMap<Slice, byte[]>
+{
+  private static final int ENTRY_HEADER = 8;
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final BufferPool pool;
+  // replaced as a whole on clear, a concurrent reader sees either the old or the new entries
+  private volatile Table table = new Table(INITIAL_CAPACITY, Lists.<ByteBuffer>newArrayList());
+  private final List<ByteBuffer> retired = Lists.newArrayList();
+  private ByteBuffer current;
+  private int size;
+  private long appendedBytes;
+  private long garbageBytes;
+
+  OffHeapSliceMap(BufferPool pool)
+  {
+    this.pool = pool;
+  }
+
+  /**
+   * Hash table with the position of each entry plus one, 0 for empty slots, and the chunks holding the entries.
+   */
+  private static class Table
+  {
+    final long[] slots;
+    final int[] hashes;
+    final List<ByteBuffer> chunks;
+
+    Table(int capacity, List<ByteBuffer> chunks)
+    {
+      this.slots = new long[capacity];
+      this.hashes = new int[capacity];
+      this.chunks = chunks;
+    }
+
+    /**
+     * Slot of the key or the complement of the free slot the key would be inserted at.
+     */
+    int find(Slice key, int hash)
+    {
+      int mask = slots.length - 1;
+      int index = hash & mask;
+      while (slots[index] != 0) {
+        if (hashes[index] == hash && keyEquals(slots[index] - 1, key)) {
+          return index;
+        }
+        index = (index + 1) & mask;
+      }
+      return ~index;
+    }
+
+    boolean keyEquals(long address, Slice key)
+    {
+      ByteBuffer chunk = chunks.get(chunkIndex(address));
+      int offset = chunkOffset(address);
+      if (chunk.getInt(offset) != key.length) {
+        return false;
+      }
+      offset += ENTRY_HEADER;
+      for (int i = 0; i < key.length; i++) {
+        if (chunk.get(offset + i) != key.buffer[key.offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    Slice readKey(long address)
+    {
+      ByteBuffer chunk = chunks.get(chunkIndex(address)).duplicate();
+      int offset = chunkOffset(address);
+      byte[] key = new byte[chunk.getInt(offset)];
+      chunk.position(offset + ENTRY_HEADER);
+      chunk.get(key);
+      return new Slice(key);
+    }
+
+    byte[] readValue(long address)
+    {
+      ByteBuffer chunk = chunks.get(chunkIndex(address)).duplicate();
+      int offset = chunkOffset(address);
+      int valueLength = chunk.getInt(offset + 4);
+      if (valueLength == 0) {
+        // deleted keys are recognized by identity
+        return HDHTWriter.DELETED;
+      }
+      byte[] value = new byte[valueLength];
+      chunk.position(offset + ENTRY_HEADER + chunk.getInt(offset));
+      chunk.get(value);
+      return value;
+    }
+
+    int entrySize(long address)
+    {
+      return entrySize(chunks.get(chunkIndex(address)), chunkOffset(address));
+    }
+
+    static int entrySize(ByteBuffer chunk, int offset)
+    {
+      return ENTRY_HEADER + chunk.getInt(offset) + chunk.getInt(offset + 4);
+    }
+  }
+
+  @Override
+  public int size()
+  {
+    return size;
+  }
+
+  @Override
+  public boolean containsKey(Object key)
+  {
+    Slice k = (Slice)key;
+    return table.find(k, hash(k)) >= 0;
+  }
+
+  @Override
+  public byte[] get(Object key)
+  {
+    Slice k = (Slice)key;
+    Table t = table;
+    int index = t.find(k, hash(k));
+    return index < 0 ? null : t.readValue(t.slots[index] - 1);
+  }
+
+  @Override
+  public byte[] put(Slice key, byte[] value)
+  {
+    Table t = table;
+    int hash = hash(key);
+    int index = t.find(key, hash);
+    byte[] previous = null;
+    if (index >= 0) {
+      long address = t.slots[index] - 1;
+      previous = t.readValue(address);
+      garbageBytes += t.entrySize(address);
+    } else {
+      if ((size + 1) * 4L > t.slots.length * 3L) {
+        t = resize(t.slots.length * 2);
+        index = t.find(key, hash);
+      }
+      index = ~index;
+      t.hashes[index] = hash;
+      size++;
+    }
+    t.slots[index] = append(key, value) + 1;
+    if (garbageBytes > appendedBytes / 2 && garbageBytes >= BufferPool.MIN_CHUNK_SIZE) {
+      compact();
+    }
+    return previous;
+  }
+
+  @Override
+  public byte[] remove(Object key)
+  {
+    Slice k = (Slice)key;
+    Table t = table;
+    int index = t.find(k, hash(k));
+    if (index < 0) {
+      return null;
+    }
+    long address = t.slots[index] - 1;
+    byte[] previous = t.readValue(address);
+    garbageBytes += t.entrySize(address);
+    deleteSlot(t, index);
+    size--;
+    return previous;
+  }
+
+  /**
+   * Remove all entries. Chunks are kept until {@link #release()}, so readers which still hold the previous entries
+   * read valid data.
+   */
+  @Override
+  public void clear()
+  {
+    retired.addAll(table.chunks);
+    table = new Table(INITIAL_CAPACITY, Lists.<ByteBuffer>newArrayList());
+    current = null;
+    size = 0;
+    appendedBytes = 0;
+    garbageBytes = 0;
+  }
+
+  /**
+   * Return chunks of cleared entries to the pool.
+   */
+  void release()
+  {
+    for (ByteBuffer chunk : retired) {
+      pool.release(chunk);
+    }
+    retired.clear();
+  }
+
+  /**
+   * Bytes of direct memory held by the map.
+   */
+  long getAllocatedBytes()
+  {
+    long allocated = 0;
+    for (ByteBuffer chunk : table.chunks) {
+      allocated += chunk.capacity();
+    }
+    for (ByteBuffer chunk : retired) {
+      allocated += chunk.capacity();
+    }
+    return allocated;
+  }
+
+  @Override
+  public Set<Map.Entry<Slice, byte[]>> entrySet()
+  {
+    return new AbstractSet<Map.Entry<Slice, byte[]>>()
+    {
+      @Override
+      public Iterator<Map.Entry<Slice, byte[]>> iterator()
+      {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size()
+      {
+        return size;
+      }
+    };
+  }
+
+  /**
+   * Iterates a snapshot of the entry positions, removal through the iterator does not move entries in the chunks.
+   */
+  private class EntryIterator implements Iterator<Map.Entry<Slice, byte[]>>
+  {
+    private final Table t = table;
+    private final long[] addresses = new long[size];
+    private int next;
+    private Slice lastKey;
+
+    EntryIterator()
+    {
+      int count = 0;
+      for (long slot : t.slots) {
+        if (slot != 0) {
+          addresses[count++] = slot - 1;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      return next < addresses.length;
+    }
+
+    @Override
+    public Map.Entry<Slice, byte[]> next()
+    {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      long address = addresses[next++];
+      lastKey = t.readKey(address);
+      return new SimpleImmutableEntry<>(lastKey, t.readValue(address));
+    }
+
+    @Override
+    public void remove()
+    {
+      if (lastKey == null) {
+        throw new IllegalStateException();
+      }
+      OffHeapSliceMap.this.remove(lastKey);
+      lastKey = null;
+    }
+  }
+
+  private static int hash(Slice key)
+  {
+    int h = 1;
+    for (int i = key.offset; i < key.offset + key.length; i++) {
+      h = 31 * h + key.buffer[i];
+    }
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Backward shift deletion, moves following entries of the probe sequence into the freed slot.
+   */
+  private static void deleteSlot(Table t, int index)
+  {
+    int mask = t.slots.length - 1;
+    int free = index;
+    int i = index;
+    while (true) {
+      i = (i + 1) & mask;
+      if (t.slots[i] == 0) {
+        break;
+      }
+      int home = t.hashes[i] & mask;
+      // entries with their home slot cyclically in (free, i] stay in place
+      boolean stays = free <= i ? (free < home && home <= i) : (free < home || home <= i);
+      if (!stays) {
+        t.slots[free] = t.slots[i];
+        t.hashes[free] = t.hashes[i];
+        free = i;
+      }
+    }
+    t.slots[free] = 0;
+  }
+
+  private Table resize(int capacity)
+  {
+    Table old = table;
+    Table t = new Table(capacity, old.chunks);
+    int mask = capacity - 1;
+    for (int i = 0; i < old.slots.length; i++) {
+      if (old.slots[i] != 0) {
+        int index = old.hashes[i] & mask;
+        while (t.slots[index] != 0) {
+          index = (index + 1) & mask;
+        }
+        t.slots[index] = old.slots[i];
+        t.hashes[index] = old.hashes[i];
+      }
+    }
+    table = t;
+    return t;
+  }
+
+  /**
+   * Copy the live entries into new chunks.
+   */
+  private void compact()
+  {
+    Table old = table;
+    Table t = new Table(old.slots.length, Lists.<ByteBuffer>newArrayList());
+    System.arraycopy(old.hashes, 0, t.hashes, 0, old.hashes.length);
+    table = t;
+    current = null;
+    appendedBytes = 0;
+    garbageBytes = 0;
+    for (int i = 0; i < old.slots.length; i++) {
+      if (old.slots[i] != 0) {
+        long address = old.slots[i] - 1;
+        ByteBuffer chunk = old.chunks.get(chunkIndex(address)).duplicate();
+        int offset = chunkOffset(address);
+        chunk.limit(offset + Table.entrySize(chunk, offset)).position(offset);
+        t.slots[i] = appendRaw(chunk) + 1;
+      }
+    }
+    for (ByteBuffer chunk : old.chunks) {
+      pool.release(chunk);
+    }
+  }
+
+  private long append(Slice key, byte[] value)
+  {
+    int length = ENTRY_HEADER + key.length + value.length;
+    ByteBuffer chunk = reserve(length);
+    long address = address(table.chunks.size() - 1, chunk.position());
+    chunk.putInt(key.length).putInt(value.length);
+    chunk.put(key.buffer, key.offset, key.length).put(value);
+    appendedBytes += length;
+    return address;
+  }
+
+  private long appendRaw(ByteBuffer entry)
+  {
+    int length = entry.remaining();
+    ByteBuffer chunk = reserve(length);
+    long address = address(table.chunks.size() - 1, chunk.position());
+    chunk.put(entry);
+    appendedBytes += length;
+    return address;
+  }
+
+  private ByteBuffer reserve(int length)
+  {
+    if (current == null || current.remaining() < length) {
+      int chunkSize = current == null ? BufferPool.MIN_CHUNK_SIZE : Math.min(current.capacity() * 2,
+          BufferPool.MAX_CHUNK_SIZE);
+      current = pool.allocate(Math.max(chunkSize, length));
+      table.chunks.add(current);
+    }
+    return current;
+  }
+
+  private static long address(int chunkIndex, int offset)
+  {
+    return ((long)chunkIndex << 32) | offset;
+  }
+
+  private static int chunkIndex(long address)
+  {
+    return (int)(address >>> 32);
+  }
+
+  private static int chunkOffset(long address)
+  {
+    return (int)address;
+  }
+
+  /**
+   * Pool of direct buffers shared by the maps of an operator. Buffers have power of two sizes, released buffers are
+   * kept for reuse up to a limit, so that direct memory does not depend on garbage collection of buffers which were
+   * promoted to the old generation.
+   */
+  static class BufferPool
+  {
+    static final int MIN_CHUNK_SIZE = 4 * 1024;
+    static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_CHUNK_SIZE)
+        - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE) + 1;
+
+    private final List<Queue<ByteBuffer>> free = Lists.newArrayListWithCapacity(SIZE_CLASSES);
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    BufferPool(long maxPooledBytes)
+    {
+      this.maxPooledBytes = maxPooledBytes;
+      for (int i = 0; i < SIZE_CLASSES; i++) {
+        free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+      }
+    }
+
+    ByteBuffer allocate(int minSize)
+    {
+      int size = Math.max(MIN_CHUNK_SIZE, Integer.highestOneBit(minSize - 1) << 1);
+      if (size > 0 && size <= MAX_CHUNK_SIZE) {
+        ByteBuffer buffer = free.get(sizeClass(size)).poll();
+        if (buffer != null) {
+          pooledBytes.addAndGet(-buffer.capacity());
+          buffer.clear();
+          return buffer;
+        }
+      } else {
+        // entries larger than the largest chunk get a buffer of their own
+        size = minSize;
+      }
+      allocatedBytes.addAndGet(size);
+      return ByteBuffer.allocateDirect(size);
+    }
+
+    void release(ByteBuffer buffer)
+    {
+      int size = buffer.capacity();
+      if (Integer.bitCount(size) == 1 && size >= MIN_CHUNK_SIZE && size <= MAX_CHUNK_SIZE
+          && pooledBytes.get() + size <= maxPooledBytes) {
+        pooledBytes.addAndGet(size);
+        free.get(sizeClass(size)).add(buffer);
+      } else {
+        allocatedBytes.addAndGet(-size);
+      }
+    }
+
+    /**
+     * Direct memory allocated through the pool which has not been dropped, including pooled buffers.
+     */
+    long getAllocatedBytes()
+    {
+      return allocatedBytes.get();
+    }
+
+    /**
+     * Direct memory held by the pool for reuse.
+     */
+    long getPooledBytes()
+    {
+      return pooledBytes.get();
+    }
+
+    private static int sizeClass(int size)
+    {
+      return Integer.numberOfTrailingZeros(size) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    }
+
+    @Override
+    public String toString()
+    {
+      return "BufferPool{allocatedBytes=" + allocatedBytes + ", pooledBytes=" + pooledBytes + '}';
+    }
+  }
+}
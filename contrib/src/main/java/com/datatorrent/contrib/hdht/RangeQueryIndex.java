@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2016 DataTorrent, Inc.
+ * All rights reserved.
+ */
+package com.datatorrent.contrib.hdht;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.datatorrent.contrib.hdht.HDHTReader.HDSRangeQuery;
+import com.datatorrent.netlet.util.Slice;
+
+/**
+ * RangeQueryIndex
+ * Range queries of each bucket ordered by start key, to find the queries containing a written key without comparing
+ * it to every query. Along with each query the index holds the largest end key of the queries up to it, the search
+ * for overlapping queries stops at the first position where that end key is before the key. The index is immutable
+ * and rebuilt when queries are added or expire.
+ *
+ * @since 3.4.0
+ */
+class RangeQueryIndex
+{
+  private final Comparator<Slice> cmp;
+  private final Map<Long, Entries> buckets = Maps.newHashMap();
+
+  public RangeQueryIndex(Collection<HDSRangeQuery> queries, final Comparator<Slice> cmp)
+  {
+    this.cmp = cmp;
+    Map<Long, List<HDSRangeQuery>> bucketQueries = Maps.newHashMap();
+    for (HDSRangeQuery query : queries) {
+      List<HDSRangeQuery> list = bucketQueries.get(query.bucketKey);
+      if (list == null) {
+        bucketQueries.put(query.bucketKey, list = Lists.newArrayList());
+      }
+      list.add(query);
+    }
+    for (Map.Entry<Long, List<HDSRangeQuery>> entry : bucketQueries.entrySet()) {
+      buckets.put(entry.getKey(), new Entries(entry.getValue()));
+    }
+  }
+
+  /**
+   * @return the queries of the bucket with start key and end key enclosing the key.
+   */
+  public List<HDSRangeQuery> get(long bucketKey, Slice key)
+  {
+    Entries entries = buckets.get(bucketKey);
+    if (entries == null) {
+      return Collections.emptyList();
+    }
+
+    // last query starting at or before the key
+    int low = 0;
+    int high = entries.queries.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (cmp.compare(entries.queries[mid].start, key) <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    List<HDSRangeQuery> result = null;
+    for (int i = high; i >= 0 && cmp.compare(entries.maxEnds[i], key) >= 0; i--) {
+      if (cmp.compare(entries.queries[i].end, key) >= 0) {
+        if (result == null) {
+          result = Lists.newArrayList();
+        }
+        result.add(entries.queries[i]);
+      }
+    }
+    return result != null ? result : Collections.<HDSRangeQuery>emptyList();
+  }
+
+  private class Entries
+  {
+    private final HDSRangeQuery[] queries;
+    private final Slice[] maxEnds;
+
+    private Entries(List<HDSRangeQuery> list)
+    {
+      queries = list.toArray(new HDSRangeQuery[list.size()]);
+      Arrays.sort(queries, new Comparator<HDSRangeQuery>()
+      {
+        @Override
+        public int compare(HDSRangeQuery q1, HDSRangeQuery q2)
+        {
+          return cmp.compare(q1.start, q2.start);
+        }
+      });
+      maxEnds = new Slice[queries.length];
+      for (int i = 0; i < queries.length; i++) {
+        maxEnds[i] = i > 0 && cmp.compare(maxEnds[i - 1], queries[i].end) > 0 ? maxEnds[i - 1] : queries[i].end;
+      }
+    }
+  }
+}
@@ -13,7 +13,12 @@ import java.util.TreeSet;
  * RangeSet maintains the set of Ranges.
  * This needs an element comparator and keeps the ranges in a TreeSet sorted
  * by start of the range. This supports add, contains, merge operations.
- * 
+ *
+ * Ranges are coalesced as they are added, the set never contains overlapping
+ * ranges. The end of the ranges is therefore ordered like the start, membership
+ * and overlap checks only need to look at the floor range of a key and the
+ * ranges following it, which takes logarithmic time in the number of ranges.
+ *
  * @since 3.3.0
  *
  * @param <T>
@@ -31,10 +36,34 @@ class RangeSet<T> implements Iterable<Range<T>>
     this.ranges = new TreeSet<>(rangeCmp);
   }
 
+  /**
+   * Add range to the set, merging it with the ranges it overlaps or touches.
+   */
   public void add(Range<T> r)
   {
-    ranges.add(r);
-    merge();
+    T start = r.start;
+    T end = r.end;
+    Range<T> floor = floor(start);
+    if (floor != null && cmp.compare(floor.end, start) >= 0) {
+      if (cmp.compare(floor.end, end) >= 0) {
+        // already covered
+        return;
+      }
+      start = floor.start;
+      ranges.remove(floor);
+    }
+    Iterator<Range<T>> iter = ranges.tailSet(new Range<T>(start, null), false).iterator();
+    while (iter.hasNext()) {
+      Range<T> next = iter.next();
+      if (cmp.compare(next.start, end) > 0) {
+        break;
+      }
+      if (cmp.compare(next.end, end) > 0) {
+        end = next.end;
+      }
+      iter.remove();
+    }
+    ranges.add(start == r.start && end == r.end ? r : new Range<>(start, end));
   }
 
   public void add(T start, T end)
@@ -45,42 +74,18 @@ class RangeSet<T> implements Iterable<Range<T>>
   }
 
   /**
-   * Reduce the number of purge entries, by merging them if possible.
-   * This is a helper method and is called after new elements are added to the set.
-   * Basic algorithm is keep a prev range, which is initially set to the first
-   * element of the set. During traversal of the set we will check if we can merge
-   * current range with the prev range. If merge is possible then we will extend the prev range
-   * else we will add a prev range to set, and set it to the current range.
-   *
-   * @return
+   * Last range starting at or before elem.
    */
-  private void merge()
+  private Range<T> floor(T elem)
   {
-    Range<T> range = null;
-    TreeSet<Range<T>> mset = new TreeSet<>(rangeCmp);
-    Iterator<Range<T>> iter = ranges.iterator();
-    if (!iter.hasNext()) {
-      return;
-    }
-    range = iter.next();
-    while (iter.hasNext()) {
-      Range<T> r = iter.next();
-      if (cmp.compare(range.end, r.start) >= 0) {
-        range = new Range<>(range.start, cmp.compare(range.end, r.end) > 0 ? range.end : r.end);
-      } else {
-        mset.add(range);
-        range = r;
-      }
-    }
-    // add last range in the list.
-    mset.add(range);
-    ranges = mset;
+    return ranges.floor(new Range<T>(elem, null));
   }
 
   public void merge(RangeSet<T> rset)
   {
-    ranges.addAll(rset.ranges);
-    merge();
+    for (Range<T> r : rset.ranges) {
+      add(r);
+    }
   }
 
   /**
@@ -91,14 +96,15 @@ class RangeSet<T> implements Iterable<Range<T>>
    */
   public boolean contains(T elem)
   {
-    Range<T> floor = ranges.floor(new Range<>(elem, null));
-    return floor.contains(elem, cmp);
+    Range<T> floor = floor(elem);
+    return floor != null && floor.contains(elem, cmp);
   }
 
   public void addAll(Collection<Range<T>> ranges)
   {
-    this.ranges.addAll(ranges);
-    merge();
+    for (Range<T> r : ranges) {
+      add(r);
+    }
   }
 
   @Override
@@ -126,10 +132,16 @@ class RangeSet<T> implements Iterable<Range<T>>
   RangeSet<T> getOverlappingRanges(Range<T> range)
   {
     RangeSet<T> overlapping = new RangeSet<>(cmp);
-    for (Range<T> r : ranges) {
-      if (r.overlapsWith(range, cmp)) {
-        overlapping.add(r);
+    Range<T> floor = floor(range.start);
+    if (floor != null && floor.overlapsWith(range, cmp)) {
+      overlapping.ranges.add(floor);
+    }
+    for (Range<T> r : ranges.tailSet(new Range<T>(range.start, null), false)) {
+      if (cmp.compare(r.start, range.end) > 0) {
+        break;
       }
+      // ranges of the set do not overlap, no need to merge
+      overlapping.ranges.add(r);
     }
     return overlapping;
   }
@@ -142,12 +154,8 @@ class RangeSet<T> implements Iterable<Range<T>>
    */
   public boolean containsFully(Range<T> range)
   {
-    for (Range<T> r : ranges) {
-      if (range.subsetOf(r, cmp)) {
-        return true;
-      }
-    }
-    return false;
+    Range<T> floor = floor(range.start);
+    return floor != null && range.subsetOf(floor, cmp);
   }
 
   /**
@@ -4,9 +4,18 @@
  */
 package com.datatorrent.contrib.hdht;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.common.collect.Lists;
 
 import com.datatorrent.netlet.util.Slice;
 
@@ -30,16 +39,35 @@ import com.datatorrent.netlet.util.Slice;
  * purge operation will remove keys which falls within purge range from memory,
  * and will note the purge range for get operations.
  *
+ * The data is held in a HashMap or, when created with a buffer pool, off heap
+ * in an {@link OffHeapSliceMap}. The cache keeps account of the bytes of the
+ * keys and values it holds.
+ *
  * @since 3.3.0
  */
-class WriteCache extends HashMap<Slice, byte[]>
+class WriteCache extends AbstractMap<Slice, byte[]>
 {
   private RangeSet<Slice> purges;
   private Comparator<Slice> cmp;
+  private final Map<Slice, byte[]> data;
+  private long bytes;
 
   public WriteCache(Comparator<Slice> cmp)
   {
     this.cmp = cmp;
+    this.data = new HashMap<>();
+  }
+
+  /**
+   * Create a cache which holds keys and values in direct memory taken from the pool.
+   *
+   * @param cmp
+   * @param pool
+   */
+  public WriteCache(Comparator<Slice> cmp, OffHeapSliceMap.BufferPool pool)
+  {
+    this.cmp = cmp;
+    this.data = new OffHeapSliceMap(pool);
   }
 
   /**
@@ -52,13 +80,15 @@ class WriteCache extends HashMap<Slice, byte[]>
   public void purge(Slice start, Slice end)
   {
     Range<Slice> range = new Range<>(start, end);
-    Iterator<Slice> iter = keySet().iterator();
-    while (iter.hasNext()) {
-      Slice key = iter.next();
+    List<Slice> purged = Lists.newArrayList();
+    for (Slice key : keySet()) {
       if (range.contains(key, cmp)) {
-        iter.remove();
+        purged.add(key);
       }
     }
+    for (Slice key : purged) {
+      remove(key);
+    }
     if (purges == null) {
       purges = new RangeSet<>(cmp);
     }
@@ -83,15 +113,15 @@ class WriteCache extends HashMap<Slice, byte[]>
      * in other).
      */
     if (other.purges != null) {
-      Iterator<Slice> iter = keySet().iterator();
-      while (iter.hasNext()) {
-        Slice key = iter.next();
-        for (Range r : other.purges) {
-          if (r.contains(key, cmp)) {
-            iter.remove();
-          }
+      List<Slice> purged = Lists.newArrayList();
+      for (Slice key : keySet()) {
+        if (other.purges.contains(key)) {
+          purged.add(key);
         }
       }
+      for (Slice key : purged) {
+        remove(key);
+      }
     }
 
     /**
@@ -101,6 +131,50 @@ class WriteCache extends HashMap<Slice, byte[]>
     mergePurgeList(other.purges);
   }
 
+  /**
+   * Merge the operations of a more recent write cache which affect keys between start and end (inclusive).
+   *
+   * @param other more recent write cache.
+   * @param start first key of the range.
+   * @param end last key of the range.
+   */
+  public void mergeRange(WriteCache other, Slice start, Slice end)
+  {
+    Range<Slice> range = new Range<>(start, end);
+    if (other.purges != null) {
+      for (Range<Slice> r : other.purges.getOverlappingRanges(range)) {
+        purge(r.start, r.end);
+      }
+    }
+    for (Map.Entry<Slice, byte[]> entry : other.entrySet()) {
+      if (range.contains(entry.getKey(), cmp)) {
+        put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Apply the operations of this cache to older data. Keys within purge ranges and deleted keys are removed,
+   * other keys are replaced with the value of this cache.
+   *
+   * @param data older data, ordered with the comparator of this cache.
+   */
+  public void applyTo(TreeMap<Slice, byte[]> data)
+  {
+    if (purges != null) {
+      for (Range<Slice> r : purges) {
+        data.subMap(r.start, true, r.end, true).clear();
+      }
+    }
+    for (Map.Entry<Slice, byte[]> entry : entrySet()) {
+      if (Arrays.equals(entry.getValue(), HDHTWriter.DELETED)) {
+        data.remove(entry.getKey());
+      } else {
+        data.put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
   void mergePurgeList(RangeSet<Slice> rset)
   {
     if (rset == null) {
@@ -126,18 +200,14 @@ class WriteCache extends HashMap<Slice, byte[]>
   @Override
   public byte[] get(Object key)
   {
-    byte[] data = super.get(key);
-    if (data != null) {
-      return data;
+    byte[] value = data.get(key);
+    if (value != null) {
+      return value;
     }
 
     // check the purge range, if key is within purge range, then return DELETED.
-    if (purges != null) {
-      for (Range<Slice> r : purges) {
-        if (r.contains((Slice)key, cmp)) {
-          return HDHTWriter.DELETED;
-        }
-      }
+    if (purges != null && purges.contains((Slice)key)) {
+      return HDHTWriter.DELETED;
     }
     return null;
   }
@@ -150,7 +220,7 @@ class WriteCache extends HashMap<Slice, byte[]>
   @Override
   public boolean isEmpty()
   {
-    boolean empty = super.isEmpty();
+    boolean empty = data.isEmpty();
     // In case where write cache contains only purge operations, return false.
     if (empty) {
       if (purges == null) {
@@ -168,13 +238,110 @@ class WriteCache extends HashMap<Slice, byte[]>
   @Override
   public void clear()
   {
-    super.clear();
+    data.clear();
+    bytes = 0;
     if (purges != null) {
       purges.clear();
     }
     purges = null;
   }
 
+  /**
+   * Return the direct memory of cleared entries to the pool. Must not be called while other threads may still read
+   * the entries which were cleared.
+   */
+  public void release()
+  {
+    if (data instanceof OffHeapSliceMap) {
+      ((OffHeapSliceMap)data).release();
+    }
+  }
+
+  @Override
+  public byte[] put(Slice key, byte[] value)
+  {
+    byte[] previous = data.put(key, value);
+    bytes += key.length + value.length;
+    if (previous != null) {
+      bytes -= key.length + previous.length;
+    }
+    return previous;
+  }
+
+  @Override
+  public byte[] remove(Object key)
+  {
+    byte[] previous = data.remove(key);
+    if (previous != null) {
+      bytes -= ((Slice)key).length + previous.length;
+    }
+    return previous;
+  }
+
+  @Override
+  public boolean containsKey(Object key)
+  {
+    return data.containsKey(key);
+  }
+
+  @Override
+  public int size()
+  {
+    return data.size();
+  }
+
+  @Override
+  public Set<Map.Entry<Slice, byte[]>> entrySet()
+  {
+    return new AbstractSet<Map.Entry<Slice, byte[]>>()
+    {
+      @Override
+      public Iterator<Map.Entry<Slice, byte[]>> iterator()
+      {
+        final Iterator<Map.Entry<Slice, byte[]>> iter = data.entrySet().iterator();
+        return new Iterator<Map.Entry<Slice, byte[]>>()
+        {
+          private Map.Entry<Slice, byte[]> last;
+
+          @Override
+          public boolean hasNext()
+          {
+            return iter.hasNext();
+          }
+
+          @Override
+          public Map.Entry<Slice, byte[]> next()
+          {
+            return last = iter.next();
+          }
+
+          @Override
+          public void remove()
+          {
+            iter.remove();
+            bytes -= last.getKey().length + last.getValue().length;
+          }
+        };
+      }
+
+      @Override
+      public int size()
+      {
+        return data.size();
+      }
+    };
+  }
+
+  /**
+   * Bytes of the keys and values held by the cache.
+   *
+   * @return bytes held.
+   */
+  public long getBytes()
+  {
+    return bytes;
+  }
+
   /**
    * Returns purge operations performed on the cache.
    *
@@ -37,6 +37,7 @@ import org.apache.hadoop.hbase.io.hfile.HFileScanner;
 
 import com.google.common.base.Preconditions;
 
+import com.datatorrent.contrib.hdht.HDHTFileAccess;
 import com.datatorrent.lib.fileaccess.FileAccessFSImpl;
 import com.datatorrent.netlet.util.Slice;
 
@@ -225,7 +226,7 @@ public class HFileImpl extends FileAccessFSImpl
         .create();
     ComparatorAdaptor.COMPARATOR.set(this.comparator);
 
-    return new FileWriter()
+    return new HDHTFileAccess.HDSFileWriter()
     {
 
       private long bytesAppendedCounter = 0;
@@ -237,6 +238,12 @@ public class HFileImpl extends FileAccessFSImpl
         writer.append(key, value);
       }
 
+      @Override
+      public void append(Slice key, Slice value) throws IOException
+      {
+        append(toByteArray(key), toByteArray(value));
+      }
+
       @Override
       public long getBytesWritten() throws IOException
       {
@@ -278,7 +285,8 @@ public class HFileImpl extends FileAccessFSImpl
       scanner.seekTo();
     }
 
-    return new FileReader()
+    // key values returned by the scanner reference the block buffers, blocks are never modified
+    return new HDHTFileAccess.HDSFileReader()
     {
 
       @Override
@@ -314,6 +322,21 @@ public class HFileImpl extends FileAccessFSImpl
         }
       }
 
+      @Override
+      public Slice get(Slice key) throws IOException
+      {
+        if (reader.getEntries() <= 0) {
+          return null;
+        }
+        if (scanner.seekTo(key.buffer, key.offset, key.length) != 0) {
+          scanner.next();
+          return null;
+        }
+        KeyValue kv = scanner.getKeyValue();
+        scanner.next();
+        return new Slice(kv.getValueArray(), kv.getValueOffset(), kv.getValueLength());
+      }
+
       @Override
       public boolean next(Slice key, Slice value) throws IOException
       {
@@ -347,6 +370,17 @@ public class HFileImpl extends FileAccessFSImpl
     };
   }
 
+  /**
+   * HFile writer only accepts whole arrays, copy slices of larger buffers.
+   */
+  private static byte[] toByteArray(Slice slice)
+  {
+    if (slice.offset == 0 && slice.length == slice.buffer.length) {
+      return slice.buffer;
+    }
+    return slice.toByteArray();
+  }
+
   /**
    * Adapter to support comparisons between two {@link com.datatorrent.netlet.util.Slice} objects.
    */
@@ -0,0 +1,511 @@
+/**
+ * Copyright (c) 2016 DataTorrent, Inc.
+ * All rights reserved.
+ */
+package com.datatorrent.contrib.hdht.mmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import com.datatorrent.contrib.hdht.HDHTFileAccess;
+import com.datatorrent.contrib.hdht.HDHTReader;
+import com.datatorrent.lib.fileaccess.FileAccessFSImpl;
+import com.datatorrent.netlet.util.Slice;
+
+/**
+ * Data files on the local file system, read through memory mapping.
+ *
+ * Entries are written in key order into blocks of {@link #getBlockSize()} bytes. Within a block, each key is stored
+ * as the length of the prefix it shares with the previous key followed by the remaining bytes, which shrinks keys that
+ * share leading components such as schema, aggregator and time bucket. The first key of a block is stored in full.
+ * Blocks are optionally compressed, see {@link #getCompression()}. A sparse index with the first key, offset and
+ * length of every block follows the blocks, the file ends with the offset and size of the index.
+ *
+ * The reader maps the whole file and locates keys by binary search over the index followed by a scan of a single
+ * block, so lookups neither go through file system streams nor issue system calls once the pages are resident.
+ * Files are limited to 2GB.
+ *
+ * The base path has to be on the local file system.
+ *
+ * @since 3.4.0
+ */
+public class MappedFileImpl extends FileAccessFSImpl
+{
+  public static final String COMPRESSION_NONE = "none";
+  public static final String COMPRESSION_DEFLATE = "deflate";
+
+  private static final int MAGIC = 0x48444d47;
+  private static final int FOOTER_SIZE = 8 + 4 + 4 + 4;
+  private static final int FLAG_DEFLATE = 1;
+
+  private int blockSize = 4 * 1024;
+  private Comparator<Slice> comparator = new HDHTReader.DefaultKeyComparator();
+  private boolean prefixEncoding = true;
+  private String compression = COMPRESSION_NONE;
+
+  @Override
+  public void init()
+  {
+    super.init();
+    Preconditions.checkState("file".equals(fs.getUri().getScheme()),
+        "Memory mapped files require a local base path, found %s", fs.getUri());
+  }
+
+  @Override
+  public FileWriter getWriter(long bucketKey, String fileName) throws IOException
+  {
+    boolean deflate = COMPRESSION_DEFLATE.equals(compression);
+    Preconditions.checkArgument(deflate || COMPRESSION_NONE.equals(compression), "Unsupported compression %s",
+        compression);
+    return new MappedFileWriter(getOutputStream(bucketKey, fileName), deflate);
+  }
+
+  @Override
+  public FileReader getReader(long bucketKey, String fileName) throws IOException
+  {
+    File file = new File(fs.makeQualified(getFilePath(bucketKey, fileName)).toUri().getPath());
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      long length = raf.length();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("File too large to map " + file + " " + length);
+      }
+      // the mapping remains valid after the channel is closed
+      return new MappedFileReader(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length), file);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void writeVInt(ByteArrayOutputStream out, int value)
+  {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVInt(ByteBuffer in)
+  {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.get();
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  private class MappedFileWriter implements HDHTFileAccess.HDSFileWriter
+  {
+    private final FSDataOutputStream out;
+    private final Deflater deflater;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final List<byte[]> indexKeys = Lists.newArrayList();
+    private final List<Long> indexOffsets = Lists.newArrayList();
+    private final List<Integer> storedLengths = Lists.newArrayList();
+    private final List<Integer> rawLengths = Lists.newArrayList();
+    private byte[] previousKey = new byte[64];
+    private int previousKeyLength;
+
+    MappedFileWriter(FSDataOutputStream out, boolean deflate)
+    {
+      this.out = out;
+      this.deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+    }
+
+    @Override
+    public void append(byte[] key, byte[] value) throws IOException
+    {
+      append(new Slice(key), new Slice(value));
+    }
+
+    @Override
+    public void append(Slice key, Slice value) throws IOException
+    {
+      int shared = 0;
+      if (block.size() == 0) {
+        indexKeys.add(key.toByteArray());
+      } else if (prefixEncoding) {
+        int max = Math.min(previousKeyLength, key.length);
+        while (shared < max && previousKey[shared] == key.buffer[key.offset + shared]) {
+          shared++;
+        }
+      }
+      writeVInt(block, shared);
+      writeVInt(block, key.length - shared);
+      writeVInt(block, value.length);
+      block.write(key.buffer, key.offset + shared, key.length - shared);
+      block.write(value.buffer, value.offset, value.length);
+
+      if (previousKey.length < key.length) {
+        previousKey = new byte[Math.max(key.length, previousKey.length * 2)];
+      }
+      System.arraycopy(key.buffer, key.offset, previousKey, 0, key.length);
+      previousKeyLength = key.length;
+
+      if (block.size() >= blockSize) {
+        writeBlock();
+      }
+    }
+
+    private void writeBlock() throws IOException
+    {
+      if (block.size() == 0) {
+        return;
+      }
+      indexOffsets.add(out.getPos());
+      rawLengths.add(block.size());
+      if (deflater == null) {
+        storedLengths.add(block.size());
+        block.writeTo(out);
+      } else {
+        deflater.reset();
+        deflater.setInput(block.toByteArray());
+        deflater.finish();
+        long start = out.getPos();
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+          int len = deflater.deflate(buffer);
+          out.write(buffer, 0, len);
+        }
+        storedLengths.add((int)(out.getPos() - start));
+      }
+      block.reset();
+    }
+
+    @Override
+    public long getBytesWritten() throws IOException
+    {
+      return out.getPos() + block.size();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      try {
+        writeBlock();
+        long indexOffset = out.getPos();
+        for (int i = 0; i < indexKeys.size(); i++) {
+          byte[] key = indexKeys.get(i);
+          out.writeInt(key.length);
+          out.write(key);
+          out.writeLong(indexOffsets.get(i));
+          out.writeInt(storedLengths.get(i));
+          out.writeInt(rawLengths.get(i));
+        }
+        out.writeLong(indexOffset);
+        out.writeInt(indexKeys.size());
+        out.writeInt(deflater != null ? FLAG_DEFLATE : 0);
+        out.writeInt(MAGIC);
+        out.close();
+      } finally {
+        if (deflater != null) {
+          deflater.end();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reader over the mapped file. Entries are copied out of the blocks into arrays owned by the returned slices.
+   * Compressed blocks are inflated on access, the last block is retained for sequential reads.
+   */
+  private class MappedFileReader implements HDHTFileAccess.HDSFileReader
+  {
+    private MappedByteBuffer buffer;
+    private final Inflater inflater;
+    private final Slice[] indexKeys;
+    private final int[] blockOffsets;
+    private final int[] storedLengths;
+    private final int[] rawLengths;
+    /* Current block, positioned at the next entry */
+    private ByteBuffer block;
+    private int blockIndex = -1;
+    /* Key of the last decoded entry, the base of the prefix of the next key */
+    private final Slice entryKey = new Slice(new byte[64], 0, 0);
+    private int valueOffset;
+    private int valueLength;
+    /* Last decoded entry was not yet returned */
+    private boolean pending;
+
+    MappedFileReader(MappedByteBuffer buffer, File file) throws IOException
+    {
+      this.buffer = buffer;
+      int length = buffer.capacity();
+      if (length < FOOTER_SIZE || buffer.getInt(length - 4) != MAGIC) {
+        throw new IOException("Not a mapped data file " + file);
+      }
+      int indexOffset = (int)buffer.getLong(length - FOOTER_SIZE);
+      int indexSize = buffer.getInt(length - 12);
+      inflater = (buffer.getInt(length - 8) & FLAG_DEFLATE) != 0 ? new Inflater() : null;
+      indexKeys = new Slice[indexSize];
+      blockOffsets = new int[indexSize];
+      storedLengths = new int[indexSize];
+      rawLengths = new int[indexSize];
+      buffer.position(indexOffset);
+      for (int i = 0; i < indexSize; i++) {
+        byte[] key = new byte[buffer.getInt()];
+        buffer.get(key);
+        indexKeys[i] = new Slice(key);
+        blockOffsets[i] = (int)buffer.getLong();
+        storedLengths[i] = buffer.getInt();
+        rawLengths[i] = buffer.getInt();
+      }
+    }
+
+    /**
+     * Position at the first entry of the block.
+     */
+    private void openBlock(int index) throws IOException
+    {
+      blockIndex = index;
+      pending = false;
+      entryKey.length = 0;
+      if (index >= indexKeys.length) {
+        block = null;
+        return;
+      }
+      if (inflater == null) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(blockOffsets[index]);
+        view.limit(blockOffsets[index] + storedLengths[index]);
+        block = view.slice();
+        return;
+      }
+      byte[] compressed = new byte[storedLengths[index]];
+      ByteBuffer view = buffer.duplicate();
+      view.position(blockOffsets[index]);
+      view.get(compressed);
+      byte[] raw = new byte[rawLengths[index]];
+      inflater.reset();
+      inflater.setInput(compressed);
+      try {
+        int len = 0;
+        while (len < raw.length && !inflater.finished()) {
+          int n = inflater.inflate(raw, len, raw.length - len);
+          if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new IOException("Truncated block " + index);
+          }
+          len += n;
+        }
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt block " + index, e);
+      }
+      block = ByteBuffer.wrap(raw);
+    }
+
+    /**
+     * Decode the next entry into the key and value position, moving to the following block at the end of a block.
+     *
+     * @return false at the end of the file.
+     */
+    private boolean decodeNext() throws IOException
+    {
+      while (block == null || !block.hasRemaining()) {
+        if (blockIndex + 1 >= indexKeys.length) {
+          block = null;
+          blockIndex = indexKeys.length;
+          return false;
+        }
+        openBlock(blockIndex + 1);
+      }
+      int shared = readVInt(block);
+      int suffixLength = readVInt(block);
+      valueLength = readVInt(block);
+      int keyLength = shared + suffixLength;
+      if (entryKey.buffer.length < keyLength) {
+        byte[] key = new byte[Math.max(keyLength, entryKey.buffer.length * 2)];
+        System.arraycopy(entryKey.buffer, 0, key, 0, shared);
+        entryKey.buffer = key;
+      }
+      block.get(entryKey.buffer, shared, suffixLength);
+      entryKey.length = keyLength;
+      valueOffset = block.position();
+      block.position(valueOffset + valueLength);
+      return true;
+    }
+
+    @Override
+    public void readFully(TreeMap<Slice, Slice> data) throws IOException
+    {
+      reset();
+      Slice key = new Slice(null, 0, 0);
+      Slice value = new Slice(null, 0, 0);
+      while (next(key, value)) {
+        data.put(new Slice(key.buffer, key.offset, key.length), new Slice(value.buffer, value.offset, value.length));
+      }
+    }
+
+    @Override
+    public void reset() throws IOException
+    {
+      openBlock(0);
+    }
+
+    @Override
+    public boolean seek(Slice key) throws IOException
+    {
+      // last block starting with a key not greater than the key
+      int low = 0;
+      int high = indexKeys.length - 1;
+      int index = 0;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (comparator.compare(indexKeys[mid], key) <= 0) {
+          index = mid;
+          low = mid + 1;
+        } else {
+          high = mid - 1;
+        }
+      }
+      // continue from the current position when it precedes the key within the block
+      if (index != blockIndex || comparator.compare(entryKey, key) >= 0) {
+        openBlock(index);
+      }
+      while (decodeNext()) {
+        int cmp = comparator.compare(entryKey, key);
+        if (cmp >= 0) {
+          pending = true;
+          return cmp == 0;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public Slice get(Slice key) throws IOException
+    {
+      if (!seek(key)) {
+        return null;
+      }
+      pending = false;
+      byte[] value = new byte[valueLength];
+      ByteBuffer view = block.duplicate();
+      view.position(valueOffset);
+      view.get(value);
+      return new Slice(value);
+    }
+
+    @Override
+    public boolean next(Slice key, Slice value) throws IOException
+    {
+      if (!pending && !decodeNext()) {
+        return false;
+      }
+      pending = false;
+      byte[] entry = new byte[entryKey.length + valueLength];
+      System.arraycopy(entryKey.buffer, 0, entry, 0, entryKey.length);
+      ByteBuffer view = block.duplicate();
+      view.position(valueOffset);
+      view.get(entry, entryKey.length, valueLength);
+
+      key.buffer = entry;
+      key.offset = 0;
+      key.length = entryKey.length;
+      value.buffer = entry;
+      value.offset = entryKey.length;
+      value.length = valueLength;
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      // the mapping is released when the buffer is collected
+      buffer = null;
+      block = null;
+      if (inflater != null) {
+        inflater.end();
+      }
+    }
+  }
+
+  /**
+   * Size of the blocks referenced by the sparse index. Smaller blocks reduce the number of entries scanned per lookup
+   * at the cost of a larger index held by each reader and less effective compression.
+   *
+   * @return block size in bytes.
+   */
+  @Min(1)
+  public int getBlockSize()
+  {
+    return blockSize;
+  }
+
+  public void setBlockSize(int blockSize)
+  {
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Comparator for the keys, has to match the key comparator of the store.
+   *
+   * @return key comparator.
+   */
+  @NotNull
+  public Comparator<Slice> getComparator()
+  {
+    return comparator;
+  }
+
+  public void setComparator(Comparator<Slice> comparator)
+  {
+    this.comparator = comparator;
+  }
+
+  /**
+   * Store keys as the length of the prefix shared with the previous key in the block and the remaining bytes.
+   * Applies to files written, readers handle files written with either setting.
+   *
+   * @return whether keys are prefix encoded.
+   */
+  public boolean isPrefixEncoding()
+  {
+    return prefixEncoding;
+  }
+
+  public void setPrefixEncoding(boolean prefixEncoding)
+  {
+    this.prefixEncoding = prefixEncoding;
+  }
+
+  /**
+   * Compression of the blocks, {@link #COMPRESSION_NONE} or {@link #COMPRESSION_DEFLATE}. Deflate uses the codec of
+   * the JDK and does not depend on native Hadoop libraries. Compressed blocks are inflated on each access, lookups
+   * remain limited to a single block. Applies to files written, the compression is recorded in the file.
+   *
+   * @return compression of the blocks.
+   */
+  @NotNull
+  public String getCompression()
+  {
+    return compression;
+  }
+
+  public void setCompression(String compression)
+  {
+    this.compression = compression;
+  }
+}
@@ -29,10 +29,11 @@ import org.apache.hadoop.io.file.tfile.TFile;
 import org.apache.hadoop.io.file.tfile.TFile.Reader;
 import org.apache.hadoop.io.file.tfile.TFile.Writer;
 
+import com.datatorrent.contrib.hdht.HDHTFileAccess;
 import com.datatorrent.lib.fileaccess.DTFileReader;
 import com.datatorrent.lib.fileaccess.FileAccessFSImpl;
 import com.datatorrent.lib.fileaccess.TFileReader;
-import com.datatorrent.lib.fileaccess.TFileWriter;
+import com.datatorrent.netlet.util.Slice;
 
 /**
  * A TFile wrapper with FileAccess API
@@ -73,9 +74,37 @@ public abstract class TFileImpl extends FileAccessFSImpl
   @Override
   public FileWriter getWriter(long bucketKey, String fileName) throws IOException
   {
-    FSDataOutputStream fsdos = getOutputStream(bucketKey, fileName);
+    final FSDataOutputStream fsdos = getOutputStream(bucketKey, fileName);
     setupConfig(fs.getConf());
-    return new TFileWriter(fsdos, minBlockSize, compressName, comparator, fs.getConf());
+    final Writer writer = new Writer(fsdos, minBlockSize, compressName, comparator, fs.getConf());
+
+    return new HDHTFileAccess.HDSFileWriter()
+    {
+      @Override
+      public void append(byte[] key, byte[] value) throws IOException
+      {
+        writer.append(key, value);
+      }
+
+      @Override
+      public void append(Slice key, Slice value) throws IOException
+      {
+        writer.append(key.buffer, key.offset, key.length, value.buffer, value.offset, value.length);
+      }
+
+      @Override
+      public long getBytesWritten() throws IOException
+      {
+        return fsdos.getPos();
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+        writer.close();
+        fsdos.close();
+      }
+    };
   }
 
   public int getMinBlockSize()
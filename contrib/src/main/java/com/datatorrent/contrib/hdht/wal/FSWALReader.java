@@ -4,9 +4,12 @@
  */
 package com.datatorrent.contrib.hdht.wal;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import com.google.common.base.Preconditions;
 
@@ -15,8 +18,9 @@ import com.datatorrent.netlet.util.Slice;
 
 /**
  * Read entries from Write Ahead Log during recovery. This implementation is for
- * Log stored in HDFS compatible file system.
- * 
+ * Log stored in HDFS compatible file system. Reads plain entries as well as
+ * compressed blocks written by {@link FSWALWriter}.
+ *
  * @since 3.3.0
  *
  * @param <T>
@@ -28,6 +32,13 @@ public class FSWALReader<T> implements WALReader<T>
   String name;
   LogSerializer<T> serializer;
   private boolean eof = false;
+  /* Entries of the current compressed block */
+  private DataInputStream block;
+  private Inflater inflater;
+  /* Offset of the next unread byte of the file */
+  private long offset;
+  /* Offset of the current entry or of the block containing it */
+  private long entryOffset;
 
   public FSWALReader(FileAccess bfs, LogSerializer<T> serializer, long bucketKey, String name) throws IOException
   {
@@ -42,12 +53,15 @@ public class FSWALReader<T> implements WALReader<T>
     if (in != null) {
       in.close();
     }
+    if (inflater != null) {
+      inflater.end();
+    }
   }
 
   @Override
   public void seek(long offset) throws IOException
   {
-    in.skipBytes((int)offset);
+    this.offset += in.skipBytes((int)offset);
   }
 
   @Override
@@ -58,14 +72,27 @@ public class FSWALReader<T> implements WALReader<T>
     }
 
     try {
-      int len = in.readInt();
-      Preconditions.checkState(len > 0);
-
-      byte[] data = new byte[len];
-      in.readFully(data);
-
-      Slice slice = new Slice(data);
-      entry = serializer.toObject(slice);
+      DataInputStream src = in;
+      if (block != null && block.available() > 0) {
+        src = block;
+      } else {
+        block = null;
+        long position = offset;
+        int len = in.readInt();
+        offset += 4;
+        if (len < 0) {
+          block = readBlock(-len);
+          offset += 4 - len;
+          src = block;
+        } else {
+          entry = readEntry(in, len);
+          offset += len;
+          entryOffset = position;
+          return true;
+        }
+        entryOffset = position;
+      }
+      entry = readEntry(src, src.readInt());
       return true;
     } catch (EOFException ex) {
       eof = true;
@@ -74,10 +101,59 @@ public class FSWALReader<T> implements WALReader<T>
     }
   }
 
+  private T readEntry(DataInputStream src, int len) throws IOException
+  {
+    Preconditions.checkState(len > 0);
+
+    byte[] data = new byte[len];
+    src.readFully(data);
+
+    Slice slice = new Slice(data);
+    return serializer.toObject(slice);
+  }
+
+  private DataInputStream readBlock(int compressedLength) throws IOException
+  {
+    byte[] data = new byte[in.readInt()];
+    byte[] compressed = new byte[compressedLength];
+    in.readFully(compressed);
+
+    if (inflater == null) {
+      inflater = new Inflater();
+    }
+    inflater.reset();
+    inflater.setInput(compressed);
+    try {
+      int len = 0;
+      while (len < data.length && !inflater.finished()) {
+        int n = inflater.inflate(data, len, data.length - len);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        len += n;
+      }
+      Preconditions.checkState(len == data.length, "Incomplete block in %s", name);
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt block in " + name, e);
+    }
+    return new DataInputStream(new ByteArrayInputStream(data));
+  }
+
   @Override
   public T get()
   {
     return entry;
   }
 
+  /**
+   * Offset of the current entry in the file. Entries of a compressed block return the offset of the block, which
+   * orders them correctly against positions taken after a flush of the writer, as those are block boundaries.
+   *
+   * @return offset of the current entry.
+   */
+  public long getPosition()
+  {
+    return entryOffset;
+  }
+
 }
@@ -4,23 +4,42 @@
  */
 package com.datatorrent.contrib.hdht.wal;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import org.apache.hadoop.fs.FSDataOutputStream;
 
+import com.google.common.base.Throwables;
+
 import com.datatorrent.lib.fileaccess.FileAccess;
 import com.datatorrent.netlet.util.Slice;
 
 /**
  * Write Log entries to HDFS compatible file systems.
  *
+ * Entries are written to the file as length followed by the serialized entry. With compression enabled, entries are
+ * collected into blocks of {@link #getBlockSize()} bytes which are written deflate compressed, prefixed by the negated
+ * compressed length and the uncompressed length. A block always ends at {@link #flush()}, so log positions taken after
+ * a flush are block boundaries and remain valid offsets for {@link FSWALReader#seek(long)}.
+ *
+ * With a write executor, blocks are written and flushed on the executor thread while the caller continues to append.
+ * {@link #flush()} returns once all data appended before has been written and flushed.
+ *
  * @since 3.3.0
  *
  * @param <T>
  */
 public class FSWALWriter<T> implements WALWriter<T>
 {
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
   transient DataOutputStream out;
   long committedOffset;
   long unflushed;
@@ -28,6 +47,17 @@ public class FSWALWriter<T> implements WALWriter<T>
   String name;
   LogSerializer<T> serializer;
 
+  /* Bytes written to the file or handed to the write executor */
+  private long size;
+  private boolean compress;
+  private int blockSize = DEFAULT_BLOCK_SIZE;
+  private transient ExecutorService writeExecutor;
+  private final transient ByteArrayOutputStream blockBuffer = new ByteArrayOutputStream();
+  private final transient DataOutputStream blockOut = new DataOutputStream(blockBuffer);
+  private transient Deflater deflater;
+  private transient Future<?> lastWrite;
+  private transient volatile IOException writeError;
+
   public FSWALWriter(FileAccess bfs, LogSerializer<T> serializer, long bucketKey, String name) throws IOException
   {
     this.bucketKey = bucketKey;
@@ -41,9 +71,31 @@ public class FSWALWriter<T> implements WALWriter<T>
   @Override
   public void close() throws IOException
   {
-    if (out != null) {
-      out.flush();
-      out.close();
+    try {
+      if (out != null) {
+        writeBlock();
+        if (writeExecutor != null) {
+          submit(new Callable<Void>()
+          {
+            @Override
+            public Void call() throws IOException
+            {
+              out.flush();
+              out.close();
+              return null;
+            }
+          });
+          waitForWrites();
+        } else {
+          out.flush();
+          out.close();
+        }
+      }
+    } finally {
+      if (deflater != null) {
+        deflater.end();
+        deflater = null;
+      }
     }
   }
 
@@ -51,33 +103,212 @@ public class FSWALWriter<T> implements WALWriter<T>
   public int append(T entry) throws IOException
   {
     Slice slice = serializer.fromObject(entry);
-    out.writeInt(slice.length);
-    out.write(slice.buffer, slice.offset, slice.length);
+    if (compress || writeExecutor != null) {
+      blockOut.writeInt(slice.length);
+      blockOut.write(slice.buffer, slice.offset, slice.length);
+      if (blockBuffer.size() >= blockSize) {
+        writeBlock();
+      }
+    } else {
+      out.writeInt(slice.length);
+      out.write(slice.buffer, slice.offset, slice.length);
+      size += slice.length + 4;
+    }
     return slice.length + 4;
   }
 
   @Override
   public void append(byte[] byteBuffer, int length) throws IOException
   {
-    out.write(byteBuffer, 0, length);
+    // raw log data, possibly compressed blocks copied from another log
+    writeBlock();
+    write(writeExecutor != null ? Arrays.copyOf(byteBuffer, length) : byteBuffer, length);
+  }
+
+  /**
+   * Write the collected entries as one block.
+   */
+  private void writeBlock() throws IOException
+  {
+    if (blockBuffer.size() == 0) {
+      return;
+    }
+    byte[] data = blockBuffer.toByteArray();
+    blockBuffer.reset();
+    if (compress) {
+      data = compress(data);
+    }
+    write(data, data.length);
+  }
+
+  private byte[] compress(byte[] data) throws IOException
+  {
+    if (deflater == null) {
+      deflater = new Deflater(Deflater.BEST_SPEED);
+    }
+    deflater.reset();
+    deflater.setInput(data);
+    deflater.finish();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 8);
+    byte[] buffer = new byte[4096];
+    while (!deflater.finished()) {
+      int len = deflater.deflate(buffer);
+      compressed.write(buffer, 0, len);
+    }
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(compressed.size() + 8);
+    DataOutputStream dos = new DataOutputStream(bos);
+    dos.writeInt(-compressed.size());
+    dos.writeInt(data.length);
+    compressed.writeTo(dos);
+    dos.flush();
+    return bos.toByteArray();
+  }
+
+  private void write(final byte[] data, final int length) throws IOException
+  {
+    size += length;
+    if (writeExecutor == null) {
+      out.write(data, 0, length);
+      return;
+    }
+    submit(new Callable<Void>()
+    {
+      @Override
+      public Void call() throws IOException
+      {
+        out.write(data, 0, length);
+        return null;
+      }
+    });
+  }
+
+  private void submit(final Callable<Void> task) throws IOException
+  {
+    checkWriteError();
+    lastWrite = writeExecutor.submit(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        if (writeError != null) {
+          // later writes would leave a gap in the log
+          return;
+        }
+        try {
+          task.call();
+        } catch (IOException e) {
+          writeError = e;
+        } catch (Exception e) {
+          writeError = new IOException(e);
+        }
+      }
+    });
+  }
+
+  private void waitForWrites() throws IOException
+  {
+    if (lastWrite != null) {
+      try {
+        // the executor is single threaded, the last write completes after all previous writes
+        lastWrite.get();
+      } catch (InterruptedException | ExecutionException e) {
+        throw Throwables.propagate(e);
+      }
+      lastWrite = null;
+    }
+    checkWriteError();
+  }
+
+  private void checkWriteError() throws IOException
+  {
+    if (writeError != null) {
+      throw new IOException("Failed to write " + this, writeError);
+    }
   }
 
   @Override
   public void flush() throws IOException
+  {
+    flush(Durability.HSYNC);
+  }
+
+  @Override
+  public void flush(final Durability durability) throws IOException
+  {
+    writeBlock();
+    if (writeExecutor == null) {
+      sync(durability);
+      return;
+    }
+    submit(new Callable<Void>()
+    {
+      @Override
+      public Void call() throws IOException
+      {
+        sync(durability);
+        return null;
+      }
+    });
+    waitForWrites();
+  }
+
+  private void sync(Durability durability) throws IOException
   {
     out.flush();
     if (out instanceof FSDataOutputStream) {
-      ((FSDataOutputStream)out).hflush();
-      ((FSDataOutputStream)out).hsync();
+      if (durability != Durability.FLUSH) {
+        ((FSDataOutputStream)out).hflush();
+      }
+      if (durability == Durability.HSYNC) {
+        ((FSDataOutputStream)out).hsync();
+      }
     }
     committedOffset = out.size();
     unflushed = 0;
   }
 
+  /**
+   * Size of the log, entries collected for the current block are not included.
+   */
   @Override
   public long getSize()
   {
-    return out.size();
+    return size;
+  }
+
+  public boolean isCompression()
+  {
+    return compress;
+  }
+
+  /**
+   * Enable block compression, has to be set before the first entry is appended.
+   */
+  public void setCompression(boolean compress)
+  {
+    this.compress = compress;
+  }
+
+  public int getBlockSize()
+  {
+    return blockSize;
+  }
+
+  /**
+   * Number of uncompressed bytes collected before a block is written, a block can be smaller when the log is flushed.
+   */
+  public void setBlockSize(int blockSize)
+  {
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Single threaded executor used to write to the file, has to be set before the first entry is appended.
+   */
+  public void setWriteExecutor(ExecutorService writeExecutor)
+  {
+    this.writeExecutor = writeExecutor;
   }
 
   @Override
@@ -13,6 +13,25 @@ import java.io.IOException;
  */
 public interface WALWriter<T> extends Cloneable
 {
+  /**
+   * Guarantee provided by {@link #flush(Durability)} for the data written to the log.
+   */
+  enum Durability
+  {
+    /**
+     * Data handed to the file system, it can be lost when the writer process fails.
+     */
+    FLUSH,
+    /**
+     * Data visible to new readers and held in memory by all replicas, it survives failure of the writer process.
+     */
+    HFLUSH,
+    /**
+     * Data persisted to disk by all replicas.
+     */
+    HSYNC
+  }
+
   /**
    * flush pending data to disk and close file.
    *
@@ -40,6 +59,14 @@ public interface WALWriter<T> extends Cloneable
    */
   void flush() throws IOException;
 
+  /**
+   * Flush data with the given durability. {@link #flush()} is equivalent to {@link Durability#HSYNC}.
+   *
+   * @param durability The guarantee required for the data written so far.
+   * @throws IOException
+   */
+  void flush(Durability durability) throws IOException;
+
   /**
    * Returns size of the WAL, last part of the log may not be persisted on disk.
    * In case of file backed WAL this will be the size of file, in case of kafka
@@ -25,9 +25,13 @@ import org.apache.commons.io.FileUtils;
 import com.esotericsoftware.kryo.Kryo;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 
 import com.datatorrent.api.Attribute.AttributeMap.DefaultAttributeMap;
 import com.datatorrent.contrib.hdht.tfile.TFileImpl;
+import com.datatorrent.lib.appdata.gpo.GPOByteArrayList;
 import com.datatorrent.lib.appdata.gpo.GPOMutable;
 import com.datatorrent.lib.appdata.gpo.GPOUtils;
 import com.datatorrent.lib.appdata.schemas.DimensionalConfigurationSchema;
@@ -248,6 +252,68 @@ public class AppDataSingleSchemaDimensionStoreHDHTTest
     store.teardown();
   }
 
+  @Test
+  public void eventKeyEncodingTest() throws Exception
+  {
+    String eventSchemaString = SchemaUtils.jarResourceFileToString("dimensionsTestSchema.json");
+
+    TFileImpl hdsFile = new TFileImpl.DefaultTFileImpl();
+    hdsFile.setBasePath(testMeta.getDir());
+
+    final AppDataSingleSchemaDimensionStoreHDHT store = new AppDataSingleSchemaDimensionStoreHDHT();
+
+    store.setConfigurationSchemaJSON(eventSchemaString);
+    store.setFileStore(hdsFile);
+
+    store.setup(new OperatorContextTestHelper.TestIdOperatorContext(1, new DefaultAttributeMap()));
+
+    DimensionalConfigurationSchema eventSchema = store.configurationSchema;
+    final Aggregate ae = createEvent(eventSchema, "google", "safeway", 60000L, TimeBucket.MINUTE, 10L, 1.0);
+    Aggregate ae1 = createEvent(eventSchema, "twitter", "starbucks", 120000L, TimeBucket.MINUTE, 10L, 1.0);
+
+    byte[] keyBytes = store.getEventKeyBytesGAE(ae.getEventKey());
+
+    //The slice is reused by the next key encoded on the same thread.
+    Slice keySlice = store.getEventKeySlice(ae.getEventKey());
+    Assert.assertEquals(new Slice(keyBytes), keySlice);
+    Assert.assertFalse(new Slice(keyBytes).equals(store.getEventKeySlice(ae1.getEventKey())));
+    Assert.assertSame(keySlice, store.getEventKeySlice(ae.getEventKey()));
+
+    //Other threads encode into their own buffers.
+    final byte[][] otherThreadKeyBytes = new byte[1][];
+    Thread thread = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        otherThreadKeyBytes[0] = store.getEventKeyBytesGAE(ae.getEventKey());
+      }
+    };
+    thread.start();
+    thread.join();
+    Assert.assertArrayEquals(keyBytes, otherThreadKeyBytes[0]);
+    Assert.assertEquals(new Slice(keyBytes), keySlice);
+
+    //The key fields are written in the layout of GPOUtils.
+    EventKey eventKey = ae.getEventKey();
+    byte[] expected = Bytes.concat(Longs.toByteArray(60000L), Ints.toByteArray(eventKey.getSchemaID()),
+        Ints.toByteArray(eventKey.getDimensionDescriptorID()), Ints.toByteArray(eventKey.getAggregatorID()),
+        GPOUtils.serialize(eventKey.getKey(), new GPOByteArrayList()));
+    Assert.assertArrayEquals(expected, keyBytes);
+
+    //Time series keys hold the key fields with a zero time, followed by the time.
+    store.setTimeSeriesKeys(true);
+    GPOMutable seriesKey = new GPOMutable(eventKey.getKey());
+    seriesKey.setField(DimensionsDescriptor.DIMENSION_TIME, 0L);
+    expected = Bytes.concat(Ints.toByteArray(eventKey.getSchemaID()),
+        Ints.toByteArray(eventKey.getDimensionDescriptorID()), Ints.toByteArray(eventKey.getAggregatorID()),
+        GPOUtils.serialize(seriesKey, new GPOByteArrayList()), Longs.toByteArray(60000L));
+    Assert.assertArrayEquals(expected, store.getEventKeyBytesGAE(eventKey));
+    Assert.assertEquals(60000L, eventKey.getKey().getFieldLong(DimensionsDescriptor.DIMENSION_TIME));
+
+    store.teardown();
+  }
+
   @Test
   public void putReadTest() throws Exception
   {
@@ -397,6 +463,130 @@ public class AppDataSingleSchemaDimensionStoreHDHTTest
     store.teardown();
   }
 
+  @Test
+  public void dirtyAggregatesTest()
+  {
+    final long impressions = 10L;
+    final double cost = 1.0;
+
+    String eventSchemaString = SchemaUtils.jarResourceFileToString("dimensionsTestSchema.json");
+
+    String basePath = testMeta.getDir();
+    TFileImpl hdsFile = new TFileImpl.DefaultTFileImpl();
+    hdsFile.setBasePath(basePath);
+
+    AppDataSingleSchemaDimensionStoreHDHT store = new AppDataSingleSchemaDimensionStoreHDHT();
+
+    store.setCacheWindowDuration(10);
+    store.setConfigurationSchemaJSON(eventSchemaString);
+    store.setFileStore(hdsFile);
+    store.setFlushIntervalCount(1);
+    store.setFlushSize(0);
+
+    store.setup(new OperatorContextTestHelper.TestIdOperatorContext(1, new DefaultAttributeMap()));
+
+    DimensionalConfigurationSchema eventSchema = store.configurationSchema;
+
+    Aggregate google = createEvent(eventSchema, "google", "safeway", 60000L, TimeBucket.MINUTE, impressions, cost);
+    Aggregate twitter = createEvent(eventSchema, "twitter", "safeway", 60000L, TimeBucket.MINUTE, impressions, cost);
+
+    long windowId = 1L;
+    store.beginWindow(windowId);
+    store.input.put(google);
+    store.input.put(twitter);
+    store.endWindow();
+    Assert.assertEquals(2, store.dirtyAggregates);
+    Assert.assertEquals(2, store.cachedAggregates);
+    store.checkpointed(windowId);
+    store.committed(windowId);
+    windowId++;
+
+    //Only the updated aggregate is written out, the other one stays in the cache untouched.
+    store.beginWindow(windowId);
+    store.input.put(createEvent(eventSchema, "google", "safeway", 60000L, TimeBucket.MINUTE, impressions, cost));
+    store.endWindow();
+    Assert.assertEquals(1, store.dirtyAggregates);
+    Assert.assertEquals(2, store.cachedAggregates);
+    store.checkpointed(windowId);
+    store.committed(windowId);
+    windowId++;
+
+    store.beginWindow(windowId);
+    store.endWindow();
+    Assert.assertEquals(0, store.dirtyAggregates);
+    Assert.assertEquals(2, store.cachedAggregates);
+    store.checkpointed(windowId);
+    store.committed(windowId);
+    windowId++;
+
+    store.beginWindow(windowId);
+    Aggregate expectedGoogle = createEvent(eventSchema, "google", "safeway", 60000L, TimeBucket.MINUTE,
+        2 * impressions, 2.0 * cost);
+    Assert.assertEquals(expectedGoogle, store.load(google.getEventKey()));
+    Assert.assertEquals(twitter, store.load(twitter.getEventKey()));
+    store.endWindow();
+
+    store.teardown();
+  }
+
+  @Test
+  public void asyncLoadTest()
+  {
+    final long impressions = 10L;
+    final double cost = 1.0;
+
+    String eventSchemaString = SchemaUtils.jarResourceFileToString("dimensionsTestSchema.json");
+
+    String basePath = testMeta.getDir();
+    TFileImpl hdsFile = new TFileImpl.DefaultTFileImpl();
+    hdsFile.setBasePath(basePath);
+
+    AppDataSingleSchemaDimensionStoreHDHT store = new AppDataSingleSchemaDimensionStoreHDHT();
+
+    store.setCacheWindowDuration(1);
+    store.setAsyncLoadBatchSize(2);
+    store.setConfigurationSchemaJSON(eventSchemaString);
+    store.setFileStore(hdsFile);
+    store.setFlushIntervalCount(1);
+    store.setFlushSize(0);
+
+    store.setup(new OperatorContextTestHelper.TestIdOperatorContext(1, new DefaultAttributeMap()));
+
+    DimensionalConfigurationSchema eventSchema = store.configurationSchema;
+
+    Aggregate google = createEvent(eventSchema, "google", "safeway", 60000L, TimeBucket.MINUTE, impressions, cost);
+    Aggregate twitter = createEvent(eventSchema, "twitter", "safeway", 60000L, TimeBucket.MINUTE, impressions, cost);
+
+    long windowId = 1L;
+    store.beginWindow(windowId);
+    store.input.put(google);
+    store.endWindow();
+    Assert.assertEquals(0, store.pendingLoads.size());
+    store.checkpointed(windowId);
+    store.committed(windowId);
+    windowId++;
+
+    //The cache is cleared, misses are merged with the stored aggregates at the latest by the end of the window.
+    store.beginWindow(windowId);
+    store.input.put(createEvent(eventSchema, "google", "safeway", 60000L, TimeBucket.MINUTE, impressions, cost));
+    store.input.put(createEvent(eventSchema, "google", "safeway", 60000L, TimeBucket.MINUTE, impressions, cost));
+    store.input.put(twitter);
+    store.endWindow();
+    Assert.assertEquals(0, store.pendingLoads.size());
+    store.checkpointed(windowId);
+    store.committed(windowId);
+    windowId++;
+
+    store.beginWindow(windowId);
+    Aggregate expectedGoogle = createEvent(eventSchema, "google", "safeway", 60000L, TimeBucket.MINUTE,
+        3 * impressions, 3.0 * cost);
+    Assert.assertEquals(expectedGoogle, store.load(google.getEventKey()));
+    Assert.assertEquals(twitter, store.load(twitter.getEventKey()));
+    store.endWindow();
+
+    store.teardown();
+  }
+
   @Test
   public void aggregationTest()
   {
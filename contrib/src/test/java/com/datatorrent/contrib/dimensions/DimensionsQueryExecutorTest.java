@@ -20,6 +20,7 @@ import org.apache.apex.malhar.lib.dimensions.DimensionsEvent.Aggregate;
 import org.apache.apex.malhar.lib.dimensions.DimensionsEvent.EventKey;
 import org.apache.commons.lang3.mutable.MutableLong;
 
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -28,6 +29,7 @@ import com.datatorrent.api.Attribute.AttributeMap.DefaultAttributeMap;
 import com.datatorrent.contrib.dimensions.AppDataSingleSchemaDimensionStoreHDHTTest.InterruptClear;
 import com.datatorrent.contrib.dimensions.AppDataSingleSchemaDimensionStoreHDHTTest.StoreFSTestWatcher;
 import com.datatorrent.contrib.hdht.HDHTReader.HDSQuery;
+import com.datatorrent.contrib.hdht.HDHTReader.HDSRangeQuery;
 import com.datatorrent.contrib.hdht.tfile.TFileImpl;
 import com.datatorrent.lib.appdata.gpo.GPOMutable;
 import com.datatorrent.lib.appdata.schemas.CustomTimeBucket;
@@ -252,6 +254,294 @@ public class DimensionsQueryExecutorTest
     store.teardown();
   }
 
+  @Test
+  public void timeSeriesRangeQueryTest() throws Exception
+  {
+    final String publisher = "google";
+    final String advertiser = "safeway";
+    final long impressions = 10L;
+    final double cost = 1.0;
+    final int numBuckets = 5;
+    final long endTime = TimeUnit.MINUTES.toMillis(numBuckets - 1);
+
+    String eventSchemaString = SchemaUtils.jarResourceFileToString("dimensionsTestSchema.json");
+
+    String basePath = testMeta.getDir();
+    TFileImpl hdsFile = new TFileImpl.DefaultTFileImpl();
+    hdsFile.setBasePath(basePath);
+
+    AppDataSingleSchemaDimensionStoreHDHT store = new AppDataSingleSchemaDimensionStoreHDHT();
+
+    store.setCacheWindowDuration(1);
+    store.setTimeSeriesKeys(true);
+    store.setConfigurationSchemaJSON(eventSchemaString);
+    store.setFileStore(hdsFile);
+    store.setFlushIntervalCount(1);
+    store.setFlushSize(0);
+
+    store.setup(new OperatorContextTestHelper.TestIdOperatorContext(1, new DefaultAttributeMap()));
+
+    DimensionalConfigurationSchema eventSchema = store.configurationSchema;
+    DimensionsQueryExecutor dqe = new DimensionsQueryExecutor(store, store.schemaRegistry);
+
+    EventKey seriesEventKey = null;
+
+    store.beginWindow(0L);
+    for (long time = 0L; time <= endTime; time += TimeUnit.MINUTES.toMillis(1L)) {
+      Aggregate aggregate = AppDataSingleSchemaDimensionStoreHDHTTest.createEvent(eventSchema,
+          publisher,
+          advertiser,
+          time,
+          TimeBucket.MINUTE,
+          impressions,
+          cost);
+      store.input.put(aggregate);
+
+      if (seriesEventKey == null) {
+        seriesEventKey = new EventKey(aggregate.getEventKey());
+      }
+    }
+    //a different series in the middle of the time range
+    store.input.put(AppDataSingleSchemaDimensionStoreHDHTTest.createEvent(eventSchema,
+        "twitter",
+        advertiser,
+        TimeUnit.MINUTES.toMillis(2L),
+        TimeBucket.MINUTE,
+        impressions,
+        cost));
+    store.endWindow();
+    store.checkpointed(0L);
+    store.committed(0L);
+
+    store.beginWindow(1L);
+    HDSRangeQuery rangeQuery = new HDSRangeQuery();
+    rangeQuery.bucketKey = AppDataSingleSchemaDimensionStoreHDHT.DEFAULT_BUCKET_ID;
+    rangeQuery.start = store.getTimeSeriesKey(seriesEventKey, 0L);
+    rangeQuery.end = store.getTimeSeriesKey(seriesEventKey, endTime);
+    rangeQuery.keepAliveCount = 10;
+    store.addRangeQuery(rangeQuery);
+    store.endWindow();
+
+    long timeout = System.currentTimeMillis() + 10000L;
+    while (!rangeQuery.processed && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue("range query processed", rangeQuery.processed);
+    Assert.assertEquals("one scan covers the series", numBuckets, rangeQuery.result.size());
+
+    Map<String, EventKey> aggregatorToEventKey = Maps.newHashMap();
+    aggregatorToEventKey.put("SUM", seriesEventKey);
+    Map<String, HDSRangeQuery> aggregatorToRangeQuery = Maps.newHashMap();
+    aggregatorToRangeQuery.put("SUM", rangeQuery);
+
+    QueryMeta queryMeta = new QueryMeta();
+    List<Map<String, EventKey>> eventKeys = Lists.newArrayList();
+    eventKeys.add(aggregatorToEventKey);
+    queryMeta.setEventKeys(eventKeys);
+    List<Map<String, HDSRangeQuery>> rangeQueries = Lists.newArrayList();
+    rangeQueries.add(aggregatorToRangeQuery);
+    queryMeta.setRangeQueries(rangeQueries);
+    queryMeta.setStartTime(0L);
+    queryMeta.setEndTime(endTime);
+    queryMeta.setTimeBucketMillis(TimeUnit.MINUTES.toMillis(1L));
+
+    GPOMutable keys = AppDataSingleSchemaDimensionStoreHDHTTest.createQueryKey(eventSchema, publisher, advertiser);
+    Map<String, Set<String>> fieldToAggregators = Maps.newHashMap();
+    fieldToAggregators.put("impressions", Sets.newHashSet("SUM"));
+    fieldToAggregators.put("cost", Sets.newHashSet("SUM"));
+
+    DataQueryDimensional query = new DataQueryDimensional("1",
+        DataQueryDimensional.TYPE,
+        0L,
+        endTime,
+        TimeBucket.MINUTE,
+        keys,
+        new FieldsAggregatable(fieldToAggregators),
+        true);
+
+    store.beginWindow(2L);
+    DataResultDimensional drd = (DataResultDimensional)dqe.executeQuery(query, queryMeta, new MutableLong(1L));
+    store.endWindow();
+
+    Assert.assertEquals(numBuckets, drd.getValues().size());
+    for (int index = 0; index < numBuckets; index++) {
+      Assert.assertEquals(impressions, drd.getValues().get(index).get("SUM").getFieldLong("impressions"));
+      Assert.assertEquals(TimeUnit.MINUTES.toMillis(index), drd.getKeys().get(index).get("SUM").getFieldLong("time"));
+    }
+
+    store.teardown();
+  }
+
+  @Test
+  public void queryResultCacheTest() throws Exception
+  {
+    final String publisher = "google";
+    final String advertiser = "safeway";
+    final long impressions = 10L;
+    final double cost = 1.0;
+    final int numBuckets = 5;
+    final int rollingCount = 2;
+    final long endTime = TimeUnit.MINUTES.toMillis(numBuckets - 1);
+
+    String eventSchemaString = SchemaUtils.jarResourceFileToString("dimensionsTestSchema.json");
+
+    String basePath = testMeta.getDir();
+    TFileImpl hdsFile = new TFileImpl.DefaultTFileImpl();
+    hdsFile.setBasePath(basePath);
+
+    AppDataSingleSchemaDimensionStoreHDHT store = new AppDataSingleSchemaDimensionStoreHDHT();
+
+    store.setCacheWindowDuration(1);
+    store.setTimeSeriesKeys(true);
+    store.setQueryResultCacheSize(100);
+    store.setConfigurationSchemaJSON(eventSchemaString);
+    store.setFileStore(hdsFile);
+    store.setFlushIntervalCount(1);
+    store.setFlushSize(0);
+
+    store.setup(new OperatorContextTestHelper.TestIdOperatorContext(1, new DefaultAttributeMap()));
+
+    DimensionalConfigurationSchema eventSchema = store.configurationSchema;
+    DimensionsQueryExecutor dqe = new DimensionsQueryExecutor(store, store.schemaRegistry);
+
+    EventKey seriesEventKey = null;
+
+    store.beginWindow(0L);
+    for (long time = 0L; time <= endTime; time += TimeUnit.MINUTES.toMillis(1L)) {
+      Aggregate aggregate = AppDataSingleSchemaDimensionStoreHDHTTest.createEvent(eventSchema,
+          publisher,
+          advertiser,
+          time,
+          TimeBucket.MINUTE,
+          impressions,
+          cost);
+      store.input.put(aggregate);
+
+      if (seriesEventKey == null) {
+        seriesEventKey = new EventKey(aggregate.getEventKey());
+      }
+    }
+    store.endWindow();
+    store.checkpointed(0L);
+    store.committed(0L);
+
+    store.beginWindow(1L);
+    HDSRangeQuery rangeQuery = new HDSRangeQuery();
+    rangeQuery.bucketKey = AppDataSingleSchemaDimensionStoreHDHT.DEFAULT_BUCKET_ID;
+    rangeQuery.start = store.getTimeSeriesKey(seriesEventKey, 0L);
+    rangeQuery.end = store.getTimeSeriesKey(seriesEventKey, endTime);
+    rangeQuery.keepAliveCount = 20;
+    store.addRangeQuery(rangeQuery);
+    store.endWindow();
+
+    long timeout = System.currentTimeMillis() + 10000L;
+    while (!rangeQuery.processed && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue("range query processed", rangeQuery.processed);
+
+    Map<String, EventKey> aggregatorToEventKey = Maps.newHashMap();
+    aggregatorToEventKey.put("SUM", seriesEventKey);
+    Map<String, HDSRangeQuery> aggregatorToRangeQuery = Maps.newHashMap();
+    aggregatorToRangeQuery.put("SUM", rangeQuery);
+
+    QueryMeta queryMeta = new QueryMeta();
+    List<Map<String, EventKey>> eventKeys = Lists.newArrayList();
+    eventKeys.add(aggregatorToEventKey);
+    queryMeta.setEventKeys(eventKeys);
+    List<Map<String, HDSRangeQuery>> rangeQueries = Lists.newArrayList();
+    rangeQueries.add(aggregatorToRangeQuery);
+    queryMeta.setRangeQueries(rangeQueries);
+    queryMeta.setStartTime(0L);
+    queryMeta.setEndTime(endTime);
+    queryMeta.setTimeBucketMillis(TimeUnit.MINUTES.toMillis(1L));
+
+    GPOMutable keys = AppDataSingleSchemaDimensionStoreHDHTTest.createQueryKey(eventSchema, publisher, advertiser);
+    Map<String, Set<String>> fieldToAggregators = Maps.newHashMap();
+    fieldToAggregators.put("impressions", Sets.newHashSet("SUM"));
+    fieldToAggregators.put("cost", Sets.newHashSet("SUM"));
+
+    DataQueryDimensional query = new DataQueryDimensional("1",
+        DataQueryDimensional.TYPE,
+        0L,
+        endTime,
+        TimeBucket.MINUTE,
+        keys,
+        new FieldsAggregatable(fieldToAggregators),
+        true);
+    query.setSlidingAggregateSize(rollingCount);
+
+    QueryResultCache resultCache = store.queryResultCache;
+    DimensionsQueueManager dqm = new DimensionsQueueManager(store, store.schemaRegistry);
+    long rollingStartTime = -TimeUnit.MINUTES.toMillis(rollingCount - 1);
+
+    store.beginWindow(2L);
+    //polling without cached results scans the time range including the time bucket rolled into the first result
+    dqm.enqueue(query, null, null);
+    HDSRangeQuery pollRangeQuery = Iterables.getLast(store.getRangeQueries());
+    Assert.assertEquals(store.getTimeSeriesKey(seriesEventKey, rollingStartTime), pollRangeQuery.start);
+    Assert.assertEquals(store.getTimeSeriesKey(seriesEventKey, endTime), pollRangeQuery.end);
+
+    //the first execution fetches the scanned results
+    DataResultDimensional drd = (DataResultDimensional)dqe.executeQuery(query, queryMeta, new MutableLong(1L));
+    Assert.assertEquals(0L, resultCache.getHits());
+    assertRolledImpressions(drd, numBuckets - rollingCount + 1, impressions * rollingCount);
+
+    //repeated executions are served from the result cache and do not change the cached results
+    drd = (DataResultDimensional)dqe.executeQuery(query, queryMeta, new MutableLong(1L));
+    Assert.assertEquals(numBuckets, resultCache.getHits());
+    assertRolledImpressions(drd, numBuckets - rollingCount + 1, impressions * rollingCount);
+
+    DataResultDimensional cachedDrd =
+        (DataResultDimensional)dqe.executeQuery(query, queryMeta, new MutableLong(1L));
+    assertRolledImpressions(cachedDrd, numBuckets - rollingCount + 1, impressions * rollingCount);
+    for (int index = 0; index < drd.getValues().size(); index++) {
+      Assert.assertSame("rolled aggregate reused",
+          drd.getValues().get(index).get("SUM"),
+          cachedDrd.getValues().get(index).get("SUM"));
+    }
+
+    //the repeated poll only scans the time bucket which has no cached result
+    int numRangeQueries = store.getRangeQueries().size();
+    dqm.enqueue(query, null, null);
+    Assert.assertEquals(numRangeQueries + 1, store.getRangeQueries().size());
+    pollRangeQuery = Iterables.getLast(store.getRangeQueries());
+    Assert.assertEquals(store.getTimeSeriesKey(seriesEventKey, rollingStartTime), pollRangeQuery.start);
+    Assert.assertEquals(pollRangeQuery.start, pollRangeQuery.end);
+    store.endWindow();
+
+    //a write to the first time bucket invalidates only its result
+    store.beginWindow(3L);
+    store.input.put(AppDataSingleSchemaDimensionStoreHDHTTest.createEvent(eventSchema,
+        publisher,
+        advertiser,
+        0L,
+        TimeBucket.MINUTE,
+        impressions,
+        cost));
+    store.endWindow();
+
+    store.beginWindow(4L);
+    long misses = resultCache.getMisses();
+    drd = (DataResultDimensional)dqe.executeQuery(query, queryMeta, new MutableLong(1L));
+    store.endWindow();
+
+    Assert.assertEquals(1L, resultCache.getMisses() - misses);
+    Assert.assertEquals(impressions * (rollingCount + 1),
+        drd.getValues().get(0).get("SUM").getFieldLong("impressions"));
+    Assert.assertEquals(impressions * rollingCount, drd.getValues().get(1).get("SUM").getFieldLong("impressions"));
+
+    store.teardown();
+  }
+
+  private static void assertRolledImpressions(DataResultDimensional drd, int numResults, long impressions)
+  {
+    Assert.assertEquals(numResults, drd.getValues().size());
+    for (Map<String, GPOMutable> value : drd.getValues()) {
+      Assert.assertEquals(impressions, value.get("SUM").getFieldLong("impressions"));
+    }
+  }
+
   public static void issueHDSQuery(DimensionsStoreHDHT store, EventKey eventKey)
   {
     LOG.debug("Issued QUERY");
@@ -0,0 +1,200 @@
+package com.datatorrent.contrib.hdht;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import com.datatorrent.api.Attribute.AttributeMap.DefaultAttributeMap;
+import com.datatorrent.contrib.hdht.hfile.HFileImpl;
+import com.datatorrent.lib.fileaccess.FileAccessFSImpl;
+import com.datatorrent.lib.helper.OperatorContextTestHelper;
+import com.datatorrent.lib.util.TestUtils;
+import com.datatorrent.netlet.util.Slice;
+
+public class BlockCacheTest
+{
+  @Rule
+  public final TestUtils.TestInfo testInfo = new TestUtils.TestInfo();
+
+  private static BlockCache.Block newBlock(long bucketKey, long... seqs)
+  {
+    Slice[] keys = new Slice[seqs.length];
+    Slice[] values = new Slice[seqs.length];
+    for (int i = 0; i < seqs.length; i++) {
+      keys[i] = HDHTWriterTest.newKey(bucketKey, seqs[i]);
+      values[i] = new Slice(("data" + seqs[i]).getBytes());
+    }
+    return new BlockCache.Block(keys, values);
+  }
+
+  @Test
+  public void testLruEviction()
+  {
+    BlockCache.Block block = newBlock(1, 1, 2, 3);
+    BlockCache cache = new BlockCache(block.getSize() * 2);
+
+    cache.put(1, "1-0", 0, block);
+    cache.put(1, "1-0", 1, newBlock(1, 4, 5, 6));
+    Assert.assertNotNull("cached block", cache.get(1, "1-0", 0));
+
+    cache.put(1, "1-0", 2, newBlock(1, 7, 8, 9));
+    Assert.assertNull("least recently used block evicted", cache.get(1, "1-0", 1));
+    Assert.assertNotNull("recently used block retained", cache.get(1, "1-0", 0));
+    Assert.assertEquals("size", block.getSize() * 2, cache.getSize());
+
+    BlockCache.Counters counters = cache.getCounters(1);
+    Assert.assertEquals("hits", 2, counters.hits);
+    Assert.assertEquals("misses", 1, counters.misses);
+    Assert.assertEquals("evictions", 1, counters.evictions);
+
+    cache.invalidate(1, "1-0");
+    Assert.assertEquals("size after invalidate", 0, cache.getSize());
+    Assert.assertNull("invalidated block", cache.get(1, "1-0", 2));
+  }
+
+  @Test
+  public void testSegments()
+  {
+    BlockCache.Block block = newBlock(1, 1, 2, 3);
+    int numSegments = 4;
+    BlockCache cache = new BlockCache(block.getSize() * 2 * numSegments, numSegments);
+
+    int numBlocks = 100;
+    for (int i = 0; i < numBlocks; i++) {
+      cache.put(1, "1-0", i, newBlock(1, 1, 2, 3));
+      cache.put(2, "2-0", i, newBlock(2, 1, 2, 3));
+    }
+    Assert.assertEquals("each segment full", block.getSize() * 2 * numSegments, cache.getSize());
+
+    int cached = 0;
+    for (int i = 0; i < numBlocks; i++) {
+      if (cache.get(1, "1-0", i) != null) {
+        cached++;
+      }
+    }
+    BlockCache.Counters counters = cache.getCounters(1);
+    Assert.assertEquals("lookups of all segments counted", numBlocks, counters.hits + counters.misses);
+    Assert.assertEquals("hits", cached, counters.hits);
+    Assert.assertEquals("evictions of all segments counted", numBlocks - cached, counters.evictions);
+
+    cache.invalidate(1, "1-0");
+    cache.invalidate(2, "2-0");
+    Assert.assertEquals("blocks removed from all segments", 0, cache.getSize());
+  }
+
+  @Test
+  public void testBlockLookup()
+  {
+    BlockCache.Block block = newBlock(1, 1, 3, 5);
+    HDHTReader.DefaultKeyComparator cmp = new HDHTReader.DefaultKeyComparator();
+    Assert.assertArrayEquals("data3".getBytes(), block.get(HDHTWriterTest.newKey(1, 3), cmp).toByteArray());
+    Assert.assertNull("key not in block", block.get(HDHTWriterTest.newKey(1, 4), cmp));
+  }
+
+  @Test
+  public void testCachedGet() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(0); // flush after every key
+    hds.setIndexBlockSize(64); // few keys per block
+    hds.setBlockCacheSize(1024 * 1024);
+
+    long BUCKETKEY = 1;
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+    hds.beginWindow(1);
+    for (long seq = 0; seq < 100; seq++) {
+      hds.put(BUCKETKEY, HDHTWriterTest.newKey(BUCKETKEY, seq), ("data" + seq).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+
+    Assert.assertTrue("index written", fa.exists(BUCKETKEY, HDHTReader.FNAME_INDEX + BUCKETKEY + "-0"));
+
+    for (long seq = 0; seq < 100; seq++) {
+      Assert.assertArrayEquals("get " + seq, ("data" + seq).getBytes(), hds.get(BUCKETKEY, HDHTWriterTest.newKey(BUCKETKEY, seq)));
+    }
+    BlockCache.Counters counters = hds.blockCache.getCounters(BUCKETKEY);
+    Assert.assertTrue("blocks read", counters.misses > 1);
+    Assert.assertTrue("lookups served from cache", counters.hits > counters.misses);
+    Assert.assertEquals("all lookups counted", 100, counters.hits + counters.misses);
+
+    // rewrite of the file invalidates cached blocks
+    hds.beginWindow(2);
+    hds.put(BUCKETKEY, HDHTWriterTest.newKey(BUCKETKEY, 5), "data5-2".getBytes());
+    hds.endWindow();
+    hds.checkpointed(2);
+    hds.committed(2);
+
+    Assert.assertArrayEquals("get after rewrite", "data5-2".getBytes(), hds.get(BUCKETKEY, HDHTWriterTest.newKey(BUCKETKEY, 5)));
+    Assert.assertNull("missing key", hds.get(BUCKETKEY, HDHTWriterTest.newKey(BUCKETKEY, 200)));
+
+    // values are copied out of the cached blocks
+    byte[] value = hds.get(BUCKETKEY, HDHTWriterTest.newKey(BUCKETKEY, 6));
+    Arrays.fill(value, (byte)0);
+    Assert.assertArrayEquals("cached value unchanged", "data6".getBytes(),
+        hds.get(BUCKETKEY, HDHTWriterTest.newKey(BUCKETKEY, 6)));
+    Map<Slice, byte[]> values = hds.getAll(BUCKETKEY, Lists.newArrayList(HDHTWriterTest.newKey(BUCKETKEY, 6)));
+    Arrays.fill(values.get(HDHTWriterTest.newKey(BUCKETKEY, 6)), (byte)0);
+    Assert.assertArrayEquals("cached value unchanged", "data6".getBytes(),
+        hds.get(BUCKETKEY, HDHTWriterTest.newKey(BUCKETKEY, 6)));
+
+    hds.teardown();
+  }
+
+  @Test
+  public void testCachedBlockSize() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    // values of the HFile reader reference the whole decoded file block
+    HFileImpl fa = new HFileImpl();
+    fa.setComparator(new HDHTWriter.DefaultKeyComparator());
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(0); // flush after every key
+    hds.setIndexBlockSize(64); // few keys per block
+    hds.setBlockCacheSize(1024 * 1024);
+
+    long BUCKETKEY = 1;
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+    hds.beginWindow(1);
+    for (long seq = 0; seq < 100; seq++) {
+      hds.put(BUCKETKEY, HDHTWriterTest.newKey(BUCKETKEY, seq), ("data" + seq).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+
+    Slice key = HDHTWriterTest.newKey(BUCKETKEY, 0);
+    Assert.assertArrayEquals("get", "data0".getBytes(), hds.get(BUCKETKEY, key));
+    BlockCache.Block block = hds.blockCache.get(BUCKETKEY, BUCKETKEY + "-0", 0);
+    Assert.assertNotNull("cached block", block);
+    Slice value = block.get(key, new HDHTReader.DefaultKeyComparator());
+    Assert.assertTrue("block holds its entries only", value.buffer.length <= block.getSize());
+    Assert.assertEquals("cache size", block.getSize(), hds.blockCache.getSize());
+
+    hds.teardown();
+  }
+}
@@ -0,0 +1,96 @@
+package com.datatorrent.contrib.hdht;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.datatorrent.netlet.util.Slice;
+
+public class BloomFilterTest
+{
+  @Test
+  public void testMembership()
+  {
+    BloomFilter bf = new BloomFilter(1000, 0.01);
+    for (int i = 0; i < 1000; i++) {
+      bf.add(HDHTWriterTest.newKey(1, i));
+    }
+
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertTrue("key added to filter " + i, bf.mightContain(HDHTWriterTest.newKey(1, i)));
+    }
+
+    int falsePositives = 0;
+    for (int i = 1000; i < 11000; i++) {
+      if (bf.mightContain(HDHTWriterTest.newKey(1, i))) {
+        falsePositives++;
+      }
+    }
+    Assert.assertTrue("false positives " + falsePositives, falsePositives < 300);
+  }
+
+  @Test
+  public void testKeyWithOffset()
+  {
+    BloomFilter bf = new BloomFilter(10, 0.01);
+    bf.add(new Slice("key1".getBytes()));
+
+    byte[] buffer = "prefix-key1-suffix".getBytes();
+    Assert.assertTrue("key at offset", bf.mightContain(new Slice(buffer, 7, 4)));
+  }
+
+  @Test
+  public void testSerialization() throws Exception
+  {
+    BloomFilter bf = new BloomFilter(100, 0.01);
+    for (int i = 0; i < 100; i++) {
+      bf.add(HDHTWriterTest.newKey(1, i));
+    }
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bos);
+    bf.writeTo(out);
+    out.close();
+
+    BloomFilter copy = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+    for (int i = 0; i < 200; i++) {
+      Slice key = HDHTWriterTest.newKey(1, i);
+      Assert.assertEquals("same result after deserialization " + i, bf.mightContain(key), copy.mightContain(key));
+    }
+  }
+
+  @Test
+  public void testBuilder() throws Exception
+  {
+    BloomFilter.Builder builder = new BloomFilter.Builder();
+    for (int i = 0; i < 1000; i++) {
+      builder.add(HDHTWriterTest.newKey(1, i));
+    }
+    BloomFilter bf = builder.build(0.01);
+    Assert.assertEquals("builder cleared", 0, builder.size());
+    for (int i = 0; i < 1000; i++) {
+      Assert.assertTrue("key added to filter " + i, bf.mightContain(HDHTWriterTest.newKey(1, i)));
+    }
+
+    // reused for the next file, sized for its keys only
+    BloomFilter expected = new BloomFilter(10, 0.01);
+    for (int i = 1000; i < 1010; i++) {
+      builder.add(HDHTWriterTest.newKey(1, i));
+      expected.add(HDHTWriterTest.newKey(1, i));
+    }
+    Assert.assertArrayEquals("same filter as sized upfront", toBytes(expected), toBytes(builder.build(0.01)));
+  }
+
+  private static byte[] toBytes(BloomFilter bf) throws Exception
+  {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bos);
+    bf.writeTo(out);
+    out.close();
+    return bos.toByteArray();
+  }
+}
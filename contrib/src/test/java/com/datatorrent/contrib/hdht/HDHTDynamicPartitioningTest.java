@@ -6,6 +6,12 @@ import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -18,17 +24,20 @@ import org.apache.commons.io.FileUtils;
 import com.esotericsoftware.kryo.Kryo;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import com.datatorrent.api.Attribute.AttributeMap.DefaultAttributeMap;
 import com.datatorrent.api.DefaultPartition;
 import com.datatorrent.api.Partitioner.Partition;
+import com.datatorrent.api.Stats;
 import com.datatorrent.api.StatsListener;
 import com.datatorrent.lib.fileaccess.FileAccessFSImpl;
 import com.datatorrent.lib.helper.OperatorContextTestHelper;
 import com.datatorrent.lib.partitioner.StatelessPartitionerTest.PartitioningContextImpl;
 import com.datatorrent.lib.util.KeyValPair;
 import com.datatorrent.lib.util.KryoCloneUtils;
+import com.datatorrent.lib.util.TestUtils;
 import com.datatorrent.netlet.util.Slice;
 
 public class HDHTDynamicPartitioningTest
@@ -164,6 +173,102 @@ public class HDHTDynamicPartitioningTest
     Assert.assertNull(opers.get(1).getUncommitted(0, getLongByteArray(1)));
   }
 
+  /**
+   * A reader which holds the meta data of a bucket written before repartitioning and applies the edits written by the
+   * new partition after the reset of the meta data must end up with the files of the new partition only.
+   */
+  @Test
+  public void testMetaEditAfterReset() throws Exception
+  {
+    HDHTTestOperator hds = new HDHTTestOperator();
+    hds.setNumberOfBuckets(2);
+    File file = new File("target/hds");
+    FileUtils.deleteDirectory(file);
+    FileAccessFSImpl bfs = new MockFileAccess();
+    bfs.setBasePath(file.getAbsolutePath());
+    bfs.init();
+    ((MockFileAccess)bfs).disableChecksum();
+    FileAccessFSImpl walFs = new MockFileAccess();
+    walFs.setBasePath(file.getAbsolutePath() + "/WAL/");
+    walFs.init();
+    ((MockFileAccess)walFs).disableChecksum();
+
+    hds.setFileStore(bfs);
+    hds.setWalStore(walFs);
+    hds.setFlushSize(1);
+    hds.setFlushIntervalCount(1);
+    hds.setMaxFileSize(1); // single entry per file
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(1, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor();
+
+    hds.beginWindow(1);
+    hds.put(0, getLongByteArray(1), getLongByteArray(10).toByteArray());
+    hds.put(0, getLongByteArray(5), getLongByteArray(50).toByteArray());
+    hds.put(1, getLongByteArray(1), getLongByteArray(100).toByteArray());
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+
+    // version of the meta data held by a reader
+    HDHTReader.BucketMeta readerMeta = hds.loadBucketMeta(0);
+    Assert.assertEquals("files before repartitioning", 2, readerMeta.files.size());
+
+    hds.setPartitionCount(2);
+    hds.beginWindow(2);
+    hds.put(0, getLongByteArray(1), getLongByteArray(20).toByteArray());
+    hds.put(1, getLongByteArray(1), getLongByteArray(200).toByteArray());
+    hds.endWindow();
+    hds.checkpointed(2);
+    hds.forceWal();
+
+    HDHTTestOperator initialState = KryoCloneUtils.cloneObject(new Kryo(), hds);
+    Assert.assertEquals(true, hds.processStats(null).repartitionRequired);
+
+    List<Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>> partitions = Lists.newArrayList();
+    partitions.add(new DefaultPartition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>(hds));
+    Collection<Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>> newPartitions =
+        initialState.definePartitions(partitions, new PartitioningContextImpl(null, 0));
+    Assert.assertEquals(2, newPartitions.size());
+
+    HDHTTestOperator oper = null;
+    int opId = 2;
+    for (Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>> p : newPartitions) {
+      HDHTTestOperator oi = (HDHTTestOperator)p.getPartitionedInstance();
+      oi.setFileStore(bfs);
+      oi.setWalStore(walFs);
+      oi.setFlushSize(1);
+      oi.setFlushIntervalCount(1);
+      oi.setup(new OperatorContextTestHelper.TestIdOperatorContext(opId++, new DefaultAttributeMap()));
+      oi.writeExecutor = MoreExecutors.sameThreadExecutor();
+      if (oi.bucketKeys.contains(0L)) {
+        oper = oi;
+      }
+    }
+    Assert.assertNotNull("partition of bucket 0", oper);
+
+    // the first flush after the reset of the meta data
+    oper.beginWindow(3);
+    oper.put(0, getLongByteArray(2), getLongByteArray(30).toByteArray());
+    oper.endWindow();
+    oper.checkpointed(3);
+    oper.committed(3);
+
+    HDHTReader.BucketMeta meta = oper.loadBucketMeta(0);
+    Assert.assertEquals("edit after the reset", readerMeta.editSeq + 1, meta.editSeq);
+    HDHTReader.BucketMeta incremental = oper.loadBucketMeta(0, readerMeta);
+    Assert.assertEquals("edit sequence", meta.editSeq, incremental.editSeq);
+    Assert.assertEquals("files dropped by the reset are removed", fileNames(meta), fileNames(incremental));
+  }
+
+  private static Set<String> fileNames(HDHTReader.BucketMeta meta)
+  {
+    Set<String> names = Sets.newHashSet();
+    for (HDHTReader.BucketFileMeta bfm : meta.files.values()) {
+      names.add(bfm.name);
+    }
+    return names;
+  }
+
   /**
    * Test for testing dynamic partitioning. Check that recovery from previous
    * WAL is performed as expected when number of partitions is decreased from 2
@@ -314,4 +419,359 @@ public class HDHTDynamicPartitioningTest
     Assert.assertEquals("Value of key=1, bucket=0 is recovered from WAL", 20, getLong(newOperator.get(0, getLongByteArray(1))));
     Assert.assertEquals("Value of key=1, bucket=1 is recovered from WAL", 200, getLong(newOperator.get(1, getLongByteArray(1))));
   }
+
+  private static TestUtils.MockBatchedOperatorStats getStats(int operatorId, HDHTWriter oper)
+  {
+    Stats.OperatorStats os = new Stats.OperatorStats();
+    os.counters = oper.getBucketStats();
+    TestUtils.MockBatchedOperatorStats stats = new TestUtils.MockBatchedOperatorStats(operatorId);
+    stats.operatorStats = Lists.newArrayList(os);
+    return stats;
+  }
+
+  /**
+   * Test for moving a single bucket based on the write rate. Three partitions own the buckets {0, 3}, {1} and {2}.
+   * The writes to buckets 0 and 3 make the first partition the busiest one and bucket 3 is moved to the partition
+   * with the lowest write rate. Only the two affected partitions are redeployed, the new owner reads the changes of
+   * bucket 3 which were not flushed from the WAL of the previous owner.
+   */
+  @Test
+  public void testLoadBasedBucketMove() throws Exception
+  {
+    HDHTTestOperator hds = new HDHTTestOperator();
+    hds.setNumberOfBuckets(4);
+    hds.setPartitionCount(3);
+    hds.setRebalanceThreshold(1.2);
+    hds.setRebalanceIntervalMillis(0);
+
+    File file = new File("target/hds");
+    FileUtils.deleteDirectory(file);
+    FileAccessFSImpl bfs = new MockFileAccess();
+    bfs.setBasePath(file.getAbsolutePath());
+    bfs.init();
+    ((MockFileAccess)bfs).disableChecksum();
+    FileAccessFSImpl walFs = new MockFileAccess();
+    walFs.setBasePath(file.getAbsolutePath() + "/WAL/");
+    walFs.init();
+    ((MockFileAccess)walFs).disableChecksum();
+
+    HDHTTestOperator initialState = KryoCloneUtils.cloneObject(new Kryo(), hds);
+    List<Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>> partitions = Lists.newArrayList();
+    partitions.add(new DefaultPartition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>(hds));
+    List<Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>> newPartitions =
+        Lists.newArrayList(initialState.definePartitions(partitions, new PartitioningContextImpl(null, 0)));
+    Assert.assertEquals(3, newPartitions.size());
+
+    int opId = 2;
+    Map<Integer, Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>> m = Maps.newHashMap();
+    List<HDHTTestOperator> opers = Lists.newArrayList();
+    for (Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>> p : newPartitions) {
+      HDHTTestOperator oi = (HDHTTestOperator)p.getPartitionedInstance();
+      oi.setFileStore(bfs);
+      oi.setWalStore(walFs);
+      oi.setFlushSize(0);
+      oi.setup(new OperatorContextTestHelper.TestIdOperatorContext(opId, new DefaultAttributeMap()));
+      oi.writeExecutor = MoreExecutors.sameThreadExecutor();
+      m.put(opId++, p);
+      opers.add(oi);
+    }
+    initialState.partitioned(m);
+    Assert.assertEquals(Sets.newHashSet(0L, 3L), opers.get(0).bucketKeys);
+    Assert.assertEquals(Sets.newHashSet(1L), opers.get(1).bucketKeys);
+    Assert.assertEquals(Sets.newHashSet(2L), opers.get(2).bucketKeys);
+
+    for (HDHTTestOperator oi : opers) {
+      oi.beginWindow(1);
+    }
+    opers.get(0).put(0, getLongByteArray(1), getLongByteArray(1).toByteArray());
+    opers.get(0).put(3, getLongByteArray(1), getLongByteArray(10).toByteArray());
+    opers.get(1).put(1, getLongByteArray(1), getLongByteArray(1).toByteArray());
+    opers.get(2).put(2, getLongByteArray(1), getLongByteArray(1).toByteArray());
+    for (HDHTTestOperator oi : opers) {
+      oi.endWindow();
+      oi.checkpointed(1);
+      oi.committed(1);
+    }
+
+    // first stats establish the baseline of the write rates
+    for (int i = 0; i < opers.size(); i++) {
+      Assert.assertFalse(initialState.processStats(getStats(i + 2, opers.get(i))).repartitionRequired);
+    }
+    Thread.sleep(20);
+
+    for (HDHTTestOperator oi : opers) {
+      oi.beginWindow(2);
+    }
+    for (int i = 2; i < 12; i++) {
+      opers.get(0).put(0, getLongByteArray(i), getLongByteArray(i).toByteArray());
+    }
+    for (int i = 1; i < 7; i++) {
+      opers.get(0).put(3, getLongByteArray(i), getLongByteArray(i * 10 + 20).toByteArray());
+    }
+    opers.get(1).put(1, getLongByteArray(2), getLongByteArray(2).toByteArray());
+    for (int i = 2; i < 7; i++) {
+      opers.get(2).put(2, getLongByteArray(i), getLongByteArray(i).toByteArray());
+    }
+    for (HDHTTestOperator oi : opers) {
+      oi.endWindow();
+      oi.checkpointed(2);
+      oi.forceWal();
+    }
+
+    Assert.assertFalse(initialState.processStats(getStats(4, opers.get(2))).repartitionRequired);
+    Assert.assertFalse(initialState.processStats(getStats(3, opers.get(1))).repartitionRequired);
+    Assert.assertTrue("bucket move", initialState.processStats(getStats(2, opers.get(0))).repartitionRequired);
+
+    // redeploy from the checkpoint after window 2
+    partitions = Lists.newArrayList();
+    for (int i = 0; i < opers.size(); i++) {
+      HDHTTestOperator checkpoint = KryoCloneUtils.cloneObject(new Kryo(), opers.get(i));
+      partitions.add(new DefaultPartition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>(checkpoint,
+          newPartitions.get(i).getPartitionKeys(), 0, getStats(i + 2, opers.get(i))));
+    }
+    Collection<Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>> movedPartitions =
+        initialState.definePartitions(partitions, new PartitioningContextImpl(null, 0));
+    Assert.assertEquals(3, movedPartitions.size());
+    Assert.assertFalse(movedPartitions.contains(partitions.get(0)));
+    Assert.assertFalse(movedPartitions.contains(partitions.get(1)));
+    Assert.assertTrue("partition not affected by the move is not redeployed",
+        movedPartitions.contains(partitions.get(2)));
+
+    HDHTTestOperator source = null;
+    HDHTTestOperator target = null;
+    m = Maps.newHashMap();
+    for (Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>> p : movedPartitions) {
+      HDHTTestOperator oi = (HDHTTestOperator)p.getPartitionedInstance();
+      if (p != partitions.get(2)) {
+        if (oi.bucketKeys.contains(0L)) {
+          source = oi;
+        } else {
+          target = oi;
+        }
+        Assert.assertEquals(oi.partitions, p.getPartitionKeys().get(initialState.input).partitions);
+      }
+      m.put(m.size(), p);
+    }
+    initialState.partitioned(m);
+    Assert.assertEquals(3, initialState.getCurrentPartitions());
+    Assert.assertEquals(Sets.newHashSet(0L), source.bucketKeys);
+    Assert.assertEquals(Sets.newHashSet(1L, 3L), target.bucketKeys);
+    Assert.assertEquals(Sets.newHashSet(3L), source.releasedBuckets.keySet());
+    Assert.assertEquals(Sets.newHashSet(3L), target.adoptedBuckets.keySet());
+
+    for (HDHTTestOperator oi : Lists.newArrayList(source, target)) {
+      oi.setFileStore(bfs);
+      oi.setWalStore(walFs);
+      oi.setFlushSize(0);
+      oi.setup(new OperatorContextTestHelper.TestIdOperatorContext(opId++, new DefaultAttributeMap()));
+      oi.writeExecutor = MoreExecutors.sameThreadExecutor();
+    }
+    Assert.assertEquals("WAL is retained", 2, source.getWalKey());
+    Assert.assertEquals("WAL is retained", 3, target.getWalKey());
+
+    source.beginWindow(3);
+    target.beginWindow(3);
+    Assert.assertEquals("Value of key=1, bucket=3 is read from WAL of previous owner", 30,
+        getLong(target.getUncommitted(3, getLongByteArray(1))));
+    Assert.assertEquals("Value of key=6, bucket=3 is read from WAL of previous owner", 80,
+        getLong(target.getUncommitted(3, getLongByteArray(6))));
+    Assert.assertEquals("Value of key=2, bucket=1 is recovered from WAL", 2,
+        getLong(target.getUncommitted(1, getLongByteArray(2))));
+    Assert.assertEquals("Value of key=11, bucket=0 is recovered from WAL", 11,
+        getLong(source.getUncommitted(0, getLongByteArray(11))));
+    target.put(3, getLongByteArray(2), getLongByteArray(45).toByteArray());
+
+    for (HDHTTestOperator oi : Lists.newArrayList(target, source)) {
+      oi.endWindow();
+      oi.checkpointed(3);
+      oi.committed(3);
+    }
+    Assert.assertTrue("bucket flushed by new owner", target.adoptedBuckets.isEmpty());
+    Assert.assertTrue("WAL of previous owner released", source.releasedBuckets.isEmpty());
+    Assert.assertEquals(30, getLong(target.get(3, getLongByteArray(1))));
+    Assert.assertEquals(45, getLong(target.get(3, getLongByteArray(2))));
+  }
+
+  /**
+   * Both partitions of a bucket move are redeployed at the same time. The previous owner recovers from its WAL while
+   * the new owner reads the changes of the moved bucket from it. The previous owner logged changes after the
+   * checkpoint, the WAL file is only truncated once the move is complete.
+   */
+  @Test
+  public void testConcurrentRedeployAfterBucketMove() throws Exception
+  {
+    HDHTTestOperator hds = new HDHTTestOperator();
+    hds.setNumberOfBuckets(4);
+    hds.setPartitionCount(3);
+    hds.setRebalanceThreshold(1.2);
+    hds.setRebalanceIntervalMillis(0);
+
+    File file = new File("target/hds");
+    FileUtils.deleteDirectory(file);
+    FileAccessFSImpl bfs = new MockFileAccess();
+    bfs.setBasePath(file.getAbsolutePath());
+    bfs.init();
+    ((MockFileAccess)bfs).disableChecksum();
+    FileAccessFSImpl walFs = new MockFileAccess();
+    walFs.setBasePath(file.getAbsolutePath() + "/WAL/");
+    walFs.init();
+    ((MockFileAccess)walFs).disableChecksum();
+
+    HDHTTestOperator initialState = KryoCloneUtils.cloneObject(new Kryo(), hds);
+    List<Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>> partitions = Lists.newArrayList();
+    partitions.add(new DefaultPartition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>(hds));
+    List<Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>> newPartitions =
+        Lists.newArrayList(initialState.definePartitions(partitions, new PartitioningContextImpl(null, 0)));
+
+    int opId = 2;
+    Map<Integer, Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>> m = Maps.newHashMap();
+    List<HDHTTestOperator> opers = Lists.newArrayList();
+    for (Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>> p : newPartitions) {
+      HDHTTestOperator oi = (HDHTTestOperator)p.getPartitionedInstance();
+      oi.setFileStore(bfs);
+      oi.setWalStore(walFs);
+      oi.setFlushSize(0);
+      oi.setup(new OperatorContextTestHelper.TestIdOperatorContext(opId, new DefaultAttributeMap()));
+      oi.writeExecutor = MoreExecutors.sameThreadExecutor();
+      m.put(opId++, p);
+      opers.add(oi);
+    }
+    initialState.partitioned(m);
+
+    for (HDHTTestOperator oi : opers) {
+      oi.beginWindow(1);
+    }
+    opers.get(0).put(0, getLongByteArray(1), getLongByteArray(1).toByteArray());
+    opers.get(0).put(3, getLongByteArray(1), getLongByteArray(10).toByteArray());
+    opers.get(1).put(1, getLongByteArray(1), getLongByteArray(1).toByteArray());
+    opers.get(2).put(2, getLongByteArray(1), getLongByteArray(1).toByteArray());
+    for (HDHTTestOperator oi : opers) {
+      oi.endWindow();
+      oi.checkpointed(1);
+      oi.committed(1);
+    }
+    for (int i = 0; i < opers.size(); i++) {
+      initialState.processStats(getStats(i + 2, opers.get(i)));
+    }
+    Thread.sleep(20);
+
+    for (HDHTTestOperator oi : opers) {
+      oi.beginWindow(2);
+    }
+    for (int i = 2; i < 12; i++) {
+      opers.get(0).put(0, getLongByteArray(i), getLongByteArray(i).toByteArray());
+    }
+    for (int i = 1; i < 7; i++) {
+      opers.get(0).put(3, getLongByteArray(i), getLongByteArray(i * 10 + 20).toByteArray());
+    }
+    opers.get(1).put(1, getLongByteArray(2), getLongByteArray(2).toByteArray());
+    for (int i = 2; i < 7; i++) {
+      opers.get(2).put(2, getLongByteArray(i), getLongByteArray(i).toByteArray());
+    }
+    for (HDHTTestOperator oi : opers) {
+      oi.endWindow();
+      oi.checkpointed(2);
+    }
+    initialState.processStats(getStats(4, opers.get(2)));
+    initialState.processStats(getStats(3, opers.get(1)));
+    Assert.assertTrue("bucket move", initialState.processStats(getStats(2, opers.get(0))).repartitionRequired);
+
+    partitions = Lists.newArrayList();
+    for (int i = 0; i < opers.size(); i++) {
+      HDHTTestOperator checkpoint = KryoCloneUtils.cloneObject(new Kryo(), opers.get(i));
+      partitions.add(new DefaultPartition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>(checkpoint,
+          newPartitions.get(i).getPartitionKeys(), 0, getStats(i + 2, opers.get(i))));
+    }
+
+    // changes logged by the previous owner after the checkpoint
+    opers.get(0).beginWindow(3);
+    opers.get(0).put(0, getLongByteArray(100), getLongByteArray(100).toByteArray());
+    opers.get(0).put(3, getLongByteArray(1), getLongByteArray(999).toByteArray());
+    opers.get(0).endWindow();
+    for (HDHTTestOperator oi : opers) {
+      oi.forceWal();
+    }
+
+    Collection<Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>>> movedPartitions =
+        initialState.definePartitions(partitions, new PartitioningContextImpl(null, 0));
+    HDHTTestOperator source = null;
+    HDHTTestOperator target = null;
+    m = Maps.newHashMap();
+    for (Partition<AbstractSinglePortHDHTWriter<KeyValPair<byte[], byte[]>>> p : movedPartitions) {
+      HDHTTestOperator oi = (HDHTTestOperator)p.getPartitionedInstance();
+      if (p != partitions.get(2)) {
+        if (oi.bucketKeys.contains(0L)) {
+          source = oi;
+        } else {
+          target = oi;
+        }
+      }
+      m.put(m.size(), p);
+    }
+    initialState.partitioned(m);
+    Assert.assertEquals(Sets.newHashSet(3L), source.releasedBuckets.keySet());
+    Assert.assertEquals(Sets.newHashSet(3L), target.adoptedBuckets.keySet());
+
+    for (HDHTTestOperator oi : Lists.newArrayList(source, target)) {
+      oi.setFileStore(bfs);
+      oi.setWalStore(walFs);
+      oi.setFlushSize(0);
+      oi.setup(new OperatorContextTestHelper.TestIdOperatorContext(opId++, new DefaultAttributeMap()));
+      oi.writeExecutor = MoreExecutors.sameThreadExecutor();
+    }
+    HDHTWalManager.WalPosition cpWalPosition = source.singleWalMeta.cpWalPosition;
+    File walFile = new File(file, "WAL/" + source.getWalKey() + "/" + HDHTWalManager.WAL_FILE_PREFIX +
+        cpWalPosition.fileId);
+    long walFileLength = walFile.length();
+    Assert.assertTrue("changes after the checkpoint in WAL", walFileLength > cpWalPosition.offset);
+
+    // recovery of the previous owner and replay of the new owner run concurrently
+    final HDHTTestOperator recoveringSource = source;
+    final HDHTTestOperator replayingTarget = target;
+    final CyclicBarrier barrier = new CyclicBarrier(2);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    Future<byte[]> sourceValue = executor.submit(new Callable<byte[]>()
+    {
+      @Override
+      public byte[] call() throws Exception
+      {
+        barrier.await();
+        recoveringSource.beginWindow(3);
+        return recoveringSource.getUncommitted(0, getLongByteArray(11));
+      }
+    });
+    Future<byte[]> targetValue = executor.submit(new Callable<byte[]>()
+    {
+      @Override
+      public byte[] call() throws Exception
+      {
+        barrier.await();
+        replayingTarget.beginWindow(3);
+        return replayingTarget.getUncommitted(3, getLongByteArray(6));
+      }
+    });
+    Assert.assertEquals("Value of key=11, bucket=0 is recovered from WAL", 11, getLong(sourceValue.get()));
+    Assert.assertEquals("Value of key=6, bucket=3 is read from WAL of previous owner", 80,
+        getLong(targetValue.get()));
+    executor.shutdown();
+
+    Assert.assertEquals("WAL file read by the new owner is not truncated", walFileLength, walFile.length());
+    Assert.assertEquals(cpWalPosition.offset, (long)source.untruncatedWalFiles.get(cpWalPosition.fileId));
+    Assert.assertNull("changes after the checkpoint are not recovered",
+        source.getUncommitted(0, getLongByteArray(100)));
+    Assert.assertEquals("changes after the checkpoint are not read by the new owner", 30,
+        getLong(target.getUncommitted(3, getLongByteArray(1))));
+
+    for (HDHTTestOperator oi : Lists.newArrayList(target, source)) {
+      oi.endWindow();
+      oi.checkpointed(3);
+      oi.committed(3);
+    }
+    Assert.assertTrue("WAL of previous owner released", source.releasedBuckets.isEmpty());
+    Assert.assertTrue("WAL file truncated after the move", source.untruncatedWalFiles.isEmpty());
+    if (walFile.exists()) {
+      Assert.assertEquals("WAL file truncated after the move", cpWalPosition.offset, walFile.length());
+    }
+    Assert.assertEquals(30, getLong(target.get(3, getLongByteArray(1))));
+  }
 }
@@ -29,6 +29,7 @@ import org.apache.hadoop.hbase.io.hfile.HFileContext;
 import org.apache.hadoop.io.file.tfile.TFile;
 
 import com.datatorrent.contrib.hdht.hfile.HFileImpl;
+import com.datatorrent.contrib.hdht.mmap.MappedFileImpl;
 import com.datatorrent.contrib.hdht.tfile.TFileImpl;
 import com.datatorrent.lib.fileaccess.FileAccess;
 import com.datatorrent.lib.fileaccess.FileAccessFSImpl;
@@ -37,6 +38,7 @@ import com.datatorrent.netlet.util.Slice;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -99,6 +101,68 @@ public class HDHTFileAccessTest
     testHFile(Algorithm.GZ);
   }
 
+  @Test
+  public void testTFileSlices() throws IOException
+  {
+    TFileImpl timpl = new TFileImpl.DefaultTFileImpl();
+    writeSlices(0, timpl, "TFileSlices");
+    testSeqRead(0, timpl, "TFileSlices");
+    testRandomRead(0, timpl, "TFileSlices");
+  }
+
+  @Test
+  public void testHFileSlices() throws IOException
+  {
+    HFileImpl himpl = new HFileImpl();
+    himpl.setComparator(new HDHTWriter.DefaultKeyComparator());
+    writeSlices(0, himpl, "HFileSlices");
+    testSeqRead(0, himpl, "HFileSlices");
+    testRandomRead(0, himpl, "HFileSlices");
+
+    HDHTFileAccess.HDSFileReader in = (HDHTFileAccess.HDSFileReader)himpl.getReader(0, "HFileSlices");
+    for (int i = keys.length; i-- > 0;) {
+      Slice value = in.get(new Slice(keys[i]));
+      assertEquals("Value is not as expected", values[i], new String(value.buffer, value.offset, value.length));
+    }
+    assertNull("Key does not exist", in.get(new Slice(new byte[] {2})));
+    assertNull("Key does not exist", in.get(new Slice(new byte[] {4})));
+    in.close();
+  }
+
+  @Test
+  public void testMappedFile() throws IOException
+  {
+    MappedFileImpl mimpl = new MappedFileImpl();
+    mimpl.setBlockSize(1);
+    testMappedFile(mimpl);
+  }
+
+  @Test
+  public void testMappedFileDeflate() throws IOException
+  {
+    MappedFileImpl mimpl = new MappedFileImpl();
+    mimpl.setCompression(MappedFileImpl.COMPRESSION_DEFLATE);
+    testMappedFile(mimpl);
+    mimpl.setPrefixEncoding(false);
+    testMappedFile(mimpl);
+  }
+
+  private void testMappedFile(MappedFileImpl mimpl) throws IOException
+  {
+    writeSlices(0, mimpl, "MappedFileUnit");
+    testSeqRead(0, mimpl, "MappedFileUnit");
+    testRandomRead(0, mimpl, "MappedFileUnit");
+
+    HDHTFileAccess.HDSFileReader in = (HDHTFileAccess.HDSFileReader)mimpl.getReader(0, "MappedFileUnit");
+    for (int i = keys.length; i-- > 0;) {
+      Slice value = in.get(new Slice(keys[i]));
+      assertEquals("Value is not as expected", values[i], new String(value.buffer, value.offset, value.length));
+    }
+    assertNull("Key does not exist", in.get(new Slice(new byte[] {2})));
+    assertNull("Key does not exist", in.get(new Slice(new byte[] {4})));
+    in.close();
+  }
+
   private void testTFile(String compression) throws IOException
   {
 
@@ -148,6 +212,26 @@ public class HDHTFileAccessTest
     out.close();
   }
 
+  /**
+   * Write keys and values as slices with offsets into shared buffers.
+   */
+  private void writeSlices(long bucketKey, FileAccessFSImpl hfa, String fileName) throws IOException
+  {
+    File file = new File(testFileDir);
+    FileUtils.deleteDirectory(file);
+    hfa.setBasePath(testFileDir);
+    hfa.init();
+    HDHTFileAccess.HDSFileWriter out = (HDHTFileAccess.HDSFileWriter)hfa.getWriter(bucketKey, fileName);
+    for (int i = 0; i < keys.length; i++) {
+      byte[] value = values[i].getBytes();
+      byte[] buffer = new byte[keys[i].length + value.length + 2];
+      System.arraycopy(keys[i], 0, buffer, 1, keys[i].length);
+      System.arraycopy(value, 0, buffer, keys[i].length + 1, value.length);
+      out.append(new Slice(buffer, 1, keys[i].length), new Slice(buffer, keys[i].length + 1, value.length));
+    }
+    out.close();
+  }
+
   private void testSeqRead(long bucketKey, FileAccessFSImpl hfa, String fileName) throws IOException
   {
     FileAccess.FileReader in = hfa.getReader(bucketKey, fileName);
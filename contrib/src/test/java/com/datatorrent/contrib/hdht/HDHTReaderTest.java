@@ -190,4 +190,65 @@ public class HDHTReaderTest
     reader.teardown();
 
   }
+
+  @Test
+  public void testQueryThreads() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+
+    int numBuckets = 4;
+    for (long bucketKey = 1; bucketKey <= numBuckets; bucketKey++) {
+      writeKey(fa, HDHTWriterTest.newKey(bucketKey, 1), "data" + bucketKey);
+    }
+
+    final List<HDSQuery> results = Lists.newArrayList();
+    HDHTReader reader = new HDHTReader()
+    {
+      @Override
+      protected void emitQueryResult(HDSQuery query)
+      {
+        results.add(query);
+      }
+    };
+    reader.setQueryThreads(numBuckets);
+    reader.setFileStore(fa);
+    reader.setup(null);
+
+    List<HDSQuery> queries = Lists.newArrayList();
+    reader.beginWindow(1);
+    for (long bucketKey = 1; bucketKey <= numBuckets; bucketKey++) {
+      HDSQuery q = new HDSQuery();
+      q.bucketKey = bucketKey;
+      q.keepAliveCount = 100;
+      q.key = HDHTWriterTest.newKey(bucketKey, 1);
+      reader.addQuery(q);
+      queries.add(q);
+    }
+    reader.endWindow(); // lookups run on the query threads
+
+    long endTime = System.currentTimeMillis() + 10000;
+    for (long windowId = 2; System.currentTimeMillis() < endTime; windowId++) {
+      boolean processed = true;
+      for (HDSQuery q : queries) {
+        processed &= q.processed;
+      }
+      if (processed) {
+        break;
+      }
+      reader.beginWindow(windowId);
+      reader.endWindow(); // pending queries are not submitted again
+      Thread.sleep(10);
+    }
+
+    for (HDSQuery q : queries) {
+      Assert.assertTrue("processed " + q, q.processed);
+      Assert.assertFalse("pending " + q, q.pending);
+      Assert.assertArrayEquals("query result " + q, ("data" + q.bucketKey).getBytes(), q.result);
+    }
+    reader.teardown();
+  }
 }
@@ -15,14 +15,20 @@
  */
 package com.datatorrent.contrib.hdht;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Rule;
@@ -32,11 +38,13 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.RegexFileFilter;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import com.datatorrent.api.Attribute.AttributeMap.DefaultAttributeMap;
 import com.datatorrent.contrib.hdht.HDHTReader.HDSQuery;
 import com.datatorrent.contrib.hdht.hfile.HFileImpl;
+import com.datatorrent.contrib.hdht.mmap.MappedFileImpl;
 import com.datatorrent.contrib.hdht.tfile.TFileImpl;
 import com.datatorrent.lib.fileaccess.FileAccess;
 import com.datatorrent.lib.fileaccess.FileAccessFSImpl;
@@ -260,6 +268,547 @@ public class HDHTWriterTest
 
   }
 
+  @Test
+  public void testSortedRuns() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(0); // flush after every key
+    hds.setSortedRunLevels(2);
+    hds.setSortedRunFanout(2);
+
+    long BUCKETKEY = 1;
+    Slice key1 = newKey(BUCKETKEY, 1);
+    Slice key2 = newKey(BUCKETKEY, 2);
+    Slice key3 = newKey(BUCKETKEY, 3);
+
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+    hds.beginWindow(1);
+    hds.put(BUCKETKEY, key1, "data1-1".getBytes());
+    hds.put(BUCKETKEY, key2, "data2-1".getBytes());
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+
+    HDHTWriter.BucketMeta meta = hds.loadBucketMeta(BUCKETKEY);
+    Assert.assertEquals("runs after first flush", 1, meta.runs.size());
+    Assert.assertEquals("data files after first flush", 0, meta.files.size());
+    Assert.assertArrayEquals("get from run", "data1-1".getBytes(), hds.get(BUCKETKEY, key1));
+
+    hds.beginWindow(2);
+    hds.put(BUCKETKEY, key1, "data1-2".getBytes());
+    hds.delete(BUCKETKEY, key2);
+    hds.endWindow();
+    hds.checkpointed(2);
+    hds.committed(2);
+
+    meta = hds.loadBucketMeta(BUCKETKEY);
+    Assert.assertEquals("level 0 runs merged", 1, meta.runs.size());
+    Assert.assertEquals("merged run level", 1, meta.runs.getFirst().level);
+    Assert.assertArrayEquals("get updated key", "data1-2".getBytes(), hds.get(BUCKETKEY, key1));
+    Assert.assertNull("get deleted key", hds.get(BUCKETKEY, key2));
+
+    hds.beginWindow(3);
+    hds.put(BUCKETKEY, key3, "data3-3".getBytes());
+    hds.endWindow();
+    hds.checkpointed(3);
+    hds.committed(3);
+
+    meta = hds.loadBucketMeta(BUCKETKEY);
+    Assert.assertEquals("runs of two levels", 2, meta.runs.size());
+    Assert.assertEquals("newest run first", 0, meta.runs.getFirst().level);
+
+    hds.beginWindow(4);
+    hds.put(BUCKETKEY, key2, "data2-4".getBytes());
+    hds.endWindow();
+    hds.checkpointed(4);
+    hds.committed(4);
+
+    meta = hds.loadBucketMeta(BUCKETKEY);
+    Assert.assertEquals("last level merged into data files", 0, meta.runs.size());
+    Assert.assertEquals("data files", 1, meta.files.size());
+    Assert.assertArrayEquals("get key1", "data1-2".getBytes(), hds.get(BUCKETKEY, key1));
+    Assert.assertArrayEquals("get key2", "data2-4".getBytes(), hds.get(BUCKETKEY, key2));
+    Assert.assertArrayEquals("get key3", "data3-3".getBytes(), hds.get(BUCKETKEY, key3));
+
+    hds.teardown();
+  }
+
+  @Test
+  public void testParallelFlush() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushIntervalCount(0); // flush after every window
+    hds.setFlushThreads(4);
+
+    int numBuckets = 8;
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+
+    for (long windowId = 1; windowId <= 3; windowId++) {
+      hds.beginWindow(windowId);
+      for (long bucketKey = 0; bucketKey < numBuckets; bucketKey++) {
+        for (long seq = 0; seq < 10; seq++) {
+          hds.put(bucketKey, newKey(bucketKey, seq), ("data" + seq + "-" + windowId).getBytes());
+        }
+      }
+      hds.endWindow();
+      hds.checkpointed(windowId);
+      hds.committed(windowId);
+    }
+
+    hds.writeExecutor.shutdown();
+    Assert.assertTrue("flushes completed", hds.writeExecutor.awaitTermination(10, TimeUnit.SECONDS));
+
+    for (long bucketKey = 0; bucketKey < numBuckets; bucketKey++) {
+      HDHTWriter.BucketMeta meta = hds.loadBucketMeta(bucketKey);
+      Assert.assertEquals("data files " + bucketKey, 1, meta.files.size());
+      Assert.assertTrue("committed window " + bucketKey, meta.committedWid > 0);
+      for (long seq = 0; seq < 10; seq++) {
+        Slice key = newKey(bucketKey, seq);
+        byte[] expected = ("data" + seq + "-" + meta.committedWid).getBytes();
+        Assert.assertArrayEquals("flushed value " + key, expected, hds.get(bucketKey, key));
+      }
+    }
+
+    hds.teardown();
+  }
+
+  @Test
+  public void testParallelFlushWalCleanup() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushIntervalCount(0); // flush after every window
+    hds.setFlushThreads(4);
+
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+
+    int numWindows = 10;
+    for (long windowId = 1; windowId <= numWindows; windowId++) {
+      hds.beginWindow(windowId);
+      // a new bucket in every window while flushes of the previous window are running
+      for (long bucketKey = 0; bucketKey <= windowId; bucketKey++) {
+        hds.put(bucketKey, newKey(bucketKey, windowId), ("data" + windowId).getBytes());
+      }
+      hds.endWindow();
+      hds.checkpointed(windowId);
+      hds.committed(windowId);
+    }
+
+    hds.writeExecutor.shutdown();
+    Assert.assertTrue("flushes completed", hds.writeExecutor.awaitTermination(10, TimeUnit.SECONDS));
+
+    HDHTWalManager.WalPosition expected = null;
+    for (long bucketKey = 0; bucketKey <= numWindows; bucketKey++) {
+      HDHTWalManager.WalPosition position = hds.loadBucketMeta(bucketKey).recoveryStartWalPosition;
+      if (expected == null || position.fileId < expected.fileId
+          || (position.fileId == expected.fileId && position.offset < expected.offset)) {
+        expected = position;
+      }
+    }
+
+    // recovery position of the flushes is assigned on the operator thread, flush errors are thrown here
+    hds.beginWindow(numWindows + 1);
+    hds.endWindow();
+    Assert.assertEquals("recovery file", expected.fileId, hds.minimumRecoveryWalPosition.fileId);
+    Assert.assertEquals("recovery offset", expected.offset, hds.minimumRecoveryWalPosition.offset);
+
+    hds.teardown();
+  }
+
+  @Test
+  public void testOffHeapWriteCache() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setOffHeapWriteCache(true);
+    hds.setFlushSize(Integer.MAX_VALUE);
+    hds.setFlushIntervalCount(Integer.MAX_VALUE);
+    hds.setFlushBytes(1024);
+
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+    long bucketKey = 1;
+    hds.beginWindow(1);
+    for (long seq = 0; seq < 10; seq++) {
+      hds.put(bucketKey, newKey(bucketKey, seq), ("data" + seq).getBytes());
+    }
+    hds.delete(bucketKey, newKey(bucketKey, 0));
+    Assert.assertNull("deleted", hds.getUncommitted(bucketKey, newKey(bucketKey, 0)));
+    Assert.assertArrayEquals("getUncommitted", "data1".getBytes(), hds.getUncommitted(bucketKey, newKey(bucketKey, 1)));
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+    Assert.assertEquals("below flush bytes", 0, hds.loadBucketMeta(bucketKey).files.size());
+    Assert.assertArrayEquals("committed", "data2".getBytes(), hds.getUncommitted(bucketKey, newKey(bucketKey, 2)));
+
+    hds.beginWindow(2);
+    for (long seq = 10; seq < 100; seq++) {
+      hds.put(bucketKey, newKey(bucketKey, seq), ("data" + seq).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(2);
+    hds.committed(2);
+
+    HDHTWriter.BucketMeta meta = hds.loadBucketMeta(bucketKey);
+    Assert.assertEquals("flushed after flush bytes", 1, meta.files.size());
+    Assert.assertEquals("committed window", 2, meta.committedWid);
+    Assert.assertNull("getUncommitted after flush", hds.getUncommitted(bucketKey, newKey(bucketKey, 1)));
+    Assert.assertNull("deleted", hds.get(bucketKey, newKey(bucketKey, 0)));
+    for (long seq = 1; seq < 100; seq++) {
+      Assert.assertArrayEquals("flushed value", ("data" + seq).getBytes(), hds.get(bucketKey, newKey(bucketKey, seq)));
+    }
+    hds.teardown();
+  }
+
+  @Test
+  public void testMetaEdits() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setMaxFileSize(1); // limit to single entry per file
+    hds.setFlushSize(0); // flush after every key
+    hds.setMetaSnapshotInterval(2);
+
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+    long bucketKey = 1;
+    File bucketDir = new File(file, Long.toString(bucketKey));
+    HDHTWriter.BucketMeta base = null;
+    for (int windowId = 1; windowId <= 4; windowId++) {
+      hds.beginWindow(windowId);
+      hds.put(bucketKey, newKey(bucketKey, windowId), ("data" + windowId).getBytes());
+      // replaces the file of the first key
+      hds.put(bucketKey, newKey(bucketKey, 1), ("update" + windowId).getBytes());
+      hds.endWindow();
+      hds.checkpointed(windowId);
+      hds.committed(windowId);
+
+      HDHTWriter.BucketMeta meta = hds.loadBucketMeta(bucketKey);
+      Assert.assertEquals("edit sequence", windowId, meta.editSeq);
+      Assert.assertEquals("committed window", windowId, meta.committedWid);
+      Assert.assertEquals("files", windowId, meta.files.size());
+      if (base != null) {
+        HDHTWriter.BucketMeta incremental = hds.loadBucketMeta(bucketKey, base);
+        Assert.assertEquals("edit sequence", windowId, incremental.editSeq);
+        Assert.assertEquals("files", fileNames(meta), fileNames(incremental));
+      }
+      base = meta;
+    }
+
+    // snapshot written with the first and the third edit
+    Assert.assertEquals("snapshot", 3, base.snapshotSeq);
+    Assert.assertTrue("exists " + HDHTWriter.FNAME_META, new File(bucketDir, HDHTWriter.FNAME_META).exists());
+    Assert.assertFalse("edit removed", new File(bucketDir, HDHTWriter.FNAME_META_EDIT + 2).exists());
+    Assert.assertTrue("edit of snapshot", new File(bucketDir, HDHTWriter.FNAME_META_EDIT + 3).exists());
+    Assert.assertTrue("edit after snapshot", new File(bucketDir, HDHTWriter.FNAME_META_EDIT + 4).exists());
+
+    for (int windowId = 1; windowId <= 4; windowId++) {
+      byte[] expected = (windowId == 1 ? "update4" : "data" + windowId).getBytes();
+      Assert.assertArrayEquals("get " + windowId, expected, hds.get(bucketKey, newKey(bucketKey, windowId)));
+    }
+    hds.teardown();
+  }
+
+  private static List<String> fileNames(HDHTWriter.BucketMeta meta)
+  {
+    List<String> names = Lists.newArrayList();
+    for (HDHTReader.BucketFileMeta bfm : meta.files.values()) {
+      names.add(bfm.name);
+    }
+    return names;
+  }
+
+  /**
+   * Bucket 1 with the meta data snapshot of a store written before the meta data format was versioned. The snapshot
+   * has the data files 1-0 to 1-2 starting at the keys 1 to 3, file sequence 3 and committed window 1.
+   */
+  private HDHTWriter openLegacyStore(File file) throws Exception
+  {
+    FileUtils.deleteDirectory(file);
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    long bucketKey = 1;
+
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(0);
+    hds.setMaxFileSize(1); // single entry per file
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+    hds.beginWindow(1);
+    for (int i = 1; i <= 3; i++) {
+      hds.put(bucketKey, newKey(bucketKey, i), ("data" + i).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+    hds.teardown();
+
+    // replace the meta data files with the legacy snapshot
+    File bucketDir = new File(file, Long.toString(bucketKey));
+    for (File metaFile : bucketDir.listFiles()) {
+      if (metaFile.getName().startsWith("_")) {
+        FileUtils.forceDelete(metaFile);
+      }
+    }
+    FileUtils.copyURLToFile(getClass().getResource("/hdht/legacy/1/" + HDHTWriter.FNAME_META),
+        new File(bucketDir, HDHTWriter.FNAME_META));
+
+    hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(0);
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor();
+    return hds;
+  }
+
+  @Test
+  public void testLegacyMeta() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    HDHTWriter hds = openLegacyStore(file);
+    long bucketKey = 1;
+
+    HDHTWriter.BucketMeta meta = hds.loadBucketMeta(bucketKey);
+    Assert.assertEquals("files", Lists.newArrayList("1-0", "1-1", "1-2"), fileNames(meta));
+    Assert.assertEquals("file sequence", 3, meta.fileSeq);
+    Assert.assertEquals("committed window", 1, meta.committedWid);
+    Assert.assertNotNull("runs", meta.runs);
+    Assert.assertTrue("no sorted runs", meta.runs.isEmpty());
+    for (int i = 1; i <= 3; i++) {
+      Assert.assertArrayEquals("get " + i, ("data" + i).getBytes(), hds.get(bucketKey, newKey(bucketKey, i)));
+    }
+
+    hds.beginWindow(2);
+    hds.put(bucketKey, newKey(bucketKey, 4), "data4".getBytes());
+    hds.endWindow();
+    hds.checkpointed(2);
+    hds.committed(2);
+
+    // the flush writes the current format
+    byte[] header = new byte[HDHTReader.META_MAGIC.length];
+    DataInputStream is = hds.getFileStore().getInputStream(bucketKey, HDHTWriter.FNAME_META);
+    is.readFully(header);
+    is.close();
+    Assert.assertArrayEquals("versioned snapshot", HDHTReader.META_MAGIC, header);
+
+    meta = hds.loadBucketMeta(bucketKey);
+    Assert.assertEquals("committed window", 2, meta.committedWid);
+    for (int i = 1; i <= 4; i++) {
+      Assert.assertArrayEquals("get " + i, ("data" + i).getBytes(), hds.get(bucketKey, newKey(bucketKey, i)));
+    }
+    hds.teardown();
+  }
+
+  @Test
+  public void testLegacyMetaEdits() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    HDHTWriter hds = openLegacyStore(file);
+    hds.setMetaSnapshotInterval(2);
+    long bucketKey = 1;
+    File bucketDir = new File(file, Long.toString(bucketKey));
+
+    HDHTWriter.BucketMeta legacy = hds.loadBucketMeta(bucketKey);
+    Assert.assertEquals("edit sequence", 0, legacy.editSeq);
+    Assert.assertEquals("snapshot", 0, legacy.snapshotSeq);
+
+    for (int windowId = 2; windowId <= 3; windowId++) {
+      hds.beginWindow(windowId);
+      hds.put(bucketKey, newKey(bucketKey, windowId + 2), ("data" + (windowId + 2)).getBytes());
+      hds.endWindow();
+      hds.checkpointed(windowId);
+      hds.committed(windowId);
+    }
+
+    // the first flush after the migration writes a snapshot along with its edit
+    HDHTWriter.BucketMeta meta = hds.loadBucketMeta(bucketKey);
+    Assert.assertEquals("edit sequence", 2, meta.editSeq);
+    Assert.assertEquals("snapshot", 1, meta.snapshotSeq);
+    Assert.assertTrue("edit of snapshot", new File(bucketDir, HDHTWriter.FNAME_META_EDIT + 1).exists());
+    Assert.assertTrue("edit after snapshot", new File(bucketDir, HDHTWriter.FNAME_META_EDIT + 2).exists());
+
+    // readers holding the legacy version apply the edits
+    HDHTWriter.BucketMeta incremental = hds.loadBucketMeta(bucketKey, legacy);
+    Assert.assertEquals("edit sequence", 2, incremental.editSeq);
+    Assert.assertEquals("files", fileNames(meta), fileNames(incremental));
+    for (int i = 1; i <= 5; i++) {
+      Assert.assertArrayEquals("get " + i, ("data" + i).getBytes(), hds.get(bucketKey, newKey(bucketKey, i)));
+    }
+    hds.teardown();
+  }
+
+  @Test
+  public void testLegacyMetaFileSize() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    HDHTWriter hds = openLegacyStore(file);
+    hds.setAdaptiveFileSize(true);
+    hds.setMinFileSize(1024);
+    long bucketKey = 1;
+
+    for (HDHTReader.BucketFileMeta fileMeta : hds.loadBucketMeta(bucketKey).files.values()) {
+      Assert.assertEquals("size of " + fileMeta.name, HDHTReader.BucketFileMeta.UNKNOWN_SIZE, fileMeta.bytes);
+    }
+
+    for (int windowId = 2; windowId <= 6; windowId++) {
+      hds.beginWindow(windowId);
+      // only the last file is rewritten
+      hds.put(bucketKey, newKey(bucketKey, 3), ("update" + windowId).getBytes());
+      hds.endWindow();
+      hds.checkpointed(windowId);
+      hds.committed(windowId);
+
+      // small files of unknown size are not mistaken for cold files and merged
+      HDHTWriter.BucketMeta meta = hds.loadBucketMeta(bucketKey);
+      Assert.assertEquals("files window " + windowId, 3, meta.files.size());
+      Assert.assertEquals("unknown size", HDHTReader.BucketFileMeta.UNKNOWN_SIZE,
+          meta.files.firstEntry().getValue().bytes);
+      Assert.assertTrue("rewritten file size", meta.files.lastEntry().getValue().bytes > 0);
+    }
+
+    Assert.assertArrayEquals("get 1", "data1".getBytes(), hds.get(bucketKey, newKey(bucketKey, 1)));
+    Assert.assertArrayEquals("get 2", "data2".getBytes(), hds.get(bucketKey, newKey(bucketKey, 2)));
+    Assert.assertArrayEquals("get 3", "update6".getBytes(), hds.get(bucketKey, newKey(bucketKey, 3)));
+    hds.teardown();
+  }
+
+  @Test
+  public void testAdaptiveFileSize() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(0); // flush after every key
+    hds.setAdaptiveFileSize(true);
+    hds.setMinFileSize(1024);
+    hds.setMaxFileSize(1); // single entry per file in the first window
+
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+    byte[] value = new byte[100];
+    hds.beginWindow(1);
+    for (int i = 0; i < 10; i++) {
+      hds.put(1, newKey(1, i), ("data" + i).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+    Assert.assertEquals("files bucket 1", 10, hds.loadBucketMeta(1).files.size());
+
+    hds.setMaxFileSize(1024 * 1024);
+    for (int windowId = 2; windowId <= 6; windowId++) {
+      hds.beginWindow(windowId);
+      // only the last file of bucket 1 is rewritten
+      hds.put(1, newKey(1, 9), ("update" + windowId).getBytes());
+      if (windowId == 2) {
+        for (int i = 0; i < 100; i++) {
+          hds.put(2, newKey(2, i), value);
+        }
+      } else {
+        // hot file of bucket 2 is split on every rewrite
+        hds.put(2, newKey(2, 99), value);
+      }
+      hds.endWindow();
+      hds.checkpointed(windowId);
+      hds.committed(windowId);
+
+      if (windowId <= 4) {
+        Assert.assertEquals("files bucket 2 window " + windowId, windowId - 1, hds.loadBucketMeta(2).files.size());
+      }
+      if (windowId == 5) {
+        Assert.assertEquals("files bucket 1 before merge", 10, hds.loadBucketMeta(1).files.size());
+      }
+    }
+
+    // files not rewritten in the last 4 flushes were merged
+    Assert.assertEquals("files bucket 1 after merge", 2, hds.loadBucketMeta(1).files.size());
+    for (int i = 0; i < 9; i++) {
+      Assert.assertArrayEquals("merged " + i, ("data" + i).getBytes(), hds.get(1, newKey(1, i)));
+    }
+    Assert.assertArrayEquals("hot key", "update6".getBytes(), hds.get(1, newKey(1, 9)));
+    for (int i = 0; i < 100; i++) {
+      Assert.assertArrayEquals("split " + i, value, hds.get(2, newKey(2, i)));
+    }
+    hds.teardown();
+  }
+
+  @Test
+  public void testWriteCacheBudget() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(Integer.MAX_VALUE);
+    hds.setFlushIntervalCount(Integer.MAX_VALUE);
+    // keys are 16 bytes, entries 116 bytes
+    byte[] value = new byte[100];
+    hds.setMaxWriteCacheBytes(30 * 116);
+
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+    long[] entries = {50, 10, 5};
+    hds.beginWindow(1);
+    for (int bucketKey = 0; bucketKey < entries.length; bucketKey++) {
+      for (long seq = 0; seq < entries[bucketKey]; seq++) {
+        hds.put(bucketKey, newKey(bucketKey, seq), value);
+      }
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+
+    Assert.assertEquals("largest bucket flushed", 1, hds.loadBucketMeta(0).files.size());
+    Assert.assertEquals("bucket within budget", 0, hds.loadBucketMeta(1).files.size());
+    Assert.assertEquals("bucket within budget", 0, hds.loadBucketMeta(2).files.size());
+    Assert.assertEquals("committed entries", 10, hds.committedDataSize(1));
+
+    Map<Long, HDHTWriter.BucketIOStats> stats = hds.getBucketStats();
+    Assert.assertEquals("budget flushes", 1, stats.get(0L).budgetFlushCount);
+    Assert.assertEquals("committed bytes", 10 * 116, stats.get(1L).bytesInCommittedCache);
+    Assert.assertEquals("frozen bytes after flush", 0, stats.get(0L).bytesInFrozenCache);
+    hds.teardown();
+  }
+
   @Test
   public void testRandomWrite() throws Exception
   {
@@ -450,6 +999,14 @@ public class HDHTWriterTest
     testHDSFileAccess(hfi);
   }
 
+  @Test
+  public void testMappedFileHDSFileAccess() throws Exception
+  {
+    MappedFileImpl mfi = new MappedFileImpl();
+    mfi.setBlockSize(64);
+    testHDSFileAccess(mfi);
+  }
+
   @Test
   public void testQueryResultRefresh() throws Exception
   {
@@ -493,5 +1050,360 @@ public class HDHTWriterTest
     Assert.assertArrayEquals("query result", q.result, newdata.getBytes());
   }
 
-}
+  @Test
+  public void testRangeScan() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(0); // flush after every key
+    hds.setIndexBlockSize(64);
+    hds.queryExecutor = MoreExecutors.sameThreadExecutor();
+
+    long BUCKETKEY = 1;
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+    hds.beginWindow(1);
+    for (long seq = 1; seq <= 10; seq++) {
+      hds.put(BUCKETKEY, newKey(BUCKETKEY, seq), ("data" + seq).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+
+    TreeMap<Slice, byte[]> result = hds.scan(BUCKETKEY, newKey(BUCKETKEY, 2), newKey(BUCKETKEY, 9));
+    Assert.assertEquals("keys in range", 8, result.size());
+    Assert.assertEquals("first key", newKey(BUCKETKEY, 2), result.firstKey());
+    Assert.assertEquals("last key", newKey(BUCKETKEY, 9), result.lastKey());
+
+    // uncommitted changes
+    hds.beginWindow(2);
+    hds.put(BUCKETKEY, newKey(BUCKETKEY, 3), "data3-2".getBytes());
+    hds.delete(BUCKETKEY, newKey(BUCKETKEY, 4));
+    hds.purge(BUCKETKEY, newKey(BUCKETKEY, 7), newKey(BUCKETKEY, 8));
+    hds.put(BUCKETKEY, newKey(BUCKETKEY, 8), "data8-2".getBytes());
+    hds.put(BUCKETKEY, newKey(BUCKETKEY, 11), "data11-2".getBytes());
+
+    result = hds.scan(BUCKETKEY, newKey(BUCKETKEY, 2), newKey(BUCKETKEY, 9));
+    Assert.assertEquals("keys in range", 6, result.size());
+    Assert.assertArrayEquals("updated key", "data3-2".getBytes(), result.get(newKey(BUCKETKEY, 3)));
+    Assert.assertNull("deleted key", result.get(newKey(BUCKETKEY, 4)));
+    Assert.assertNull("purged key", result.get(newKey(BUCKETKEY, 7)));
+    Assert.assertArrayEquals("key written after purge", "data8-2".getBytes(), result.get(newKey(BUCKETKEY, 8)));
+
+    HDHTReader.HDSRangeQuery q = new HDHTReader.HDSRangeQuery();
+    q.bucketKey = BUCKETKEY;
+    q.start = newKey(BUCKETKEY, 9);
+    q.end = newKey(BUCKETKEY, 20);
+    q.keepAliveCount = 10;
+    hds.addRangeQuery(q);
+    hds.endWindow();
+    Assert.assertTrue("query processed", q.processed);
+    Assert.assertEquals("query result keys", 3, q.result.size());
+    Assert.assertArrayEquals("uncommitted key in result", "data11-2".getBytes(), q.result.get(newKey(BUCKETKEY, 11)));
+
+    // processed query is updated with new changes
+    hds.beginWindow(3);
+    hds.delete(BUCKETKEY, newKey(BUCKETKEY, 10));
+    hds.endWindow();
+    Assert.assertEquals("query result keys after delete", 2, q.result.size());
+
+    hds.teardown();
+  }
+
+  @Test
+  public void testRangeQueryChangedDuringScan() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(0); // flush after every key
+
+    long BUCKETKEY = 1;
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+    hds.beginWindow(1);
+    for (long seq = 1; seq <= 10; seq++) {
+      hds.put(BUCKETKEY, newKey(BUCKETKEY, seq), ("data" + seq).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
 
+    // block the query thread, the scan is queued behind
+    final CountDownLatch scanBlocked = new CountDownLatch(1);
+    hds.queryExecutor.execute(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try {
+          scanBlocked.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+
+    hds.beginWindow(2);
+    HDHTReader.HDSRangeQuery q = new HDHTReader.HDSRangeQuery();
+    q.bucketKey = BUCKETKEY;
+    q.start = newKey(BUCKETKEY, 1);
+    q.end = newKey(BUCKETKEY, 10);
+    q.keepAliveCount = 10;
+    hds.addRangeQuery(q);
+    hds.endWindow();
+    Assert.assertFalse("query processed", q.processed);
+    Assert.assertTrue("scan pending", q.pending);
+
+    // changes made while the scan is queued
+    hds.beginWindow(3);
+    hds.put(BUCKETKEY, newKey(BUCKETKEY, 5), "data5-3".getBytes());
+    hds.delete(BUCKETKEY, newKey(BUCKETKEY, 6));
+    hds.purge(BUCKETKEY, newKey(BUCKETKEY, 8), newKey(BUCKETKEY, 9));
+    scanBlocked.countDown();
+
+    long timeout = System.currentTimeMillis() + 10000;
+    while (!q.processed && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue("query processed", q.processed);
+    Assert.assertEquals("query result keys", 7, q.result.size());
+    Assert.assertArrayEquals("key put during scan", "data5-3".getBytes(), q.result.get(newKey(BUCKETKEY, 5)));
+    Assert.assertNull("key deleted during scan", q.result.get(newKey(BUCKETKEY, 6)));
+    Assert.assertNull("key purged during scan", q.result.get(newKey(BUCKETKEY, 8)));
+    hds.endWindow();
+
+    hds.teardown();
+  }
+
+  @Test
+  public void testRangeQueryScanInFlightNotResubmitted() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(0); // flush after every key
+    hds.setQueryThreads(2);
+
+    long BUCKETKEY = 1;
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+    hds.beginWindow(1);
+    for (long seq = 1; seq <= 10; seq++) {
+      hds.put(BUCKETKEY, newKey(BUCKETKEY, seq), ("data" + seq).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(1);
+    hds.committed(1);
+
+    // block both query threads, the scan is queued behind
+    final CountDownLatch scanBlocked = new CountDownLatch(1);
+    for (int i = 0; i < 2; i++) {
+      hds.queryExecutor.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try {
+            scanBlocked.await();
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+    }
+
+    hds.beginWindow(2);
+    HDHTReader.HDSRangeQuery q = new HDHTReader.HDSRangeQuery();
+    q.bucketKey = BUCKETKEY;
+    q.start = newKey(BUCKETKEY, 1);
+    q.end = newKey(BUCKETKEY, 10);
+    q.keepAliveCount = 10;
+    hds.addRangeQuery(q);
+    hds.endWindow();
+    ThreadPoolExecutor executor = (ThreadPoolExecutor)hds.queryExecutor;
+    long taskCount = executor.getTaskCount();
+
+    // the query is marked to be scanned again instead of running a second scan next to the one in flight
+    hds.beginWindow(3);
+    hds.processRangeQuery(q);
+    hds.endWindow();
+    Assert.assertEquals("scan not submitted again", taskCount, executor.getTaskCount());
+    Assert.assertEquals("generation", 1, q.generation);
+
+    scanBlocked.countDown();
+    long timeout = System.currentTimeMillis() + 10000;
+    while (q.pending && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    Assert.assertFalse("scan pending", q.pending);
+    Assert.assertFalse("stale result dropped", q.processed);
+
+    hds.beginWindow(4);
+    hds.put(BUCKETKEY, newKey(BUCKETKEY, 5), "data5-4".getBytes());
+    hds.endWindow(); // scanned again
+    while (!q.processed && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue("query processed", q.processed);
+    Assert.assertEquals("query result keys", 10, q.result.size());
+    Assert.assertArrayEquals("key put before scan", "data5-4".getBytes(), q.result.get(newKey(BUCKETKEY, 5)));
+
+    hds.teardown();
+  }
+
+  @Test
+  public void testMultiGet() throws Exception
+  {
+    // with block index (forward pass) and without (seek per key)
+    for (int indexBlockSize : new int[] {64, 0}) {
+      File file = new File(testInfo.getDir());
+      FileUtils.deleteDirectory(file);
+
+      FileAccessFSImpl fa = new MockFileAccess();
+      fa.setBasePath(file.getAbsolutePath());
+      HDHTWriter hds = new HDHTWriter();
+      hds.setFileStore(fa);
+      hds.setFlushSize(0); // flush after every key
+      hds.setMaxFileSize(512); // multiple data files
+      hds.setIndexBlockSize(indexBlockSize);
+      hds.queryExecutor = MoreExecutors.sameThreadExecutor();
+
+      long BUCKETKEY = 1;
+      hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+      hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+      hds.beginWindow(1);
+      for (long seq = 0; seq < 100; seq++) {
+        hds.put(BUCKETKEY, newKey(BUCKETKEY, seq), ("data" + seq).getBytes());
+      }
+      hds.endWindow();
+      hds.checkpointed(1);
+      hds.committed(1);
+      Assert.assertTrue("multiple data files", hds.loadBucketMeta(BUCKETKEY).files.size() > 1);
+
+      hds.beginWindow(2);
+      hds.delete(BUCKETKEY, newKey(BUCKETKEY, 5));
+      hds.put(BUCKETKEY, newKey(BUCKETKEY, 200), "data200".getBytes());
+
+      List<Slice> keys = Lists.newArrayList();
+      for (long seq : new long[] {99, 7, 5, 50, 150, 200, 3, 51}) {
+        keys.add(newKey(BUCKETKEY, seq));
+      }
+      Map<Slice, byte[]> result = hds.getAll(BUCKETKEY, keys);
+      Assert.assertEquals("keys found " + indexBlockSize, 6, result.size());
+      for (long seq : new long[] {99, 7, 50, 200, 3, 51}) {
+        Assert.assertArrayEquals("get " + seq, ("data" + seq).getBytes(), result.get(newKey(BUCKETKEY, seq)));
+      }
+      Assert.assertFalse("deleted key", result.containsKey(newKey(BUCKETKEY, 5)));
+      Assert.assertFalse("missing key", result.containsKey(newKey(BUCKETKEY, 150)));
+
+      // queries of a bucket are processed as a batch
+      List<HDSQuery> queries = Lists.newArrayList();
+      for (long seq : new long[] {20, 80, 250}) {
+        HDSQuery q = new HDSQuery();
+        q.key = newKey(BUCKETKEY, seq);
+        q.bucketKey = BUCKETKEY;
+        q.keepAliveCount = 10;
+        hds.addQuery(q);
+        queries.add(q);
+      }
+      hds.endWindow();
+      Assert.assertArrayEquals("query result", "data20".getBytes(), queries.get(0).result);
+      Assert.assertArrayEquals("query result", "data80".getBytes(), queries.get(1).result);
+      Assert.assertTrue("query processed", queries.get(2).processed);
+      Assert.assertNull("query result for missing key", queries.get(2).result);
+
+      hds.teardown();
+    }
+  }
+
+  @Test
+  public void testConcurrentReads() throws Exception
+  {
+    File file = new File(testInfo.getDir());
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl fa = new MockFileAccess();
+    fa.setBasePath(file.getAbsolutePath());
+    final HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(fa);
+    hds.setFlushSize(0); // flush after every key
+    hds.setMaxFileSize(512); // multiple data files
+
+    final long BUCKETKEY = 1;
+    final int numKeys = 100;
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(0, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor(); // synchronous flush
+
+    long windowId = 1;
+    hds.beginWindow(windowId);
+    for (long seq = 0; seq < numKeys; seq++) {
+      hds.put(BUCKETKEY, newKey(BUCKETKEY, seq), ("data" + seq + "-" + windowId).getBytes());
+    }
+    hds.endWindow();
+    hds.checkpointed(windowId);
+    hds.committed(windowId);
+
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    List<Thread> readers = Lists.newArrayList();
+    for (int i = 0; i < 4; i++) {
+      Thread t = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          try {
+            while (!done.get()) {
+              for (long seq = 0; seq < numKeys; seq++) {
+                byte[] value = hds.get(BUCKETKEY, newKey(BUCKETKEY, seq));
+                Assert.assertNotNull("value " + seq, value);
+                Assert.assertTrue("value " + seq, new String(value).startsWith("data" + seq + "-"));
+              }
+            }
+          } catch (Throwable e) {
+            error.set(e);
+          }
+        }
+      };
+      t.start();
+      readers.add(t);
+    }
+
+    // rewrite data files while readers are active
+    for (windowId = 2; windowId < 20; windowId++) {
+      hds.beginWindow(windowId);
+      for (long seq = 0; seq < numKeys; seq += 3) {
+        hds.put(BUCKETKEY, newKey(BUCKETKEY, seq), ("data" + seq + "-" + windowId).getBytes());
+      }
+      hds.endWindow();
+      hds.checkpointed(windowId);
+      hds.committed(windowId);
+    }
+
+    done.set(true);
+    for (Thread t : readers) {
+      t.join(10000);
+    }
+    Assert.assertNull("reader error " + error.get(), error.get());
+    hds.teardown();
+  }
+
+}
@@ -0,0 +1,53 @@
+package com.datatorrent.contrib.hdht;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import com.datatorrent.contrib.hdht.HDHTReader.HDSRangeQuery;
+
+public class RangeQueryIndexTest
+{
+  private static HDSRangeQuery newQuery(long bucketKey, long start, long end)
+  {
+    HDSRangeQuery query = new HDSRangeQuery();
+    query.bucketKey = bucketKey;
+    query.start = HDHTWriterTest.newKey(bucketKey, start);
+    query.end = HDHTWriterTest.newKey(bucketKey, end);
+    return query;
+  }
+
+  @Test
+  public void testOverlappingQueries()
+  {
+    HDSRangeQuery q1 = newQuery(1, 0, 100);
+    HDSRangeQuery q2 = newQuery(1, 10, 20);
+    HDSRangeQuery q3 = newQuery(1, 15, 30);
+    HDSRangeQuery q4 = newQuery(1, 50, 60);
+    HDSRangeQuery q5 = newQuery(2, 0, 100);
+    List<HDSRangeQuery> queries = Lists.newArrayList(q4, q3, q2, q1, q5);
+    HDHTReader.DefaultKeyComparator cmp = new HDHTReader.DefaultKeyComparator();
+    RangeQueryIndex index = new RangeQueryIndex(queries, cmp);
+
+    for (long bucketKey = 0; bucketKey <= 3; bucketKey++) {
+      for (long seq = 0; seq <= 110; seq++) {
+        Set<HDSRangeQuery> expected = Sets.newIdentityHashSet();
+        for (HDSRangeQuery query : queries) {
+          if (query.bucketKey == bucketKey && query.contains(HDHTWriterTest.newKey(bucketKey, seq), cmp)) {
+            expected.add(query);
+          }
+        }
+        Set<HDSRangeQuery> actual = Sets.newIdentityHashSet();
+        actual.addAll(index.get(bucketKey, HDHTWriterTest.newKey(bucketKey, seq)));
+        Assert.assertEquals("queries containing key " + bucketKey + "/" + seq, expected, actual);
+      }
+    }
+    Assert.assertEquals("key in three queries", 3, index.get(1, HDHTWriterTest.newKey(1, 17)).size());
+    Assert.assertTrue("no queries of bucket", index.get(3, HDHTWriterTest.newKey(3, 17)).isEmpty());
+  }
+}
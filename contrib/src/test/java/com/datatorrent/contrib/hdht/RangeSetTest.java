@@ -86,4 +86,42 @@ public class RangeSetTest
     Assert.assertEquals("Range ends at 20 ", new Integer(20), result.iterator().next().end);
 
   }
+
+  @Test
+  public void testContains()
+  {
+    RangeSet<Integer> rset = new RangeSet<>(new Comparator<Integer>()
+    {
+      @Override
+      public int compare(Integer o1, Integer o2)
+      {
+        return o1 - o2;
+      }
+    });
+
+    // added out of order, ranges 10-14, 20-24 ... 990-994
+    for (int i = 99; i >= 1; i--) {
+      rset.add(i * 10, i * 10 + 4);
+    }
+    Assert.assertEquals("Number of ranges", 99, rset.ranges.size());
+    Assert.assertFalse("before first range", rset.contains(5));
+    Assert.assertTrue("start of range", rset.contains(500));
+    Assert.assertTrue("end of range", rset.contains(504));
+    Assert.assertFalse("between ranges", rset.contains(505));
+    Assert.assertFalse("after last range", rset.contains(1000));
+
+    Assert.assertTrue("fully contained", rset.containsFully(new Range<>(501, 503)));
+    Assert.assertFalse("spans gap", rset.containsFully(new Range<>(503, 511)));
+    Assert.assertEquals("overlapping", 3, rset.getOverlappingRanges(new Range<>(503, 520)).ranges.size());
+
+    // one range covering several existing ranges, and one overlapping the merged and the next range
+    rset.add(502, 531);
+    rset.add(534, 540);
+    Assert.assertEquals("Number of ranges after merge", 95, rset.ranges.size());
+    Assert.assertTrue("merged range", rset.containsFully(new Range<>(500, 544)));
+    Assert.assertFalse("after merged range", rset.contains(545));
+
+    rset.add(600, 601);
+    Assert.assertEquals("Covered range not added", 95, rset.ranges.size());
+  }
 }
@@ -19,6 +19,8 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -28,11 +30,14 @@ import org.slf4j.LoggerFactory;
 import org.apache.commons.io.FileUtils;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import com.datatorrent.api.Attribute.AttributeMap.DefaultAttributeMap;
 import com.datatorrent.contrib.hdht.wal.FSWALReader;
 import com.datatorrent.contrib.hdht.wal.FSWALWriter;
+import com.datatorrent.contrib.hdht.wal.WALWriter;
 import com.datatorrent.lib.fileaccess.FileAccessFSImpl;
 import com.datatorrent.lib.helper.OperatorContextTestHelper;
 import com.datatorrent.lib.util.KryoCloneUtils;
@@ -734,6 +739,246 @@ public class WALTest
     Assert.assertEquals("Value is persisted ", 100, getLong(newOperator.get(1, getLongByteArray(4))));
   }
 
+  /**
+   * Write to three buckets with WAL rolled after every window, delete key in one bucket and
+   * recover with multiple threads. Latest value of each bucket is restored from WAL.
+   */
+  @Test
+  public void testParallelWalRecovery() throws IOException
+  {
+    File file = new File("target/hds");
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl bfs = new MockFileAccess();
+    bfs.setBasePath(file.getAbsolutePath());
+    bfs.init();
+    ((MockFileAccess)bfs).disableChecksum();
+
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(bfs);
+    hds.setMaxWalFileSize(1); // new WAL file every window
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(1, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor();
+
+    for (int windowId = 1; windowId <= 6; windowId++) {
+      hds.beginWindow(windowId);
+      for (int bucketKey = 1; bucketKey <= 3; bucketKey++) {
+        if (bucketKey == 2 && windowId >= 4) {
+          if (windowId == 4) {
+            hds.delete(bucketKey, getLongByteArray(1));
+          }
+          continue;
+        }
+        hds.put(bucketKey, getLongByteArray(1), getLongByteArray(windowId * 10 + bucketKey).toByteArray());
+      }
+      hds.endWindow();
+      hds.checkpointed(windowId);
+    }
+    HDHTWriter newOperator = KryoCloneUtils.cloneObject(new Kryo(), hds);
+    hds.forceWal();
+
+    FileAccessFSImpl walFs = new MockFileAccess();
+    walFs.setBasePath(file.getAbsolutePath() + "/WAL/");
+    walFs.init();
+    ((MockFileAccess)walFs).disableChecksum();
+
+    newOperator.setFileStore(bfs);
+    newOperator.setWalStore(walFs);
+    newOperator.setWalRecoveryThreads(2);
+    newOperator.setup(new OperatorContextTestHelper.TestIdOperatorContext(1, new DefaultAttributeMap()));
+    newOperator.writeExecutor = MoreExecutors.sameThreadExecutor();
+
+    // first put triggers recovery
+    newOperator.beginWindow(7);
+    newOperator.put(1, getLongByteArray(2), getLongByteArray(70).toByteArray());
+
+    Assert.assertEquals("Bucket 1 recovered", 61, getLong(newOperator.getUncommitted(1, getLongByteArray(1))));
+    Assert.assertNull("Bucket 2 delete recovered", newOperator.getUncommitted(2, getLongByteArray(1)));
+    Assert.assertEquals("Bucket 3 recovered", 63, getLong(newOperator.getUncommitted(3, getLongByteArray(1))));
+    Assert.assertEquals("Entries in committed cache", 1, newOperator.committedDataSize(3));
+    newOperator.endWindow();
+    newOperator.teardown();
+  }
+
+  /**
+   * Write compressed blocks on a separate thread, flush in between as at end of window and
+   * read back from the start and from the position of the first flush.
+   */
+  @Test
+  public void testCompressedWal() throws IOException
+  {
+    FileUtils.deleteDirectory(file);
+    FileAccessFSImpl bfs = new MockFileAccess();
+    bfs.setBasePath(file.getAbsolutePath());
+    bfs.init();
+
+    ExecutorService writeExecutor = Executors.newSingleThreadExecutor();
+    FSWALWriter wWriter = new FSWALWriter(bfs, new HDHTLogEntry.HDHTLogSerializer(), 1, "WAL-0");
+    wWriter.setCompression(true);
+    wWriter.setBlockSize(1024);
+    wWriter.setWriteExecutor(writeExecutor);
+
+    int totalTuples = 100;
+    int recoveryTuples = 30;
+    long uncompressedSize = 0;
+    long offset = 0;
+    for (int i = 0; i < totalTuples; i++) {
+      uncompressedSize += wWriter.append(new HDHTLogEntry.PutEntry(0, getLongByteArray(i), new byte[100]));
+      if (i == recoveryTuples - 1) {
+        wWriter.flush(WALWriter.Durability.HFLUSH);
+        offset = wWriter.getSize();
+      }
+    }
+    wWriter.close();
+    writeExecutor.shutdown();
+
+    File wal0 = new File(file.getAbsoluteFile().toString() + "/1/WAL-0");
+    Assert.assertEquals("WAL size", wal0.length(), wWriter.getSize());
+    Assert.assertTrue("WAL compressed " + wal0.length(), wal0.length() < uncompressedSize / 2);
+
+    FSWALReader wReader = new FSWALReader(bfs, new HDHTLogEntry.HDHTLogSerializer(), 1, "WAL-0");
+    int read = 0;
+    while (wReader.advance()) {
+      HDHTLogEntry.PutEntry entry = (HDHTLogEntry.PutEntry)wReader.get();
+      Assert.assertEquals("key", getLongByteArray(read), entry.key);
+      read++;
+    }
+    wReader.close();
+    Assert.assertEquals("Number of tuples read", totalTuples, read);
+
+    wReader = new FSWALReader(bfs, new HDHTLogEntry.HDHTLogSerializer(), 1, "WAL-0");
+    wReader.seek(offset);
+    read = 0;
+    while (wReader.advance()) {
+      read++;
+    }
+    wReader.close();
+    Assert.assertEquals("Number of tuples read after skipping", totalTuples - recoveryTuples, read);
+  }
+
+  /**
+   * Recover from a compressed WAL written asynchronously with relaxed durability.
+   */
+  @Test
+  public void testCompressedWalRecovery() throws IOException
+  {
+    File file = new File("target/hds");
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl bfs = new MockFileAccess();
+    bfs.setBasePath(file.getAbsolutePath());
+    bfs.init();
+    ((MockFileAccess)bfs).disableChecksum();
+
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(bfs);
+    hds.setWalCompression(true);
+    hds.setWalAsyncWrite(true);
+    hds.setWalDurability(WALWriter.Durability.HFLUSH);
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(1, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor();
+
+    for (int windowId = 1; windowId <= 4; windowId++) {
+      hds.beginWindow(windowId);
+      for (int key = 0; key < 10; key++) {
+        hds.put(1, getLongByteArray(key), getLongByteArray(windowId * 100 + key).toByteArray());
+      }
+      hds.endWindow();
+      hds.checkpointed(windowId);
+      if (windowId == 2) {
+        hds.committed(windowId);
+      }
+    }
+    HDHTWriter newOperator = KryoCloneUtils.cloneObject(new Kryo(), hds);
+
+    // entries after the checkpoint are removed on recovery
+    hds.beginWindow(5);
+    hds.put(1, getLongByteArray(0), getLongByteArray(500).toByteArray());
+    hds.endWindow();
+    hds.forceWal();
+
+    FileAccessFSImpl walFs = new MockFileAccess();
+    walFs.setBasePath(file.getAbsolutePath() + "/WAL/");
+    walFs.init();
+    ((MockFileAccess)walFs).disableChecksum();
+
+    newOperator.setFileStore(bfs);
+    newOperator.setWalStore(walFs);
+    newOperator.setup(new OperatorContextTestHelper.TestIdOperatorContext(1, new DefaultAttributeMap()));
+    newOperator.writeExecutor = MoreExecutors.sameThreadExecutor();
+
+    // first put triggers recovery
+    newOperator.beginWindow(5);
+    newOperator.put(1, getLongByteArray(20), getLongByteArray(520).toByteArray());
+    for (int key = 0; key < 10; key++) {
+      Assert.assertEquals("Recovered " + key, 400 + key, getLong(newOperator.getUncommitted(1, getLongByteArray(key))));
+    }
+    newOperator.endWindow();
+    newOperator.teardown();
+  }
+
+  /**
+   * Bucket 1 is flushed after window 1 while bucket 2 is not. On recovery only the changes of bucket 1 after its flush
+   * are replayed from the WAL, all changes of bucket 2 are replayed.
+   */
+  @Test
+  public void testWalRecoveryFromBucketPosition() throws IOException
+  {
+    File file = new File("target/hds");
+    FileUtils.deleteDirectory(file);
+
+    FileAccessFSImpl bfs = new MockFileAccess();
+    bfs.setBasePath(file.getAbsolutePath());
+    bfs.init();
+    ((MockFileAccess)bfs).disableChecksum();
+
+    HDHTWriter hds = new HDHTWriter();
+    hds.setFileStore(bfs);
+    hds.setFlushSize(2);
+    hds.setFlushIntervalCount(100);
+    hds.setup(new OperatorContextTestHelper.TestIdOperatorContext(1, new DefaultAttributeMap()));
+    hds.writeExecutor = MoreExecutors.sameThreadExecutor();
+
+    hds.beginWindow(1);
+    for (int key = 0; key < 3; key++) {
+      hds.put(1, getLongByteArray(key), getLongByteArray(100 + key).toByteArray());
+    }
+    hds.put(2, getLongByteArray(0), getLongByteArray(200).toByteArray());
+    hds.endWindow();
+    hds.checkpointed(1);
+    // flushes bucket 1 only
+    hds.committed(1);
+
+    hds.beginWindow(2);
+    hds.put(1, getLongByteArray(3), getLongByteArray(103).toByteArray());
+    hds.put(2, getLongByteArray(1), getLongByteArray(201).toByteArray());
+    hds.endWindow();
+    hds.checkpointed(2);
+    hds.forceWal();
+    HDHTWriter newOperator = KryoCloneUtils.cloneObject(new Kryo(), hds);
+
+    FileAccessFSImpl walFs = new MockFileAccess();
+    walFs.setBasePath(file.getAbsolutePath() + "/WAL/");
+    walFs.init();
+    ((MockFileAccess)walFs).disableChecksum();
+
+    newOperator.setFileStore(bfs);
+    newOperator.setWalStore(walFs);
+    newOperator.setup(new OperatorContextTestHelper.TestIdOperatorContext(1, new DefaultAttributeMap()));
+    newOperator.writeExecutor = MoreExecutors.sameThreadExecutor();
+
+    // first access triggers recovery
+    Assert.assertEquals("Changes of bucket 1 after flush", 1, newOperator.committedDataSize(1));
+    Assert.assertEquals("All changes of bucket 2", 2, newOperator.committedDataSize(2));
+    for (int key = 0; key < 3; key++) {
+      Assert.assertEquals("Bucket 1 key " + key, 100 + key, getLong(newOperator.get(1, getLongByteArray(key))));
+    }
+    Assert.assertEquals("Bucket 1 key 3", 103, getLong(newOperator.getUncommitted(1, getLongByteArray(3))));
+    Assert.assertEquals("Bucket 2 key 0", 200, getLong(newOperator.getUncommitted(2, getLongByteArray(0))));
+    Assert.assertEquals("Bucket 2 key 1", 201, getLong(newOperator.getUncommitted(2, getLongByteArray(1))));
+    newOperator.teardown();
+  }
+
   public long getLong(byte[] value) throws IOException
   {
     ByteBuffer bb = ByteBuffer.wrap(value);
@@ -742,4 +987,49 @@ public class WALTest
 
   private static final Logger logger = LoggerFactory.getLogger(WALTest.class);
 
+
+  /**
+   * Copy the files of a parent WAL with multiple threads and delete the files which are not needed for recovery.
+   */
+  @Test
+  public void testParallelWalCopy() throws IOException
+  {
+    FileUtils.deleteDirectory(file);
+    FileAccessFSImpl bfs = new MockFileAccess();
+    bfs.setBasePath(file.getAbsolutePath());
+    bfs.init();
+    ((MockFileAccess)bfs).disableChecksum();
+
+    HDHTWalManager parent = new HDHTWalManager(bfs, 1, new HDHTWalManager.WalPosition(0, 0));
+    parent.setMaxWalFileSize(1024);
+    for (int i = 0; i < 10; i++) {
+      for (int j = 0; j < 20; j++) {
+        parent.append(1, genRandomKey(50), genRandomByteArray(50));
+      }
+      parent.endWindow(i);
+    }
+    HDHTWalManager.WalPosition end = parent.getCurrentPosition();
+    parent.close();
+    Assert.assertEquals("file per window", 10, end.fileId);
+
+    HDHTWalManager.PreviousWALDetails parentWal = new HDHTWalManager.PreviousWALDetails(1,
+        new HDHTWalManager.WalPosition(0, 0), end, null, null, 9);
+    HDHTWalManager wal = new HDHTWalManager(bfs, 2, new HDHTWalManager.WalPosition(0, 0));
+    wal.setRecoveryThreads(4);
+    wal.copyPreviousWalFiles(Lists.newArrayList(parentWal), Sets.<HDHTWalManager.PreviousWALDetails>newHashSet());
+
+    long bytes = 0;
+    for (int i = 0; i < 10; i++) {
+      File parentFile = new File(file, "1/_WAL-" + i);
+      File copy = new File(file, "2/_WAL-" + i);
+      Assert.assertTrue("WAL file copied " + i, FileUtils.contentEquals(parentFile, copy));
+      bytes += parentFile.length();
+    }
+    Assert.assertEquals("bytes copied", bytes, wal.getCounters().bytesCopied);
+
+    parent.cleanup(5);
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals("WAL file exists " + i, i >= 5, new File(file, "1/_WAL-" + i).exists());
+    }
+  }
 }
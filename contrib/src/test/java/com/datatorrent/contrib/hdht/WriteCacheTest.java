@@ -0,0 +1,92 @@
+/**
+ * Copyright (c) 2016 DataTorrent, Inc.
+ * All rights reserved.
+ */
+package com.datatorrent.contrib.hdht;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+import com.datatorrent.netlet.util.Slice;
+
+public class WriteCacheTest
+{
+  private static Slice newKey(int i)
+  {
+    // keys with offset into a larger buffer
+    byte[] buffer = new byte[6];
+    buffer[1] = (byte)(i >> 24);
+    buffer[2] = (byte)(i >> 16);
+    buffer[3] = (byte)(i >> 8);
+    buffer[4] = (byte)i;
+    return new Slice(buffer, 1, 4);
+  }
+
+  @Test
+  public void testOffHeap()
+  {
+    OffHeapSliceMap.BufferPool pool = new OffHeapSliceMap.BufferPool(1024 * 1024);
+    WriteCache heap = new WriteCache(new HDHTReader.DefaultKeyComparator());
+    WriteCache offHeap = new WriteCache(new HDHTReader.DefaultKeyComparator(), pool);
+    Random random = new Random(0);
+
+    for (int i = 0; i < 100000; i++) {
+      Slice key = newKey(random.nextInt(5000));
+      int op = random.nextInt(10);
+      if (op < 6) {
+        byte[] value = new byte[random.nextInt(200)];
+        random.nextBytes(value);
+        if (value.length == 0) {
+          value = HDHTWriter.DELETED;
+        }
+        heap.put(key, value);
+        offHeap.put(key, value);
+      } else if (op < 8) {
+        heap.remove(key);
+        offHeap.remove(key);
+      } else {
+        byte[] value = offHeap.get(key);
+        Assert.assertArrayEquals("value " + i, heap.get(key), value);
+        if (value != null && value.length == 0) {
+          Assert.assertSame("deleted", HDHTWriter.DELETED, value);
+        }
+      }
+      Assert.assertEquals("size " + i, heap.size(), offHeap.size());
+      Assert.assertEquals("bytes " + i, heap.getBytes(), offHeap.getBytes());
+    }
+
+    offHeap.purge(newKey(1000), newKey(2000));
+    heap.purge(newKey(1000), newKey(2000));
+    Assert.assertEquals("size after purge", heap.size(), offHeap.size());
+    Assert.assertEquals("bytes after purge", heap.getBytes(), offHeap.getBytes());
+    Assert.assertSame("purged", HDHTWriter.DELETED, offHeap.get(newKey(1500)));
+
+    Map<Slice, byte[]> expected = Maps.newHashMap();
+    for (Map.Entry<Slice, byte[]> entry : heap.entrySet()) {
+      expected.put(new Slice(entry.getKey().toByteArray()), entry.getValue());
+    }
+    int count = 0;
+    for (Map.Entry<Slice, byte[]> entry : offHeap.entrySet()) {
+      Assert.assertArrayEquals("entry", expected.get(entry.getKey()), entry.getValue());
+      count++;
+    }
+    Assert.assertEquals("entries", expected.size(), count);
+
+    WriteCache merged = new WriteCache(new HDHTReader.DefaultKeyComparator(), pool);
+    merged.merge(offHeap);
+    Assert.assertEquals("merged bytes", offHeap.getBytes(), merged.getBytes());
+    Assert.assertSame("merged purge", HDHTWriter.DELETED, merged.get(newKey(1500)));
+
+    offHeap.clear();
+    offHeap.release();
+    Assert.assertEquals("size after clear", 0, offHeap.size());
+    Assert.assertEquals("bytes after clear", 0, offHeap.getBytes());
+    Assert.assertNull("cleared", offHeap.get(newKey(4000)));
+    Assert.assertTrue("chunks returned to pool", pool.getPooledBytes() > 0);
+  }
+}